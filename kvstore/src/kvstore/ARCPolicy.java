@@ -0,0 +1,182 @@
+package kvstore;
+
+import java.util.Arrays;
+
+/**
+ * Adaptive replacement (ARC) eviction. Each set keeps entries seen once
+ * since they entered the cache (T1) apart from entries hit again since
+ * (T2), both in LRU order, and remembers the hashes of keys recently evicted
+ * from each (B1 and B2). A miss on a key remembered in B1 means T1 was too
+ * small, and one in B2 that T2 was, so the target size of T1 moves towards
+ * whichever list would have kept the key, and the key goes straight to T2.
+ * The ghosts are looked up once per new key, however many entries a cache
+ * limited by bytes evicts to make room for it.
+ *
+ * Evicted keys are remembered by hash only, so a key whose hash collides
+ * with a remembered one can be mistaken for it; that only nudges the target
+ * size, never which value is returned. Remembered hashes are searched
+ * linearly, but only on a miss.
+ */
+public class ARCPolicy extends EvictionPolicy {
+
+    private static final int T1 = 0;
+    private static final int T2 = 1;
+    private static final int B1 = 0;
+    private static final int B2 = 1;
+    private static final int NONE = 2;
+    private static final int UNKNOWN = 3;
+
+    private SlotLists lists;
+    private boolean[] frequent;
+    private int[] hashes;
+    /* Target size of T1, per set */
+    private int[] target;
+    /* Which ghost list evict() found the incoming key in, and its hash, for
+     * further evictions and inserted() */
+    private int[] pending;
+    private int[] pendingHash;
+
+    /* B1 and B2 of each set, as rings of maxElemsPerSet hashes */
+    private int[] ghosts;
+    private int[] ghostStart;
+    private int[] ghostSize;
+
+    @Override
+    protected void init() {
+        int slots = numSets * maxElemsPerSet;
+        lists = new SlotLists(slots, numSets * 2);
+        frequent = new boolean[slots];
+        hashes = new int[slots];
+        target = new int[numSets];
+        pending = new int[numSets];
+        Arrays.fill(pending, UNKNOWN);
+        pendingHash = new int[numSets];
+        ghosts = new int[numSets * 2 * maxElemsPerSet];
+        ghostStart = new int[numSets * 2];
+        ghostSize = new int[numSets * 2];
+    }
+
+    @Override
+    public void hit(int set, int slot) {
+        if (frequent[slot]) {
+            lists.moveToLast(set * 2 + T2, slot);
+        } else {
+            lists.remove(set * 2 + T1, slot);
+            frequent[slot] = true;
+            lists.addLast(set * 2 + T2, slot);
+        }
+    }
+
+    @Override
+    public void inserted(int set, int slot, int hash) {
+        // a key evicted for, but then not cached, leaves its result behind
+        int ghost = (pendingHash[set] == hash) ? pending[set] : UNKNOWN;
+        pending[set] = UNKNOWN;
+        if (ghost == UNKNOWN) {
+            ghost = ghostHit(set, hash);
+            if (ghost == NONE) {
+                trimGhosts(set);
+            }
+        }
+        hashes[slot] = hash;
+        frequent[slot] = (ghost != NONE);
+        lists.addLast(set * 2 + (frequent[slot] ? T2 : T1), slot);
+    }
+
+    @Override
+    public void removed(int set, int slot) {
+        lists.remove(set * 2 + (frequent[slot] ? T2 : T1), slot);
+    }
+
+    @Override
+    public int evict(int set, int hash) {
+        if (pending[set] == UNKNOWN || pendingHash[set] != hash) {
+            pending[set] = ghostHit(set, hash);
+            pendingHash[set] = hash;
+        }
+        int ghost = pending[set];
+        if (ghost == NONE) {
+            if (lists.size(set * 2 + T1) == maxElemsPerSet) {
+                // T1 fills the set, so B1 is empty and there is no room to remember it
+                return lists.removeFirst(set * 2 + T1);
+            }
+            trimGhosts(set);
+        }
+        int t1 = lists.size(set * 2 + T1);
+        int slot;
+        if (t1 > 0 && (t1 > target[set] || (ghost == B2 && t1 == target[set])
+                || lists.size(set * 2 + T2) == 0)) {
+            slot = lists.removeFirst(set * 2 + T1);
+            ghostAdd(set * 2 + B1, hashes[slot]);
+        } else {
+            slot = lists.removeFirst(set * 2 + T2);
+            ghostAdd(set * 2 + B2, hashes[slot]);
+        }
+        return slot;
+    }
+
+    @Override
+    public boolean isReferenced(int set, int slot) {
+        return frequent[slot];
+    }
+
+    /* Looks for a missed key among the evicted ones, adapting the target
+     * size of T1 and forgetting the key if found. */
+    private int ghostHit(int set, int hash) {
+        int b1 = ghostSize[set * 2 + B1];
+        int b2 = ghostSize[set * 2 + B2];
+        if (ghostRemove(set * 2 + B1, hash)) {
+            target[set] = Math.min(maxElemsPerSet, target[set] + Math.max(1, b2 / b1));
+            return B1;
+        }
+        if (ghostRemove(set * 2 + B2, hash)) {
+            target[set] = Math.max(0, target[set] - Math.max(1, b1 / b2));
+            return B2;
+        }
+        return NONE;
+    }
+
+    /* Makes room to remember one more evicted key and cache one more new one:
+     * T1 and B1 together, and all four lists together, must stay within one
+     * and two set sizes. */
+    private void trimGhosts(int set) {
+        int c = maxElemsPerSet;
+        if (lists.size(set * 2 + T1) + ghostSize[set * 2 + B1] >= c && ghostSize[set * 2 + B1] > 0) {
+            ghostRemoveFirst(set * 2 + B1);
+        }
+        int total = lists.size(set * 2 + T1) + lists.size(set * 2 + T2)
+                + ghostSize[set * 2 + B1] + ghostSize[set * 2 + B2];
+        if (total >= 2 * c) {
+            ghostRemoveFirst(ghostSize[set * 2 + B2] > 0 ? set * 2 + B2 : set * 2 + B1);
+        }
+    }
+
+    private void ghostAdd(int ghost, int hash) {
+        int c = maxElemsPerSet;
+        if (ghostSize[ghost] == c) {
+            ghostRemoveFirst(ghost);
+        }
+        ghosts[ghost * c + (ghostStart[ghost] + ghostSize[ghost]) % c] = hash;
+        ghostSize[ghost]++;
+    }
+
+    private void ghostRemoveFirst(int ghost) {
+        ghostStart[ghost] = (ghostStart[ghost] + 1) % maxElemsPerSet;
+        ghostSize[ghost]--;
+    }
+
+    private boolean ghostRemove(int ghost, int hash) {
+        int c = maxElemsPerSet;
+        int base = ghost * c;
+        for (int i = 0; i < ghostSize[ghost]; i++) {
+            if (ghosts[base + (ghostStart[ghost] + i) % c] == hash) {
+                for (int j = i + 1; j < ghostSize[ghost]; j++) {
+                    ghosts[base + (ghostStart[ghost] + j - 1) % c] = ghosts[base + (ghostStart[ghost] + j) % c];
+                }
+                ghostSize[ghost]--;
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,833 @@
+package kvstore;
+
+import static kvstore.KVConstants.ERROR_NO_SUCH_KEY;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+
+/**
+ * A KVStore kept on disk in the manner of Bitcask. Every put and del is
+ * appended as a record to the active data file, and an in-memory keydir
+ * maps each key to the file, offset and length of its latest value, so a
+ * get is one positional read. Once the active file reaches maxFileSize it
+ * is closed to writes and a new one started.
+ *
+ * A record is a CRC32 of the rest of it, the lengths of the key and value
+ * (-1 for a del), when the pair expires (0 if never), and the UTF-8 bytes
+ * of the key and value. The keydir keeps the deadline too. Overwritten and deleted
+ * records stay in their files as dead bytes until a merge copies the live
+ * records of all closed files into one file, with a hint file beside it
+ * that lists its keys and where their values are, and deletes the rest.
+ * A merge starts in the background once dead bytes make up half the data
+ * and at least a file's worth, and can also be run with merge(). If a
+ * merge in the background fails, the next put, get, del or close throws
+ * its failure before doing anything, and later ones go on as before.
+ *
+ * On opening, each data file is read through its hint file if it has one,
+ * or record by record otherwise, older files first. Only the newest file
+ * was being written when the store was last closed or crashed, so only
+ * there is a bad record taken for a torn end and cut off, with whatever
+ * follows it. In an older file, a record whose checksum does not match is
+ * skipped and the records after it still read, and one whose lengths
+ * cannot be right fails the open, as nothing after it can be found. Writes
+ * are only forced to disk if the store was opened with sync.
+ *
+ * Puts and dels are serialized by one lock; gets take none. Failures to
+ * read or write the files are thrown as IllegalStateException, since a
+ * KVStore has no way to report them.
+ */
+public class BitcaskKVStore extends KVStore {
+
+    /** Default size at which the active data file is closed. */
+    public static final long DEFAULT_MAX_FILE_SIZE = 64L << 20;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int HEADER = 20;
+    private static final int HINT_HEADER = 24;
+    private static final int TOMBSTONE = -1;
+    private static final String DATA = ".data";
+    private static final String HINT = ".hint";
+    private static final String MERGE = ".merge";
+    private static final String TMP = ".tmp";
+
+    private File dir;
+    private long maxFileSize;
+    private boolean sync;
+
+    /* Where the latest value of each key is */
+    private ConcurrentHashMap<String, Location> keydir;
+    /* Data files by number; the last is the active one */
+    private ConcurrentSkipListMap<Integer, DataFile> files;
+    private DataFile active;
+    private Object writeLock;
+    private Object mergeLock;
+    /* Bytes in all data files, and in records no longer in the keydir */
+    private AtomicLong diskBytes;
+    private AtomicLong deadBytes;
+    private AtomicBoolean merging;
+    /* Why the last merge in the background failed, until it is reported */
+    private AtomicReference<IOException> mergeFailure;
+
+    /* An open data file */
+    private static class DataFile {
+        final int id;
+        final FileChannel channel;
+        /* Bytes written; only grows while the file is active */
+        long size;
+        /* Bytes in records of this file no longer in the keydir */
+        final AtomicLong dead = new AtomicLong();
+
+        DataFile(int id, File file) throws IOException {
+            this.id = id;
+            this.channel = new RandomAccessFile(file, "rw").getChannel();
+            this.size = channel.size();
+        }
+    }
+
+    /* Where a record is */
+    private static class Location {
+        final DataFile file;
+        final long offset;
+        final int keyLength;
+        final int valueLength;
+        final long expiresAt;
+
+        Location(DataFile file, long offset, int keyLength, int valueLength, long expiresAt) {
+            this.file = file;
+            this.offset = offset;
+            this.keyLength = keyLength;
+            this.valueLength = valueLength;
+            this.expiresAt = expiresAt;
+        }
+
+        int recordLength() {
+            return HEADER + keyLength + valueLength;
+        }
+    }
+
+    /**
+     * Opens the store kept in a directory, creating it if need be, with
+     * data files of DEFAULT_MAX_FILE_SIZE and writes left to the OS to
+     * flush.
+     *
+     * @param dir directory of the data and hint files
+     * @throws IOException if the files cannot be read
+     */
+    public BitcaskKVStore(File dir) throws IOException {
+        this(dir, DEFAULT_MAX_FILE_SIZE, false);
+    }
+
+    /**
+     * Opens the store kept in a directory, creating it if need be.
+     *
+     * @param dir directory of the data and hint files
+     * @param maxFileSize size at which the active data file is closed
+     * @param sync whether to force every put and del to disk before
+     *        returning
+     * @throws IOException if the files cannot be read
+     */
+    public BitcaskKVStore(File dir, long maxFileSize, boolean sync) throws IOException {
+        this.dir = dir;
+        this.maxFileSize = maxFileSize;
+        this.sync = sync;
+        keydir = new ConcurrentHashMap<String, Location>();
+        files = new ConcurrentSkipListMap<Integer, DataFile>();
+        writeLock = new Object();
+        mergeLock = new Object();
+        diskBytes = new AtomicLong();
+        deadBytes = new AtomicLong();
+        merging = new AtomicBoolean();
+        mergeFailure = new AtomicReference<IOException>();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        open();
+    }
+
+    /**
+     * Deletes every pair, and the files holding them. Also called by the
+     * KVStore constructor, before the fields of this class are set.
+     */
+    @Override
+    public void resetStore() {
+        super.resetStore();
+        if (dir == null) {
+            return;
+        }
+        synchronized (mergeLock) {
+            synchronized (writeLock) {
+                try {
+                    for (DataFile file : files.values()) {
+                        file.channel.close();
+                    }
+                    for (File file : listFiles()) {
+                        Files.delete(file.toPath());
+                    }
+                    keydir.clear();
+                    files.clear();
+                    diskBytes.set(0);
+                    deadBytes.set(0);
+                    startActive(1);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Cannot clear " + dir, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Insert key, value pair into the store.
+     *
+     * @param  key String key
+     * @param  value String value
+     */
+    @Override
+    public void put(String key, String value) {
+        put(key, value, 0);
+    }
+
+    /**
+     * Insert a key, value pair into the store, with when it expires in its
+     * record.
+     *
+     * @param  key String key
+     * @param  value String value
+     * @param  expiresAt System.currentTimeMillis() at which the pair
+     *         expires, or 0 if it never does
+     */
+    @Override
+    public void put(String key, String value, long expiresAt) {
+        checkMerge();
+        byte[] k = key.getBytes(UTF_8);
+        byte[] v = value.getBytes(UTF_8);
+        synchronized (writeLock) {
+            try {
+                long offset = append(encode(k, v, v.length, expiresAt));
+                forget(keydir.put(key, new Location(active, offset, k.length, v.length, expiresAt)));
+                rotateIfFull();
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot write to " + dir, e);
+            }
+        }
+        mergeIfWorthIt();
+    }
+
+    /**
+     * Retrieve the value corresponding to the provided key
+     * @param  key String key
+     * @throws KVException with ERROR_NO_SUCH_KEY if key does not exist in store
+     */
+    @Override
+    public String get(String key) throws KVException {
+        checkMerge();
+        while (true) {
+            Location location = keydir.get(key);
+            if (location == null) {
+                KVMessage msg = new KVMessage(KVConstants.RESP, ERROR_NO_SUCH_KEY);
+                throw new KVException(msg);
+            }
+            try {
+                return readValue(location);
+            } catch (ClosedChannelException e) {
+                // a merge moved the value meanwhile; look it up again
+                if (keydir.get(key) == location) {
+                    throw new IllegalStateException("Cannot read from " + dir, e);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot read from " + dir, e);
+            }
+        }
+    }
+
+    /**
+     * Delete the value corresponding to the provided key.
+     *
+     * @param  key String key
+     * @throws KVException with ERROR_NO_SUCH_KEY if key does not exist in store
+     */
+    @Override
+    public void del(String key) throws KVException {
+        if (key == null) {
+            return;
+        }
+        checkMerge();
+        synchronized (writeLock) {
+            if (!keydir.containsKey(key)) {
+                KVMessage msg = new KVMessage(KVConstants.RESP, ERROR_NO_SUCH_KEY);
+                throw new KVException(msg);
+            }
+            try {
+                byte[] k = key.getBytes(UTF_8);
+                byte[] record = encode(k, null, TOMBSTONE, 0);
+                append(record);
+                // the tombstone is only needed until a merge
+                active.dead.addAndGet(record.length);
+                deadBytes.addAndGet(record.length);
+                forget(keydir.remove(key));
+                rotateIfFull();
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot write to " + dir, e);
+            }
+        }
+        mergeIfWorthIt();
+    }
+
+    /**
+     * @param  key String key
+     * @return when the pair expires, from the keydir, or 0 if it never does
+     *         or is not in the store
+     */
+    @Override
+    public long getExpiresAt(String key) {
+        Location location = keydir.get(key);
+        return (location == null) ? 0 : location.expiresAt;
+    }
+
+    /**
+     * @return the deadlines in the keydir, copied
+     */
+    @Override
+    protected Map<String, Long> deadlines() {
+        Map<String, Long> deadlines = new HashMap<String, Long>();
+        for (Entry<String, Location> e : keydir.entrySet()) {
+            if (e.getValue().expiresAt != 0) {
+                deadlines.put(e.getKey(), e.getValue().expiresAt);
+            }
+        }
+        return deadlines;
+    }
+
+    /**
+     * Checks for a key in the keydir alone, without reading its value.
+     *
+     * @param key key to check for
+     * @return whether the store has the key
+     */
+    @Override
+    public boolean hasKey(String key) {
+        return keydir.containsKey(key);
+    }
+
+    /**
+     * Picks the keys of a range from the keydir, and reads only the values
+     * of those it returns.
+     *
+     * @param  start first key of the range
+     * @param  end first key past the range, or null for no end
+     * @param  limit most pairs to return
+     * @return up to limit pairs, the smallest keys from start on
+     */
+    @Override
+    public List<Entry<String, String>> scan(String start, String end, int limit) {
+        TreeSet<String> keys = new TreeSet<String>();
+        for (String key : keydir.keySet()) {
+            if (key.compareTo(start) < 0 || (end != null && key.compareTo(end) >= 0)) {
+                continue;
+            }
+            if (keys.size() == limit) {
+                if (limit == 0 || key.compareTo(keys.last()) > 0) {
+                    continue;
+                }
+                keys.pollLast();
+            }
+            keys.add(key);
+        }
+        List<Entry<String, String>> pairs = new ArrayList<Entry<String, String>>();
+        for (String key : keys) {
+            try {
+                pairs.add(new SimpleImmutableEntry<String, String>(key, get(key)));
+            } catch (KVException e) {
+                // deleted meanwhile
+            }
+        }
+        return pairs;
+    }
+
+    /**
+     * @return the keys in the keydir, without reading their values
+     */
+    @Override
+    protected Iterable<String> keys() {
+        return keydir.keySet();
+    }
+
+    /**
+     * Reads each value as the walk of the keydir reaches it, so a pair put
+     * or deleted meanwhile may or may not be seen; a merge does not stop it.
+     *
+     * @return a snapshot of the pairs, which need not be closed
+     */
+    @Override
+    public Snapshot snapshot() {
+        return new Snapshot(entries());
+    }
+
+    /**
+     * @return the pairs in the store, read from disk one at a time
+     */
+    @Override
+    protected Iterable<Entry<String, String>> entries() {
+        return new Iterable<Entry<String, String>>() {
+            @Override
+            public Iterator<Entry<String, String>> iterator() {
+                return new PairIterator(keydir.keySet().iterator());
+            }
+        };
+    }
+
+    /* Reads the value of each key as it is reached, skipping keys deleted
+     * since the iteration began. */
+    private class PairIterator implements Iterator<Entry<String, String>> {
+        private Iterator<String> keys;
+        private Entry<String, String> next;
+
+        PairIterator(Iterator<String> keys) {
+            this.keys = keys;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && keys.hasNext()) {
+                String key = keys.next();
+                try {
+                    next = new SimpleImmutableEntry<String, String>(key, get(key));
+                } catch (KVException e) {
+                    // deleted meanwhile
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public Entry<String, String> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Entry<String, String> entry = next;
+            next = null;
+            return entry;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Copies the live records of every data file but the active one into a
+     * single new file, with a hint file, and deletes the files they came
+     * from. Puts, dels and gets go on meanwhile.
+     *
+     * @throws IOException if the files cannot be read or written
+     */
+    public void merge() throws IOException {
+        synchronized (mergeLock) {
+            List<DataFile> inputs;
+            synchronized (writeLock) {
+                // seal the active file, so that everything so far is merged
+                if (active.size > 0) {
+                    startActive(active.id + 1);
+                }
+                inputs = new ArrayList<DataFile>(files.headMap(active.id).values());
+            }
+            if (inputs.isEmpty()) {
+                return;
+            }
+            int id = inputs.get(inputs.size() - 1).id;
+            Set<DataFile> merged = new HashSet<DataFile>(inputs);
+            File tmp = file(id, MERGE + TMP);
+            Files.deleteIfExists(tmp.toPath());
+            DataFile out = new DataFile(id, tmp);
+            List<String> keys = new ArrayList<String>();
+            List<Location> from = new ArrayList<Location>();
+            List<Location> to = new ArrayList<Location>();
+            ByteArrayOutputStream hints = new ByteArrayOutputStream();
+            DataOutputStream hintOut = new DataOutputStream(hints);
+            for (Entry<String, Location> e : keydir.entrySet()) {
+                Location location = e.getValue();
+                if (!merged.contains(location.file)) {
+                    continue;
+                }
+                ByteBuffer record = ByteBuffer.allocate(location.recordLength());
+                readFully(location.file.channel, record, location.offset);
+                record.flip();
+                long offset = out.size;
+                writeFully(out.channel, record, offset);
+                out.size += location.recordLength();
+                keys.add(e.getKey());
+                from.add(location);
+                to.add(new Location(out, offset, location.keyLength, location.valueLength,
+                        location.expiresAt));
+                hintOut.writeInt(location.keyLength);
+                hintOut.writeInt(location.valueLength);
+                hintOut.writeLong(offset);
+                hintOut.writeLong(location.expiresAt);
+                hintOut.write(e.getKey().getBytes(UTF_8));
+            }
+            out.channel.force(true);
+            // from here on the merge is finished on reopening, if not now
+            Files.move(tmp.toPath(), file(id, MERGE).toPath(), StandardCopyOption.ATOMIC_MOVE);
+            finishMerge(id);
+            writeHints(id, hints.toByteArray());
+
+            long before = 0;
+            for (DataFile input : inputs) {
+                before += input.size;
+            }
+            diskBytes.addAndGet(out.size - before);
+            files.put(id, out);
+            for (DataFile input : inputs) {
+                if (input.id != id) {
+                    files.remove(input.id);
+                }
+            }
+            for (int i = 0; i < keys.size(); i++) {
+                if (!keydir.replace(keys.get(i), from.get(i), to.get(i))) {
+                    // overwritten or deleted since it was copied
+                    out.dead.addAndGet(to.get(i).recordLength());
+                    deadBytes.addAndGet(to.get(i).recordLength());
+                }
+            }
+            for (DataFile input : inputs) {
+                deadBytes.addAndGet(-input.dead.get());
+                input.channel.close();
+            }
+        }
+    }
+
+    /**
+     * Closes the data files. The store cannot be used afterwards.
+     *
+     * @throws IOException if a file cannot be closed, or a merge in the
+     *         background failed since it was last reported
+     */
+    public void close() throws IOException {
+        synchronized (mergeLock) {
+            synchronized (writeLock) {
+                for (DataFile file : files.values()) {
+                    file.channel.close();
+                }
+            }
+        }
+        IOException failure = mergeFailure.getAndSet(null);
+        if (failure != null) {
+            throw new IOException("Cannot merge " + dir, failure);
+        }
+    }
+
+    /**
+     * @return the number of data files, including the active one
+     */
+    int getFileCount() {
+        return files.size();
+    }
+
+    /**
+     * @return bytes in the data files held by overwritten or deleted pairs
+     */
+    public long getDeadBytes() {
+        return deadBytes.get();
+    }
+
+    /**
+     * @return bytes in all data files
+     */
+    public long getDiskBytes() {
+        return diskBytes.get();
+    }
+
+    private void open() throws IOException {
+        for (File file : listFiles()) {
+            String name = file.getName();
+            if (name.endsWith(TMP)) {
+                Files.delete(file.toPath());
+            }
+        }
+        for (File file : listFiles()) {
+            if (file.getName().endsWith(MERGE)) {
+                finishMerge(idOf(file));
+            }
+        }
+        int last = 0;
+        for (File file : listFiles()) {
+            if (file.getName().endsWith(DATA)) {
+                int id = idOf(file);
+                DataFile data = new DataFile(id, file);
+                files.put(id, data);
+                diskBytes.addAndGet(data.size);
+                last = Math.max(last, id);
+            }
+        }
+        // the file written last, empty ones aside, may end in a torn record
+        int newest = 0;
+        for (DataFile data : files.values()) {
+            if (data.size > 0) {
+                newest = data.id;
+            }
+        }
+        try {
+            for (DataFile data : files.values()) {
+                File hints = file(data.id, HINT);
+                if (hints.exists()) {
+                    loadHints(data, hints);
+                } else {
+                    scan(data, data.id == newest);
+                }
+            }
+        } catch (IOException e) {
+            for (DataFile data : files.values()) {
+                data.channel.close();
+            }
+            throw e;
+        }
+        startActive(last + 1);
+    }
+
+    /* Reads the records of a data file into the keydir. In the newest file
+     * a bad record is taken for a torn end and cut off; see the class
+     * comment for older ones. */
+    private void scan(DataFile data, boolean newest) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        long position = 0;
+        while (position + HEADER <= data.size) {
+            header.clear();
+            readFully(data.channel, header, position);
+            header.flip();
+            int crc = header.getInt();
+            int keyLength = header.getInt();
+            int valueLength = header.getInt();
+            long expiresAt = header.getLong();
+            int length = HEADER + keyLength + Math.max(valueLength, 0);
+            if (keyLength < 0 || valueLength < TOMBSTONE || position + length > data.size) {
+                if (newest) {
+                    break;
+                }
+                throw new IOException("Damaged record at " + position + " of " + file(data.id, DATA));
+            }
+            ByteBuffer body = ByteBuffer.allocate(keyLength + Math.max(valueLength, 0));
+            readFully(data.channel, body, position + HEADER);
+            CRC32 checksum = new CRC32();
+            checksum.update(header.array(), 4, HEADER - 4);
+            checksum.update(body.array());
+            if ((int) checksum.getValue() != crc) {
+                if (newest) {
+                    break;
+                }
+                // left for a merge to drop
+                data.dead.addAndGet(length);
+                deadBytes.addAndGet(length);
+                position += length;
+                continue;
+            }
+            String key = new String(body.array(), 0, keyLength, UTF_8);
+            if (valueLength == TOMBSTONE) {
+                data.dead.addAndGet(length);
+                deadBytes.addAndGet(length);
+                forget(keydir.remove(key));
+            } else {
+                forget(keydir.put(key, new Location(data, position, keyLength, valueLength, expiresAt)));
+            }
+            position += length;
+        }
+        if (position < data.size) {
+            if (!newest) {
+                throw new IOException("Damaged record at " + position + " of " + file(data.id, DATA));
+            }
+            data.channel.truncate(position);
+            diskBytes.addAndGet(position - data.size);
+            data.size = position;
+        }
+    }
+
+    private void loadHints(DataFile data, File hints) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(hints.toPath()));
+        while (buf.remaining() >= HINT_HEADER) {
+            int keyLength = buf.getInt();
+            int valueLength = buf.getInt();
+            long offset = buf.getLong();
+            long expiresAt = buf.getLong();
+            String key = new String(buf.array(), buf.position(), keyLength, UTF_8);
+            buf.position(buf.position() + keyLength);
+            forget(keydir.put(key, new Location(data, offset, keyLength, valueLength, expiresAt)));
+        }
+    }
+
+    private void writeHints(int id, byte[] hints) throws IOException {
+        File tmp = file(id, HINT + TMP);
+        FileChannel channel = new RandomAccessFile(tmp, "rw").getChannel();
+        try {
+            writeFully(channel, ByteBuffer.wrap(hints), 0);
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+        Files.move(tmp.toPath(), file(id, HINT).toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /* Replaces the files a merge read, all those numbered up to id, by the
+     * file it wrote. */
+    private void finishMerge(int id) throws IOException {
+        for (File file : listFiles()) {
+            String name = file.getName();
+            if (idOf(file) < id && (name.endsWith(DATA) || name.endsWith(HINT))) {
+                Files.delete(file.toPath());
+            }
+        }
+        Files.deleteIfExists(file(id, HINT).toPath());
+        Files.move(file(id, MERGE).toPath(), file(id, DATA).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /* Starts a merge on a thread of its own if enough of the data is dead. */
+    private void mergeIfWorthIt() {
+        long dead = deadBytes.get();
+        if (dead < maxFileSize || dead * 2 < diskBytes.get() || !merging.compareAndSet(false, true)) {
+            return;
+        }
+        Thread merger = new Thread("BitcaskKVStore-merge") {
+            @Override
+            public void run() {
+                try {
+                    merge();
+                } catch (IOException e) {
+                    mergeFailure.compareAndSet(null, e);
+                } finally {
+                    merging.set(false);
+                }
+            }
+        };
+        merger.setDaemon(true);
+        merger.start();
+    }
+
+    /* Throws the failure of a merge in the background, once. */
+    private void checkMerge() {
+        IOException failure = mergeFailure.getAndSet(null);
+        if (failure != null) {
+            throw new IllegalStateException("Cannot merge " + dir, failure);
+        }
+    }
+
+    /* Counts the record a key no longer points to as dead. */
+    private void forget(Location old) {
+        if (old != null) {
+            old.file.dead.addAndGet(old.recordLength());
+            deadBytes.addAndGet(old.recordLength());
+        }
+    }
+
+    private String readValue(Location location) throws IOException {
+        ByteBuffer value = ByteBuffer.allocate(location.valueLength);
+        readFully(location.file.channel, value, location.offset + HEADER + location.keyLength);
+        return new String(value.array(), UTF_8);
+    }
+
+    /* Appends a record to the active file; called under writeLock. */
+    private long append(byte[] record) throws IOException {
+        long offset = active.size;
+        writeFully(active.channel, ByteBuffer.wrap(record), offset);
+        if (sync) {
+            active.channel.force(false);
+        }
+        active.size += record.length;
+        diskBytes.addAndGet(record.length);
+        return offset;
+    }
+
+    private void rotateIfFull() throws IOException {
+        if (active.size >= maxFileSize) {
+            startActive(active.id + 1);
+        }
+    }
+
+    private void startActive(int id) throws IOException {
+        active = new DataFile(id, file(id, DATA));
+        files.put(id, active);
+    }
+
+    private static byte[] encode(byte[] key, byte[] value, int valueLength, long expiresAt) {
+        ByteBuffer record = ByteBuffer.allocate(HEADER + key.length + Math.max(valueLength, 0));
+        record.putInt(0);
+        record.putInt(key.length);
+        record.putInt(valueLength);
+        record.putLong(expiresAt);
+        record.put(key);
+        if (value != null) {
+            record.put(value);
+        }
+        CRC32 checksum = new CRC32();
+        checksum.update(record.array(), 4, record.capacity() - 4);
+        record.putInt(0, (int) checksum.getValue());
+        return record.array();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long position)
+            throws IOException {
+        while (buf.hasRemaining()) {
+            int read = channel.read(buf, position);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            position += read;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf, long position)
+            throws IOException {
+        while (buf.hasRemaining()) {
+            position += channel.write(buf, position);
+        }
+    }
+
+    private File[] listFiles() {
+        File[] all = dir.listFiles();
+        if (all == null) {
+            return new File[0];
+        }
+        Arrays.sort(all);
+        return all;
+    }
+
+    private File file(int id, String extension) {
+        return new File(dir, String.format("%09d", id) + extension);
+    }
+
+    private static int idOf(File file) {
+        String name = file.getName();
+        int dot = name.indexOf('.');
+        try {
+            return Integer.parseInt(name.substring(0, (dot < 0) ? name.length() : dot));
+        } catch (NumberFormatException e) {
+            return Integer.MAX_VALUE;
+        }
+    }
+}
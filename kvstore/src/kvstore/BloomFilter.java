@@ -0,0 +1,148 @@
+package kvstore;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Tells whether a key may be in a set of keys, in a few bits per key, so
+ * that most lookups of keys that are not there can be answered without
+ * reading the set itself. It never says no to a key that was added, and
+ * says yes to one that was not with a probability that falls as bitsPerKey
+ * grows: about 1% at 10 bits per key.
+ *
+ * Each key sets numHashes bits, chosen by double hashing a 64-bit hash of
+ * it. Bits are set atomically, so keys may be added while other threads
+ * add keys or look them up, and a key is seen by lookups once add()
+ * returns.
+ */
+public class BloomFilter {
+
+    private AtomicLongArray bits;
+    private int numBits;
+    private int numHashes;
+
+    /**
+     * Constructs an empty filter sized for a number of keys.
+     *
+     * @param expectedKeys number of keys that will be added
+     * @param bitsPerKey bits to spend on each key
+     */
+    public BloomFilter(int expectedKeys, int bitsPerKey) {
+        long wanted = Math.max(64, (long) expectedKeys * bitsPerKey);
+        bits = new AtomicLongArray((int) Math.min(Integer.MAX_VALUE / 64, (wanted + 63) / 64));
+        numBits = bits.length() * 64;
+        // the number of hashes that gives the fewest false positives
+        numHashes = (int) Math.max(1, Math.min(30, Math.round(bitsPerKey * Math.log(2))));
+    }
+
+    private BloomFilter(AtomicLongArray bits, int numHashes) {
+        this.bits = bits;
+        this.numBits = bits.length() * 64;
+        this.numHashes = numHashes;
+    }
+
+    /**
+     * Adds a key.
+     *
+     * @param key the key
+     */
+    public void add(String key) {
+        add(hash(key));
+    }
+
+    /**
+     * Adds a key by its hash, as computed by hash().
+     *
+     * @param hash hash of the key
+     */
+    public void add(long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < numHashes; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+            long mask = 1L << bit;
+            long word;
+            do {
+                word = bits.get(bit >>> 6);
+            } while ((word & mask) == 0 && !bits.compareAndSet(bit >>> 6, word, word | mask));
+        }
+    }
+
+    /**
+     * @param key the key
+     * @return false if the key was certainly never added
+     */
+    public boolean mightContain(String key) {
+        long hash = hash(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < numHashes; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+            if ((bits.get(bit >>> 6) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return bytes taken by the filter's bits
+     */
+    public int sizeInBytes() {
+        return bits.length() * 8;
+    }
+
+    /**
+     * Writes the filter in a form readFrom() reads back.
+     *
+     * @param out where to write
+     * @throws IOException if out cannot be written
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(numHashes);
+        out.writeInt(bits.length());
+        for (int i = 0; i < bits.length(); i++) {
+            out.writeLong(bits.get(i));
+        }
+    }
+
+    /**
+     * Reads a filter written by writeTo().
+     *
+     * @param in where to read
+     * @return the filter
+     * @throws IOException if in cannot be read
+     */
+    public static BloomFilter readFrom(DataInput in) throws IOException {
+        int numHashes = in.readInt();
+        AtomicLongArray bits = new AtomicLongArray(in.readInt());
+        for (int i = 0; i < bits.length(); i++) {
+            bits.set(i, in.readLong());
+        }
+        return new BloomFilter(bits, numHashes);
+    }
+
+    /**
+     * Hashes a key with 64-bit FNV-1a, followed by the finalizer of
+     * MurmurHash3 to spread its bits, since the two halves are used as
+     * separate hashes.
+     *
+     * @param key the key
+     * @return a 64-bit hash of it
+     */
+    public static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
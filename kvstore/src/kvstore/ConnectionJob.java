@@ -0,0 +1,117 @@
+package kvstore;
+
+import java.net.Socket;
+
+/**
+ * Serves the requests arriving on one connection, on the workers of a
+ * ThreadPool. A one-shot connection is served in a single run once its
+ * request starts to arrive. A framed connection only holds a worker while
+ * requests arrive: before the first one and between them it is parked with
+ * the IdleWatcher, and queued again once the next request starts to arrive,
+ * so an idle persistent client never keeps other clients waiting. A
+ * connection the watcher cannot take keeps its worker, as it always did.
+ */
+abstract class ConnectionJob implements Runnable {
+
+    /* How long a request that has started to arrive may take to finish */
+    static final int FRAME_TIMEOUT = 3000;
+
+    private final Socket sock;
+    private final ThreadPool pool;
+    /* Made by the first run, and taken up again by the next ones */
+    private KVConnection conn;
+    private boolean accepted;
+    /* Set once the watcher saw the next request start to arrive */
+    private volatile boolean ready;
+
+    /* The job queued again by the watcher, which is never shed */
+    private final Runnable continuation = new Runnable() {
+        @Override
+        public void run() {
+            ConnectionJob.this.run();
+        }
+    };
+
+    private final Runnable resume = new Runnable() {
+        @Override
+        public void run() {
+            ready = true;
+            try {
+                pool.addJob(continuation);
+            } catch (IllegalStateException e) {
+                // the pool was shut down
+                conn.close();
+            }
+        }
+    };
+
+    /**
+     * @param sock Socket connected to the other endpoint
+     * @param pool ThreadPool the job runs on, and is queued on again
+     */
+    ConnectionJob(Socket sock, ThreadPool pool) {
+        this.sock = sock;
+        this.pool = pool;
+    }
+
+    /**
+     * Carries out a request.
+     *
+     * @param request KVMessage holding the request
+     * @return KVMessage holding the response to send back
+     */
+    protected abstract KVMessage respond(KVMessage request);
+
+    /**
+     * Serves requests until the connection is idle, closed or one-shot. The
+     * delivery of a response is best-effort.
+     */
+    @Override
+    public void run() {
+        boolean parked = false;
+        try {
+            if (conn == null) {
+                conn = new KVConnection(sock);
+            }
+            if (!accepted) {
+                // a client that has not said anything yet is just as idle
+                if (!ready && !conn.hasBufferedInput() && IdleWatcher.park(conn, resume)) {
+                    parked = true;
+                    return;
+                }
+                ready = false;
+                conn.accept();
+                accepted = true;
+            }
+            while (true) {
+                int timeout = 0;
+                if (conn.isFramed()) {
+                    if (ready || conn.hasBufferedInput()) {
+                        timeout = FRAME_TIMEOUT;
+                    } else if (IdleWatcher.park(conn, resume)) {
+                        parked = true;
+                        return;
+                    }
+                    ready = false;
+                }
+                KVMessage msg = conn.receive(timeout);
+                if (msg == null) {
+                    break;
+                }
+                conn.send(respond(msg));
+                if (!conn.isFramed()) {
+                    break;
+                }
+            }
+        } catch (KVException kve) {
+            try {
+                conn.send(kve.getKVMessage());
+            } catch (KVException e) {
+            }
+        } finally {
+            if (!parked && conn.isFramed()) {
+                conn.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package kvstore;
+
+/**
+ * Decides which entry a KVCache drops when a full set takes a new key.
+ *
+ * A policy sees the cache as slots: set s of a cache with maxElemsPerSet
+ * entries per set owns slots s * maxElemsPerSet up to, but not including,
+ * (s + 1) * maxElemsPerSet, and an entry keeps its slot until it is deleted
+ * or evicted. The cache calls the hooks below under the lock of the set
+ * concerned, so a policy that only keeps state per set needs no locking of
+ * its own, unless it allows optimistic hits.
+ *
+ * Each KVCache needs a policy instance of its own, and gets a fresh one from
+ * newInstance() for each resize.
+ */
+public abstract class EvictionPolicy {
+
+    protected int numSets;
+    protected int maxElemsPerSet;
+    private boolean attached;
+
+    /**
+     * Returns a new policy by name: "second-chance" (the default), "lru",
+     * "tinylfu" or "arc".
+     *
+     * @param name name of the policy
+     * @return a new, unattached policy
+     * @throws IllegalArgumentException if no policy has that name
+     */
+    public static EvictionPolicy forName(String name) {
+        if ("second-chance".equals(name)) {
+            return new SecondChancePolicy();
+        } else if ("lru".equals(name)) {
+            return new LRUPolicy();
+        } else if ("tinylfu".equals(name)) {
+            return new TinyLFUPolicy();
+        } else if ("arc".equals(name)) {
+            return new ARCPolicy();
+        }
+        throw new IllegalArgumentException("No eviction policy named " + name);
+    }
+
+    /**
+     * Called once by the KVCache this policy is given to, before any other
+     * hook.
+     *
+     * @param numSets the number of sets in the cache
+     * @param maxElemsPerSet the size of each set
+     * @throws IllegalStateException if the policy already belongs to a cache
+     */
+    void attach(int numSets, int maxElemsPerSet) {
+        if (attached) {
+            throw new IllegalStateException("EvictionPolicy already in use by a KVCache");
+        }
+        attached = true;
+        this.numSets = numSets;
+        this.maxElemsPerSet = maxElemsPerSet;
+        init();
+    }
+
+    /**
+     * Allocates the policy's state once numSets and maxElemsPerSet are known.
+     */
+    protected abstract void init();
+
+    /**
+     * Returns a new, unattached policy of the same kind, for a KVCache to
+     * use once it is resized. Policies without a public no-argument
+     * constructor must override this.
+     *
+     * @return a new policy
+     */
+    protected EvictionPolicy newInstance() {
+        try {
+            return getClass().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot make another " + getClass().getName(), e);
+        }
+    }
+
+    /**
+     * A key was looked up or written, whether or not it is in the cache.
+     * Policies that estimate how often keys are used count it here.
+     *
+     * @param set set of the key
+     * @param hash hash of the key, as stored by the cache
+     */
+    public void accessed(int set, int hash) {
+    }
+
+    /**
+     * The entry in a slot was read by get() or overwritten by put().
+     *
+     * @param set set of the slot
+     * @param slot slot of the entry
+     */
+    public abstract void hit(int set, int slot);
+
+    /**
+     * A new entry was stored in a slot, after any eviction it needed.
+     *
+     * @param set set of the slot
+     * @param slot slot of the entry
+     * @param hash hash of the entry's key
+     */
+    public abstract void inserted(int set, int slot, int hash);
+
+    /**
+     * The entry in a slot was deleted. Not called for evictions.
+     *
+     * @param set set of the slot
+     * @param slot slot of the entry
+     */
+    public abstract void removed(int set, int slot);
+
+    /**
+     * Chooses the entry to evict from a set so that a new key can be
+     * stored, and forgets it. Called when the set is full, or, in a cache
+     * limited by bytes, as many times as it takes for the new key to fit.
+     *
+     * @param set a set with at least one entry
+     * @param hash hash of the key about to be stored
+     * @return slot of the evicted entry
+     */
+    public abstract int evict(int set, int hash);
+
+    /**
+     * Whether hit() may also be called without the set's lock, at the same
+     * time as any other hook for the set, so that KVCache.getOptimistic()
+     * can serve hits. Policies that reorder entries on a hit cannot allow
+     * this, and KVCache then serves every get() under the lock.
+     *
+     * @return true if hit() is safe without the lock
+     */
+    public boolean optimisticHits() {
+        return false;
+    }
+
+    /**
+     * Reports the reference bit of an entry for KVCache.toXML(). Policies
+     * without one report every entry as unreferenced.
+     *
+     * @param set set of the slot
+     * @param slot slot of the entry
+     * @return whether the entry is marked as referenced
+     */
+    public boolean isReferenced(int set, int slot) {
+        return false;
+    }
+
+    /**
+     * @param set a set
+     * @return the first slot of the set
+     */
+    protected int firstSlot(int set) {
+        return set * maxElemsPerSet;
+    }
+}
@@ -0,0 +1,126 @@
+package kvstore;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Watches framed connections while they sit idle between requests, so that
+ * no worker has to block on them. A single thread waits on a Selector for
+ * the next request to start arriving on any parked connection, puts the
+ * connection back into blocking mode and runs the task it was parked with,
+ * which hands it back to a worker.
+ *
+ * Only sockets that have a channel can be watched, such as those accepted
+ * by a SocketServer.
+ */
+final class IdleWatcher implements Runnable {
+
+    private static IdleWatcher instance;
+
+    private final Selector selector;
+    /* Connections parked since the last round of selection */
+    private final ConcurrentLinkedQueue<Parked> parking = new ConcurrentLinkedQueue<Parked>();
+
+    private IdleWatcher() throws IOException {
+        selector = Selector.open();
+    }
+
+    /* Starts the watcher on first use. */
+    private static synchronized IdleWatcher get() throws IOException {
+        if (instance == null) {
+            instance = new IdleWatcher();
+            Thread thread = new Thread(instance, "IdleWatcher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return instance;
+    }
+
+    /**
+     * Parks a connection until its next request starts to arrive, or it is
+     * closed, and then runs resume on the watcher's thread, which must only
+     * hand the connection off.
+     *
+     * @param conn idle connection, with nothing left unread in its buffers
+     * @param resume task to run once the connection is readable
+     * @return false if the connection cannot be watched, in which case the
+     *         caller must wait on it itself
+     */
+    static boolean park(KVConnection conn, Runnable resume) {
+        SocketChannel channel = conn.getSocket().getChannel();
+        if (channel == null) {
+            return false;
+        }
+        IdleWatcher watcher;
+        try {
+            watcher = get();
+        } catch (IOException e) {
+            return false;
+        }
+        watcher.parking.add(new Parked(channel, resume));
+        watcher.selector.wakeup();
+        return true;
+    }
+
+    @Override
+    public void run() {
+        List<SelectionKey> ready = new ArrayList<SelectionKey>();
+        while (true) {
+            try {
+                selector.select();
+                Parked parked;
+                while ((parked = parking.poll()) != null) {
+                    try {
+                        parked.channel.configureBlocking(false);
+                        parked.channel.register(selector, SelectionKey.OP_READ, parked.resume);
+                    } catch (ClosedChannelException e) {
+                        // the worker finds it closed
+                        parked.resume.run();
+                    } catch (IOException e) {
+                        parked.resume.run();
+                    }
+                }
+                while (!selector.selectedKeys().isEmpty()) {
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        key.cancel();
+                        ready.add(key);
+                    }
+                    // deregisters the cancelled keys, so the channels may block again
+                    selector.selectNow();
+                    for (SelectionKey key : ready) {
+                        try {
+                            ((SocketChannel) key.channel()).configureBlocking(true);
+                        } catch (IOException e) {
+                            // the worker finds it broken
+                        }
+                        ((Runnable) key.attachment()).run();
+                    }
+                    ready.clear();
+                }
+            } catch (IOException e) {
+                // try the next round
+            }
+        }
+    }
+
+    /* A connection waiting to be registered, and what to run once readable */
+    private static class Parked {
+        final SocketChannel channel;
+        final Runnable resume;
+
+        Parked(SocketChannel channel, Runnable resume) {
+            this.channel = channel;
+            this.resume = resume;
+        }
+    }
+}
@@ -2,10 +2,14 @@ package kvstore;
 
 import java.io.ByteArrayOutputStream;
 import java.io.OutputStream;
-import java.util.List;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
-import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBElement;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.Marshaller;
@@ -21,31 +25,123 @@ import kvstore.xml.ObjectFactory;
  * Each set has a maximum number of elements (MAX_ELEMS_PER_SET).
  * If a set is full and another entry is added, an entry is dropped based on
  * the eviction policy.
+ *
+ * Entries are kept in flat arrays rather than as objects: set s owns the
+ * slots s * maxElemsPerSet up to (s + 1) * maxElemsPerSet, and each slot has
+ * its key, value and key hash in parallel arrays. Within a set, slots are
+ * linked from oldest to newest and a small open-addressing table maps keys
+ * to slots, so a lookup costs a hash probe rather than a scan of the set.
+ * Which entry to evict is left to an EvictionPolicy, second-chance unless
+ * another is given. The JAXB objects are only built when toXML() is called.
+ * Keys and values are kept as Utf8String, keys interned as they are put so
+ * that a key also in the KVStore is held once, and values are turned into
+ * Strings on a hit.
+ *
+ * The arrays of one shape of the cache make up a Layout, and resize()
+ * moves the entries into a Layout of another shape one set at a time while
+ * the cache stays in use. The locks are made once, one for each of the sets
+ * the cache is constructed with, and a key keeps its lock across resizes.
  */
 public class KVCache implements KeyValueInterface {
 
-	private KVSetType[] cache;
 	private Lock[] locks;
-	private int maxElemsPerSet;
-	private int numSets;
+	private EvictionPolicy policy;
+	/* Byte limits, 0 for none; see KVCache(int, int, EvictionPolicy, long, long). */
+	private long maxBytesPerSet;
+	private long maxBytes;
+	/* Bytes of all entries, only counted if maxBytes is set */
+	private AtomicLong totalBytes;
+	/* Where values are kept if not on the heap, or null */
+	private SlabAllocator offHeap;
+
+	/* The layout entries are stored in; a resize replaces it */
+	private volatile Layout layout;
+	/* Set once callers say they serialize requests by set without the locks */
+	private volatile boolean unlocked;
+
+    /* No slot; ends the chains below. */
+    static final int NIL = -1;
+
+    /* Estimates for entryBytes(): a Utf8String's header, hash and array
+     * header, and an entry's references and ints in the slot arrays and index. */
+    private static final long UTF8_OVERHEAD = 40;
+    private static final long ENTRY_OVERHEAD = 48;
+    private static final int VERSION_STRIDE = 16;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
     /**
      * Constructs a second-chance-replacement cache.
      *
      * @param numSets the number of sets this cache will have
      * @param maxElemsPerSet the size of each set
      */
-    @SuppressWarnings("unchecked")
     public KVCache(int numSets, int maxElemsPerSet) {
-        // implement me
-		this.maxElemsPerSet = maxElemsPerSet;
-		this.numSets = numSets;
-    		cache = new KVSetType[numSets];
+        this(numSets, maxElemsPerSet, new SecondChancePolicy());
+    }
+
+    /**
+     * Constructs a cache that evicts by the given policy.
+     *
+     * @param numSets the number of sets this cache will have
+     * @param maxElemsPerSet the size of each set
+     * @param policy a policy of its own for this cache
+     * @throws IllegalStateException if the policy belongs to another cache
+     */
+    public KVCache(int numSets, int maxElemsPerSet, EvictionPolicy policy) {
+        this(numSets, maxElemsPerSet, policy, 0, 0);
+    }
+
+    /**
+     * Constructs a cache limited by the estimated heap its entries take as
+     * well as by their number, so that a set of large values costs no more
+     * than a set of small ones. A new entry evicts entries from its set,
+     * by the policy, until both it and the entries left are within the
+     * limits. Since only its own set is locked, an entry that would not fit
+     * even in an empty set, given what the other sets hold, is not cached.
+     * The slot arrays are still sized by maxElemsPerSet, which should allow
+     * for as many of the smallest entries as the limits would.
+     *
+     * @param numSets the number of sets this cache will have
+     * @param maxElemsPerSet the most entries in each set
+     * @param policy a policy of its own for this cache
+     * @param maxBytesPerSet the most bytes the entries of a set may take,
+     *        or 0 for no limit
+     * @param maxBytes the most bytes all entries may take, or 0 for no limit
+     * @throws IllegalStateException if the policy belongs to another cache
+     */
+    public KVCache(int numSets, int maxElemsPerSet, EvictionPolicy policy,
+            long maxBytesPerSet, long maxBytes) {
+        this(numSets, maxElemsPerSet, policy, maxBytesPerSet, maxBytes, null);
+    }
+
+    /**
+     * Constructs a cache that keeps its values outside the heap, in chunks
+     * from a SlabAllocator, and is otherwise as above. A value that finds
+     * no room in the allocator is not cached. Hits are always read under
+     * the set's lock, since a chunk may be reused once its entry is gone.
+     *
+     * @param numSets the number of sets this cache will have
+     * @param maxElemsPerSet the most entries in each set
+     * @param policy a policy of its own for this cache
+     * @param maxBytesPerSet the most bytes the entries of a set may take,
+     *        or 0 for no limit
+     * @param maxBytes the most bytes all entries may take, or 0 for no limit
+     * @param offHeap where values are stored, or null to keep them on the
+     *        heap
+     * @throws IllegalStateException if the policy belongs to another cache
+     */
+    public KVCache(int numSets, int maxElemsPerSet, EvictionPolicy policy,
+            long maxBytesPerSet, long maxBytes, SlabAllocator offHeap) {
     		locks = new Lock[numSets];
     		for(int i = 0; i < numSets; i++){
-    			cache[i] = new KVSetType();
-    			cache[i].setId(new Integer(i).toString());
     			locks[i] = new ReentrantLock();
     		}
+        this.maxBytesPerSet = maxBytesPerSet;
+        this.maxBytes = maxBytes;
+        this.offHeap = offHeap;
+        totalBytes = new AtomicLong();
+        this.policy = policy;
+        layout = new Layout(numSets, maxElemsPerSet, policy);
     }
 
     /**
@@ -60,13 +156,81 @@ public class KVCache implements KeyValueInterface {
     @Override
     public String get(String key) {
         // implement me
-		int setID = Math.abs(key.hashCode()) % numSets;
-		for(KVCacheEntry temp : cache[setID].getCacheEntry()){
-			if(temp.getKey().equals(key)){
-				temp.setIsReferenced(KVConstants.TRUE);
-				return temp.getValue();
+		Layout layout = layoutOf(key);
+		int setID = setOf(key, layout.numSets);
+		int h = hash(key);
+		layout.policy.accessed(setID, h);
+		int slot = layout.find(setID, Utf8String.lookup(key), h);
+		if (slot == NIL) {
+			return null;
+		}
+		if (layout.isExpired(slot, System.currentTimeMillis())) {
+			layout.beginWrite(setID);
+			try {
+				layout.policy.removed(setID, slot);
+				layout.remove(setID, slot);
+			} finally {
+				layout.endWrite(setID);
 			}
+			return null;
 		}
+		layout.policy.hit(setID, slot);
+		return layout.valueOf(slot);
+    }
+
+    /**
+     * Retrieves a cached value without the lock of its set, for the many
+     * reads of popular keys that hit. Returns null if the key is not
+     * cached or has expired, if a writer held the set meanwhile, if the cache is being
+     * resized, or if the eviction policy cannot record a hit without the
+     * lock; the caller should then lock the set and call get().
+     *
+     * This is a seqlock: every change to a set happens between two bumps of
+     * its version, which are atomic, as are the reads of keys and values
+     * here. A read that starts and ends on the same even version saw no
+     * change. The reference bit is set after the fact, so a writer may have
+     * reused the slot by then; that gives another entry a second chance it
+     * did not earn, which is harmless.
+     *
+     * @param  key the key whose associated value is to be returned.
+     * @return the value associated to this key, or null if it could not be
+     *         read without the lock
+     */
+    public String getOptimistic(String key) {
+        Layout layout = this.layout;
+        if (!layout.policy.optimisticHits() || offHeap != null || layout.previous != null) {
+            return null;
+        }
+        int setID = setOf(key, layout.numSets);
+        int version = layout.versions.get(setID * VERSION_STRIDE);
+        if ((version & 1) != 0) {
+            return null;
+        }
+        int[] index = layout.index;
+        int base = setID * layout.indexSize;
+        int mask = layout.indexSize - 1;
+        // a changing index may look full, so probe at most once around it
+        for (int probe = 0, i = hash(key) & mask; probe <= mask; probe++, i = (i + 1) & mask) {
+            int entry = index[base + i];
+            if (entry == 0) {
+                return null;
+            }
+            int slot = entry - 1;
+            Utf8String cached = layout.keys.get(slot);
+            if (cached != null && cached.contentEquals(key)) {
+                Utf8String value = layout.values.get(slot);
+                long expiresAt = layout.expiresAt.get(slot);
+                if (value == null || layout.versions.get(setID * VERSION_STRIDE) != version) {
+                    return null;
+                }
+                if (expiresAt != 0 && expiresAt <= System.currentTimeMillis()) {
+                    // get() will drop it under the lock
+                    return null;
+                }
+                layout.policy.hit(setID, slot);
+                return value.toString();
+            }
+        }
         return null;
     }
 
@@ -76,12 +240,11 @@ public class KVCache implements KeyValueInterface {
      * replaced by the new entry. When an entry is replaced, its reference bit
      * will be set to True. If the set is full, an entry is removed from
      * the cache based on the eviction policy. If the set is not full, the entry
-     * will be inserted behind all existing entries. For this policy, we suggest
-     * using a LinkedList over an array to keep track of entries in a set since
-     * deleting an entry in an array will leave a gap in the array, likely not
-     * at the end. More details and explanations in the spec. Assumes access to
-     * the corresponding set has already been locked by the caller of this
-     * method.
+     * will be inserted behind all existing entries. If the cache is limited
+     * by bytes, entries are also evicted until the new one fits, and one
+     * that cannot fit is not cached at all. More details and
+     * explanations in the spec. Assumes access to the corresponding set has
+     * already been locked by the caller of this method.
      *
      * @param key the key with which the specified value is to be associated
      * @param value a value to be associated with the specified key
@@ -89,36 +252,42 @@ public class KVCache implements KeyValueInterface {
     @Override
     public void put(String key, String value) {
         // implement me
-    		//an entry with the specified key already exists in the cache
-		int setID = Math.abs(key.hashCode()) % numSets;
-		List<KVCacheEntry> set = cache[setID].getCacheEntry();
-		for(KVCacheEntry temp : set){
-			if(temp.getKey().equals(key)){
-				temp.setValue(value);
-				temp.setIsReferenced(KVConstants.TRUE);
-				return;
+		put(key, value, 0);
+    }
+
+    /**
+     * Adds an entry to this cache that expires at a given time, after which
+     * get() treats it as absent and drops it. Until then it is evicted like
+     * any other entry. Otherwise as put(key, value).
+     *
+     * @param key the key with which the specified value is to be associated
+     * @param value a value to be associated with the specified key
+     * @param expiresAt System.currentTimeMillis() at which the entry
+     *        expires, or 0 if it never does
+     */
+    public void put(String key, String value, long expiresAt) {
+		Layout layout = layoutOf(key);
+		int setID = setOf(key, layout.numSets);
+		int h = hash(key);
+		layout.policy.accessed(setID, h);
+		Utf8String k = Utf8String.intern(key);
+		Utf8String v = Utf8String.of(value);
+		long handle = SlabAllocator.NO_SPACE;
+		if (offHeap != null) {
+			handle = offHeap.store(v.bytes());
+		}
+		layout.beginWrite(setID);
+		try {
+			if (offHeap != null && handle == SlabAllocator.NO_SPACE) {
+				// not caching the value is fine, but the old one must go
+				layout.delete(setID, k, h);
+			} else {
+				layout.store(setID, k, h, (offHeap != null) ? null : v, handle, entryBytes(k, v),
+						expiresAt);
 			}
+		} finally {
+			layout.endWrite(setID);
 		}
-    		//not found
-		KVCacheEntry entry = new KVCacheEntry();
-		entry.setIsReferenced(KVConstants.FALSE);
-		entry.setKey(key);
-		entry.setValue(value);
-    		if(set.size() < maxElemsPerSet){
-    			set.add(entry);
-    		}else{
-    			while(true){
-    				for(KVCacheEntry temp : set){
-    					if(temp.getIsReferenced().equals(KVConstants.TRUE)){
-    						temp.setIsReferenced(KVConstants.FALSE);
-    					}else{
-    						set.remove(temp);
-    						set.add(entry);
-    						return;
-    					}
-    				}
-    			}
-    		}
     }
 
     /**
@@ -131,30 +300,188 @@ public class KVCache implements KeyValueInterface {
     @Override
     public void del(String key) {
         // implement me
-		int setID = Math.abs(key.hashCode()) % numSets;
-		for(KVCacheEntry temp : cache[setID].getCacheEntry()){
-			if(temp.getKey().equals(key)){
-				cache[setID].getCacheEntry().remove(temp);
-				return; //delete one element and then exit
-			}		
+		Layout layout = layoutOf(key);
+		int setID = setOf(key, layout.numSets);
+		layout.beginWrite(setID);
+		try {
+			layout.delete(setID, Utf8String.lookup(key), hash(key));
+		} finally {
+			layout.endWrite(setID);
 		}
     }
 
+    /**
+     * Changes the number of sets and the size of each, keeping the entries
+     * that fit. A new, empty layout takes over at once, and the entries of
+     * each old set are moved into it either by the first get, put or del on
+     * a key of that set, which holds the right lock already, or by this
+     * method, which goes through the old sets one at a time under their
+     * locks, so that requests on other sets go on meanwhile. Returns once
+     * every set has been moved. Entries lose their place in the eviction
+     * order, and the policy starts afresh.
+     *
+     * The locks are not remade: a key keeps its lock, and the old and new
+     * set of a key always fall under the same one, so long as the number of
+     * sets stays a multiple of the number the cache was constructed with.
+     *
+     * A resize relies on every get, put and del holding the key's lock, so
+     * it is refused once the cache is used without them, as by the lanes of
+     * a KVServer that leaves locking to a KeyAffinityExecutor: a lane could
+     * move an old set while this method is moving it.
+     *
+     * @param numSets the new number of sets
+     * @param maxElemsPerSet the new size of each set
+     * @throws IllegalArgumentException if numSets is not a positive multiple
+     *         of the number of sets the cache was constructed with
+     * @throws IllegalStateException if the cache is used without its locks
+     */
+    public synchronized void resize(int numSets, int maxElemsPerSet) {
+        if (unlocked) {
+            throw new IllegalStateException("Cannot resize a cache used without its locks");
+        }
+        if (numSets <= 0 || numSets % locks.length != 0 || maxElemsPerSet < 0) {
+            throw new IllegalArgumentException("Cannot resize to " + numSets
+                    + " sets of " + maxElemsPerSet + " with " + locks.length + " locks");
+        }
+        Layout from = layout;
+        Layout to = new Layout(numSets, maxElemsPerSet, policy.newInstance());
+        to.previous = from;
+        layout = to;
+        for (int setID = 0; setID < from.numSets; setID++) {
+            Lock lock = locks[setID % locks.length];
+            lock.lock();
+            try {
+                if (!from.migrated[setID]) {
+                    migrate(from, setID, to);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        to.previous = null;
+    }
+
+    /* Returns the layout a key is in, first moving the key's old set over if
+     * a resize has not yet reached it. The key's lock guards both sets. */
+    private Layout layoutOf(String key) {
+        Layout layout = this.layout;
+        Layout previous = layout.previous;
+        if (previous != null) {
+            int setID = setOf(key, previous.numSets);
+            if (!previous.migrated[setID]) {
+                migrate(previous, setID, layout);
+            }
+        }
+        return layout;
+    }
+
+    /* Moves the entries of an old set, oldest first, into the new layout. */
+    private void migrate(Layout from, int setID, Layout to) {
+        // left odd, so optimistic reads of the old set fail from now on
+        from.beginWrite(setID);
+        for (int slot = from.head[setID]; slot != NIL; slot = from.next[slot]) {
+            Utf8String key = from.keys.get(slot);
+            long bytes = from.entryBytes[slot];
+            if (maxBytes > 0) {
+                totalBytes.addAndGet(-bytes);
+            }
+            int toSet = setOf(key.hashCode(), to.numSets);
+            to.beginWrite(toSet);
+            try {
+                to.store(toSet, key, from.hashes[slot], from.values.get(slot),
+                        (offHeap != null) ? from.valueHandles[slot] : SlabAllocator.NO_SPACE, bytes,
+                        from.expiresAt.get(slot));
+            } finally {
+                to.endWrite(toSet);
+            }
+        }
+        from.migrated[setID] = true;
+    }
+
+    /**
+     * Estimates the heap an entry takes: the two Utf8Strings, each a
+     * header, a hash and a byte array of its length, and the entry's share
+     * of the slot arrays and index.
+     */
+    static long entryBytes(String key, String value) {
+        return entryBytes(Utf8String.of(key), Utf8String.of(value));
+    }
+
+    private static long entryBytes(Utf8String key, Utf8String value) {
+        return ENTRY_OVERHEAD + 2 * UTF8_OVERHEAD + key.length() + value.length();
+    }
+
+    /* Mixes the key's hashCode, whose low-order remainder already chose the
+     * set, so that keys of one set still spread over its index. */
+    private static int hash(String key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
     /**
      * Get a lock for the set corresponding to a given key.
      * The lock should be used by the caller of the get/put/del methods
      * so that different sets can be #{modified|changed} in parallel.
      *
+     * The locks are those of the sets the cache was constructed with, and
+     * still guard the same keys after a resize.
+     *
      * @param  key key to determine the lock to return
      * @return lock for the set that contains the key
      */
 
     public Lock getLock(String key) {
     	//implement me
-    		int setID = Math.abs(key.hashCode()) % numSets;
+    		int setID = setOf(key, locks.length);
     		return locks[setID];
     }
     
+    /**
+     * Maps a key to the set it belongs in. Anything that divides work up by
+     * set, such as a KeyAffinityExecutor, must use this same mapping.
+     *
+     * @param key key to find the set of
+     * @param numSets the number of sets in the cache
+     * @return index of the set for the key, between 0 and numSets - 1
+     */
+    static int setOf(String key, int numSets) {
+        return setOf(key.hashCode(), numSets);
+    }
+
+    /* The same for a key's hashCode, which a Utf8String shares with it */
+    private static int setOf(int hashCode, int numSets) {
+        return Math.abs(hashCode % numSets);
+    }
+
+    /**
+     * Marks the cache as used without its locks, by callers that serialize
+     * requests by set some other way, after which it cannot be resized.
+     */
+    void useWithoutLocks() {
+        unlocked = true;
+    }
+
+    /**
+     * @return the number of sets the cache has, or is being resized to
+     */
+    public int getNumSets() {
+        return layout.numSets;
+    }
+
+    /**
+     * @return the size of each set the cache has, or is being resized to
+     */
+    public int getMaxElemsPerSet() {
+        return layout.maxElemsPerSet;
+    }
+
+    /**
+     * @return whether a resize is still moving entries between layouts
+     */
+    public boolean isResizing() {
+        return layout.previous != null;
+    }
+
     /**
      * Get the size of a given set in the cache.
      * @param cacheSet Which set.
@@ -162,15 +489,44 @@ public class KVCache implements KeyValueInterface {
      */
     int getCacheSetSize(int cacheSet) {
         // implement me
-        return cache[cacheSet].getCacheEntry().size();
+        return layout.size[cacheSet];
+    }
+
+    /**
+     * Estimates the heap the cached entries take, as counted against the
+     * limits. While other sets are being written or moved by a resize this
+     * is only approximate.
+     *
+     * @return estimated bytes of all entries
+     */
+    public long getBytes() {
+        Layout layout = this.layout;
+        long bytes = 0;
+        for (long set : layout.setBytes) {
+            bytes += set;
+        }
+        Layout previous = layout.previous;
+        if (previous != null) {
+            for (int setID = 0; setID < previous.numSets; setID++) {
+                if (!previous.migrated[setID]) {
+                    bytes += previous.setBytes[setID];
+                }
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Get the estimated bytes of the entries in a given set.
+     * @param cacheSet Which set.
+     * @return Bytes of the cache set.
+     */
+    long getCacheSetBytes(int cacheSet) {
+        return layout.setBytes[cacheSet];
     }
 
     private void marshalTo(OutputStream os) throws JAXBException {
-        JAXBContext context = JAXBContext.newInstance(KVCacheType.class);
-        Marshaller marshaller = context.createMarshaller();
-        marshaller.setProperty("com.sun.xml.internal.bind.xmlHeaders", "<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
-        marshaller.setProperty(Marshaller.JAXB_FRAGMENT, true);
-        marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, false);
+        Marshaller marshaller = XMLBinding.marshaller();
         marshaller.marshal(getXMLRoot(), os);
     }
 
@@ -178,8 +534,19 @@ public class KVCache implements KeyValueInterface {
         ObjectFactory factory = new ObjectFactory();
         KVCacheType xmlCache = factory.createKVCacheType();
         // implement me
-        for(KVSetType set : cache)
-        		xmlCache.getSet().add(set);
+        Layout layout = this.layout;
+        for (int setID = 0; setID < layout.numSets; setID++) {
+            KVSetType set = factory.createKVSetType();
+            set.setId(Integer.toString(setID));
+            for (int slot = layout.head[setID]; slot != NIL; slot = layout.next[slot]) {
+                KVCacheEntry entry = factory.createKVCacheEntry();
+                entry.setKey(layout.keys.get(slot).toString());
+                entry.setValue(layout.valueOf(slot));
+                entry.setIsReferenced(layout.policy.isReferenced(setID, slot) ? KVConstants.TRUE : KVConstants.FALSE);
+                set.getCacheEntry().add(entry);
+            }
+            xmlCache.getSet().add(set);
+        }
         return factory.createKVCache(xmlCache);
     }
 
@@ -200,4 +567,298 @@ public class KVCache implements KeyValueInterface {
         return this.toXML();
     }
 
+    /**
+     * The slot arrays, index and eviction policy of the cache at one number
+     * of sets and set size. Set s owns the slots s * maxElemsPerSet up to
+     * (s + 1) * maxElemsPerSet. Every method is called under the lock of the
+     * set concerned.
+     */
+    private class Layout {
+
+        final int numSets;
+        final int maxElemsPerSet;
+        final EvictionPolicy policy;
+
+        /* Per slot; keys and values are read without the lock by getOptimistic() */
+        final AtomicReferenceArray<Utf8String> keys;
+        final AtomicReferenceArray<Utf8String> values;
+        /* Per slot, if the values are off the heap: the chunk of the value */
+        final long[] valueHandles;
+        final int[] hashes;
+        final long[] entryBytes;
+        /* Per slot, when the entry expires, or 0; read by getOptimistic() */
+        final AtomicLongArray expiresAt;
+        /* Per slot: the older and newer entry of the set, or the next free slot */
+        final int[] next;
+        final int[] prev;
+        /* Per set: oldest and newest entry, first free slot, entries, bytes */
+        final int[] head;
+        final int[] tail;
+        final int[] free;
+        final int[] size;
+        final long[] setBytes;
+        /* Per set, a table of indexSize buckets holding slot + 1, or 0 if empty */
+        final int[] index;
+        final int indexSize;
+        /* Per set, odd while a writer changes it; padded so sets do not share
+         * a cache line */
+        final AtomicIntegerArray versions;
+
+        /* Per set, whether a resize has moved its entries to the new layout */
+        final boolean[] migrated;
+        /* The layout being moved into this one, or null once it is empty */
+        volatile Layout previous;
+
+        Layout(int numSets, int maxElemsPerSet, EvictionPolicy policy) {
+            this.numSets = numSets;
+            this.maxElemsPerSet = maxElemsPerSet;
+            this.policy = policy;
+            int slots = numSets * maxElemsPerSet;
+            keys = new AtomicReferenceArray<Utf8String>(slots);
+            values = new AtomicReferenceArray<Utf8String>(slots);
+            versions = new AtomicIntegerArray(numSets * VERSION_STRIDE);
+            hashes = new int[slots];
+            entryBytes = new long[slots];
+            expiresAt = new AtomicLongArray(slots);
+            setBytes = new long[numSets];
+            if (offHeap != null) {
+                valueHandles = new long[slots];
+                Arrays.fill(valueHandles, SlabAllocator.NO_SPACE);
+            } else {
+                valueHandles = null;
+            }
+            next = new int[slots];
+            prev = new int[slots];
+            head = new int[numSets];
+            tail = new int[numSets];
+            free = new int[numSets];
+            size = new int[numSets];
+            migrated = new boolean[numSets];
+            // a power of two at least twice the set size keeps probes short
+            indexSize = Integer.highestOneBit(Math.max(1, maxElemsPerSet) * 2 - 1) << 1;
+            index = new int[numSets * indexSize];
+
+            Arrays.fill(head, NIL);
+            Arrays.fill(tail, NIL);
+            for (int set = 0; set < numSets; set++) {
+                int first = set * maxElemsPerSet;
+                int last = first + maxElemsPerSet - 1;
+                free[set] = (maxElemsPerSet > 0) ? first : NIL;
+                for (int slot = first; slot <= last; slot++) {
+                    next[slot] = (slot < last) ? slot + 1 : NIL;
+                }
+            }
+            policy.attach(numSets, maxElemsPerSet);
+        }
+
+        void beginWrite(int setID) {
+            versions.incrementAndGet(setID * VERSION_STRIDE);
+        }
+
+        void endWrite(int setID) {
+            versions.incrementAndGet(setID * VERSION_STRIDE);
+        }
+
+        /* Stores an entry whose value, if off the heap, is already in the
+         * chunk of the given handle, which is freed if it is not kept. */
+        void store(int setID, Utf8String key, int h, Utf8String value, long handle, long bytes,
+                long expires) {
+            int slot = find(setID, key, h);
+            //an entry with the specified key already exists in the cache
+            if (slot != NIL) {
+                if (reserve(setID, bytes - entryBytes[slot])) {
+                    setValue(slot, value, handle);
+                    entryBytes[slot] = bytes;
+                    expiresAt.set(slot, expires);
+                    policy.hit(setID, slot);
+                    return;
+                }
+                // the larger value needs room made, possibly by evicting it
+                policy.removed(setID, slot);
+                remove(setID, slot);
+            }
+            //not found
+            if (maxElemsPerSet == 0 || !canFit(setID, bytes)) {
+                discard(handle);
+                return;
+            }
+            if (size[setID] == maxElemsPerSet) {
+                evict(setID, h);
+            }
+            while (!reserve(setID, bytes)) {
+                if (size[setID] == 0) {
+                    // other sets took the rest of the cache's bytes meanwhile
+                    discard(handle);
+                    return;
+                }
+                evict(setID, h);
+            }
+            slot = free[setID];
+            free[setID] = next[slot];
+            size[setID]++;
+            keys.set(slot, key);
+            setValue(slot, value, handle);
+            hashes[slot] = h;
+            entryBytes[slot] = bytes;
+            expiresAt.set(slot, expires);
+            link(setID, slot);
+            indexInsert(setID, slot);
+            policy.inserted(setID, slot, h);
+        }
+
+        void delete(int setID, Utf8String key, int h) {
+            int slot = find(setID, key, h);
+            if (slot != NIL) {
+                policy.removed(setID, slot);
+                remove(setID, slot);
+            }
+        }
+
+        /* Stores a value in a slot, either as is or, off the heap, by the
+         * handle of a chunk already holding it; frees the chunk of the value
+         * replaced. */
+        void setValue(int slot, Utf8String value, long handle) {
+            if (offHeap == null) {
+                values.set(slot, value);
+                return;
+            }
+            discard(valueHandles[slot]);
+            valueHandles[slot] = handle;
+        }
+
+        String valueOf(int slot) {
+            if (offHeap == null) {
+                return values.get(slot).toString();
+            }
+            return new String(offHeap.load(valueHandles[slot]), UTF_8);
+        }
+
+        void discard(long handle) {
+            if (handle != SlabAllocator.NO_SPACE) {
+                offHeap.free(handle);
+            }
+        }
+
+        boolean isExpired(int slot, long now) {
+            long expires = expiresAt.get(slot);
+            return expires != 0 && expires <= now;
+        }
+
+        /* Evicts the entry the policy chooses to make room for a key. */
+        void evict(int setID, int h) {
+            remove(setID, policy.evict(setID, h));
+        }
+
+        /* Takes an entry out of its set and frees its slot and bytes. */
+        void remove(int setID, int slot) {
+            unlink(setID, slot);
+            indexRemove(setID, slot);
+            keys.set(slot, null);
+            setValue(slot, null, SlabAllocator.NO_SPACE);
+            next[slot] = free[setID];
+            free[setID] = slot;
+            size[setID]--;
+            setBytes[setID] -= entryBytes[slot];
+            if (maxBytes > 0) {
+                totalBytes.addAndGet(-entryBytes[slot]);
+            }
+        }
+
+        /* Whether evicting the whole set could make room for an entry. */
+        boolean canFit(int setID, long bytes) {
+            if (maxBytesPerSet > 0 && bytes > maxBytesPerSet) {
+                return false;
+            }
+            return maxBytes <= 0 || totalBytes.get() - setBytes[setID] + bytes <= maxBytes;
+        }
+
+        /* Accounts for bytes more in a set if they are within both limits. */
+        boolean reserve(int setID, long bytes) {
+            if (maxBytesPerSet > 0 && setBytes[setID] + bytes > maxBytesPerSet) {
+                return false;
+            }
+            if (maxBytes > 0) {
+                long total;
+                do {
+                    total = totalBytes.get();
+                    if (bytes > 0 && total + bytes > maxBytes) {
+                        return false;
+                    }
+                } while (!totalBytes.compareAndSet(total, total + bytes));
+            }
+            setBytes[setID] += bytes;
+            return true;
+        }
+
+        /* Appends a slot behind the newest entry of its set. */
+        void link(int setID, int slot) {
+            prev[slot] = tail[setID];
+            next[slot] = NIL;
+            if (tail[setID] == NIL) {
+                head[setID] = slot;
+            } else {
+                next[tail[setID]] = slot;
+            }
+            tail[setID] = slot;
+        }
+
+        void unlink(int setID, int slot) {
+            if (prev[slot] == NIL) {
+                head[setID] = next[slot];
+            } else {
+                next[prev[slot]] = next[slot];
+            }
+            if (next[slot] == NIL) {
+                tail[setID] = prev[slot];
+            } else {
+                prev[next[slot]] = prev[slot];
+            }
+        }
+
+        int find(int setID, Utf8String key, int h) {
+            int base = setID * indexSize;
+            int mask = indexSize - 1;
+            for (int i = h & mask; ; i = (i + 1) & mask) {
+                int entry = index[base + i];
+                if (entry == 0) {
+                    return NIL;
+                }
+                int slot = entry - 1;
+                if (hashes[slot] == h && keys.get(slot).equals(key)) {
+                    return slot;
+                }
+            }
+        }
+
+        void indexInsert(int setID, int slot) {
+            int base = setID * indexSize;
+            int mask = indexSize - 1;
+            int i = hashes[slot] & mask;
+            while (index[base + i] != 0) {
+                i = (i + 1) & mask;
+            }
+            index[base + i] = slot + 1;
+        }
+
+        /* Removes a slot from the index, shifting later entries of its probe
+         * run back into the hole so that no lookup stops short of them. */
+        void indexRemove(int setID, int slot) {
+            int base = setID * indexSize;
+            int mask = indexSize - 1;
+            int i = hashes[slot] & mask;
+            while (index[base + i] != slot + 1) {
+                i = (i + 1) & mask;
+            }
+            for (int j = (i + 1) & mask; index[base + j] != 0; j = (j + 1) & mask) {
+                int home = hashes[index[base + j] - 1] & mask;
+                // the entry at j may fill the hole unless its home lies in (i, j]
+                if (((j - home) & mask) >= ((j - i) & mask)) {
+                    index[base + i] = index[base + j];
+                    i = j;
+                }
+            }
+            index[base + i] = 0;
+        }
+    }
+
 }
@@ -0,0 +1,62 @@
+package kvstore;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Lets an operator look at and resize a running KVCache over JMX. Once
+ * registered, the cache shows up in jconsole under
+ * kvstore:type=KVCache,name=..., and resize can be invoked from there.
+ */
+public class KVCacheAdmin implements KVCacheAdminMBean {
+
+    private KVCache cache;
+
+    /**
+     * @param cache the cache to administer
+     */
+    public KVCacheAdmin(KVCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Registers an admin for a cache with the platform MBean server.
+     *
+     * @param cache the cache to administer
+     * @param name name to list the cache under, such as "master"
+     * @return the name the admin was registered under
+     * @throws JMException if the name is taken or not valid
+     */
+    public static ObjectName register(KVCache cache, String name) throws JMException {
+        ObjectName objectName = new ObjectName("kvstore:type=KVCache,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new KVCacheAdmin(cache), objectName);
+        return objectName;
+    }
+
+    @Override
+    public int getNumSets() {
+        return cache.getNumSets();
+    }
+
+    @Override
+    public int getMaxElemsPerSet() {
+        return cache.getMaxElemsPerSet();
+    }
+
+    @Override
+    public long getBytes() {
+        return cache.getBytes();
+    }
+
+    @Override
+    public boolean isResizing() {
+        return cache.isResizing();
+    }
+
+    @Override
+    public void resize(int numSets, int maxElemsPerSet) {
+        cache.resize(numSets, maxElemsPerSet);
+    }
+}
@@ -0,0 +1,37 @@
+package kvstore;
+
+/**
+ * The operations a KVCacheAdmin offers over JMX, e.g. from jconsole.
+ */
+public interface KVCacheAdminMBean {
+
+    /**
+     * @return the number of sets the cache has, or is being resized to
+     */
+    int getNumSets();
+
+    /**
+     * @return the size of each set the cache has, or is being resized to
+     */
+    int getMaxElemsPerSet();
+
+    /**
+     * @return estimated bytes of all cached entries
+     */
+    long getBytes();
+
+    /**
+     * @return whether a resize is still moving entries
+     */
+    boolean isResizing();
+
+    /**
+     * Resizes the cache while it stays in use; see KVCache.resize().
+     *
+     * @param numSets the new number of sets, a multiple of the number the
+     *        cache was constructed with
+     * @param maxElemsPerSet the new size of each set
+     * @throws IllegalStateException if the cache is used without its locks
+     */
+    void resize(int numSets, int maxElemsPerSet);
+}
@@ -4,15 +4,22 @@ import static kvstore.KVConstants.DEL_REQ;
 import static kvstore.KVConstants.ERROR_COULD_NOT_CONNECT;
 import static kvstore.KVConstants.ERROR_COULD_NOT_CREATE_SOCKET;
 import static kvstore.KVConstants.ERROR_INVALID_KEY;
+import static kvstore.KVConstants.ERROR_INVALID_LIMIT;
+import static kvstore.KVConstants.ERROR_INVALID_TTL;
 import static kvstore.KVConstants.ERROR_INVALID_VALUE;
+import static kvstore.KVConstants.ERROR_SERVER_BUSY;
 import static kvstore.KVConstants.GET_REQ;
 import static kvstore.KVConstants.PUT_REQ;
 import static kvstore.KVConstants.RESP;
+import static kvstore.KVConstants.SCAN_REQ;
 import static kvstore.KVConstants.SUCCESS;
 
 import java.io.IOException;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
 
 //import com.apple.eawt.event.MagnificationEvent;
 
@@ -24,15 +31,46 @@ public class KVClient implements KeyValueInterface {
     public String server;
     public int port;
 
+    /* framed connection reused across requests, only used when persistent */
+    private boolean persistent;
+    private byte codec = KVConnection.CODEC_XML;
+    private KVConnection connection;
+
     /**
-     * Constructs a KVClient connected to a server.
+     * Constructs a KVClient connected to a server. Every request is sent over
+     * its own one-shot connection.
      *
      * @param server is the DNS reference to the server
      * @param port is the port on which the server is listening
      */
     public KVClient(String server, int port) {
+        this(server, port, false);
+    }
+
+    /**
+     * Constructs a KVClient connected to a server.
+     *
+     * @param server is the DNS reference to the server
+     * @param port is the port on which the server is listening
+     * @param persistent if true, requests share one framed connection that
+     *        stays open until close() is called; otherwise every request opens
+     *        its own one-shot connection
+     */
+    public KVClient(String server, int port, boolean persistent) {
         this.server = server;
         this.port = port;
+        this.persistent = persistent;
+    }
+
+    /**
+     * Chooses the codec asked for when the persistent connection is opened,
+     * KVConnection.CODEC_XML (the default) or KVConnection.CODEC_BINARY. Has
+     * no effect on one-shot requests, which are always sent as XML.
+     *
+     * @param codec codec for frame payloads
+     */
+    public synchronized void setCodec(byte codec) {
+        this.codec = codec;
     }
 
     /**
@@ -66,6 +104,60 @@ public class KVClient implements KeyValueInterface {
 			}
     }
 
+    /**
+     * Sends a request to the server and returns its response. Uses the
+     * persistent connection if this client has one, opening it on first use,
+     * otherwise a fresh one-shot connection. A persistent connection that
+     * fails is closed so that the next request reconnects.
+     *
+     * @param  outMsg KVMessage holding the request
+     * @return KVMessage holding the response
+     * @throws KVException if the request could not be sent or the response
+     *         could not be received
+     */
+    private KVMessage sendRequest(KVMessage outMsg) throws KVException {
+    		if (persistent) {
+    			synchronized (this) {
+    				try {
+    					if (connection == null) {
+    						KVConnection conn = new KVConnection(connectHost());
+    						connection = conn;
+    						conn.connect(codec, 0);
+    					}
+    					KVMessage response = connection.exchange(outMsg, 0);
+    					// a busy server closes the connection after answering
+    					if (ERROR_SERVER_BUSY.equals(response.getMessage()))
+    						close();
+    					return response;
+    				} catch (KVException kve) {
+    					close();
+    					throw kve;
+    				}
+    			}
+    		}
+
+    		Socket sock = null;
+    		try {
+    			sock = connectHost();
+    			outMsg.sendMessage(sock);
+    			return new KVMessage(sock);
+    		} finally {
+    			if (sock != null)
+    				closeHost(sock);
+    		}
+    }
+
+    /**
+     * Closes the persistent connection of this client, if it has one. The
+     * next request opens a new connection.
+     */
+    public synchronized void close() {
+    		if (connection != null) {
+    			connection.close();
+    			connection = null;
+    		}
+    }
+
     /**
      * Issues a PUT request to the server.
      *
@@ -75,28 +167,30 @@ public class KVClient implements KeyValueInterface {
     @Override
     public void put(String key, String value) throws KVException {
         // implement me
-    		Socket sock = null;
-    		try {
-    				if (null == key || key.isEmpty()) throw new KVException(ERROR_INVALID_KEY);
-    				if (null == value || value.isEmpty()) throw new KVException(ERROR_INVALID_VALUE);
-    				
-    				sock = connectHost();
-    				//send 
-    				KVMessage outMsg = new KVMessage(PUT_REQ);
-    				outMsg.setKey(key);
-    				outMsg.setValue(value);
-    				outMsg.sendMessage(sock);
-    				//receive
-    				KVMessage inMsg = new KVMessage(sock);
-    				
-    				if(!inMsg.getMessage().equals(SUCCESS)) throw new KVException(inMsg.getMessage());
-    				
-			} catch (KVException kve) {
-				throw kve;
-			} finally{
-				if(sock != null)
-					closeHost(sock);
-			}
+    		put(key, value, 0);
+    }
+
+    /**
+     * Issues a PUT request to the server for a pair that expires.
+     *
+     * @param  key String to put in server as key
+     * @param  ttl time to live in milliseconds, or 0 if the pair never expires
+     * @throws KVException if the request was not successful in any way
+     */
+    public void put(String key, String value, long ttl) throws KVException {
+    		if (null == key || key.isEmpty()) throw new KVException(ERROR_INVALID_KEY);
+    		if (null == value || value.isEmpty()) throw new KVException(ERROR_INVALID_VALUE);
+    		if (ttl < 0) throw new KVException(ERROR_INVALID_TTL);
+    		
+    		//send 
+    		KVMessage outMsg = new KVMessage(PUT_REQ);
+    		outMsg.setKey(key);
+    		outMsg.setValue(value);
+    		outMsg.setTtl(ttl);
+    		//receive
+    		KVMessage inMsg = sendRequest(outMsg);
+    		
+    		if(!inMsg.getMessage().equals(SUCCESS)) throw new KVException(inMsg.getMessage());
     }
 
     /**
@@ -109,28 +203,16 @@ public class KVClient implements KeyValueInterface {
     @Override
     public String get(String key) throws KVException {
         // implement me
-    		Socket sock = null;
-    		KVMessage inMsg;
-		try {
-				if (null == key || key.isEmpty()) throw new KVException(ERROR_INVALID_KEY);
-				
-				sock = connectHost();
-				//send 
-				KVMessage outMsg = new KVMessage(GET_REQ);
-				outMsg.setKey(key);
-				outMsg.sendMessage(sock);
-				//receive
-				inMsg = new KVMessage(sock);
-				
-				if(null == inMsg.getKey() || null == inMsg.getValue())
-					throw new KVException(inMsg.getMessage());
-								
-		} catch (KVException kve) {
-			throw kve;
-		} finally{
-			if(sock != null)
-				closeHost(sock);
-		}
+		if (null == key || key.isEmpty()) throw new KVException(ERROR_INVALID_KEY);
+		
+		//send 
+		KVMessage outMsg = new KVMessage(GET_REQ);
+		outMsg.setKey(key);
+		//receive
+		KVMessage inMsg = sendRequest(outMsg);
+		
+		if(null == inMsg.getKey() || null == inMsg.getValue())
+			throw new KVException(inMsg.getMessage());
 		
 		return inMsg.getValue();
 
@@ -145,27 +227,48 @@ public class KVClient implements KeyValueInterface {
     @Override
     public void del(String key) throws KVException {
         // implement me
-    		Socket sock = null;
-		try {
-				if (null == key || key.isEmpty()) throw new KVException(ERROR_INVALID_KEY);
-				
-				sock = connectHost();
-				//send 
-				KVMessage outMsg = new KVMessage(DEL_REQ);
-				outMsg.setKey(key);
-				outMsg.sendMessage(sock);
-				//receive
-				KVMessage inMsg = new KVMessage(sock);
-				
-				if(!inMsg.getMessage().equals(SUCCESS)) throw new KVException(inMsg.getMessage());
-				
-		} catch (KVException kve) {
-			throw kve;
-		} finally{
-			if(sock != null)
-				closeHost(sock);
-		}
+		if (null == key || key.isEmpty()) throw new KVException(ERROR_INVALID_KEY);
+		
+		//send 
+		KVMessage outMsg = new KVMessage(DEL_REQ);
+		outMsg.setKey(key);
+		//receive
+		KVMessage inMsg = sendRequest(outMsg);
+		
+		if(!inMsg.getMessage().equals(SUCCESS)) throw new KVException(inMsg.getMessage());
     }
 
+    /**
+     * Issues SCAN requests to the server for the pairs with keys in a
+     * range, a page at a time, going on from the token of each page until
+     * there are limit pairs or no pages are left.
+     *
+     * @param  start first key of the range
+     * @param  end first key past the range, or null for no end
+     * @param  limit most pairs to return
+     * @return up to limit pairs, the smallest keys from start on, in order
+     * @throws KVException if the request was not successful in any way
+     */
+    public List<Entry<String, String>> scan(String start, String end, int limit)
+            throws KVException {
+    		if (null == start) throw new KVException(ERROR_INVALID_KEY);
+    		if (limit <= 0) throw new KVException(ERROR_INVALID_LIMIT);
+
+    		List<Entry<String, String>> pairs = new ArrayList<Entry<String, String>>();
+    		String token = null;
+    		do {
+    			KVMessage outMsg = new KVMessage(SCAN_REQ);
+    			outMsg.setKey(start);
+    			outMsg.setEnd(end);
+    			outMsg.setLimit(limit - pairs.size());
+    			outMsg.setToken(token);
+    			KVMessage inMsg = sendRequest(outMsg);
+
+    			if (!SUCCESS.equals(inMsg.getMessage())) throw new KVException(inMsg.getMessage());
+    			pairs.addAll(inMsg.getPairs());
+    			token = inMsg.getToken();
+    		} while (token != null && pairs.size() < limit);
+    		return pairs;
+    }
 
 }
@@ -0,0 +1,383 @@
+package kvstore;
+
+import static kvstore.KVConstants.*;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A connection to another endpoint over which KVMessages are exchanged.
+ *
+ * A connection is either one-shot or framed. A one-shot connection carries a
+ * single XML request and a single XML response, with the end of each message
+ * marked by shutting down the output of the socket (see
+ * KVMessage.sendMessage). This is what older clients speak.
+ *
+ * A framed connection starts with a four byte preamble sent by the client and
+ * echoed back by the server. After that, every message is sent as a four byte
+ * big-endian length followed by that many bytes of payload, so a single socket
+ * can carry any number of request/response pairs. A one-shot XML message can
+ * never start with the NUL byte that begins the preamble, which is how the
+ * server tells the two apart. Between requests, a framed connection is
+ * parked with the IdleWatcher rather than holding a worker (see
+ * ConnectionJob).
+ *
+ * The last byte of the preamble is the codec the client would like frame
+ * payloads to be encoded with: CODEC_XML, or the compact CODEC_BINARY (see
+ * KVMessage.toBinary). The server echoes back the codec it agrees to, which
+ * is CODEC_XML if it does not know the one asked for, and both sides use it
+ * for the rest of the connection.
+ */
+public class KVConnection {
+
+    /* Last byte of the preamble names the encoding of the frame payloads. */
+    public static final byte CODEC_XML = 'X';
+    public static final byte CODEC_BINARY = 'B';
+
+    /* Upper bound on a frame payload; a maximal value fits well within it. */
+    public static final int MAX_FRAME_SIZE = 4 * 1024 * 1024;
+
+    /* How long reject() waits for the request it turns away. */
+    public static final int REJECT_TIMEOUT = 100;
+
+    /* Threads running the reject()s of rejectLater(), and how many may wait */
+    private static final int REJECT_THREADS = 4;
+    private static final int REJECT_BACKLOG = 256;
+
+    static final byte[] PREAMBLE = {0, 'K', 'V'};
+
+    private Socket sock;
+    private PushbackInputStream in;
+    private DataOutputStream out;
+    private boolean framed = false;
+    private byte codec = CODEC_XML;
+    /* The response rejectLater() is to answer with */
+    private KVMessage rejection;
+
+    /**
+     * Constructs a KVConnection over a connected socket. No data is
+     * exchanged until either connect() or accept() is called.
+     *
+     * @param sock Socket connected to the other endpoint
+     */
+    public KVConnection(Socket sock) {
+        this.sock = sock;
+    }
+
+    /**
+     * Client side of the handshake for a framed connection using XML payloads.
+     *
+     * @param  timeout maximum time to wait for the server, in milliseconds
+     * @throws KVException with ERROR_INVALID_FORMAT if the server does not
+     *         accept framing, or any network error from send and receive
+     */
+    public void connect(int timeout) throws KVException {
+        connect(CODEC_XML, timeout);
+    }
+
+    /**
+     * Client side of the handshake. Sends the preamble asking for a framed
+     * connection using the given codec and waits for the server to echo it
+     * back with the codec it agreed to, which may be CODEC_XML instead.
+     *
+     * @param  codec codec to ask for, CODEC_XML or CODEC_BINARY
+     * @param  timeout maximum time to wait for the server, in milliseconds
+     * @throws KVException with ERROR_INVALID_FORMAT if the server does not
+     *         accept framing, or any network error from send and receive
+     */
+    public void connect(byte codec, int timeout) throws KVException {
+        openStreams();
+        try {
+            out.write(PREAMBLE);
+            out.write(codec);
+            out.flush();
+        } catch (IOException e) {
+            throw new KVException(ERROR_COULD_NOT_SEND_DATA);
+        }
+        setTimeout(timeout);
+        byte[] reply = new byte[PREAMBLE.length + 1];
+        try {
+            new DataInputStream(in).readFully(reply);
+        } catch (SocketTimeoutException e) {
+            throw new KVException(ERROR_SOCKET_TIMEOUT);
+        } catch (IOException e) {
+            throw new KVException(ERROR_COULD_NOT_RECEIVE_DATA);
+        }
+        byte agreed = reply[PREAMBLE.length];
+        if (!Arrays.equals(PREAMBLE, Arrays.copyOf(reply, PREAMBLE.length)) ||
+                (agreed != codec && agreed != CODEC_XML)) {
+            throw new KVException(ERROR_INVALID_FORMAT);
+        }
+        this.codec = agreed;
+        framed = true;
+    }
+
+    /**
+     * Server side of the handshake. Peeks at the first byte sent by the
+     * client; if it starts the preamble, the rest is read and echoed back
+     * with the agreed codec and the connection becomes framed. Otherwise the
+     * byte is pushed back and the connection is treated as a one-shot XML
+     * exchange.
+     *
+     * @throws KVException with ERROR_INVALID_FORMAT if the preamble is not
+     *         understood, or ERROR_COULD_NOT_RECEIVE_DATA
+     */
+    public void accept() throws KVException {
+        openStreams();
+        try {
+            int first = in.read();
+            if (first != PREAMBLE[0]) {
+                if (first != -1) {
+                    in.unread(first);
+                }
+                return;
+            }
+            byte[] preamble = new byte[PREAMBLE.length + 1];
+            preamble[0] = (byte) first;
+            new DataInputStream(in).readFully(preamble, 1, preamble.length - 1);
+            if (!Arrays.equals(PREAMBLE, Arrays.copyOf(preamble, PREAMBLE.length))) {
+                throw new KVException(ERROR_INVALID_FORMAT);
+            }
+            byte asked = preamble[PREAMBLE.length];
+            codec = (asked == CODEC_BINARY) ? CODEC_BINARY : CODEC_XML;
+        } catch (IOException e) {
+            throw new KVException(ERROR_COULD_NOT_RECEIVE_DATA);
+        }
+        try {
+            out.write(PREAMBLE);
+            out.write(codec);
+            out.flush();
+        } catch (IOException e) {
+            throw new KVException(ERROR_COULD_NOT_SEND_DATA);
+        }
+        framed = true;
+    }
+
+    /**
+     * @return true if this connection can carry more than one message
+     */
+    public boolean isFramed() {
+        return framed;
+    }
+
+    /**
+     * @return the codec frame payloads are encoded with
+     */
+    public byte getCodec() {
+        return codec;
+    }
+
+    /**
+     * Send a KVMessage to the other endpoint. On a one-shot connection this
+     * also shuts down the output of the socket.
+     *
+     * @param  msg KVMessage to send
+     * @throws KVException with ERROR_COULD_NOT_SEND_DATA or any error raised
+     *         while serializing the message
+     */
+    public void send(KVMessage msg) throws KVException {
+        byte[] payload = (codec == CODEC_BINARY) ? msg.toBinary() : msg.toXMLBytes();
+        try {
+            if (framed) {
+                out.writeInt(payload.length);
+                out.write(payload);
+                out.flush();
+            } else {
+                out.write(payload);
+                out.flush();
+                sock.shutdownOutput();
+            }
+        } catch (IOException e) {
+            throw new KVException(ERROR_COULD_NOT_SEND_DATA);
+        }
+    }
+
+    /**
+     * Receive the next KVMessage from the other endpoint.
+     *
+     * @param  timeout maximum time to wait, in milliseconds, or 0 to wait
+     *         forever
+     * @return the next KVMessage, or null if the other endpoint closed a
+     *         framed connection between messages
+     * @throws KVException with ERROR_SOCKET_TIMEOUT, ERROR_PARSER,
+     *         ERROR_INVALID_FORMAT or ERROR_COULD_NOT_RECEIVE_DATA
+     */
+    public KVMessage receive(int timeout) throws KVException {
+        setTimeout(timeout);
+        if (!framed) {
+            return new KVMessage(in);
+        }
+        byte[] payload;
+        try {
+            DataInputStream din = new DataInputStream(in);
+            int first = din.read();
+            if (first == -1) {
+                return null;
+            }
+            in.unread(first);
+            int length = din.readInt();
+            if (length < 0 || length > MAX_FRAME_SIZE) {
+                throw new KVException(ERROR_INVALID_FORMAT);
+            }
+            payload = new byte[length];
+            din.readFully(payload);
+        } catch (SocketTimeoutException e) {
+            throw new KVException(ERROR_SOCKET_TIMEOUT);
+        } catch (IOException e) {
+            throw new KVException(ERROR_COULD_NOT_RECEIVE_DATA);
+        }
+        if (codec == CODEC_BINARY) {
+            return KVMessage.fromBinary(payload);
+        }
+        return new KVMessage(new ByteArrayInputStream(payload));
+    }
+
+    /**
+     * @return true if some of the next message, or of the handshake, has
+     *         already arrived on this connection and need not be waited for
+     */
+    public boolean hasBufferedInput() {
+        try {
+            openStreams();
+            return in.available() > 0;
+        } catch (KVException e) {
+            return false;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Send a request and wait for its response.
+     *
+     * @param  request KVMessage to send
+     * @param  timeout maximum time to wait for the response, in milliseconds
+     * @return the response
+     * @throws KVException if the request could not be sent or no response
+     *         was received
+     */
+    public KVMessage exchange(KVMessage request, int timeout) throws KVException {
+        send(request);
+        KVMessage response = receive(timeout);
+        if (response == null) {
+            throw new KVException(ERROR_COULD_NOT_RECEIVE_DATA);
+        }
+        return response;
+    }
+
+    /**
+     * Server side. Turns the other endpoint away without servicing it: reads
+     * its request, if one arrives within the timeout, answers it with the
+     * given response whatever it was, and closes the connection. Reading the
+     * request first lets the response reach a one-shot client before the
+     * close, but a client that sends nothing holds the caller for the whole
+     * timeout; see rejectLater(). Best effort, ignores errors.
+     *
+     * @param response KVMessage to answer with
+     * @param timeout maximum time to wait for the request, in milliseconds
+     */
+    public void reject(KVMessage response, int timeout) {
+        try {
+            setTimeout(timeout);
+            accept();
+            receive(timeout);
+            send(response);
+        } catch (KVException e) {
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Server side. Turns the other endpoint away as reject() does, but on a
+     * few threads set aside for it, so that it returns at once whatever the
+     * client does; it may be called on a thread accepting connections. If
+     * those threads are too far behind, the connection is closed without
+     * an answer.
+     *
+     * @param response KVMessage to answer with
+     */
+    public void rejectLater(KVMessage response) {
+        rejection = response;
+        if (!Rejector.QUEUE.offer(this)) {
+            close();
+        }
+    }
+
+    /* Runs the rejections queued by rejectLater(), from the first one on. */
+    private static class Rejector implements Runnable {
+        static final BlockingQueue<KVConnection> QUEUE =
+                new ArrayBlockingQueue<KVConnection>(REJECT_BACKLOG);
+
+        static {
+            for (int i = 0; i < REJECT_THREADS; i++) {
+                Thread rejector = new Thread(new Rejector(), "KVConnection-rejector");
+                rejector.setDaemon(true);
+                rejector.start();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    KVConnection conn = QUEUE.take();
+                    conn.reject(conn.rejection, REJECT_TIMEOUT);
+                }
+            } catch (InterruptedException e) {
+                // stop rejecting
+            }
+        }
+    }
+
+    /**
+     * @return the socket underlying this connection
+     */
+    public Socket getSocket() {
+        return sock;
+    }
+
+    /**
+     * Closes the connection.
+     * Best effort, ignores errors.
+     */
+    public void close() {
+        try {
+            sock.close();
+        } catch (IOException e) {
+        }
+    }
+
+    private void openStreams() throws KVException {
+        if (in != null) {
+            return;
+        }
+        try {
+            InputStream is = sock.getInputStream();
+            in = new PushbackInputStream(new BufferedInputStream(is), 1);
+            out = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream()));
+        } catch (IOException e) {
+            throw new KVException(ERROR_COULD_NOT_CONNECT);
+        }
+    }
+
+    private void setTimeout(int timeout) throws KVException {
+        try {
+            sock.setSoTimeout(timeout);
+        } catch (SocketException e) {
+            throw new KVException(ERROR_SOCKET_TIMEOUT);
+        }
+    }
+}
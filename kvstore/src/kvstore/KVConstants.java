@@ -6,6 +6,7 @@ public class KVConstants {
     public static final String GET_REQ  = "getreq";
     public static final String PUT_REQ  = "putreq";
     public static final String DEL_REQ  = "delreq";
+    public static final String SCAN_REQ = "scanreq";
     public static final String RESP     = "resp";
     public static final String SUCCESS  = "Success";
     public static final String TRUE = "True";
@@ -109,4 +110,26 @@ public class KVConstants {
     public static final String ERROR_INVALID_VALUE =
         "Data Error: Null or empty value";
 
+    /**
+     * Error message used if a put request is made with a negative time to
+     * live.
+     */
+    public static final String ERROR_INVALID_TTL =
+        "Data Error: Negative time to live";
+
+    /**
+     * Error message used if a scan request is made with a limit that is not
+     * positive.
+     */
+    public static final String ERROR_INVALID_LIMIT =
+        "Data Error: Non-positive scan limit";
+
+    /**
+     * Error message used if a server turns a request away without carrying
+     * it out because too many requests are already waiting to be serviced.
+     * The request may be retried later.
+     */
+    public static final String ERROR_SERVER_BUSY =
+        "Server Error: Server busy";
+
 }
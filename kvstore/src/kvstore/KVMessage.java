@@ -6,8 +6,15 @@ import java.io.*;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map.Entry;
 
-import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBElement;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.Marshaller;
@@ -18,6 +25,7 @@ import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 
 import kvstore.xml.KVMessageType;
+import kvstore.xml.KVPairType;
 import kvstore.xml.ObjectFactory;
 
 import org.w3c.dom.*;
@@ -34,9 +42,33 @@ public class KVMessage implements Serializable {
     private String key;
     private String value;
     private String message;
+    private long ttl;
+    /* Of a PUT request in a TPCLog, when its pair expires; never sent */
+    private long expiresAt;
+    /* Of a SCAN request: the end of its range, how many pairs it wants, and
+     * where an earlier page left off; of a SCAN response: the pairs, and
+     * where the next page starts */
+    private String end;
+    private int limit;
+    private String token;
+    private List<Entry<String, String>> pairs;
 
     public static final long serialVersionUID = 6473128480951955693L;
 
+    /*
+     * Opcodes of the binary encoding, indexed by position. Opcode 0 is used
+     * for any other message type, whose name is then sent in full.
+     */
+    private static final String[] OPCODES = {
+        null, GET_REQ, PUT_REQ, DEL_REQ, RESP, REGISTER, READY, ABORT,
+        COMMIT, ACK, CONNECT, SCAN_REQ
+    };
+
+    /* Set on the opcode of a binary message followed by a time to live */
+    private static final int TTL_FLAG = 0x40;
+    /* Set on the opcode of a binary message followed by scan fields */
+    private static final int SCAN_FLAG = 0x20;
+
     /**
      * Construct KVMessage with only a type.
      *
@@ -87,13 +119,37 @@ public class KVMessage implements Serializable {
 				throw new KVException(ERROR_SOCKET_TIMEOUT);
 			}
     		
+    		try {
+				readXML(sock.getInputStream());
+			} catch (IOException e) {
+				throw new KVException(ERROR_COULD_NOT_RECEIVE_DATA);
+			}
+    }
+
+    /**
+     * Construct KVMessage from an InputStream that holds exactly one
+     * serialized message, such as the payload of a frame read by a
+     * KVConnection.
+     *
+     * @param  is InputStream to parse XML from
+     * @throws KVException with ERROR_PARSER if the XML cannot be parsed
+     */
+    KVMessage(InputStream is) throws KVException {
+        readXML(is);
+    }
+
+    /**
+     * Fill in the fields of this KVMessage from the XML in an InputStream.
+     *
+     * @param  is InputStream to parse XML from
+     * @throws KVException with ERROR_PARSER if the XML cannot be parsed
+     */
+    private void readXML(InputStream is) throws KVException {
     		KVMessageType kvmt = null;
     		try {
-				kvmt = unmarshal(sock.getInputStream());
+				kvmt = unmarshal(is);
 			} catch (JAXBException e) {
 				throw new KVException(ERROR_PARSER);
-			} catch (IOException e) {
-				throw new KVException(ERROR_COULD_NOT_RECEIVE_DATA);
 			}
     		
     		if(null != kvmt){
@@ -101,8 +157,17 @@ public class KVMessage implements Serializable {
     			message = kvmt.getMessage();
     			msgType = kvmt.getType();
     			value = kvmt.getValue();
+    			ttl = (kvmt.getTtl() != null) ? kvmt.getTtl() : 0;
+    			end = kvmt.getEnd();
+    			limit = (kvmt.getLimit() != null) ? kvmt.getLimit() : 0;
+    			token = kvmt.getToken();
+    			if (!kvmt.getKVPair().isEmpty()) {
+    				pairs = new ArrayList<Entry<String, String>>();
+    				for (KVPairType pair : kvmt.getKVPair()) {
+    					pairs.add(new SimpleImmutableEntry<String, String>(pair.getKey(), pair.getValue()));
+    				}
+    			}
     		}
-    			
     }
 
     /**
@@ -116,6 +181,13 @@ public class KVMessage implements Serializable {
     		message = kvm.getMessage();
     		msgType = kvm.getMsgType();
     		value = kvm.getValue();
+    		ttl = kvm.getTtl();
+    		expiresAt = kvm.getExpiresAt();
+    		end = kvm.getEnd();
+    		limit = kvm.getLimit();
+    		token = kvm.getToken();
+    		if (kvm.pairs != null)
+    			pairs = new ArrayList<Entry<String, String>>(kvm.pairs);
     }
     
     /**
@@ -132,6 +204,22 @@ public class KVMessage implements Serializable {
         xmlStore.setMessage(message);
         xmlStore.setType(msgType);
         xmlStore.setValue(value);
+        if (ttl != 0) {
+            xmlStore.setTtl(ttl);
+        }
+        xmlStore.setEnd(end);
+        if (limit != 0) {
+            xmlStore.setLimit(limit);
+        }
+        xmlStore.setToken(token);
+        if (pairs != null) {
+            for (Entry<String, String> pair : pairs) {
+                KVPairType kvPair = factory.createKVPairType();
+                kvPair.setKey(pair.getKey());
+                kvPair.setValue(pair.getValue());
+                xmlStore.getKVPair().add(kvPair);
+            }
+        }
         return factory.createKVMessage(xmlStore);
     }
 
@@ -157,6 +245,193 @@ public class KVMessage implements Serializable {
         return os.toString();
     }
 
+    /**
+     * Generate the serialized XML representation for this message as UTF-8
+     * bytes, ready to be written into a frame by a KVConnection.
+     *
+     * @return the XML representation of this KVMessage
+     * @throws KVException
+     *             with ERROR_INVALID_FORMAT or ERROR_PARSER
+     */
+    byte[] toXMLBytes() throws KVException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try {
+            marshalTo(os);
+        }
+        catch (KVException e) {
+            throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+        }
+        catch (JAXBException e) {
+            throw new KVException(KVConstants.ERROR_PARSER);
+        }
+        return os.toByteArray();
+    }
+
+    /**
+     * Generate the binary representation for this message. It consists of a
+     * one byte opcode for the message type followed by the lengths of the
+     * key, value and message fields as four byte integers (-1 for a field that
+     * is not set) and then the UTF-8 bytes of those fields. Message types
+     * without an opcode are sent as opcode 0 followed by the type as a fourth
+     * length-prefixed field. A message with scan fields has SCAN_FLAG set in
+     * its opcode and goes on with the end key and token as length-prefixed
+     * fields around the limit, then the number of pairs and each pair as two
+     * length-prefixed fields. A message with a time to live has TTL_FLAG set
+     * in its opcode and ends with the time to live as an eight byte integer.
+     *
+     * @return the binary representation of this KVMessage
+     * @throws KVException with ERROR_INVALID_FORMAT if the message has no type
+     */
+    byte[] toBinary() throws KVException {
+        if (msgType == null) {
+            throw new KVException(ERROR_INVALID_FORMAT);
+        }
+        byte opcode = 0;
+        for (byte i = 1; i < OPCODES.length; i++) {
+            if (OPCODES[i].equals(msgType)) {
+                opcode = i;
+                break;
+            }
+        }
+        byte[] k = encodeField(key);
+        byte[] v = encodeField(value);
+        byte[] m = encodeField(message);
+        byte[] t = (opcode == 0) ? encodeField(msgType) : null;
+        boolean scan = end != null || limit != 0 || token != null || pairs != null;
+        byte[] e = encodeField(end);
+        byte[] tok = encodeField(token);
+        byte[][] p = null;
+
+        int length = 1 + 12 + fieldLength(k) + fieldLength(v) + fieldLength(m);
+        if (t != null) {
+            length += 4 + t.length;
+        }
+        if (scan) {
+            length += 4 + fieldLength(e) + 4 + 4 + fieldLength(tok) + 4;
+            p = new byte[(pairs == null) ? 0 : 2 * pairs.size()][];
+            for (int i = 0; i < p.length; i += 2) {
+                p[i] = encodeField(pairs.get(i / 2).getKey());
+                p[i + 1] = encodeField(pairs.get(i / 2).getValue());
+                length += 8 + fieldLength(p[i]) + fieldLength(p[i + 1]);
+            }
+        }
+        if (ttl != 0) {
+            length += 8;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        int flags = ((ttl != 0) ? TTL_FLAG : 0) | (scan ? SCAN_FLAG : 0);
+        buf.put((byte) (opcode | flags));
+        buf.putInt(k == null ? -1 : k.length);
+        buf.putInt(v == null ? -1 : v.length);
+        buf.putInt(m == null ? -1 : m.length);
+        if (k != null) buf.put(k);
+        if (v != null) buf.put(v);
+        if (m != null) buf.put(m);
+        if (t != null) {
+            buf.putInt(t.length);
+            buf.put(t);
+        }
+        if (scan) {
+            putField(buf, e);
+            buf.putInt(limit);
+            putField(buf, tok);
+            buf.putInt(p.length / 2);
+            for (byte[] field : p) {
+                putField(buf, field);
+            }
+        }
+        if (ttl != 0) {
+            buf.putLong(ttl);
+        }
+        return buf.array();
+    }
+
+    /**
+     * Construct KVMessage from its binary representation, as generated by
+     * toBinary().
+     *
+     * @param  frame the binary representation of a KVMessage
+     * @return the decoded KVMessage
+     * @throws KVException with ERROR_INVALID_FORMAT if the bytes do not hold a
+     *         well-formed message
+     */
+    static KVMessage fromBinary(byte[] frame) throws KVException {
+        ByteBuffer buf = ByteBuffer.wrap(frame);
+        try {
+            int opcode = buf.get();
+            boolean hasTtl = (opcode & TTL_FLAG) != 0;
+            boolean hasScan = (opcode & SCAN_FLAG) != 0;
+            opcode &= ~(TTL_FLAG | SCAN_FLAG);
+            if (opcode < 0 || opcode >= OPCODES.length) {
+                throw new KVException(ERROR_INVALID_FORMAT);
+            }
+            int keyLength = buf.getInt();
+            int valueLength = buf.getInt();
+            int messageLength = buf.getInt();
+            KVMessage kvm = new KVMessage(OPCODES[opcode]);
+            kvm.key = decodeField(buf, keyLength);
+            kvm.value = decodeField(buf, valueLength);
+            kvm.message = decodeField(buf, messageLength);
+            if (opcode == 0) {
+                kvm.msgType = decodeField(buf, buf.getInt());
+                if (kvm.msgType == null) {
+                    throw new KVException(ERROR_INVALID_FORMAT);
+                }
+            }
+            if (hasScan) {
+                kvm.end = decodeField(buf, buf.getInt());
+                kvm.limit = buf.getInt();
+                kvm.token = decodeField(buf, buf.getInt());
+                int count = buf.getInt();
+                if (count < 0 || count > buf.remaining() / 8) {
+                    throw new KVException(ERROR_INVALID_FORMAT);
+                }
+                if (count > 0) {
+                    kvm.pairs = new ArrayList<Entry<String, String>>(count);
+                }
+                for (int i = 0; i < count; i++) {
+                    String key = decodeField(buf, buf.getInt());
+                    String value = decodeField(buf, buf.getInt());
+                    kvm.pairs.add(new SimpleImmutableEntry<String, String>(key, value));
+                }
+            }
+            if (hasTtl) {
+                kvm.ttl = buf.getLong();
+            }
+            if (buf.hasRemaining()) {
+                throw new KVException(ERROR_INVALID_FORMAT);
+            }
+            return kvm;
+        } catch (BufferUnderflowException e) {
+            throw new KVException(ERROR_INVALID_FORMAT);
+        }
+    }
+
+    private static byte[] encodeField(String field) {
+        return (field == null) ? null : field.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int fieldLength(byte[] field) {
+        return (field == null) ? 0 : field.length;
+    }
+
+    private static void putField(ByteBuffer buf, byte[] field) {
+        buf.putInt(field == null ? -1 : field.length);
+        if (field != null) buf.put(field);
+    }
+
+    private static String decodeField(ByteBuffer buf, int length) throws KVException {
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0 || length > buf.remaining()) {
+            throw new KVException(ERROR_INVALID_FORMAT);
+        }
+        String field = new String(buf.array(), buf.position(), length, StandardCharsets.UTF_8);
+        buf.position(buf.position() + length);
+        return field;
+    }
+
     /**
      * Grab XML from an InputStream and create a KVMessageType object.
      *
@@ -164,9 +439,9 @@ public class KVMessage implements Serializable {
      * @return KVMessageType from XML
      * @throws JAXBException
      */
+    @SuppressWarnings("unchecked")
     private KVMessageType unmarshal(InputStream is) throws JAXBException {
-        JAXBContext jc = JAXBContext.newInstance(ObjectFactory.class);
-        Unmarshaller unmarshaller = jc.createUnmarshaller();
+        Unmarshaller unmarshaller = XMLBinding.unmarshaller();
         return ((JAXBElement<KVMessageType>)unmarshaller.unmarshal(new NoCloseInputStream(is))).getValue();
     }
 
@@ -177,10 +452,7 @@ public class KVMessage implements Serializable {
      * @throws KVException
      */
     private void marshalTo(OutputStream os) throws JAXBException, KVException {
-        JAXBContext jc = JAXBContext.newInstance(KVMessageType.class);
-        Marshaller marshaller = jc.createMarshaller();
-        marshaller.setProperty("com.sun.xml.internal.bind.xmlHeaders", "<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
-        marshaller.setProperty(Marshaller.JAXB_FRAGMENT, true);
+        Marshaller marshaller = XMLBinding.marshaller();
         marshaller.marshal(getXMLRoot(), os);
     }
     
@@ -238,6 +510,140 @@ public class KVMessage implements Serializable {
         return msgType;
     }
 
+    /**
+     * Gets the time to live of the pair in a PUT request, or what is left of
+     * it for the value in a GET response.
+     *
+     * @return time to live in milliseconds, or 0 if the pair never expires
+     */
+    public long getTtl() {
+        return ttl;
+    }
+
+    /**
+     * Sets the time to live of the pair in a PUT request, or what is left of
+     * it for the value in a GET response.
+     *
+     * @param ttl time to live in milliseconds, or 0 if the pair never expires
+     */
+    public void setTtl(long ttl) {
+        this.ttl = ttl;
+    }
+
+    /**
+     * Gets when the pair of a PUT request expires, as a TPCLog records it
+     * so that a replay does not start its time to live over. It is not part
+     * of the message as sent.
+     *
+     * @return System.currentTimeMillis() at which the pair expires, or 0 if
+     *         it never does or was not recorded
+     */
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    /**
+     * Sets when the pair of a PUT request expires; see getExpiresAt().
+     *
+     * @param expiresAt System.currentTimeMillis() at which the pair
+     *        expires, or 0 if it never does
+     */
+    public void setExpiresAt(long expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+    /**
+     * Gets the end of the range of a SCAN request. The start of the range
+     * is the key of the request.
+     *
+     * @return the first key past the range, or null if the range is open
+     */
+    public String getEnd() {
+        return end;
+    }
+
+    /**
+     * Sets the end of the range of a SCAN request.
+     *
+     * @param end the first key past the range, or null for an open range
+     */
+    public void setEnd(String end) {
+        this.end = end;
+    }
+
+    /**
+     * Gets the most pairs a SCAN request wants in its response.
+     *
+     * @return the limit, or 0 if not set
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Sets the most pairs a SCAN request wants in its response.
+     *
+     * @param limit the limit
+     */
+    public void setLimit(int limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * Gets the continuation token of a SCAN response, to be set on the next
+     * request for the same range to get the pairs after this page, or the
+     * token of such a request.
+     *
+     * @return the token, or null if the scan is complete or just starting
+     */
+    public String getToken() {
+        return token;
+    }
+
+    /**
+     * Sets the continuation token of a SCAN request or response.
+     *
+     * @param token the token, or null
+     */
+    public void setToken(String token) {
+        this.token = token;
+    }
+
+    /**
+     * Gets the pairs of a SCAN response, in order of their keys.
+     *
+     * @return the pairs, which is empty if none were set
+     */
+    public List<Entry<String, String>> getPairs() {
+        if (pairs == null) {
+            return Collections.emptyList();
+        }
+        return pairs;
+    }
+
+    /**
+     * Sets the pairs of a SCAN response.
+     *
+     * @param pairs the pairs, in order of their keys
+     */
+    public void setPairs(List<Entry<String, String>> pairs) {
+        this.pairs = pairs;
+    }
+
+    /**
+     * Gets the first key a SCAN request may return: the one just after its
+     * token if it has one, or else its key. The token of a response is the
+     * last key it holds, though clients should treat it as opaque.
+     *
+     * @return the start of the range still to scan, inclusive
+     */
+    String getScanStart() {
+        if (token != null) {
+            return token + '\u0000';
+        }
+        return (key == null) ? "" : key;
+    }
+
 
     @Override
     public String toString() {
@@ -1,9 +1,17 @@
 package kvstore;
 
+import static kvstore.KVConstants.ERROR_INVALID_LIMIT;
+import static kvstore.KVConstants.ERROR_INVALID_TTL;
+import static kvstore.KVConstants.ERROR_NO_SUCH_KEY;
 import static kvstore.KVConstants.ERROR_OVERSIZED_KEY;
 import static kvstore.KVConstants.ERROR_OVERSIZED_VALUE;
 import static kvstore.KVConstants.RESP;
 
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.Lock;
 
 import org.mockito.asm.tree.analysis.Value;
@@ -12,15 +20,51 @@ import org.mockito.asm.tree.analysis.Value;
  * This class services all storage logic for an individual key-value server.
  * All KVServer request on keys from different sets must be parallel while
  * requests on keys from the same set should be serial. A write-through
- * policy should be followed when a put request is made.
+ * policy is followed when a put request is made, unless write behind is on.
+ *
+ * A pair may be put with a time to live, after which it is gone from both
+ * the cache and the store. Deadlines are checked on every read, and a
+ * sweeper thread, started by the first such put, deletes expired pairs in
+ * the background as a TimingWheel brings them due. The sweeper takes the
+ * set's lock, so a server without locking only drops expired pairs as they
+ * are read. The store keeps each deadline with its pair, and a server takes
+ * up the deadlines of the pairs its store already has as it is constructed,
+ * so pairs restored from disk or from a dump still expire.
+ *
+ * hasKey() first asks a KeyFilter, a Bloom filter of the keys in the store,
+ * so that most keys that are not there are turned away without a lookup.
+ *
+ * A locking server may instead write behind, see setWriteBehind(). Puts and
+ * dels then return once the cache is updated, and are kept as dirty writes,
+ * the last for each key, until a flusher thread writes them to the store.
+ * Reads find a dirty write before the store, so a client always sees its own
+ * writes, and scans flush first. Dirty writes are lost if the process dies;
+ * a slave can afford that, as its TPCLog is written before a COMMIT is
+ * acknowledged and is replayed into the server when it restarts.
  */
 public class KVServer implements KeyValueInterface {
 
     private KVStore dataStore;
     private KVCache dataCache;
+    private boolean locking;
+    /* Deadlines of the pairs put with a time to live */
+    private ConcurrentHashMap<String, Long> deadlines = new ConcurrentHashMap<String, Long>();
+    private TimingWheel expiries;
+    private KeyFilter keyFilter;
+    /* Milliseconds between flushes of dirty writes, or 0 to write through */
+    private volatile long flushMillis;
+    /* Writes not yet in the store, by key */
+    private ConcurrentHashMap<String, Write> dirty = new ConcurrentHashMap<String, Write>();
+    private boolean flushing;
 
     private static final int MAX_KEY_SIZE = 256;
     private static final int MAX_VAL_SIZE = 256 * 1024;
+    private static final long SWEEP_TICK_MILLIS = 100;
+    /* Dirty writes beyond which puts and dels write through */
+    private static final int MAX_DIRTY = 100000;
+
+    /** Most pairs a single scan returns, whatever limit it asks for. */
+    public static final int MAX_SCAN_LIMIT = 1000;
 
     /**
      * Constructs a KVServer backed by a KVCache and KVStore.
@@ -30,8 +74,78 @@ public class KVServer implements KeyValueInterface {
      */
 
     public KVServer(int numSets, int maxElemsPerSet) {
-        this.dataCache = new KVCache(numSets, maxElemsPerSet);
+        this(numSets, maxElemsPerSet, true);
+    }
+
+    /**
+     * Constructs a KVServer backed by a KVCache and KVStore, which may leave
+     * the locking of cache sets to its caller. Without locking, requests on
+     * keys from the same set must never run at the same time, as when every
+     * request goes through a KeyAffinityExecutor.
+     *
+     * @param numSets the number of sets in the data cache
+     * @param maxElemsPerSet the size of each set in the data cache
+     * @param locking false if callers already serialize requests by set
+     */
+    public KVServer(int numSets, int maxElemsPerSet, boolean locking) {
+        this(numSets, maxElemsPerSet, locking, null);
+    }
+
+    /**
+     * Constructs a KVServer whose data cache evicts by the given policy.
+     *
+     * @param numSets the number of sets in the data cache
+     * @param maxElemsPerSet the size of each set in the data cache
+     * @param locking false if callers already serialize requests by set
+     * @param policy a new EvictionPolicy for the data cache, or null for
+     *        second-chance
+     */
+    public KVServer(int numSets, int maxElemsPerSet, boolean locking, EvictionPolicy policy) {
+        this.dataCache = (policy == null) ? new KVCache(numSets, maxElemsPerSet)
+                : new KVCache(numSets, maxElemsPerSet, policy);
         this.dataStore = new KVStore();
+        this.keyFilter = new KeyFilter(dataStore);
+        this.locking = locking;
+        if (!locking)
+            dataCache.useWithoutLocks();
+        adoptDeadlines();
+    }
+
+    /**
+     * Constructs a KVServer backed by the given cache, such as one limited
+     * by bytes rather than entries, and a KVStore.
+     *
+     * @param cache a new KVCache for this server only
+     * @param locking false if callers already serialize requests by set
+     */
+    public KVServer(KVCache cache, boolean locking) {
+        this(cache, new KVStore(), locking);
+    }
+
+    /**
+     * Constructs a KVServer backed by the given cache and store, such as an
+     * OffHeapKVStore.
+     *
+     * @param cache a new KVCache for this server only
+     * @param store a new KVStore for this server only
+     * @param locking false if callers already serialize requests by set
+     */
+    public KVServer(KVCache cache, KVStore store, boolean locking) {
+        this.dataCache = cache;
+        this.dataStore = store;
+        this.keyFilter = new KeyFilter(store);
+        this.locking = locking;
+        if (!locking)
+            cache.useWithoutLocks();
+        adoptDeadlines();
+    }
+
+    /* Takes up the deadlines of the pairs already in the store. */
+    private void adoptDeadlines() {
+    		for (Entry<String, Long> e : dataStore.deadlines().entrySet()) {
+    			deadlines.put(e.getKey(), e.getValue());
+    			schedule(e.getKey(), e.getValue());
+    		}
     }
 
     /**
@@ -44,30 +158,82 @@ public class KVServer implements KeyValueInterface {
     @Override
     public void put(String key, String value) throws KVException {
         // implement me
-    		if(key.length() > MAX_KEY_SIZE){
-    			KVMessage kvm = new KVMessage(RESP, ERROR_OVERSIZED_KEY);
-    			throw new KVException(kvm);
-    		}
+    		put(key, value, 0);
+    }
+
+    /**
+     * Performs put request on cache and store, for a pair that expires after
+     * a time to live.
+     *
+     * @param  key String key
+     * @param  value String value
+     * @param  ttl time to live in milliseconds, or 0 if the pair never expires
+     * @throws KVException if key or value is too long, or ttl is negative
+     */
+    public void put(String key, String value, long ttl) throws KVException {
+    		checkSizes(key, value);
     		
-    		if(value.length() > MAX_VAL_SIZE){
-    			KVMessage kvm = new KVMessage(RESP, ERROR_OVERSIZED_VALUE);
+    		if(ttl < 0){
+    			KVMessage kvm = new KVMessage(RESP, ERROR_INVALID_TTL);
     			throw new KVException(kvm);
     		}
     		
-    		Lock lock = dataCache.getLock(key);
+    		putUntil(key, value, (ttl > 0) ? System.currentTimeMillis() + ttl : 0);
+    	}
+
+    /**
+     * Performs put request on cache and store, for a pair that expires at a
+     * given time rather than after a time to live, as when a put is replayed
+     * from a log. A pair whose time has already come is gone as soon as it
+     * is read or swept.
+     *
+     * @param  key String key
+     * @param  value String value
+     * @param  expiresAt System.currentTimeMillis() at which the pair
+     *         expires, or 0 if it never does
+     * @throws KVException if key or value is too long
+     */
+    public void putUntil(String key, String value, long expiresAt) throws KVException {
+    		checkSizes(key, value);
+    		
+    		Lock lock = locking ? dataCache.getLock(key) : null;
     		try {
-	    			lock.lock();
+	    			if (lock != null)
+	    				lock.lock();
 	    			//write through
-	    			dataCache.put(key, value);
-	    			dataStore.put(key, value);
+	    			if (expiresAt == 0) {
+	    				dataCache.put(key, value);
+	    				deadlines.remove(key);
+	    			} else {
+	    				dataCache.put(key, value, expiresAt);
+	    				deadlines.put(key, expiresAt);
+	    			}
+	    			storePut(key, value, expiresAt);
+	    			keyFilter.added(key);
 			} finally{
-    				lock.unlock();
+				if (lock != null)
+					lock.unlock();
 			}  		
+    		if (expiresAt != 0)
+    			schedule(key, expiresAt);
     	}
 
+    private static void checkSizes(String key, String value) throws KVException {
+    		if(key.length() > MAX_KEY_SIZE){
+    			KVMessage kvm = new KVMessage(RESP, ERROR_OVERSIZED_KEY);
+    			throw new KVException(kvm);
+    		}
+    		
+    		if(value.length() > MAX_VAL_SIZE){
+    			KVMessage kvm = new KVMessage(RESP, ERROR_OVERSIZED_VALUE);
+    			throw new KVException(kvm);
+    		}
+    }
+
     /**
      * Performs get request.
-     * Checks cache first. Updates cache if not in cache but located in store.
+     * Checks cache first, without the set's lock if it can. Updates cache if
+     * not in cache but located in store.
      *
      * @param  key String key
      * @return String value associated with key
@@ -81,23 +247,32 @@ public class KVServer implements KeyValueInterface {
 			throw new KVException(kvm);
 		}
 		
-    		Lock lock = dataCache.getLock(key);
-    		String value = null;
+    		// most hits need no lock; see KVCache.getOptimistic()
+    		String value = locking ? dataCache.getOptimistic(key) : null;
+    		if (value != null)
+    			return value;
+    		Lock lock = locking ? dataCache.getLock(key) : null;
     		try {
-				lock.lock();
+				if (lock != null)
+					lock.lock();
 				value = dataCache.get(key);
 				if(null != value){
 	    				return value;
 		    		}
 		    		else{
-		    			value = dataStore.get(key);
+		    			long expiresAt = expire(key);
+		    			value = storeGet(key);
 		    			if(null != value){
-		    				dataCache.put(key, value);
+		    				if (expiresAt == 0)
+		    					dataCache.put(key, value);
+		    				else
+		    					dataCache.put(key, value, expiresAt);
 		    				return value;
 		    			}
 		    		} 	
 			} finally{
-				lock.unlock();
+				if (lock != null)
+					lock.unlock();
 			}
     		
         return value;
@@ -117,32 +292,342 @@ public class KVServer implements KeyValueInterface {
 			throw new KVException(kvm);
 		}
 		
-    		Lock lock = dataCache.getLock(key);
+    		Lock lock = locking ? dataCache.getLock(key) : null;
     		try {    		
-	    			lock.lock();
+	    			if (lock != null)
+	    				lock.lock();
 	    			dataCache.del(key);	
-	        		dataStore.del(key);
+	    			deadlines.remove(key);
+	        		storeDel(key);
+	        		keyFilter.removed(key);
 			} finally{
-	    			lock.unlock();
+				if (lock != null)
+					lock.unlock();
 			}
     }
 
     /**
      * Check if the server has a given key. This is used for TPC operations
      * that need to check whether or not a transaction can be performed but
-     * you don't want to modify the state of the cache by calling get(). You
-     * are allowed to call dataStore.get() for this method.
+     * you don't want to modify the state of the cache by calling get(). Asks
+     * the key filter, and only if the key might be there the store, which
+     * may answer without reading the value.
      *
      * @param key key to check for membership in store
      */
     public boolean hasKey(String key) {
         // implement me
+    		if (isExpired(deadlines.get(key), System.currentTimeMillis()))
+    			return false;
+    		Write write = dirty.get(key);
+    		if (write != null)
+    			return write.value != null;
+    		if (!keyFilter.mightContain(key))
+    			return false;
+    		return dataStore.hasKey(key);
+    }
+
+    /**
+     * Returns the pairs with keys in a range, in order of their keys. Reads
+     * the store, after flushing any dirty writes to it, and takes no locks
+     * of its own, so the pairs need not reflect puts and dels made
+     * meanwhile. Expired pairs are left out.
+     *
+     * @param  start first key of the range
+     * @param  end first key past the range, or null for no end
+     * @param  limit most pairs to return, no more than MAX_SCAN_LIMIT are
+     * @return up to limit pairs, the smallest keys from start on
+     * @throws KVException with ERROR_INVALID_LIMIT if limit is not positive
+     */
+    public List<Entry<String, String>> scan(String start, String end, int limit)
+            throws KVException {
+    		if (limit <= 0)
+    			throw new KVException(new KVMessage(RESP, ERROR_INVALID_LIMIT));
+    		limit = Math.min(limit, MAX_SCAN_LIMIT);
+    		flush();
+    		List<Entry<String, String>> pairs = new ArrayList<Entry<String, String>>();
+    		while (true) {
+    			int wanted = limit - pairs.size();
+    			List<Entry<String, String>> page = dataStore.scan(start, end, wanted);
+    			long now = System.currentTimeMillis();
+    			for (Entry<String, String> pair : page) {
+    				if (!isExpired(deadlines.get(pair.getKey()), now))
+    					pairs.add(pair);
+    			}
+    			// only a page cut short by expired pairs needs another
+    			if (pairs.size() == limit || page.size() < wanted)
+    				return pairs;
+    			start = page.get(page.size() - 1).getKey() + '\u0000';
+    		}
+    }
+
+    /**
+     * Returns what is left of the time to live of a pair.
+     *
+     * @param key key of the pair
+     * @return milliseconds until the pair expires, or 0 if it never does or
+     *         is not in the store
+     */
+    public long getTtl(String key) {
+    		Long deadline = deadlines.get(key);
+    		return (deadline == null) ? 0 : Math.max(1, deadline - System.currentTimeMillis());
+    }
+
+    private static boolean isExpired(Long deadline, long now) {
+    		return deadline != null && deadline <= now;
+    }
+
+    /**
+     * Deletes a pair from the cache and store if its time to live is over.
+     * Called with the set's lock held if the server is locking.
+     *
+     * @param key key of the pair
+     * @return when the pair expires if it has not yet, or 0 if it never does
+     *         or was just deleted
+     */
+    private long expire(String key) {
+    		Long deadline = deadlines.get(key);
+    		if (deadline == null)
+    			return 0;
+    		if (!isExpired(deadline, System.currentTimeMillis()))
+    			return deadline;
+    		deadlines.remove(key);
+    		dataCache.del(key);
     		try {
-    			  dataStore.get(key);
-    			  return true;
-			} catch (KVException kve) {
-				return false;
-			}
+    			storeDel(key);
+    			keyFilter.removed(key);
+    		} catch (KVException kve) {
+    			// already gone
+    		}
+    		return 0;
+    }
+
+    /* Hands a deadline to the sweeper, starting it on first use. */
+    private void schedule(String key, long deadline) {
+    		if (!locking)
+    			return;
+    		TimingWheel wheel;
+    		synchronized (deadlines) {
+    			if (expiries == null) {
+    				expiries = new TimingWheel(SWEEP_TICK_MILLIS, System.currentTimeMillis());
+    				Thread sweeper = new Thread(new Sweeper(this, expiries), "KVServer-sweeper");
+    				sweeper.setDaemon(true);
+    				sweeper.start();
+    			}
+    			wheel = expiries;
+    		}
+    		wheel.schedule(key, deadline);
+    }
+
+    /*
+     * Deletes pairs as the wheel brings their deadlines due, under the lock
+     * of their set. Holds the server weakly, and stops once the server is
+     * no longer in use.
+     */
+    private static class Sweeper implements Runnable {
+    		private WeakReference<KVServer> server;
+    		private TimingWheel wheel;
+
+    		Sweeper(KVServer server, TimingWheel wheel) {
+    			this.server = new WeakReference<KVServer>(server);
+    			this.wheel = wheel;
+    		}
+
+    		@Override
+    		public void run() {
+    			try {
+    				while (true) {
+    					Thread.sleep(wheel.getTickMillis());
+    					KVServer kvServer = server.get();
+    					if (kvServer == null)
+    						return;
+    					for (String key : wheel.advance(System.currentTimeMillis())) {
+    						Lock lock = kvServer.dataCache.getLock(key);
+    						lock.lock();
+    						try {
+    							kvServer.expire(key);
+    						} finally {
+    							lock.unlock();
+    						}
+    					}
+    				}
+    			} catch (InterruptedException e) {
+    				// stop sweeping
+    			}
+    		}
+    }
+
+    /**
+     * Switches between writing behind and writing through. Turning write
+     * behind off flushes what is dirty, after which every put and del
+     * reaches the store before it returns.
+     *
+     * @param flushMillis milliseconds between flushes of dirty writes to
+     *        the store, or 0 to write through
+     * @throws IllegalStateException if the server leaves locking to its
+     *         callers, as the flusher could not then keep clear of them
+     */
+    public void setWriteBehind(long flushMillis) {
+    		if (flushMillis > 0 && !locking)
+    			throw new IllegalStateException("Write behind needs a locking server");
+    		this.flushMillis = Math.max(0, flushMillis);
+    		if (flushMillis <= 0) {
+    			flush();
+    			return;
+    		}
+    		synchronized (dirty) {
+    			if (!flushing) {
+    				Thread flusher = new Thread(new Flusher(this), "KVServer-flusher");
+    				flusher.setDaemon(true);
+    				flusher.start();
+    				flushing = true;
+    			}
+    		}
+    }
+
+    /**
+     * Writes every dirty write to the store, each under the lock of its set.
+     * Several writes of a key since the last flush cost one write to the
+     * store. Does nothing if no write is dirty.
+     */
+    public void flush() {
+    		for (String key : dirty.keySet()) {
+    			Lock lock = dataCache.getLock(key);
+    			lock.lock();
+    			try {
+    				flushKey(key);
+    			} finally {
+    				lock.unlock();
+    			}
+    		}
+    }
+
+    /* Dirty writes are kept while there is room for them */
+    private boolean writingBehind() {
+    		return flushMillis > 0 && dirty.size() < MAX_DIRTY;
+    }
+
+    /*
+     * The store side of put(), del() and get(), called with the set's lock
+     * held. Writing through, a dirty write of the key is flushed first, or
+     * the flusher could later write it over the newer one.
+     */
+    private void storePut(String key, String value, long expiresAt) {
+    		if (writingBehind()) {
+    			dirty.put(key, new Write(value, expiresAt));
+    			return;
+    		}
+    		flushKey(key);
+    		dataStore.put(key, value, expiresAt);
+    }
+
+    private void storeDel(String key) throws KVException {
+    		if (writingBehind()) {
+    			Write write = dirty.get(key);
+    			if (write == null ? !dataStore.hasKey(key) : write.value == null)
+    				throw new KVException(new KVMessage(RESP, ERROR_NO_SUCH_KEY));
+    			dirty.put(key, new Write(null, 0));
+    			return;
+    		}
+    		Write write = dirty.get(key);
+    		flushKey(key);
+    		if (write != null && write.value == null)
+    			throw new KVException(new KVMessage(RESP, ERROR_NO_SUCH_KEY));
+    		dataStore.del(key);
+    }
+
+    private String storeGet(String key) throws KVException {
+    		Write write = dirty.get(key);
+    		if (write == null)
+    			return dataStore.get(key);
+    		if (write.value == null)
+    			throw new KVException(new KVMessage(RESP, ERROR_NO_SUCH_KEY));
+    		return write.value;
+    }
+
+    /*
+     * Writes the dirty write of a key, if any, to the store; called with the
+     * set's lock held. The write stays dirty until the store has it, so
+     * readers never fall back to a store that is behind.
+     */
+    private void flushKey(String key) {
+    		Write write = dirty.get(key);
+    		if (write == null)
+    			return;
+    		if (write.value != null) {
+    			dataStore.put(key, write.value, write.expiresAt);
+    			// a rebuild of the filter may have walked the store before it
+    			keyFilter.added(key);
+    		} else {
+    			try {
+    				dataStore.del(key);
+    			} catch (KVException kve) {
+    				// put and deleted between flushes
+    			}
+    		}
+    		dirty.remove(key, write);
+    }
+
+    /* A put, or a del if value is null; equal only to itself */
+    private static class Write {
+    		final String value;
+    		final long expiresAt;
+
+    		Write(String value, long expiresAt) {
+    			this.value = value;
+    			this.expiresAt = expiresAt;
+    		}
+    }
+
+    /*
+     * Flushes dirty writes every flushMillis. Holds the server weakly, like
+     * the Sweeper, and keeps going past a store that fails, whose writes
+     * stay dirty until a later flush gets them in.
+     */
+    private static class Flusher implements Runnable {
+    		private WeakReference<KVServer> server;
+
+    		Flusher(KVServer server) {
+    			this.server = new WeakReference<KVServer>(server);
+    		}
+
+    		@Override
+    		public void run() {
+    			try {
+    				while (true) {
+    					KVServer kvServer = server.get();
+    					if (kvServer == null)
+    						return;
+    					long millis = kvServer.flushMillis;
+    					kvServer = null;
+    					Thread.sleep((millis > 0) ? millis : SWEEP_TICK_MILLIS);
+    					kvServer = server.get();
+    					if (kvServer == null)
+    						return;
+    					try {
+    						kvServer.flush();
+    					} catch (RuntimeException e) {
+    						// retried on the next flush
+    					}
+    				}
+    			} catch (InterruptedException e) {
+    				// stop flushing
+    			}
+    		}
+    }
+
+    /**
+     * @return the filter of the keys in the store
+     */
+    KeyFilter getKeyFilter() {
+        return keyFilter;
+    }
+
+    /**
+     * @return the data cache, for administration such as a resize
+     */
+    KVCache getCache() {
+        return dataCache;
     }
 
     /** This method is purely for convenience and will not be tested. */
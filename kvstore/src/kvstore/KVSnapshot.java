@@ -0,0 +1,253 @@
+package kvstore;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Reads and writes the binary snapshot format of KVStore.dumpSnapshot().
+ *
+ * A snapshot is MAGIC and VERSION, then segments of about SEGMENT_SIZE
+ * bytes of pairs, and an empty segment to mark the end. A segment is the
+ * number of pairs in it, the length of its body, and a CRC32 of the body;
+ * the body holds each pair as the lengths of its key and value, when it
+ * expires or 0, and then their UTF-8 bytes. Since segments are checked on
+ * their own, they are loaded in parallel, and a damaged one costs only its
+ * own pairs. Snapshots of VERSION 1, written before pairs could expire,
+ * have no deadlines and are still read.
+ */
+final class KVSnapshot {
+
+    /** First bytes of every snapshot, which no XML dump starts with. */
+    static final int MAGIC = 0x4b56534e;
+
+    private static final int VERSION = 2;
+    private static final int SEGMENT_SIZE = 1 << 20;
+    private static final int SEGMENT_HEADER = 12;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private KVSnapshot() {
+    }
+
+    /**
+     * Writes pairs as a snapshot, holding no more than a segment of them
+     * in memory.
+     *
+     * @param store the store the pairs are from, which knows their deadlines
+     * @param pairs the pairs
+     * @param os where to write; not closed
+     * @throws IOException if os cannot be written
+     */
+    static void write(KVStore store, Iterable<Entry<String, String>> pairs, OutputStream os)
+            throws IOException {
+        DataOutputStream out = new DataOutputStream(os);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        ByteArrayOutputStream body = new ByteArrayOutputStream(SEGMENT_SIZE + 4096);
+        CRC32 checksum = new CRC32();
+        DataOutputStream segment = new DataOutputStream(new CheckedOutputStream(body, checksum));
+        int count = 0;
+        for (Entry<String, String> e : pairs) {
+            byte[] key = e.getKey().getBytes(UTF_8);
+            byte[] value = e.getValue().getBytes(UTF_8);
+            segment.writeInt(key.length);
+            segment.writeInt(value.length);
+            segment.writeLong(store.expiresAt(e));
+            segment.write(key);
+            segment.write(value);
+            count++;
+            if (body.size() >= SEGMENT_SIZE) {
+                writeSegment(out, count, body, checksum);
+                count = 0;
+            }
+        }
+        if (count > 0) {
+            writeSegment(out, count, body, checksum);
+        }
+        writeSegment(out, 0, body, checksum);
+        out.flush();
+    }
+
+    private static void writeSegment(DataOutputStream out, int count, ByteArrayOutputStream body,
+            CRC32 checksum) throws IOException {
+        out.writeInt(count);
+        out.writeInt(body.size());
+        out.writeInt((int) checksum.getValue());
+        body.writeTo(out);
+        body.reset();
+        checksum.reset();
+    }
+
+    /**
+     * Tells whether a file is a snapshot rather than an XML dump.
+     *
+     * @param file the file
+     * @return whether it starts with MAGIC
+     * @throws IOException if the file cannot be read
+     */
+    static boolean isSnapshot(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            return in.length() >= 4 && in.readInt() == MAGIC;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Puts the pairs of a snapshot into a store, a segment per task on a
+     * ForkJoinPool with a thread per processor. Segments whose checksum
+     * does not match, and any after a torn end of the file, are skipped, as
+     * are pairs that have expired.
+     *
+     * @param file the snapshot
+     * @param store where to put the pairs; put() must be thread-safe
+     * @return the number of segments skipped
+     * @throws IOException if the file cannot be read or is not a snapshot
+     */
+    static int load(File file, KVStore store) throws IOException {
+        FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+        try {
+            ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER);
+            readFully(channel, header, 0);
+            header.flip();
+            int version = (header.getInt() == MAGIC) ? header.getInt() : 0;
+            if (version != 1 && version != VERSION) {
+                throw new IOException("Not a KVStore snapshot: " + file);
+            }
+            // segment offsets only need their headers read
+            List<Long> offsets = new ArrayList<Long>();
+            long size = channel.size();
+            int skipped = 0;
+            for (long position = 8; ; ) {
+                if (position + SEGMENT_HEADER > size) {
+                    skipped++;
+                    break;
+                }
+                header.clear();
+                readFully(channel, header, position);
+                header.flip();
+                int count = header.getInt();
+                int length = header.getInt();
+                if (count == 0) {
+                    break;
+                }
+                if (count < 0 || length < 0 || position + SEGMENT_HEADER + length > size) {
+                    skipped++;
+                    break;
+                }
+                offsets.add(position);
+                position += SEGMENT_HEADER + length;
+            }
+            ForkJoinPool pool = new ForkJoinPool();
+            try {
+                return skipped + pool.invoke(new LoadSegments(channel, store, version >= 2,
+                        System.currentTimeMillis(), offsets, 0, offsets.size()));
+            } finally {
+                pool.shutdown();
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    /* Loads a range of segments, splitting it until one is left. */
+    private static class LoadSegments extends RecursiveTask<Integer> {
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel channel;
+        private final KVStore store;
+        /* Whether pairs have deadlines, and the time before which they expired */
+        private final boolean deadlines;
+        private final long now;
+        private final List<Long> offsets;
+        private final int from;
+        private final int to;
+
+        LoadSegments(FileChannel channel, KVStore store, boolean deadlines, long now,
+                List<Long> offsets, int from, int to) {
+            this.channel = channel;
+            this.store = store;
+            this.deadlines = deadlines;
+            this.now = now;
+            this.offsets = offsets;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Integer compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                LoadSegments left = new LoadSegments(channel, store, deadlines, now, offsets, from, mid);
+                left.fork();
+                int skipped = new LoadSegments(channel, store, deadlines, now, offsets, mid, to)
+                        .compute();
+                return skipped + left.join();
+            }
+            if (to == from) {
+                return 0;
+            }
+            try {
+                return loadSegment(offsets.get(from)) ? 0 : 1;
+            } catch (IOException | RuntimeException e) {
+                // a body that does not parse counts as damaged too
+                return 1;
+            }
+        }
+
+        private boolean loadSegment(long offset) throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER);
+            readFully(channel, header, offset);
+            header.flip();
+            int count = header.getInt();
+            ByteBuffer body = ByteBuffer.allocate(header.getInt());
+            int crc = header.getInt();
+            readFully(channel, body, offset + SEGMENT_HEADER);
+            CRC32 checksum = new CRC32();
+            checksum.update(body.array());
+            if ((int) checksum.getValue() != crc) {
+                return false;
+            }
+            body.flip();
+            byte[] bytes = body.array();
+            for (int i = 0; i < count; i++) {
+                int keyLength = body.getInt();
+                int valueLength = body.getInt();
+                long expiresAt = deadlines ? body.getLong() : 0;
+                String key = new String(bytes, body.position(), keyLength, UTF_8);
+                String value = new String(bytes, body.position() + keyLength, valueLength, UTF_8);
+                body.position(body.position() + keyLength + valueLength);
+                if (expiresAt == 0 || expiresAt > now) {
+                    store.put(key, value, expiresAt);
+                }
+            }
+            return true;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long position)
+            throws IOException {
+        while (buf.hasRemaining()) {
+            int read = channel.read(buf, position);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            position += read;
+        }
+    }
+}
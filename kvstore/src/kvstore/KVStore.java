@@ -3,32 +3,110 @@ package kvstore;
 import static kvstore.KVConstants.ERROR_NO_SUCH_KEY;
 
 
-import java.io.BufferedWriter;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
-import javax.xml.bind.JAXBContext;
-import javax.xml.bind.JAXBElement;
-import javax.xml.bind.JAXBException;
-import javax.xml.bind.Marshaller;
-import javax.xml.bind.Unmarshaller;
-import kvstore.xml.KVPairType;
-import kvstore.xml.KVStoreType;
-import kvstore.xml.ObjectFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
 
 
 /**
  * This is a basic key-value store. Ideally this would go to disk, or some other
  * backing store.
+ *
+ * The store is serialized with StAX, one pair at a time, rather than through
+ * a JAXB tree, so that dumping and restoring take the same small amount of
+ * memory whatever the size of the store, and writers are never blocked. It
+ * can also be dumped as a binary KVSnapshot, which restores in parallel.
+ *
+ * Keys and values are held as Utf8String rather than String, keys interned
+ * as they are put so that a key also in a KVCache is held once, and are
+ * only turned back into Strings as they are returned.
+ *
+ * snapshot() freezes the pairs as they are at one moment, in time that does
+ * not grow with the store, and puts and dels go on meanwhile: while a
+ * Snapshot is open, the first write of each key copies the value it
+ * replaces into the snapshot, and a del leaves TOMBSTONE behind rather than
+ * removing the key, so a walk of the store still meets every key. Writers
+ * take one of STRIPES locks by key, and opening a snapshot takes them all,
+ * so no write is half done as it opens. Tombstones are removed once the
+ * last snapshot is closed. Dumps go through a snapshot, so they are
+ * consistent, and dumpSnapshotInBackground() writes one on a thread of its
+ * own, for backups or to seed a replica with restoreFromFile().
+ *
+ * A pair may be put with the time it expires, which the store keeps with
+ * it, in memory here and in its files for stores on disk, and writes into
+ * dumps, so that a KVServer opened on the store, or on a restored one,
+ * still expires it. Expiring pairs is left to the KVServer, but restoring
+ * a dump leaves out pairs that expired meanwhile.
  */
 public class KVStore implements KeyValueInterface {
 
-    public ConcurrentHashMap<String, String> store;
+    /* Thread-safe once configured */
+    private static final XMLOutputFactory XML_OUTPUT = XMLOutputFactory.newInstance();
+    private static final XMLInputFactory XML_INPUT = XMLInputFactory.newInstance();
+
+    static {
+        // a dump never has a DTD, and one could pull in other files
+        XML_INPUT.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    }
+
+    public ConcurrentMap<Utf8String, Utf8String> store;
+    private boolean ordered;
+
+    /* Value of a key deleted while a snapshot was open; compared by identity */
+    private static final Utf8String TOMBSTONE = Utf8String.of("");
+    /* Value a snapshot keeps for a key it did not have */
+    private static final Utf8String ABSENT = Utf8String.of("");
+    private static final int STRIPES = 64;
+
+    private final Lock[] locks = new Lock[STRIPES];
+    /* Open snapshots of the current store map */
+    private volatile CopyOnWriteArrayList<VersionedSnapshot> snapshots;
+    /* Keys that may hold TOMBSTONE */
+    private final ConcurrentLinkedQueue<Utf8String> tombstones =
+            new ConcurrentLinkedQueue<Utf8String>();
+    /* When the pairs put with a deadline expire, for stores with no place
+     * of their own to keep it */
+    private final ConcurrentHashMap<String, Long> deadlines = new ConcurrentHashMap<String, Long>();
+
+    {
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
 
     /**
      * Construct a new KVStore.
@@ -37,8 +115,28 @@ public class KVStore implements KeyValueInterface {
         resetStore();
     }
 
+    /**
+     * Construct a new KVStore, which may keep its keys in order so that
+     * scan() reads only the pairs it returns rather than every pair.
+     *
+     * @param ordered whether to keep the pairs in a ConcurrentSkipListMap
+     *        rather than a ConcurrentHashMap
+     */
+    public KVStore(boolean ordered) {
+        this.ordered = ordered;
+        resetStore();
+    }
+
     public void resetStore() {
-        this.store = new ConcurrentHashMap<String, String>();
+        // open snapshots keep the old map, which is no longer written
+        snapshots = new CopyOnWriteArrayList<VersionedSnapshot>();
+        tombstones.clear();
+        deadlines.clear();
+        if (ordered) {
+            this.store = new ConcurrentSkipListMap<Utf8String, Utf8String>();
+        } else {
+            this.store = new ConcurrentHashMap<Utf8String, Utf8String>();
+        }
     }
 
     /**
@@ -49,7 +147,67 @@ public class KVStore implements KeyValueInterface {
      */
     @Override
     public void put(String key, String value) {
-        store.put(key, value);
+        Utf8String k = Utf8String.intern(key);
+        Utf8String v = Utf8String.of(value);
+        Lock lock = lockOf(k);
+        lock.lock();
+        try {
+            if (!snapshots.isEmpty()) {
+                preserve(k);
+            }
+            store.put(k, v);
+            deadlines.remove(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Insert a key, value pair into the store that expires at a given time,
+     * which the store keeps with the pair until it is put again or deleted.
+     * Subclasses that persist their pairs override this to persist the
+     * deadline with them.
+     *
+     * @param  key String key
+     * @param  value String value
+     * @param  expiresAt System.currentTimeMillis() at which the pair
+     *         expires, or 0 if it never does
+     */
+    public void put(String key, String value, long expiresAt) {
+        put(key, value);
+        if (expiresAt == 0) {
+            deadlines.remove(key);
+        } else {
+            deadlines.put(key, expiresAt);
+        }
+    }
+
+    /**
+     * @param  key String key
+     * @return when the pair expires, or 0 if it never does or is not in the
+     *         store
+     */
+    public long getExpiresAt(String key) {
+        Long deadline = deadlines.get(key);
+        return (deadline == null) ? 0 : deadline;
+    }
+
+    /**
+     * @return when each pair put with a deadline expires, by key, for a
+     *         KVServer opened on the store to take up; read-only
+     */
+    protected Map<String, Long> deadlines() {
+        return Collections.unmodifiableMap(deadlines);
+    }
+
+    /**
+     * Forgets the deadline of a key; for subclasses that keep their pairs
+     * elsewhere than in the store map, as they put or delete it.
+     *
+     * @param key String key
+     */
+    protected void dropDeadline(String key) {
+        deadlines.remove(key);
     }
 
     /**
@@ -59,12 +217,12 @@ public class KVStore implements KeyValueInterface {
      */
     @Override
     public String get(String key) throws KVException {
-        String retVal = this.store.get(key);
-        if (retVal == null) {
+        Utf8String retVal = this.store.get(Utf8String.lookup(key));
+        if (retVal == null || retVal == TOMBSTONE) {
             KVMessage msg = new KVMessage(KVConstants.RESP, ERROR_NO_SUCH_KEY);
             throw new KVException(msg);
         }
-        return retVal;
+        return retVal.toString();
     }
 
     /**
@@ -76,40 +234,408 @@ public class KVStore implements KeyValueInterface {
     @Override
     public void del(String key) throws KVException {
         if(key != null) {
-            if (!this.store.containsKey(key)) {
-                KVMessage msg = new KVMessage(KVConstants.RESP, ERROR_NO_SUCH_KEY);
-                throw new KVException(msg);
+            Utf8String k = Utf8String.lookup(key);
+            Lock lock = lockOf(k);
+            lock.lock();
+            try {
+                Utf8String old = this.store.get(k);
+                if (old == null || old == TOMBSTONE) {
+                    KVMessage msg = new KVMessage(KVConstants.RESP, ERROR_NO_SUCH_KEY);
+                    throw new KVException(msg);
+                }
+                deadlines.remove(key);
+                if (snapshots.isEmpty()) {
+                    this.store.remove(k);
+                } else {
+                    preserve(k);
+                    this.store.put(k, TOMBSTONE);
+                    tombstones.add(k);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Check if the store has a given key, without throwing for a key that
+     * is not there. Subclasses that keep their pairs elsewhere than in the
+     * store map override this.
+     *
+     * @param  key String key
+     * @return whether the key is in the store
+     */
+    public boolean hasKey(String key) {
+        Utf8String value = store.get(Utf8String.lookup(key));
+        return value != null && value != TOMBSTONE;
+    }
+
+    private Lock lockOf(Utf8String key) {
+        return locks[(key.hashCode() & Integer.MAX_VALUE) % STRIPES];
+    }
+
+    /* Copies the value of a key about to be written into every open
+     * snapshot that has not got it yet. Called under the key's lock. */
+    private void preserve(Utf8String key) {
+        Utf8String old = store.get(key);
+        if (old == null || old == TOMBSTONE) {
+            old = ABSENT;
+        }
+        for (VersionedSnapshot snapshot : snapshots) {
+            snapshot.preserved.putIfAbsent(key, old);
+        }
+    }
+
+    /**
+     * Returns the pairs with keys in a range, in order of their keys. An
+     * ordered store reads only those pairs; any other reads every pair, and
+     * subclasses with an index of their own should override this. The
+     * result need not reflect puts and dels made meanwhile.
+     *
+     * @param  start first key of the range
+     * @param  end first key past the range, or null for no end
+     * @param  limit most pairs to return
+     * @return up to limit pairs, the smallest keys from start on
+     */
+    public List<Entry<String, String>> scan(String start, String end, int limit) {
+        if (store instanceof ConcurrentNavigableMap) {
+            ConcurrentNavigableMap<Utf8String, Utf8String> sorted =
+                    (ConcurrentNavigableMap<Utf8String, Utf8String>) store;
+            Utf8String from = Utf8String.of(start);
+            sorted = (end == null) ? sorted.tailMap(from, true) : sorted.subMap(from, Utf8String.of(end));
+            List<Entry<String, String>> pairs = new ArrayList<Entry<String, String>>();
+            for (Entry<Utf8String, Utf8String> e : sorted.entrySet()) {
+                if (pairs.size() == limit) {
+                    break;
+                }
+                if (e.getValue() != TOMBSTONE) {
+                    pairs.add(decode(e.getKey(), e.getValue()));
+                }
             }
-            this.store.remove(key);
+            return pairs;
         }
+        return smallest(entries(), start, end, limit);
     }
 
-    private synchronized JAXBElement<KVStoreType> getXMLRoot() throws JAXBException {
-        ObjectFactory factory = new ObjectFactory();
-        KVStoreType xmlStore = factory.createKVStoreType();
-        for (Entry<String, String> e : store.entrySet()) {
-            KVPairType kvPair = factory.createKVPairType();
-            kvPair.setKey(e.getKey());
-            kvPair.setValue(e.getValue());
-            xmlStore.getKVPair().add(kvPair);
+    /**
+     * Picks the pairs in a range with the smallest keys, keeping no more
+     * than limit of them at a time.
+     *
+     * @param  pairs pairs in any order
+     * @param  start first key of the range
+     * @param  end first key past the range, or null for no end
+     * @param  limit most pairs to return
+     * @return up to limit pairs, in order of their keys
+     */
+    protected static List<Entry<String, String>> smallest(Iterable<Entry<String, String>> pairs,
+            String start, String end, int limit) {
+        TreeMap<String, String> picked = new TreeMap<String, String>();
+        if (limit <= 0) {
+            return new ArrayList<Entry<String, String>>();
         }
-        return factory.createKVStore(xmlStore);
+        for (Entry<String, String> e : pairs) {
+            String key = e.getKey();
+            if (key.compareTo(start) < 0 || (end != null && key.compareTo(end) >= 0)) {
+                continue;
+            }
+            if (picked.size() == limit) {
+                if (key.compareTo(picked.lastKey()) > 0) {
+                    continue;
+                }
+                picked.pollLastEntry();
+            }
+            picked.put(key, e.getValue());
+        }
+        List<Entry<String, String>> result = new ArrayList<Entry<String, String>>();
+        for (Entry<String, String> e : picked.entrySet()) {
+            result.add(new SimpleImmutableEntry<String, String>(e));
+        }
+        return result;
     }
 
-    private void marshalTo(OutputStream os) throws JAXBException {
-        JAXBContext context = JAXBContext.newInstance(KVStoreType.class);
-        Marshaller marshaller = context.createMarshaller();
-        marshaller.setProperty("com.sun.xml.internal.bind.xmlHeaders", "<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
-        marshaller.setProperty(Marshaller.JAXB_FRAGMENT, true);
-        marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, false);
-        marshaller.marshal(getXMLRoot(), os);
+    /**
+     * @return the pairs in the store, for serializing it
+     */
+    protected Iterable<Entry<String, String>> entries() {
+        return new Iterable<Entry<String, String>>() {
+            @Override
+            public Iterator<Entry<String, String>> iterator() {
+                return new PairIterator(store, null);
+            }
+        };
     }
-    
-    private KVStoreType unmarshal(File f) throws JAXBException {
-        JAXBContext context = JAXBContext.newInstance(ObjectFactory.class);
-        Unmarshaller unmarshaller = context.createUnmarshaller();
-        KVStoreType xmlStore = ((JAXBElement<KVStoreType>) unmarshaller.unmarshal(f)).getValue();
-        return xmlStore;
+
+    /**
+     * @return the keys in the store, for building a KeyFilter; subclasses
+     *         that can list keys without reading values should override this
+     */
+    protected Iterable<String> keys() {
+        return new Iterable<String>() {
+            @Override
+            public Iterator<String> iterator() {
+                final Iterator<Entry<String, String>> pairs = entries().iterator();
+                return new Iterator<String>() {
+                    @Override
+                    public boolean hasNext() {
+                        return pairs.hasNext();
+                    }
+
+                    @Override
+                    public String next() {
+                        return pairs.next().getKey();
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    private static Entry<String, String> decode(Utf8String key, Utf8String value) {
+        return new SimpleImmutableEntry<String, String>(key.toString(), value.toString());
+    }
+
+    /**
+     * A pair read together with when it expires, which stores that keep the
+     * two together return from entries(), so that a dump need not look up
+     * the deadline of each pair again.
+     */
+    static class Expiring extends SimpleImmutableEntry<String, String> {
+        private static final long serialVersionUID = 1L;
+
+        final long expiresAt;
+
+        Expiring(String key, String value, long expiresAt) {
+            super(key, value);
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * @param  pair a pair read from this store
+     * @return when the pair expires, or 0 if it never does
+     */
+    long expiresAt(Entry<String, String> pair) {
+        if (pair instanceof Expiring) {
+            return ((Expiring) pair).expiresAt;
+        }
+        return getExpiresAt(pair.getKey());
+    }
+
+    /* Walks a store map, skipping tombstones, and with the values a
+     * snapshot kept in place of those written since it was opened. */
+    private static class PairIterator implements Iterator<Entry<String, String>> {
+        private final Iterator<Entry<Utf8String, Utf8String>> pairs;
+        private final ConcurrentMap<Utf8String, Utf8String> preserved;
+        private Entry<String, String> next;
+
+        PairIterator(ConcurrentMap<Utf8String, Utf8String> store,
+                ConcurrentMap<Utf8String, Utf8String> preserved) {
+            this.pairs = store.entrySet().iterator();
+            this.preserved = preserved;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && pairs.hasNext()) {
+                Entry<Utf8String, Utf8String> e = pairs.next();
+                // the value is read first: a writer preserves before writing
+                Utf8String value = e.getValue();
+                Utf8String kept = (preserved == null) ? null : preserved.get(e.getKey());
+                if (kept != null) {
+                    value = kept;
+                }
+                if (value != TOMBSTONE && value != ABSENT) {
+                    next = decode(e.getKey(), value);
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public Entry<String, String> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Entry<String, String> pair = next;
+            next = null;
+            return pair;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * The pairs of a store as they were when snapshot() was called, which
+     * may be walked any number of times until the snapshot is closed.
+     * Snapshots should be closed as soon as they are no longer needed,
+     * since until then the store keeps the values written over for them.
+     */
+    public static class Snapshot implements Iterable<Entry<String, String>>, Closeable {
+        private final Iterable<Entry<String, String>> pairs;
+
+        /**
+         * @param pairs the pairs of the snapshot
+         */
+        protected Snapshot(Iterable<Entry<String, String>> pairs) {
+            this.pairs = pairs;
+        }
+
+        @Override
+        public Iterator<Entry<String, String>> iterator() {
+            return pairs.iterator();
+        }
+
+        /**
+         * Releases the values kept for this snapshot.
+         */
+        @Override
+        public void close() {
+        }
+    }
+
+    private class VersionedSnapshot extends Snapshot {
+        private final ConcurrentMap<Utf8String, Utf8String> map;
+        private final CopyOnWriteArrayList<VersionedSnapshot> openIn;
+        final ConcurrentMap<Utf8String, Utf8String> preserved =
+                new ConcurrentHashMap<Utf8String, Utf8String>();
+        private volatile boolean closed;
+
+        VersionedSnapshot() {
+            super(null);
+            this.map = store;
+            this.openIn = snapshots;
+        }
+
+        @Override
+        public Iterator<Entry<String, String>> iterator() {
+            if (closed) {
+                throw new IllegalStateException("Snapshot is closed");
+            }
+            return new PairIterator(map, preserved);
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            openIn.remove(this);
+            if (openIn.isEmpty()) {
+                removeTombstones();
+            }
+        }
+    }
+
+    /**
+     * Freezes the pairs of the store as they are now, without copying
+     * them; see the class comment. Subclasses that keep their pairs
+     * elsewhere than in the store map override this.
+     *
+     * @return the snapshot, to be closed once done with
+     */
+    public Snapshot snapshot() {
+        for (Lock lock : locks) {
+            lock.lock();
+        }
+        try {
+            VersionedSnapshot snapshot = new VersionedSnapshot();
+            snapshots.add(snapshot);
+            return snapshot;
+        } finally {
+            for (Lock lock : locks) {
+                lock.unlock();
+            }
+        }
+    }
+
+    /* Removes the tombstones left for snapshots, unless another has opened. */
+    private void removeTombstones() {
+        Utf8String key;
+        while ((key = tombstones.poll()) != null) {
+            Lock lock = lockOf(key);
+            lock.lock();
+            try {
+                if (!snapshots.isEmpty()) {
+                    tombstones.add(key);
+                    return;
+                }
+                store.remove(key, TOMBSTONE);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /* Writes the pairs one at a time, as JAXB would write a KVStoreType,
+     * with the deadline of those that have one. */
+    private void writeXML(Iterable<Entry<String, String>> pairs, OutputStream os)
+            throws XMLStreamException {
+        XMLStreamWriter writer = XML_OUTPUT.createXMLStreamWriter(os, "UTF-8");
+        writer.writeStartDocument("UTF-8", "1.0");
+        writer.writeStartElement("KVStore");
+        for (Entry<String, String> e : pairs) {
+            writer.writeStartElement("KVPair");
+            writer.writeStartElement("Key");
+            writer.writeCharacters(e.getKey());
+            writer.writeEndElement();
+            writer.writeStartElement("Value");
+            writer.writeCharacters(e.getValue());
+            writer.writeEndElement();
+            long expiresAt = expiresAt(e);
+            if (expiresAt != 0) {
+                writer.writeStartElement("ExpiresAt");
+                writer.writeCharacters(Long.toString(expiresAt));
+                writer.writeEndElement();
+            }
+            writer.writeEndElement();
+        }
+        writer.writeEndElement();
+        writer.writeEndDocument();
+        writer.close();
+    }
+
+    /* Puts the pairs of a KVStore document as they are read, but those
+     * that have expired. */
+    private void readXML(InputStream is) throws XMLStreamException {
+        XMLStreamReader reader = XML_INPUT.createXMLStreamReader(is);
+        long now = System.currentTimeMillis();
+        String key = null;
+        String value = null;
+        long expiresAt = 0;
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT && "KVPair".equals(reader.getLocalName())) {
+                if (key != null && value != null && (expiresAt == 0 || expiresAt > now)) {
+                    put(key, value, expiresAt);
+                }
+                key = null;
+                value = null;
+                expiresAt = 0;
+            }
+            if (event != XMLStreamConstants.START_ELEMENT) {
+                continue;
+            }
+            if ("Key".equals(reader.getLocalName())) {
+                key = reader.getElementText();
+            } else if ("Value".equals(reader.getLocalName())) {
+                value = reader.getElementText();
+            } else if ("ExpiresAt".equals(reader.getLocalName())) {
+                try {
+                    expiresAt = Long.parseLong(reader.getElementText().trim());
+                } catch (NumberFormatException e) {
+                    // kept without a deadline
+                }
+            }
+        }
+        reader.close();
     }
 
     /**
@@ -118,10 +644,13 @@ public class KVStore implements KeyValueInterface {
      */
     public String toXML() {
         ByteArrayOutputStream os = new ByteArrayOutputStream();
+        Snapshot snapshot = snapshot();
         try {
-            marshalTo(os);
-        } catch (JAXBException e) {
+            writeXML(snapshot, os);
+        } catch (XMLStreamException e) {
             e.printStackTrace();
+        } finally {
+            snapshot.close();
         }
         return os.toString();
     }
@@ -132,25 +661,89 @@ public class KVStore implements KeyValueInterface {
     }
 
     /**
-     * Serialize to XML and write the output to a file.
+     * Serialize to XML and write the output to a file, as of the moment it
+     * is called.
      * This method is best effort. Any exceptions that arise can be dropped.
      *
      * @param fileName the file to write the serialized store
      */
     public void dumpToFile(String fileName) {
         // implement me
+    		Snapshot snapshot = snapshot();
+    		try {
+				OutputStream os = new BufferedOutputStream(new FileOutputStream(fileName), 1 << 16);
+				try {
+					writeXML(snapshot, os);
+				} finally {
+					os.close();
+				}
+			} catch (IOException | XMLStreamException e) {
+				//e.printStackTrace();
+			} finally {
+				snapshot.close();
+			}
+    }
+
+    /**
+     * Write the store to a file in the binary snapshot format of KVSnapshot,
+     * which restoreFromFile reads back in parallel, as of the moment it is
+     * called.
+     * This method is best effort. Any exceptions that arise can be dropped.
+     *
+     * @param fileName the file to write the snapshot
+     */
+    public void dumpSnapshot(String fileName) {
     		try {
-				BufferedWriter bw = new BufferedWriter(new FileWriter(fileName));
-				bw.write(toXML());
-				bw.close();
+    			writeSnapshot(snapshot(), fileName);
 			} catch (IOException e) {
 				//e.printStackTrace();
 			}
     }
 
+    /**
+     * Freezes the store and writes it as dumpSnapshot() would on a thread
+     * of its own, returning as soon as the store is frozen. Puts and dels
+     * go on meanwhile without showing up in the file.
+     *
+     * @param fileName the file to write the snapshot
+     * @return a Future that is done once the file is written, and fails
+     *         with the IOException if it cannot be
+     */
+    public Future<Void> dumpSnapshotInBackground(final String fileName) {
+    		final Snapshot snapshot = snapshot();
+    		FutureTask<Void> dump = new FutureTask<Void>(new Callable<Void>() {
+    			@Override
+    			public Void call() throws IOException {
+    				writeSnapshot(snapshot, fileName);
+    				return null;
+    			}
+    		});
+    		Thread dumper = new Thread(dump, "KVStore-dump");
+    		dumper.setDaemon(true);
+    		dumper.start();
+    		return dump;
+    }
+
+    /* Writes a snapshot to a file, and closes it either way. */
+    private void writeSnapshot(Snapshot snapshot, String fileName) throws IOException {
+    		try {
+    			OutputStream os = new BufferedOutputStream(new FileOutputStream(fileName), 1 << 16);
+    			try {
+    				KVSnapshot.write(this, snapshot, os);
+    			} finally {
+    				os.close();
+    			}
+    		} finally {
+    			snapshot.close();
+    		}
+    }
+
     /**
      * Replaces the contents of the store with the contents of a file
-     * written by dumpToFile; the previous contents of the store are lost.
+     * written by dumpToFile or dumpSnapshot; the previous contents of the
+     * store are lost. A snapshot is loaded a segment per thread, and its
+     * damaged segments are skipped. Pairs keep their deadlines, and those
+     * that have expired since the file was written are left out.
      * The store is cleared even if the file does not exist.
      * This method is best effort. Any exceptions that arise can be dropped.
      *
@@ -160,11 +753,18 @@ public class KVStore implements KeyValueInterface {
         resetStore();
         // implement me
 		try {
-			KVStoreType xmlStore = unmarshal(new File(fileName));
-			for(KVPairType temp : xmlStore.getKVPair()){
-				store.put(temp.getKey(), temp.getValue());
+			File file = new File(fileName);
+			if (KVSnapshot.isSnapshot(file)) {
+				KVSnapshot.load(file, this);
+				return;
+			}
+			InputStream is = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+			try {
+				readXML(is);
+			} finally {
+				is.close();
 			}
-		} catch (JAXBException e) {
+		} catch (IOException | XMLStreamException e) {
 			//e.printStackTrace();
 		}
     }
@@ -0,0 +1,108 @@
+package kvstore;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Runs jobs on keys so that all jobs on keys from the same KVCache set run
+ * one after another on the same thread, while jobs on keys from other sets
+ * run in parallel on other threads.
+ *
+ * The sets are split into contiguous ranges, one per lane, and each lane is
+ * a ThreadPool of a single thread. Since no two jobs on the same set are ever
+ * in flight at once, a KVServer constructed without locking can be used from
+ * these jobs safely, without contending on the per-set locks.
+ */
+public class KeyAffinityExecutor {
+
+    private ThreadPool[] lanes;
+    private int numSets;
+
+    /**
+     * Constructs a KeyAffinityExecutor for a cache of numSets sets.
+     *
+     * @param numSets the number of sets in the cache of the KVServer the
+     *        jobs will run on
+     * @param lanes the number of threads to spread the sets over; any
+     *        beyond numSets would never be used, so at most numSets are
+     *        started
+     */
+    public KeyAffinityExecutor(int numSets, int lanes) {
+        this.numSets = numSets;
+        this.lanes = new ThreadPool[Math.max(1, Math.min(lanes, numSets))];
+        for (int i = 0; i < this.lanes.length; i++) {
+            this.lanes[i] = new ThreadPool(1);
+        }
+    }
+
+    /**
+     * @return the number of lanes jobs are spread over
+     */
+    public int getLanes() {
+        return lanes.length;
+    }
+
+    /**
+     * Returns the lane the jobs on a key run on. The set of the key is found
+     * exactly as KVCache does.
+     *
+     * @param key key of the job
+     * @return index of the lane, between 0 and getLanes() - 1
+     */
+    public int laneOf(String key) {
+        return (int) ((long) KVCache.setOf(key, numSets) * lanes.length / numSets);
+    }
+
+    /**
+     * Queues a job behind the other jobs on keys from the same set, and
+     * returns immediately.
+     *
+     * @param key key the job works on
+     * @param job job that has to be executed
+     */
+    public void execute(String key, Runnable job) {
+        lanes[laneOf(key)].addJob(job);
+    }
+
+    /**
+     * Queues a job behind the other jobs on keys from the same set, and waits
+     * for it to finish. An interrupt does not cut the wait short, since the
+     * job would still run; it is left pending on the calling thread.
+     *
+     * @param key key the job works on
+     * @param job job that has to be executed
+     */
+    public void executeAndWait(String key, final Runnable job) {
+        final CountDownLatch done = new CountDownLatch(1);
+        execute(key, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    job.run();
+                } finally {
+                    done.countDown();
+                }
+            }
+        });
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stops every lane once the jobs already queued have run.
+     */
+    public void shutdown() {
+        for (ThreadPool lane : lanes) {
+            lane.shutdown();
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package kvstore;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A BloomFilter of the keys of a KVStore, kept in step with the puts and
+ * dels made through a KVServer, so that KVServer.hasKey() answers most
+ * lookups of missing keys without asking the store, which for some stores
+ * means a read from disk and for others a thrown KVException.
+ *
+ * A Bloom filter cannot forget a key, so a deleted key only costs a lookup
+ * in the store until the filter is rebuilt. The filter is sized for twice
+ * the keys the store has, and rebuilt from the keys of the store, on a
+ * thread of its own, once that many more have been added or as many have
+ * been deleted as it had, so that it grows with the store and false
+ * positives stay near 1%. Until it is first built, every key might be
+ * there.
+ *
+ * Keys put during a rebuild may be missed by the walk of the store, so
+ * their hashes are also queued for the new filter until it takes over.
+ */
+class KeyFilter {
+
+    static final int BITS_PER_KEY = 10;
+    static final int MIN_KEYS = 1024;
+
+    private final KVStore store;
+    /* The filter in use, or null until first built */
+    private volatile BloomFilter filter;
+    /* Hashes of keys put while a rebuild walks the store, or null */
+    private volatile ConcurrentLinkedQueue<Long> pending;
+    /* Puts or dels after which to rebuild */
+    private volatile int capacity;
+    private final AtomicInteger added = new AtomicInteger();
+    private final AtomicInteger removed = new AtomicInteger();
+    private final AtomicBoolean rebuilding = new AtomicBoolean();
+    /* Set if the store could not be walked, which is then always asked */
+    private volatile boolean broken;
+
+    /**
+     * @param store the store whose keys to filter; not read until needed
+     */
+    KeyFilter(KVStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Tells whether a key might be in the store, starting the first build
+     * of the filter if there is none yet.
+     *
+     * @param key the key
+     * @return false if the key is certainly not in the store
+     */
+    boolean mightContain(String key) {
+        BloomFilter f = filter;
+        if (f == null) {
+            rebuildInBackground();
+            return true;
+        }
+        return f.mightContain(key);
+    }
+
+    /**
+     * Records a key just put into the store.
+     *
+     * @param key the key
+     */
+    void added(String key) {
+        long hash = BloomFilter.hash(key);
+        // pending before filter: see rebuild()
+        ConcurrentLinkedQueue<Long> queue = pending;
+        if (queue != null) {
+            queue.add(hash);
+        }
+        BloomFilter f = filter;
+        if (f != null) {
+            f.add(hash);
+            if (added.incrementAndGet() > capacity) {
+                rebuildInBackground();
+            }
+        }
+    }
+
+    /**
+     * Records a key just deleted from the store.
+     *
+     * @param key the key
+     */
+    void removed(String key) {
+        if (filter != null && removed.incrementAndGet() > capacity) {
+            rebuildInBackground();
+        }
+    }
+
+    /**
+     * Builds a new filter from the keys of the store and puts it in use.
+     * A put that reads pending as null either finished before the walk of
+     * the store began, or reads filter after the new one took over, so no
+     * key is left out. Rebuilds run one at a time, or one could clear
+     * pending while another walks the store.
+     */
+    synchronized void rebuild() {
+        ConcurrentLinkedQueue<Long> queue = new ConcurrentLinkedQueue<Long>();
+        pending = queue;
+        // puts during the walk are counted, though the new filter has them
+        added.set(0);
+        removed.set(0);
+        long[] hashes = new long[MIN_KEYS];
+        int count = 0;
+        for (String key : store.keys()) {
+            if (count == hashes.length) {
+                hashes = Arrays.copyOf(hashes, count * 2);
+            }
+            hashes[count++] = BloomFilter.hash(key);
+        }
+        int keys = Math.max(MIN_KEYS, count * 2);
+        BloomFilter f = new BloomFilter(keys, BITS_PER_KEY);
+        for (int i = 0; i < count; i++) {
+            f.add(hashes[i]);
+        }
+        drain(queue, f);
+        capacity = keys - count;
+        filter = f;
+        pending = null;
+        drain(queue, f);
+    }
+
+    private static void drain(ConcurrentLinkedQueue<Long> queue, BloomFilter f) {
+        Long hash;
+        while ((hash = queue.poll()) != null) {
+            f.add(hash);
+        }
+    }
+
+    /* Starts a rebuild on a thread of its own unless one is running. */
+    private void rebuildInBackground() {
+        if (broken || !rebuilding.compareAndSet(false, true)) {
+            return;
+        }
+        Thread builder = new Thread("KeyFilter-rebuild") {
+            @Override
+            public void run() {
+                try {
+                    rebuild();
+                } catch (RuntimeException e) {
+                    pending = null;
+                    broken = true;
+                } finally {
+                    rebuilding.set(false);
+                }
+            }
+        };
+        builder.setDaemon(true);
+        builder.start();
+    }
+
+    /**
+     * @return whether the filter has been built
+     */
+    boolean isBuilt() {
+        return filter != null;
+    }
+}
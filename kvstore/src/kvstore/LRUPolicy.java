@@ -0,0 +1,36 @@
+package kvstore;
+
+/**
+ * Strict least-recently-used eviction: every get() or put() of a cached
+ * entry moves it to the back of its set, and the entry at the front is
+ * evicted.
+ */
+public class LRUPolicy extends EvictionPolicy {
+
+    private SlotLists recency;
+
+    @Override
+    protected void init() {
+        recency = new SlotLists(numSets * maxElemsPerSet, numSets);
+    }
+
+    @Override
+    public void hit(int set, int slot) {
+        recency.moveToLast(set, slot);
+    }
+
+    @Override
+    public void inserted(int set, int slot, int hash) {
+        recency.addLast(set, slot);
+    }
+
+    @Override
+    public void removed(int set, int slot) {
+        recency.remove(set, slot);
+    }
+
+    @Override
+    public int evict(int set, int hash) {
+        return recency.removeFirst(set);
+    }
+}
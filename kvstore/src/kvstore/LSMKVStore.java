@@ -0,0 +1,1092 @@
+package kvstore;
+
+import static kvstore.KVConstants.ERROR_NO_SUCH_KEY;
+import static kvstore.SSTable.TOMBSTONE;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+
+import kvstore.SSTable.Value;
+
+/**
+ * A KVStore for more pairs than fit in memory, kept on disk as a
+ * log-structured merge tree.
+ *
+ * Puts and dels go to a write-ahead log and to the memtable, a skip list
+ * in memory. Once the memtable holds memtableSize bytes it is frozen, a new
+ * one and a new log are started, and a background thread writes the frozen
+ * one out as an SSTable in level 0 and deletes its log. Tables in level 0
+ * may overlap, and are searched newest first; once there are L0_TABLES of
+ * them, they are merged with the tables of level 1 they overlap. Tables in
+ * each level below are sorted and do not overlap, and each level may hold
+ * LEVEL_RATIO times the bytes of the one above it; when a level grows past
+ * that, one of its tables, taken in turn by key, is merged into the next.
+ * Deleted keys are kept as tombstones until they reach the lowest level.
+ * Each value is kept with when it expires, in the log and the tables alike.
+ *
+ * A get looks in the memtables, then in level 0, then in the one table of
+ * each lower level whose keys span the key, and stops at the first that has
+ * it. The Bloom filter of each table rules out most tables without a read,
+ * so that hasKey() for a missing key rarely touches the disk. A KVCache in
+ * front serves the keys in use.
+ *
+ * The tables that make up each level are listed in a MANIFEST file, which
+ * is replaced whenever a table is added or merged. On opening, tables not
+ * in it and the logs left over are read back, the logs into a new table.
+ * Writes to the log are forced to disk only if the store was opened with
+ * sync.
+ *
+ * Puts and dels are serialized by one lock, and wait while a full memtable
+ * is still being written out; gets take no lock. Failures to read or write
+ * the files are thrown as IllegalStateException. The background thread
+ * tries again after a failure, and the next put, get, del or close throws
+ * it, as does a writer waiting on a memtable that cannot be written out.
+ */
+public class LSMKVStore extends KVStore {
+
+    /** Default size of the memtable, and of the tables merges write. */
+    public static final int DEFAULT_MEMTABLE_SIZE = 4 << 20;
+
+    private static final int L0_TABLES = 4;
+    private static final int LEVEL_RATIO = 10;
+    private static final int LEVELS = 7;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String SST = ".sst";
+    private static final String LOG = ".log";
+    private static final String MANIFEST = "MANIFEST";
+    private static final String TMP = ".tmp";
+
+    private File dir;
+    private long memtableSize;
+    private boolean sync;
+
+    private volatile State state;
+    /* Taken by writers, and by whoever changes the state */
+    private Object writeLock;
+    /* Held while a memtable is written out or tables are merged */
+    private Object compactionLock;
+    private long nextId;
+    private FileOutputStream logFile;
+    private DataOutputStream log;
+    private long memtableBytes;
+    /* Tables merged away, closed once no iteration may be reading them */
+    private List<SSTable> obsolete;
+    private AtomicInteger iterations;
+    /* Per level, the last key merged into the next level */
+    private String[] compactPointers;
+    private boolean closed;
+    /* Why the background thread last failed, until it is reported */
+    private AtomicReference<IOException> compactionFailure;
+
+    /* What a get must search, replaced as a whole whenever it changes */
+    private static class State {
+        final ConcurrentSkipListMap<String, Value> memtable;
+        final long logId;
+        /* Being written out, or null */
+        final ConcurrentSkipListMap<String, Value> frozen;
+        final long frozenLogId;
+        /* Level 0 newest first; the others sorted by key */
+        final List<List<SSTable>> levels;
+
+        State(ConcurrentSkipListMap<String, Value> memtable, long logId,
+                ConcurrentSkipListMap<String, Value> frozen, long frozenLogId,
+                List<List<SSTable>> levels) {
+            this.memtable = memtable;
+            this.logId = logId;
+            this.frozen = frozen;
+            this.frozenLogId = frozenLogId;
+            this.levels = levels;
+        }
+    }
+
+    /**
+     * Opens the store kept in a directory, creating it if need be, with a
+     * memtable of DEFAULT_MEMTABLE_SIZE and writes left to the OS to flush.
+     *
+     * @param dir directory of the store's files
+     * @throws IOException if the files cannot be read
+     */
+    public LSMKVStore(File dir) throws IOException {
+        this(dir, DEFAULT_MEMTABLE_SIZE, false);
+    }
+
+    /**
+     * Opens the store kept in a directory, creating it if need be.
+     *
+     * @param dir directory of the store's files
+     * @param memtableSize bytes of pairs kept in memory before they are
+     *        written to a table, and the size of the tables merges write
+     * @param sync whether to force every put and del to disk before
+     *        returning
+     * @throws IOException if the files cannot be read
+     */
+    public LSMKVStore(File dir, long memtableSize, boolean sync) throws IOException {
+        this.dir = dir;
+        this.memtableSize = memtableSize;
+        this.sync = sync;
+        writeLock = new Object();
+        compactionLock = new Object();
+        obsolete = new ArrayList<SSTable>();
+        iterations = new AtomicInteger();
+        compactPointers = new String[LEVELS];
+        compactionFailure = new AtomicReference<IOException>();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        open();
+        Thread compactor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                compactForever();
+            }
+        }, "LSMKVStore-compactor");
+        compactor.setDaemon(true);
+        compactor.start();
+    }
+
+    /**
+     * Deletes every pair, and the files holding them. Also called by the
+     * KVStore constructor, before the fields of this class are set.
+     */
+    @Override
+    public void resetStore() {
+        super.resetStore();
+        if (dir == null) {
+            return;
+        }
+        synchronized (compactionLock) {
+            synchronized (writeLock) {
+                try {
+                    closeFiles();
+                    for (File file : dir.listFiles()) {
+                        Files.delete(file.toPath());
+                    }
+                    List<List<SSTable>> levels = new ArrayList<List<SSTable>>();
+                    for (int i = 0; i < LEVELS; i++) {
+                        levels.add(Collections.<SSTable>emptyList());
+                    }
+                    writeManifest(levels);
+                    long logId = nextId++;
+                    openLog(logId);
+                    memtableBytes = 0;
+                    state = new State(new ConcurrentSkipListMap<String, Value>(), logId,
+                            null, 0, levels);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Cannot clear " + dir, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Insert key, value pair into the store.
+     *
+     * @param  key String key
+     * @param  value String value
+     */
+    @Override
+    public void put(String key, String value) {
+        put(key, value, 0);
+    }
+
+    /**
+     * Insert a key, value pair into the store, with when it expires kept
+     * beside the value.
+     *
+     * @param  key String key
+     * @param  value String value
+     * @param  expiresAt System.currentTimeMillis() at which the pair
+     *         expires, or 0 if it never does
+     */
+    @Override
+    public void put(String key, String value, long expiresAt) {
+        synchronized (writeLock) {
+            write(key, new Value(value, expiresAt));
+        }
+    }
+
+    /**
+     * Retrieve the value corresponding to the provided key
+     * @param  key String key
+     * @throws KVException with ERROR_NO_SUCH_KEY if key does not exist in store
+     */
+    @Override
+    public String get(String key) throws KVException {
+        checkCompaction();
+        Value value = lookup(key);
+        if (value == null || value == TOMBSTONE) {
+            KVMessage msg = new KVMessage(KVConstants.RESP, ERROR_NO_SUCH_KEY);
+            throw new KVException(msg);
+        }
+        return value.value;
+    }
+
+    /**
+     * Delete the value corresponding to the provided key.
+     *
+     * @param  key String key
+     * @throws KVException with ERROR_NO_SUCH_KEY if key does not exist in store
+     */
+    @Override
+    public void del(String key) throws KVException {
+        if (key == null) {
+            return;
+        }
+        synchronized (writeLock) {
+            if (!hasKey(key)) {
+                KVMessage msg = new KVMessage(KVConstants.RESP, ERROR_NO_SUCH_KEY);
+                throw new KVException(msg);
+            }
+            write(key, TOMBSTONE);
+        }
+    }
+
+    /**
+     * Checks for a key, reading a table only if its Bloom filter cannot
+     * rule the key out.
+     *
+     * @param key key to check for
+     * @return whether the store has the key
+     */
+    @Override
+    public boolean hasKey(String key) {
+        Value value = lookup(key);
+        return value != null && value != TOMBSTONE;
+    }
+
+    /**
+     * @param  key String key
+     * @return when the pair expires, read as a get would read it, or 0 if
+     *         it never does or is not in the store
+     */
+    @Override
+    public long getExpiresAt(String key) {
+        Value value = lookup(key);
+        return (value == null) ? 0 : value.expiresAt;
+    }
+
+    /**
+     * Reads every pair of the store, so is best called once, on opening.
+     *
+     * @return the deadlines of the pairs that have one
+     */
+    @Override
+    protected Map<String, Long> deadlines() {
+        Map<String, Long> deadlines = new HashMap<String, Long>();
+        iterations.incrementAndGet();
+        try {
+            Iterator<Entry<String, Value>> live = new LiveIterator(merged(state, null), null);
+            while (live.hasNext()) {
+                Entry<String, Value> pair = live.next();
+                if (pair.getValue().expiresAt != 0) {
+                    deadlines.put(pair.getKey(), pair.getValue().expiresAt);
+                }
+            }
+        } finally {
+            iterations.decrementAndGet();
+        }
+        return deadlines;
+    }
+
+    /**
+     * Reads the pairs of a range, seeking in each memtable and table to
+     * the start of it rather than reading every pair.
+     *
+     * @param  start first key of the range
+     * @param  end first key past the range, or null for no end
+     * @param  limit most pairs to return
+     * @return up to limit pairs, the smallest keys from start on
+     */
+    @Override
+    public List<Entry<String, String>> scan(String start, String end, int limit) {
+        List<Entry<String, String>> pairs = new ArrayList<Entry<String, String>>();
+        iterations.incrementAndGet();
+        try {
+            Iterator<Entry<String, Value>> merged = merged(state, start);
+            while (pairs.size() < limit && merged.hasNext()) {
+                Entry<String, Value> pair = merged.next();
+                if (end != null && pair.getKey().compareTo(end) >= 0) {
+                    break;
+                }
+                if (pair.getValue() != TOMBSTONE) {
+                    pairs.add(unwrap(pair));
+                }
+            }
+        } finally {
+            iterations.decrementAndGet();
+        }
+        return pairs;
+    }
+
+    /**
+     * Merges the memtables and tables the store had when it was called.
+     * Tables merged away meanwhile stay open until the snapshot is closed,
+     * but the memtable is not frozen, so a pair put or deleted meanwhile
+     * may or may not be seen.
+     *
+     * @return a snapshot of the pairs, which must be closed
+     */
+    @Override
+    public Snapshot snapshot() {
+        iterations.incrementAndGet();
+        final State s = state;
+        return new TableSnapshot(new Iterable<Entry<String, String>>() {
+            @Override
+            public Iterator<Entry<String, String>> iterator() {
+                return new Unwrapped(new LiveIterator(merged(s, null), null));
+            }
+        });
+    }
+
+    /* Keeps the tables merged away open from construction until close() */
+    private class TableSnapshot extends Snapshot {
+        private final AtomicBoolean open = new AtomicBoolean(true);
+
+        TableSnapshot(Iterable<Entry<String, String>> pairs) {
+            super(pairs);
+        }
+
+        @Override
+        public Iterator<Entry<String, String>> iterator() {
+            if (!open.get()) {
+                throw new IllegalStateException("Snapshot is closed");
+            }
+            return super.iterator();
+        }
+
+        @Override
+        public void close() {
+            if (open.compareAndSet(true, false)) {
+                iterations.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * An iteration keeps the tables merged away open until it is read to
+     * the end or fails; one that may be left part-way should go through
+     * snapshot() instead, which is closed.
+     *
+     * @return the pairs in the store in order of their keys, read from
+     *         the tables as the iteration reaches them
+     */
+    @Override
+    protected Iterable<Entry<String, String>> entries() {
+        return new Iterable<Entry<String, String>>() {
+            @Override
+            public Iterator<Entry<String, String>> iterator() {
+                // tables merged away are kept open until the iteration ends
+                iterations.incrementAndGet();
+                return new Unwrapped(new LiveIterator(merged(state, null), iterations));
+            }
+        };
+    }
+
+    /**
+     * Stops the background thread and closes the files. Pairs still in the
+     * memtable are read back from the log when the store is opened again.
+     * The store cannot be used afterwards.
+     *
+     * @throws IOException if a file cannot be closed, or the background
+     *         thread failed since it was last reported
+     */
+    public void close() throws IOException {
+        synchronized (compactionLock) {
+            synchronized (writeLock) {
+                closed = true;
+                writeLock.notifyAll();
+                closeFiles();
+            }
+        }
+        IOException failure = compactionFailure.getAndSet(null);
+        if (failure != null) {
+            throw new IOException("Cannot compact " + dir, failure);
+        }
+    }
+
+    /**
+     * Waits until any frozen memtable is written out and no level needs to
+     * be merged.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     * @throws IllegalStateException if the background thread fails
+     */
+    public void awaitCompaction() throws InterruptedException {
+        synchronized (writeLock) {
+            while (!closed && needsWork(state)) {
+                checkCompaction();
+                writeLock.wait();
+            }
+        }
+    }
+
+    /**
+     * @return the number of tables in each level
+     */
+    public int[] getTableCounts() {
+        List<List<SSTable>> levels = state.levels;
+        int[] counts = new int[levels.size()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = levels.get(i).size();
+        }
+        return counts;
+    }
+
+    /* Finds the newest value of a key: a value, TOMBSTONE, or null if no
+     * memtable or table has it. */
+    private Value lookup(String key) {
+        while (true) {
+            State s = state;
+            Value value = s.memtable.get(key);
+            if (value == null && s.frozen != null) {
+                value = s.frozen.get(key);
+            }
+            try {
+                for (int level = 0; value == null && level < s.levels.size(); level++) {
+                    List<SSTable> tables = s.levels.get(level);
+                    if (level == 0) {
+                        for (int i = 0; value == null && i < tables.size(); i++) {
+                            value = tables.get(i).get(key);
+                        }
+                    } else {
+                        SSTable table = find(tables, key);
+                        if (table != null) {
+                            value = table.get(key);
+                        }
+                    }
+                }
+                return value;
+            } catch (ClosedChannelException e) {
+                // a merge replaced the table meanwhile; search again
+                if (state == s) {
+                    throw new IllegalStateException("Cannot read from " + dir, e);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot read from " + dir, e);
+            }
+        }
+    }
+
+    /* The table of a sorted level whose keys span key, or null */
+    private static SSTable find(List<SSTable> tables, String key) {
+        int low = 0;
+        int high = tables.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            SSTable table = tables.get(mid);
+            if (key.compareTo(table.firstKey()) < 0) {
+                high = mid - 1;
+            } else if (key.compareTo(table.lastKey()) > 0) {
+                low = mid + 1;
+            } else {
+                return table;
+            }
+        }
+        return null;
+    }
+
+    /* Logs a pair and adds it to the memtable; called under writeLock. */
+    private void write(String key, Value value) {
+        checkCompaction();
+        try {
+            while (memtableBytes >= memtableSize && state.frozen != null && !closed) {
+                writeLock.wait();
+                checkCompaction();
+            }
+            if (closed) {
+                throw new IllegalStateException("Store is closed");
+            }
+            if (memtableBytes >= memtableSize) {
+                freeze();
+            }
+            byte[] k = key.getBytes(UTF_8);
+            byte[] v = (value == TOMBSTONE) ? null : value.value.getBytes(UTF_8);
+            log.write(encode(k, v, value.expiresAt));
+            log.flush();
+            if (sync) {
+                logFile.getFD().sync();
+            }
+            state.memtable.put(key, value);
+            memtableBytes += k.length + ((v == null) ? 0 : v.length) + 32;
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot write to " + dir, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for a memtable to be written", e);
+        }
+    }
+
+    /* Hands the memtable to the background thread and starts a new one. */
+    private void freeze() throws IOException {
+        State s = state;
+        long logId = nextId++;
+        log.close();
+        openLog(logId);
+        memtableBytes = 0;
+        state = new State(new ConcurrentSkipListMap<String, Value>(), logId,
+                s.memtable, s.logId, s.levels);
+        writeLock.notifyAll();
+    }
+
+    private void compactForever() {
+        while (true) {
+            try {
+                synchronized (writeLock) {
+                    while (!closed && !needsWork(state)) {
+                        writeLock.wait();
+                    }
+                    if (closed) {
+                        return;
+                    }
+                }
+                synchronized (compactionLock) {
+                    if (closed) {
+                        return;
+                    }
+                    if (state.frozen != null) {
+                        flush();
+                    } else {
+                        compact();
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                // try again shortly; writers wait until the memtable is out
+                compactionFailure.set(e);
+                synchronized (writeLock) {
+                    writeLock.notifyAll();
+                }
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /* Throws the failure of the background thread, once. */
+    private void checkCompaction() {
+        IOException failure = compactionFailure.getAndSet(null);
+        if (failure != null) {
+            throw new IllegalStateException("Cannot compact " + dir, failure);
+        }
+    }
+
+    private boolean needsWork(State s) {
+        return s.frozen != null || pickLevel(s.levels) >= 0;
+    }
+
+    /* The level to merge into the next one, or -1 */
+    private int pickLevel(List<List<SSTable>> levels) {
+        if (levels.get(0).size() >= L0_TABLES) {
+            return 0;
+        }
+        long limit = memtableSize * L0_TABLES;
+        for (int level = 1; level < LEVELS - 1; level++) {
+            long bytes = 0;
+            for (SSTable table : levels.get(level)) {
+                bytes += table.size();
+            }
+            if (bytes > limit) {
+                return level;
+            }
+            limit *= LEVEL_RATIO;
+        }
+        return -1;
+    }
+
+    /* Writes out the frozen memtable as a table in level 0. */
+    private void flush() throws IOException {
+        State s = state;
+        long id;
+        synchronized (writeLock) {
+            id = nextId++;
+        }
+        SSTable table = SSTable.write(id, file(id, SST), s.frozen.entrySet().iterator(), Long.MAX_VALUE);
+        synchronized (writeLock) {
+            List<List<SSTable>> levels = new ArrayList<List<SSTable>>(state.levels);
+            List<SSTable> level0 = new ArrayList<SSTable>();
+            level0.add(table);
+            level0.addAll(levels.get(0));
+            levels.set(0, level0);
+            writeManifest(levels);
+            state = new State(state.memtable, state.logId, null, 0, levels);
+            Files.deleteIfExists(file(s.frozenLogId, LOG).toPath());
+            writeLock.notifyAll();
+        }
+    }
+
+    /* Merges tables of one level into the next. */
+    private void compact() throws IOException {
+        List<List<SSTable>> levels = state.levels;
+        int level = pickLevel(levels);
+        if (level < 0) {
+            return;
+        }
+        List<SSTable> inputs = new ArrayList<SSTable>();
+        if (level == 0) {
+            inputs.addAll(levels.get(0));
+        } else {
+            // the table after the one merged last time, to cover the keys in turn
+            List<SSTable> tables = levels.get(level);
+            SSTable pick = tables.get(0);
+            for (SSTable table : tables) {
+                if (compactPointers[level] == null
+                        || table.firstKey().compareTo(compactPointers[level]) > 0) {
+                    pick = table;
+                    break;
+                }
+            }
+            inputs.add(pick);
+            compactPointers[level] = pick.lastKey();
+        }
+        String first = null;
+        String last = null;
+        for (SSTable table : inputs) {
+            if (first == null || table.firstKey().compareTo(first) < 0) {
+                first = table.firstKey();
+            }
+            if (last == null || table.lastKey().compareTo(last) > 0) {
+                last = table.lastKey();
+            }
+        }
+        for (SSTable table : levels.get(level + 1)) {
+            if (table.lastKey().compareTo(first) >= 0 && table.firstKey().compareTo(last) <= 0) {
+                inputs.add(table);
+            }
+        }
+        // tombstones can go once nothing below could hold an older value
+        boolean lowest = true;
+        for (int i = level + 2; i < LEVELS; i++) {
+            lowest &= levels.get(i).isEmpty();
+        }
+
+        List<Iterator<Entry<String, Value>>> sources = new ArrayList<Iterator<Entry<String, Value>>>();
+        for (SSTable table : inputs) {
+            sources.add(table.iterator());
+        }
+        Iterator<Entry<String, Value>> pairs = new MergeIterator(sources);
+        if (lowest) {
+            pairs = new LiveIterator(pairs, null);
+        }
+        List<SSTable> outputs = new ArrayList<SSTable>();
+        try {
+            while (pairs.hasNext()) {
+                long id;
+                synchronized (writeLock) {
+                    id = nextId++;
+                }
+                SSTable table = SSTable.write(id, file(id, SST), pairs, memtableSize);
+                if (table.count() > 0) {
+                    outputs.add(table);
+                } else {
+                    table.close();
+                    Files.delete(table.file().toPath());
+                }
+            }
+        } catch (IllegalStateException e) {
+            throw new IOException(e);
+        }
+
+        synchronized (writeLock) {
+            List<List<SSTable>> next = new ArrayList<List<SSTable>>(state.levels);
+            for (int i = level; i <= level + 1; i++) {
+                List<SSTable> tables = new ArrayList<SSTable>(next.get(i));
+                tables.removeAll(inputs);
+                if (i == level + 1) {
+                    tables.addAll(outputs);
+                    Collections.sort(tables, BY_FIRST_KEY);
+                }
+                next.set(i, tables);
+            }
+            writeManifest(next);
+            state = new State(state.memtable, state.logId, state.frozen, state.frozenLogId, next);
+            obsolete.addAll(inputs);
+            writeLock.notifyAll();
+        }
+        if (iterations.get() == 0) {
+            for (SSTable table : obsolete) {
+                table.close();
+                Files.deleteIfExists(table.file().toPath());
+            }
+            obsolete.clear();
+        }
+    }
+
+    private static final Comparator<SSTable> BY_FIRST_KEY = new Comparator<SSTable>() {
+        @Override
+        public int compare(SSTable a, SSTable b) {
+            return a.firstKey().compareTo(b.firstKey());
+        }
+    };
+
+    /* All pairs of a state in order of their keys, from a key on if it is
+     * not null, newest values only, tombstones included. */
+    private static Iterator<Entry<String, Value>> merged(State s, String from) {
+        List<Iterator<Entry<String, Value>>> sources = new ArrayList<Iterator<Entry<String, Value>>>();
+        sources.add(tail(s.memtable, from));
+        if (s.frozen != null) {
+            sources.add(tail(s.frozen, from));
+        }
+        for (List<SSTable> tables : s.levels) {
+            for (SSTable table : tables) {
+                if (from == null || table.lastKey().compareTo(from) >= 0) {
+                    sources.add(table.iterator(from));
+                }
+            }
+        }
+        return new MergeIterator(sources);
+    }
+
+    private static Iterator<Entry<String, Value>> tail(ConcurrentSkipListMap<String, Value> memtable,
+            String from) {
+        return ((from == null) ? memtable : memtable.tailMap(from)).entrySet().iterator();
+    }
+
+    /*
+     * Merges iterators sorted by key into one, keeping of each key only the
+     * pair from the iterator that comes first in the list.
+     */
+    private static class MergeIterator implements Iterator<Entry<String, Value>> {
+        private PriorityQueue<Source> heads;
+
+        private static class Source {
+            final Iterator<Entry<String, Value>> pairs;
+            final int rank;
+            Entry<String, Value> head;
+
+            Source(Iterator<Entry<String, Value>> pairs, int rank) {
+                this.pairs = pairs;
+                this.rank = rank;
+            }
+        }
+
+        MergeIterator(List<Iterator<Entry<String, Value>>> sources) {
+            heads = new PriorityQueue<Source>(Math.max(1, sources.size()), new Comparator<Source>() {
+                @Override
+                public int compare(Source a, Source b) {
+                    int c = a.head.getKey().compareTo(b.head.getKey());
+                    return (c != 0) ? c : a.rank - b.rank;
+                }
+            });
+            for (int i = 0; i < sources.size(); i++) {
+                advance(new Source(sources.get(i), i));
+            }
+        }
+
+        private void advance(Source source) {
+            if (source.pairs.hasNext()) {
+                source.head = source.pairs.next();
+                heads.add(source);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !heads.isEmpty();
+        }
+
+        @Override
+        public Entry<String, Value> next() {
+            if (heads.isEmpty()) {
+                throw new NoSuchElementException();
+            }
+            Source newest = heads.poll();
+            Entry<String, Value> pair = newest.head;
+            advance(newest);
+            while (!heads.isEmpty() && heads.peek().head.getKey().equals(pair.getKey())) {
+                advance(heads.poll());
+            }
+            return pair;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /* Skips tombstones, and counts down open, if not null, at the end or
+     * if reading the pairs fails. */
+    private static class LiveIterator implements Iterator<Entry<String, Value>> {
+        private Iterator<Entry<String, Value>> pairs;
+        private AtomicInteger open;
+        private Entry<String, Value> next;
+
+        LiveIterator(Iterator<Entry<String, Value>> pairs, AtomicInteger open) {
+            this.pairs = pairs;
+            this.open = open;
+        }
+
+        @Override
+        public boolean hasNext() {
+            try {
+                while (next == null && pairs.hasNext()) {
+                    next = pairs.next();
+                    if (next.getValue() == TOMBSTONE) {
+                        next = null;
+                    }
+                }
+            } catch (RuntimeException e) {
+                release();
+                throw e;
+            }
+            if (next == null) {
+                release();
+            }
+            return next != null;
+        }
+
+        private void release() {
+            if (open != null) {
+                open.decrementAndGet();
+                open = null;
+            }
+        }
+
+        @Override
+        public Entry<String, Value> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Entry<String, Value> pair = next;
+            next = null;
+            return pair;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /* The pairs of an iteration as a KVStore returns them */
+    private static class Unwrapped implements Iterator<Entry<String, String>> {
+        private Iterator<Entry<String, Value>> pairs;
+
+        Unwrapped(Iterator<Entry<String, Value>> pairs) {
+            this.pairs = pairs;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return pairs.hasNext();
+        }
+
+        @Override
+        public Entry<String, String> next() {
+            return unwrap(pairs.next());
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /* A live pair as a KVStore returns it, its deadline kept for dumps */
+    private static Entry<String, String> unwrap(Entry<String, Value> pair) {
+        return new Expiring(pair.getKey(), pair.getValue().value, pair.getValue().expiresAt);
+    }
+
+    private void open() throws IOException {
+        List<List<SSTable>> levels = new ArrayList<List<SSTable>>();
+        for (int i = 0; i < LEVELS; i++) {
+            levels.add(new ArrayList<SSTable>());
+        }
+        List<Long> listed = new ArrayList<Long>();
+        File manifest = new File(dir, MANIFEST);
+        if (manifest.exists()) {
+            for (String line : Files.readAllLines(manifest.toPath(), UTF_8)) {
+                String[] fields = line.trim().split(" ");
+                if (fields.length == 2) {
+                    long id = Long.parseLong(fields[1]);
+                    levels.get(Integer.parseInt(fields[0])).add(SSTable.open(id, file(id, SST)));
+                    listed.add(id);
+                }
+            }
+        }
+        Collections.sort(levels.get(0), new Comparator<SSTable>() {
+            @Override
+            public int compare(SSTable a, SSTable b) {
+                return (a.id < b.id) ? 1 : ((a.id == b.id) ? 0 : -1);
+            }
+        });
+        for (int i = 1; i < LEVELS; i++) {
+            Collections.sort(levels.get(i), BY_FIRST_KEY);
+        }
+
+        List<Long> logs = new ArrayList<Long>();
+        for (File file : dir.listFiles()) {
+            String name = file.getName();
+            long id = idOf(name);
+            nextId = Math.max(nextId, id + 1);
+            if (name.endsWith(TMP) || (name.endsWith(SST) && !listed.contains(id))) {
+                // left by a flush or merge that did not finish
+                Files.delete(file.toPath());
+            } else if (name.endsWith(LOG)) {
+                logs.add(id);
+            }
+        }
+        nextId = Math.max(nextId, 1);
+
+        // what the logs hold goes into a table of its own
+        Collections.sort(logs);
+        ConcurrentSkipListMap<String, Value> recovered = new ConcurrentSkipListMap<String, Value>();
+        for (long id : logs) {
+            replay(file(id, LOG), recovered);
+        }
+        if (!recovered.isEmpty()) {
+            long id = nextId++;
+            levels.get(0).add(0, SSTable.write(id, file(id, SST), recovered.entrySet().iterator(),
+                    Long.MAX_VALUE));
+        }
+        writeManifest(levels);
+        for (long id : logs) {
+            Files.delete(file(id, LOG).toPath());
+        }
+
+        long logId = nextId++;
+        openLog(logId);
+        state = new State(new ConcurrentSkipListMap<String, Value>(), logId, null, 0, levels);
+    }
+
+    /* Reads a log into a memtable, up to a torn record at its end. */
+    private static void replay(File file, ConcurrentSkipListMap<String, Value> memtable)
+            throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            while (true) {
+                int crc = in.readInt();
+                int keyLength = in.readInt();
+                int valueLength = in.readInt();
+                long expiresAt = in.readLong();
+                if (keyLength < 0 || valueLength < -1) {
+                    return;
+                }
+                byte[] body = new byte[keyLength + Math.max(valueLength, 0)];
+                in.readFully(body);
+                ByteBuffer header = ByteBuffer.allocate(16).putInt(keyLength).putInt(valueLength)
+                        .putLong(expiresAt);
+                CRC32 checksum = new CRC32();
+                checksum.update(header.array());
+                checksum.update(body);
+                if ((int) checksum.getValue() != crc) {
+                    return;
+                }
+                String key = new String(body, 0, keyLength, UTF_8);
+                memtable.put(key, (valueLength < 0) ? TOMBSTONE
+                        : new Value(new String(body, keyLength, valueLength, UTF_8), expiresAt));
+            }
+        } catch (EOFException e) {
+            // a torn record, or the end
+        } finally {
+            in.close();
+        }
+    }
+
+    /* A log record: a CRC32 of the rest, the lengths of key and value (-1
+     * for a del), when the pair expires, and their bytes. */
+    private static byte[] encode(byte[] key, byte[] value, long expiresAt) {
+        int valueLength = (value == null) ? -1 : value.length;
+        ByteBuffer record = ByteBuffer.allocate(20 + key.length + Math.max(valueLength, 0));
+        record.putInt(0);
+        record.putInt(key.length);
+        record.putInt(valueLength);
+        record.putLong(expiresAt);
+        record.put(key);
+        if (value != null) {
+            record.put(value);
+        }
+        CRC32 checksum = new CRC32();
+        checksum.update(record.array(), 4, record.capacity() - 4);
+        record.putInt(0, (int) checksum.getValue());
+        return record.array();
+    }
+
+    private void openLog(long id) throws IOException {
+        logFile = new FileOutputStream(file(id, LOG));
+        log = new DataOutputStream(new BufferedOutputStream(logFile));
+    }
+
+    /* Replaces the manifest with one listing the tables of each level. */
+    private void writeManifest(List<List<SSTable>> levels) throws IOException {
+        File tmp = new File(dir, MANIFEST + TMP);
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            PrintWriter writer = new PrintWriter(new OutputStreamWriter(out, UTF_8));
+            for (int level = 0; level < levels.size(); level++) {
+                for (SSTable table : levels.get(level)) {
+                    writer.println(level + " " + table.id);
+                }
+            }
+            writer.flush();
+            out.getChannel().force(true);
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), new File(dir, MANIFEST).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void closeFiles() throws IOException {
+        if (log != null) {
+            log.close();
+        }
+        if (state != null) {
+            for (List<SSTable> tables : state.levels) {
+                for (SSTable table : tables) {
+                    table.close();
+                }
+            }
+        }
+        for (SSTable table : obsolete) {
+            table.close();
+        }
+        obsolete.clear();
+    }
+
+    private File file(long id, String extension) {
+        return new File(dir, String.format("%09d", id) + extension);
+    }
+
+    private static long idOf(String name) {
+        int dot = name.indexOf('.');
+        try {
+            return Long.parseLong(name.substring(0, (dot < 0) ? name.length() : dot));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
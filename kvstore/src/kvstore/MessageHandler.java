@@ -0,0 +1,47 @@
+package kvstore;
+
+/**
+ * Interface for network handlers that can also service requests which have
+ * already been read off the network, one message at a time.
+ *
+ * A SelectorSocketServer reads and writes sockets on its own event loops and
+ * hands a MessageHandler only complete requests, so no worker thread ever
+ * blocks on a slow or idle client. Handlers that do not implement this
+ * interface are given the socket itself, as SocketServer does.
+ */
+public interface MessageHandler extends NetworkHandler {
+
+    /**
+     * Creates a job to service a single request and returns immediately
+     * after enqueuing that job. The job must call exchange.respond() exactly
+     * once, or no further requests will be read from that connection.
+     *
+     * @param exchange the request and the means to answer it
+     */
+    public void handle(Exchange exchange);
+
+    /**
+     * A request read from a connection, awaiting its response.
+     */
+    public interface Exchange {
+
+        /**
+         * Decodes the request. Decoding is left to the worker so that the
+         * event loop only has to find where a message ends.
+         *
+         * @return the request
+         * @throws KVException with ERROR_PARSER or ERROR_INVALID_FORMAT if
+         *         the request could not be decoded
+         */
+        public KVMessage request() throws KVException;
+
+        /**
+         * Encodes the response and queues it to be written back. Returns
+         * without waiting for the write. Best effort, a response that
+         * cannot be encoded or delivered closes the connection.
+         *
+         * @param response KVMessage to send back
+         */
+        public void respond(KVMessage response);
+    }
+}
@@ -0,0 +1,228 @@
+package kvstore;
+
+import static kvstore.KVConstants.ERROR_NO_SUCH_KEY;
+
+import java.nio.charset.Charset;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A KVStore that keeps its values outside the Java heap, in chunks from a
+ * SlabAllocator, so that the heap only holds the keys and a handle for each
+ * value. Values are stored as UTF-8. Once the allocator is out of space,
+ * further values are kept on the heap as Strings instead, as KVStore would.
+ *
+ * A chunk may hold another value as soon as it is freed, so every key is
+ * guarded by one of a fixed set of read-write locks: gets copy a value out
+ * under the read lock, and puts and dels only free the value they replace
+ * under the write lock.
+ */
+public class OffHeapKVStore extends KVStore {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int STRIPES = 64;
+
+    private SlabAllocator allocator;
+    /* A Long handle, or a String for values that did not fit off the heap */
+    private ConcurrentHashMap<String, Object> values;
+    private ReadWriteLock[] locks;
+
+    /**
+     * Construct a new OffHeapKVStore.
+     *
+     * @param allocator where values are stored
+     */
+    public OffHeapKVStore(SlabAllocator allocator) {
+        this.allocator = allocator;
+        locks = new ReadWriteLock[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    /**
+     * Clears the store. Also called by the KVStore constructor, before the
+     * fields of this class are set.
+     */
+    @Override
+    public void resetStore() {
+        super.resetStore();
+        if (values != null) {
+            for (String key : values.keySet()) {
+                remove(key);
+            }
+        }
+        values = new ConcurrentHashMap<String, Object>();
+    }
+
+    /**
+     * Insert key, value pair into the store.
+     *
+     * @param  key String key
+     * @param  value String value
+     */
+    @Override
+    public void put(String key, String value) {
+        long handle = allocator.store(value.getBytes(UTF_8));
+        Object stored = (handle == SlabAllocator.NO_SPACE) ? value : (Object) handle;
+        Lock lock = lock(key).writeLock();
+        lock.lock();
+        try {
+            free(values.put(key, stored));
+            dropDeadline(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Retrieve the value corresponding to the provided key
+     * @param  key String key
+     * @throws KVException with ERROR_NO_SUCH_KEY if key does not exist in store
+     */
+    @Override
+    public String get(String key) throws KVException {
+        Lock lock = lock(key).readLock();
+        lock.lock();
+        try {
+            String value = decode(values.get(key));
+            if (value == null) {
+                KVMessage msg = new KVMessage(KVConstants.RESP, ERROR_NO_SUCH_KEY);
+                throw new KVException(msg);
+            }
+            return value;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Delete the value corresponding to the provided key.
+     *
+     * @param  key String key
+     * @throws KVException with ERROR_NO_SUCH_KEY if key does not exist in store
+     */
+    @Override
+    public void del(String key) throws KVException {
+        if (key != null && !remove(key)) {
+            KVMessage msg = new KVMessage(KVConstants.RESP, ERROR_NO_SUCH_KEY);
+            throw new KVException(msg);
+        }
+    }
+
+    /**
+     * Checks for a key in the map of values, without reading its value.
+     *
+     * @param key key to check for
+     * @return whether the store has the key
+     */
+    @Override
+    public boolean hasKey(String key) {
+        return values.containsKey(key);
+    }
+
+    /**
+     * Decodes each value as the walk reaches it, as entries() does, so a
+     * pair put or deleted meanwhile may or may not be seen.
+     *
+     * @return a snapshot of the pairs, which need not be closed
+     */
+    @Override
+    public Snapshot snapshot() {
+        return new Snapshot(entries());
+    }
+
+    /**
+     * @return the pairs in the store, each value copied onto the heap under
+     *         its read lock only as the iteration reaches it, so that a dump
+     *         holds one value at a time rather than the whole store
+     */
+    @Override
+    protected Iterable<Entry<String, String>> entries() {
+        return new Iterable<Entry<String, String>>() {
+            @Override
+            public Iterator<Entry<String, String>> iterator() {
+                return new ValueIterator(values.keySet().iterator());
+            }
+        };
+    }
+
+    /* Reads ahead one pair, skipping keys deleted since the walk began */
+    private class ValueIterator implements Iterator<Entry<String, String>> {
+        private Iterator<String> keys;
+        private Entry<String, String> next;
+
+        ValueIterator(Iterator<String> keys) {
+            this.keys = keys;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && keys.hasNext()) {
+                String key = keys.next();
+                Lock lock = lock(key).readLock();
+                lock.lock();
+                try {
+                    String value = decode(values.get(key));
+                    if (value != null) {
+                        next = new SimpleImmutableEntry<String, String>(key, value);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public Entry<String, String> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Entry<String, String> pair = next;
+            next = null;
+            return pair;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private boolean remove(String key) {
+        Lock lock = lock(key).writeLock();
+        lock.lock();
+        try {
+            Object old = values.remove(key);
+            free(old);
+            dropDeadline(key);
+            return old != null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private String decode(Object stored) {
+        if (stored instanceof Long) {
+            return new String(allocator.load((Long) stored), UTF_8);
+        }
+        return (String) stored;
+    }
+
+    private void free(Object stored) {
+        if (stored instanceof Long) {
+            allocator.free((Long) stored);
+        }
+    }
+
+    private ReadWriteLock lock(String key) {
+        return locks[(key.hashCode() & Integer.MAX_VALUE) % STRIPES];
+    }
+}
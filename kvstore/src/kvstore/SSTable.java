@@ -0,0 +1,372 @@
+package kvstore;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable file of pairs sorted by key, as an LSMKVStore writes them.
+ *
+ * Pairs are written in blocks of about BLOCK_SIZE bytes, each pair as the
+ * lengths of its key and value, when it expires (0 if never), and then
+ * their UTF-8 bytes; a value length of -1 marks a deleted key, which has
+ * no deadline. The blocks are followed by an index of the
+ * first key and offset of each block, the last key, a BloomFilter of all
+ * the keys, and a fixed-size footer giving where the index and filter are.
+ * The index and filter are kept in memory once the table is opened, so a
+ * lookup reads at most one block, and none when the filter rules the key
+ * out.
+ *
+ * Lookups are thread-safe, and use positional reads on a channel that
+ * close() closes; a lookup that races with close() fails with a
+ * ClosedChannelException.
+ */
+class SSTable {
+
+    /** Value of a deleted key, compared by identity. */
+    static final Value TOMBSTONE = new Value(null, 0);
+
+    /** A value as the tables keep it, with when it expires. */
+    static final class Value {
+        /** The value, or null for TOMBSTONE */
+        final String value;
+        /** System.currentTimeMillis() at which it expires, or 0 if never */
+        final long expiresAt;
+
+        Value(String value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int BLOCK_SIZE = 4096;
+    private static final int BITS_PER_KEY = 10;
+    private static final int FOOTER = 24;
+    private static final int MAGIC = 0x55714c53;
+
+    final long id;
+    private File file;
+    private FileChannel channel;
+    private String[] blockKeys;
+    /* Offset of each block, and of the end of the last one */
+    private long[] blockOffsets;
+    private String lastKey;
+    private BloomFilter bloom;
+    private int count;
+    private long size;
+
+    private SSTable(long id, File file) throws IOException {
+        this.id = id;
+        this.file = file;
+        this.channel = new RandomAccessFile(file, "r").getChannel();
+        this.size = channel.size();
+        ByteBuffer footer = ByteBuffer.allocate(FOOTER);
+        readFully(footer, size - FOOTER);
+        footer.flip();
+        long indexOffset = footer.getLong();
+        footer.getLong(); // the filter follows the index
+        count = footer.getInt();
+        if (footer.getInt() != MAGIC) {
+            channel.close();
+            throw new IOException("Not an SSTable: " + file);
+        }
+        ByteBuffer meta = ByteBuffer.allocate((int) (size - FOOTER - indexOffset));
+        readFully(meta, indexOffset);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(meta.array()));
+        int blocks = in.readInt();
+        blockKeys = new String[blocks];
+        blockOffsets = new long[blocks + 1];
+        for (int i = 0; i < blocks; i++) {
+            blockOffsets[i] = in.readLong();
+            blockKeys[i] = readKey(in);
+        }
+        blockOffsets[blocks] = indexOffset;
+        lastKey = (blocks > 0) ? readKey(in) : null;
+        bloom = BloomFilter.readFrom(in);
+    }
+
+    /**
+     * Opens a table written by write().
+     *
+     * @param id number of the table
+     * @param file the table's file
+     * @return the table
+     * @throws IOException if the file cannot be read or is not a table
+     */
+    static SSTable open(long id, File file) throws IOException {
+        return new SSTable(id, file);
+    }
+
+    /**
+     * Writes pairs, in order of their keys, to a new table, until the table
+     * reaches a size or the pairs run out, and forces it to disk.
+     *
+     * @param id number of the table
+     * @param file file to write
+     * @param pairs pairs sorted by key, with TOMBSTONE for deleted keys
+     * @param maxSize size after which no more pairs are taken
+     * @return the table, opened
+     * @throws IOException if the file cannot be written
+     */
+    static SSTable write(long id, File file, Iterator<Entry<String, Value>> pairs,
+            long maxSize) throws IOException {
+        FileOutputStream fileOut = new FileOutputStream(file);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 1 << 16));
+            String[] blockKeys = new String[16];
+            long[] blockOffsets = new long[16];
+            long[] hashes = new long[256];
+            int blocks = 0;
+            int count = 0;
+            long offset = 0;
+            long blockStart = -BLOCK_SIZE;
+            String lastKey = null;
+            while (offset < maxSize && pairs.hasNext()) {
+                Entry<String, Value> pair = pairs.next();
+                if (offset - blockStart >= BLOCK_SIZE) {
+                    if (blocks == blockKeys.length) {
+                        blockKeys = Arrays.copyOf(blockKeys, blocks * 2);
+                        blockOffsets = Arrays.copyOf(blockOffsets, blocks * 2);
+                    }
+                    blockKeys[blocks] = pair.getKey();
+                    blockOffsets[blocks++] = offset;
+                    blockStart = offset;
+                }
+                byte[] key = pair.getKey().getBytes(UTF_8);
+                out.writeInt(key.length);
+                if (pair.getValue() == TOMBSTONE) {
+                    out.writeInt(-1);
+                    out.write(key);
+                    offset += 8 + key.length;
+                } else {
+                    byte[] value = pair.getValue().value.getBytes(UTF_8);
+                    out.writeInt(value.length);
+                    out.writeLong(pair.getValue().expiresAt);
+                    out.write(key);
+                    out.write(value);
+                    offset += 16 + key.length + value.length;
+                }
+                if (count == hashes.length) {
+                    hashes = Arrays.copyOf(hashes, count * 2);
+                }
+                hashes[count++] = BloomFilter.hash(pair.getKey());
+                lastKey = pair.getKey();
+            }
+
+            long indexOffset = offset;
+            out.writeInt(blocks);
+            for (int i = 0; i < blocks; i++) {
+                out.writeLong(blockOffsets[i]);
+                writeKey(out, blockKeys[i]);
+            }
+            if (blocks > 0) {
+                writeKey(out, lastKey);
+            }
+            long bloomOffset = out.size();
+            BloomFilter filter = new BloomFilter(count, BITS_PER_KEY);
+            for (int i = 0; i < count; i++) {
+                filter.add(hashes[i]);
+            }
+            filter.writeTo(out);
+            out.writeLong(indexOffset);
+            out.writeLong(bloomOffset);
+            out.writeInt(count);
+            out.writeInt(MAGIC);
+            out.flush();
+            fileOut.getChannel().force(true);
+        } finally {
+            fileOut.close();
+        }
+        return new SSTable(id, file);
+    }
+
+    /**
+     * Looks up a key.
+     *
+     * @param key the key
+     * @return its value, TOMBSTONE if it was deleted, or null if the table
+     *         does not have it
+     * @throws IOException if the file cannot be read
+     */
+    Value get(String key) throws IOException {
+        if (count == 0 || key.compareTo(blockKeys[0]) < 0 || key.compareTo(lastKey) > 0
+                || !bloom.mightContain(key)) {
+            return null;
+        }
+        int block = Arrays.binarySearch(blockKeys, key);
+        if (block < 0) {
+            block = -block - 2;
+        }
+        DataInputStream in = readBlock(block);
+        while (in.available() > 0) {
+            int keyLength = in.readInt();
+            int valueLength = in.readInt();
+            long expiresAt = (valueLength < 0) ? 0 : in.readLong();
+            int c = readString(in, keyLength).compareTo(key);
+            if (c == 0) {
+                return (valueLength < 0) ? TOMBSTONE
+                        : new Value(readString(in, valueLength), expiresAt);
+            } else if (c > 0) {
+                break;
+            }
+            in.skipBytes(Math.max(valueLength, 0));
+        }
+        return null;
+    }
+
+    /**
+     * @return the pairs in order of their keys, read a block at a time,
+     *         with TOMBSTONE for deleted keys; the iterator throws
+     *         IllegalStateException if the file cannot be read
+     */
+    Iterator<Entry<String, Value>> iterator() {
+        return iterator(null);
+    }
+
+    /**
+     * Like iterator(), but starts at a key, reading from the block that
+     * would hold it.
+     *
+     * @param from first key to return, or null to start at the beginning
+     * @return the pairs from that key on
+     */
+    Iterator<Entry<String, Value>> iterator(final String from) {
+        int first = 0;
+        if (from != null && blockKeys.length > 0) {
+            first = Arrays.binarySearch(blockKeys, from);
+            first = (first < 0) ? Math.max(0, -first - 2) : first;
+        }
+        final int firstBlock = first;
+        return new Iterator<Entry<String, Value>>() {
+            private int block = firstBlock - 1;
+            private DataInputStream in;
+            private Entry<String, Value> next;
+
+            @Override
+            public boolean hasNext() {
+                try {
+                    while (next == null) {
+                        while (in == null || in.available() == 0) {
+                            if (block + 1 >= blockKeys.length) {
+                                return false;
+                            }
+                            in = readBlock(++block);
+                        }
+                        int keyLength = in.readInt();
+                        int valueLength = in.readInt();
+                        long expiresAt = (valueLength < 0) ? 0 : in.readLong();
+                        String key = readString(in, keyLength);
+                        if (from != null && key.compareTo(from) < 0) {
+                            in.skipBytes(Math.max(valueLength, 0));
+                            continue;
+                        }
+                        Value value = (valueLength < 0) ? TOMBSTONE
+                                : new Value(readString(in, valueLength), expiresAt);
+                        next = new SimpleImmutableEntry<String, Value>(key, value);
+                    }
+                    return true;
+                } catch (IOException e) {
+                    throw new IllegalStateException("Cannot read " + file, e);
+                }
+            }
+
+            @Override
+            public Entry<String, Value> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Entry<String, Value> pair = next;
+                next = null;
+                return pair;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * @return the smallest key, or null if the table is empty
+     */
+    String firstKey() {
+        return (count == 0) ? null : blockKeys[0];
+    }
+
+    /**
+     * @return the largest key, or null if the table is empty
+     */
+    String lastKey() {
+        return lastKey;
+    }
+
+    /**
+     * @return the number of pairs, deleted keys included
+     */
+    int count() {
+        return count;
+    }
+
+    /**
+     * @return the size of the file
+     */
+    long size() {
+        return size;
+    }
+
+    File file() {
+        return file;
+    }
+
+    void close() throws IOException {
+        channel.close();
+    }
+
+    private DataInputStream readBlock(int block) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate((int) (blockOffsets[block + 1] - blockOffsets[block]));
+        readFully(buf, blockOffsets[block]);
+        return new DataInputStream(new ByteArrayInputStream(buf.array()));
+    }
+
+    private void readFully(ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int read = channel.read(buf, position);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            position += read;
+        }
+    }
+
+    private static String readKey(DataInputStream in) throws IOException {
+        return readString(in, in.readInt());
+    }
+
+    private static String readString(DataInputStream in, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static void writeKey(DataOutputStream out, String key) throws IOException {
+        byte[] bytes = key.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
@@ -3,15 +3,22 @@ package kvstore;
 import java.io.IOException;
 import java.net.InetAddress;
 
+import javax.management.JMException;
+
 public class SampleMaster {
 
     static SocketServer clientSocketServer;
     static SocketServer slaveSocketServer;
     static TPCMaster tpcMaster;
 
-    public static void main(String[] args) throws IOException, InterruptedException {
+    public static void main(String[] args) throws IOException, InterruptedException, JMException {
         final String hostname = InetAddress.getLocalHost().getHostAddress();
-        tpcMaster = new TPCMaster(4, new KVCache(4, 4));
+        // an eviction policy for the master's cache may be named, e.g. "arc"
+        String policy = (args.length > 0) ? args[0] : "second-chance";
+        KVCache masterCache = new KVCache(4, 4, EvictionPolicy.forName(policy));
+        tpcMaster = new TPCMaster(4, masterCache);
+        // resizable from jconsole while the master runs
+        KVCacheAdmin.register(masterCache, "master");
 
         new Thread() {
             @Override
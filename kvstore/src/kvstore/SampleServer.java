@@ -8,7 +8,11 @@ public class SampleServer {
         try {
             String hostname = InetAddress.getLocalHost().getHostAddress();
             SocketServer ss = new SocketServer(hostname, 8080);
-            ss.addHandler(new ServerClientHandler(new KVServer(100, 10)));
+            // an eviction policy for the data cache may be named, e.g. "tinylfu"
+            EvictionPolicy policy = (args.length > 0) ? EvictionPolicy.forName(args[0]) : null;
+            KVServer kvServer = new KVServer(100, 10, true, policy);
+            KVCacheAdmin.register(kvServer.getCache(), "server");
+            ss.addHandler(new ServerClientHandler(kvServer));
             ss.connect();
             System.out.println("Server listening for clients at " + ss.getHostname());
             ss.start();
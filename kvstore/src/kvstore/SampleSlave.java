@@ -4,6 +4,8 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.util.Random;
 
+import javax.management.JMException;
+
 public class SampleSlave {
 
     static String logPath;
@@ -15,7 +17,7 @@ public class SampleSlave {
     static long slaveID;
     static String masterHostname;
 
-    public static void main(String[] args) throws IOException, KVException {
+    public static void main(String[] args) throws IOException, KVException, JMException {
         if (args.length != 1) {
             throw new IllegalArgumentException("Need master IP address");
         }
@@ -32,6 +34,7 @@ public class SampleSlave {
         server = new SocketServer(InetAddress.getLocalHost().getHostAddress());
 
         keyServer = new KVServer(100, 10);
+        KVCacheAdmin.register(keyServer.getCache(), "slave-" + slaveID);
         logPath = "./log." + slaveID + "@" + server.getHostname();
         log = new TPCLog(logPath, keyServer);
 
@@ -0,0 +1,82 @@
+package kvstore;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Second-chance (CLOCK) eviction, the KVCache default. Entries are ordered
+ * by when they entered the set, and a get() or put() of a cached entry sets
+ * its reference bit. To evict, the hand starts at the oldest entry and moves
+ * towards the newest, clearing reference bits until it reaches an entry
+ * whose bit is already clear, wrapping around if every entry was referenced.
+ *
+ * Setting a bit is the only thing a hit does, so hits may be recorded
+ * without the set's lock. Bits are only written when they change, so hits
+ * on popular keys do not keep writing the same cache line.
+ */
+public class SecondChancePolicy extends EvictionPolicy {
+
+    /* Entries of each set, oldest first */
+    private SlotLists age;
+    /* One bit per slot; every set starts on a word of its own, so threads
+     * holding the locks of different sets never write the same word. */
+    private AtomicLongArray referenced;
+    private int wordsPerSet;
+
+    @Override
+    protected void init() {
+        age = new SlotLists(numSets * maxElemsPerSet, numSets);
+        wordsPerSet = (maxElemsPerSet + 63) >>> 6;
+        referenced = new AtomicLongArray(numSets * wordsPerSet);
+    }
+
+    @Override
+    public void hit(int set, int slot) {
+        setReferenced(set, slot, true);
+    }
+
+    @Override
+    public void inserted(int set, int slot, int hash) {
+        setReferenced(set, slot, false);
+        age.addLast(set, slot);
+    }
+
+    @Override
+    public void removed(int set, int slot) {
+        age.remove(set, slot);
+    }
+
+    @Override
+    public int evict(int set, int hash) {
+        int hand = age.first(set);
+        while (isReferenced(set, hand)) {
+            setReferenced(set, hand, false);
+            int newer = age.next(hand);
+            hand = (newer != SlotLists.NIL) ? newer : age.first(set);
+        }
+        age.remove(set, hand);
+        return hand;
+    }
+
+    @Override
+    public boolean optimisticHits() {
+        return true;
+    }
+
+    @Override
+    public boolean isReferenced(int set, int slot) {
+        int bit = slot - firstSlot(set);
+        return (referenced.get(set * wordsPerSet + (bit >>> 6)) & (1L << bit)) != 0;
+    }
+
+    private void setReferenced(int set, int slot, boolean isReferenced) {
+        int bit = slot - firstSlot(set);
+        int word = set * wordsPerSet + (bit >>> 6);
+        while (true) {
+            long bits = referenced.get(word);
+            long updated = isReferenced ? bits | (1L << bit) : bits & ~(1L << bit);
+            if (updated == bits || referenced.compareAndSet(word, bits, updated)) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,500 @@
+package kvstore;
+
+import static kvstore.KVConnection.CODEC_BINARY;
+import static kvstore.KVConnection.CODEC_XML;
+import static kvstore.KVConnection.MAX_FRAME_SIZE;
+import static kvstore.KVConnection.PREAMBLE;
+import static kvstore.KVConstants.ERROR_INVALID_FORMAT;
+import static kvstore.KVConstants.RESP;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A SocketServer that accepts, reads and writes connections on a small number
+ * of event loops built on a java.nio Selector instead of blocking a thread per
+ * connection.
+ *
+ * Each loop reads from its connections as data arrives and only once a
+ * complete request has been read is it passed to the handler, as an Exchange
+ * (see MessageHandler). The handler's workers decode the request, carry it
+ * out and queue the response, which the loop writes back as the socket
+ * accepts it. Idle and slow clients therefore cost a buffer each but no
+ * thread, and a handful of workers can serve thousands of connections.
+ *
+ * Both kinds of connection described in KVConnection are understood. A
+ * one-shot connection is read until the client shuts down its output, and
+ * closed once the response has been written. A framed connection has one
+ * request in flight at a time; requests pipelined behind it stay buffered
+ * until its response has been queued, so responses go out in order.
+ *
+ * A handler that is not a MessageHandler is given each accepted socket in
+ * blocking mode, exactly as by SocketServer.
+ */
+public class SelectorSocketServer extends SocketServer {
+
+    /* Read buffer each connection starts with; grown for larger messages. */
+    private static final int INITIAL_BUFFER = 8 * 1024;
+
+    /* Stages of a connection: before its first byte, after a preamble, or a
+     * single XML message read until the client shuts down its output. */
+    private static final int NEW = 0;
+    private static final int FRAMED = 1;
+    private static final int ONE_SHOT = 2;
+
+    private ServerSocketChannel channel;
+    private EventLoop[] loops;
+    private int nextLoop = 0;
+
+    /**
+     * Construct a SelectorSocketServer with a single event loop listening on
+     * a free port.
+     */
+    public SelectorSocketServer(String hostname) {
+        this(hostname, 0);
+    }
+
+    /**
+     * Construct a SelectorSocketServer with a single event loop listening on
+     * the port passed in.
+     *
+     * @param port port on which to listen for connections
+     */
+    public SelectorSocketServer(String hostname, int port) {
+        this(hostname, port, 1);
+    }
+
+    /**
+     * Construct a SelectorSocketServer listening on the port passed in.
+     *
+     * @param port port on which to listen for connections
+     * @param loops number of event loops to spread connections over; the
+     *        first runs on the thread calling start() and also accepts
+     */
+    public SelectorSocketServer(String hostname, int port, int loops) {
+        super(hostname, port);
+        if (loops < 1) {
+            throw new IllegalArgumentException("loops < 1: " + loops);
+        }
+        this.loops = new EventLoop[loops];
+    }
+
+    /**
+     * Creates a non-blocking ServerSocketChannel and binds it to an endpoint.
+     * If the given port is 0, it is bound to an automatically allocated port.
+     *
+     * @throws IOException if unable create and bind the channel
+     */
+    @Override
+    public void connect() throws IOException {
+        channel = ServerSocketChannel.open();
+        channel.configureBlocking(false);
+        server = channel.socket();
+        server.bind(new InetSocketAddress(hostname, port));
+        if (0 == port) {
+            port = server.getLocalPort();
+        }
+    }
+
+    /**
+     * Runs the event loops until stop() is called. All connections are
+     * closed, along with the server channel, within TIMEOUT milliseconds of
+     * the call to stop().
+     *
+     * @throws IOException if there is an unexpected network error while
+     *         accepting connections
+     */
+    @Override
+    public void start() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop();
+        }
+        channel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+        for (int i = 1; i < loops.length; i++) {
+            Thread thread = new Thread(loops[i], "SelectorSocketServer-" + port + "-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        try {
+            loops[0].loop();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Stops the server cleanly, waking the event loops so they notice.
+     */
+    @Override
+    public void stop() {
+        super.stop();
+        for (EventLoop loop : loops) {
+            if (loop != null) {
+                loop.selector.wakeup();
+            }
+        }
+    }
+
+    private static void closeQuietly(Channel ch) {
+        try {
+            ch.close();
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * A Selector and the connections registered with it. Everything but
+     * execute() runs on the loop's own thread.
+     */
+    private class EventLoop implements Runnable {
+
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+        EventLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        /**
+         * Runs a task on this loop's thread. Safe to call from any thread.
+         *
+         * @param task job to run between two rounds of selection
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                loop();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        void loop() throws IOException {
+            try {
+                while (!stopped) {
+                    selector.select(TIMEOUT);
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                            continue;
+                        }
+                        Connection conn = (Connection) key.attachment();
+                        try {
+                            if (key.isWritable()) {
+                                conn.write();
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                conn.read();
+                            }
+                        } catch (IOException e) {
+                            conn.close();
+                        }
+                    }
+                }
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    closeQuietly(key.channel());
+                }
+                selector.close();
+            }
+        }
+
+        private void accept() throws IOException {
+            SocketChannel client;
+            while ((client = channel.accept()) != null) {
+                if (handler instanceof MessageHandler) {
+                    client.configureBlocking(false);
+                    client.socket().setTcpNoDelay(true);
+                    loops[nextLoop].add(client);
+                    nextLoop = (nextLoop + 1) % loops.length;
+                } else {
+                    handler.handle(client.socket());
+                }
+            }
+        }
+
+        private void add(final SocketChannel client) {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Connection conn = new Connection(EventLoop.this, client);
+                        conn.key = client.register(selector, SelectionKey.OP_READ, conn);
+                    } catch (IOException e) {
+                        closeQuietly(client);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * The state of one client connection, only ever touched by its loop.
+     */
+    private class Connection {
+
+        private final EventLoop loop;
+        private final SocketChannel client;
+        private SelectionKey key;
+
+        /* Unread input, kept in write mode between reads. */
+        private ByteBuffer in = ByteBuffer.allocate(INITIAL_BUFFER);
+        private final Queue<ByteBuffer> out = new ArrayDeque<ByteBuffer>();
+
+        private int stage = NEW;
+        private byte codec = CODEC_XML;
+        /* A request has been handed to the handler and not yet answered. */
+        private boolean busy = false;
+        /* The client has shut down its output. */
+        private boolean eof = false;
+        /* Close as soon as everything queued has been written. */
+        private boolean closing = false;
+
+        Connection(EventLoop loop, SocketChannel client) {
+            this.loop = loop;
+            this.client = client;
+        }
+
+        void read() throws IOException {
+            if (client.read(in) == -1) {
+                eof = true;
+            }
+            parse();
+        }
+
+        void write() throws IOException {
+            while (!out.isEmpty()) {
+                ByteBuffer buf = out.peek();
+                client.write(buf);
+                if (buf.hasRemaining()) {
+                    break;
+                }
+                out.poll();
+            }
+            updateInterest();
+        }
+
+        /**
+         * Hands the next complete request in the read buffer to the handler,
+         * unless one is already in flight, and makes room for more input.
+         */
+        void parse() {
+            if (!key.isValid()) {
+                return;
+            }
+            int wanted = in.capacity();
+            in.flip();
+            while (!busy && !closing) {
+                if (stage == NEW) {
+                    if (!in.hasRemaining()) {
+                        break;
+                    }
+                    if (in.get(in.position()) != PREAMBLE[0]) {
+                        stage = ONE_SHOT;
+                        continue;
+                    }
+                    if (in.remaining() < PREAMBLE.length + 1) {
+                        break;
+                    }
+                    byte[] preamble = new byte[PREAMBLE.length + 1];
+                    in.get(preamble);
+                    if (!Arrays.equals(PREAMBLE, Arrays.copyOf(preamble, PREAMBLE.length))) {
+                        reject();
+                        break;
+                    }
+                    codec = (preamble[PREAMBLE.length] == CODEC_BINARY) ? CODEC_BINARY : CODEC_XML;
+                    preamble[PREAMBLE.length] = codec;
+                    out.add(ByteBuffer.wrap(preamble));
+                    stage = FRAMED;
+                } else if (stage == FRAMED) {
+                    if (in.remaining() < 4) {
+                        break;
+                    }
+                    int length = in.getInt(in.position());
+                    if (length < 0 || length > MAX_FRAME_SIZE) {
+                        reject();
+                        break;
+                    }
+                    if (in.remaining() < 4 + length) {
+                        wanted = Math.max(wanted, 4 + length);
+                        break;
+                    }
+                    in.getInt();
+                    byte[] payload = new byte[length];
+                    in.get(payload);
+                    dispatch(payload);
+                } else {
+                    if (eof) {
+                        byte[] payload = new byte[in.remaining()];
+                        in.get(payload);
+                        dispatch(payload);
+                        closing = true;
+                    } else if (in.remaining() == in.capacity()) {
+                        if (in.capacity() >= MAX_FRAME_SIZE) {
+                            reject();
+                        } else {
+                            wanted = Math.min(2 * in.capacity(), MAX_FRAME_SIZE);
+                        }
+                    }
+                    break;
+                }
+            }
+            in.compact();
+            if (in.position() == 0 && in.capacity() > INITIAL_BUFFER) {
+                in = ByteBuffer.allocate(INITIAL_BUFFER);
+            } else if (wanted > in.capacity()) {
+                ByteBuffer bigger = ByteBuffer.allocate(wanted);
+                in.flip();
+                bigger.put(in);
+                in = bigger;
+            }
+            if (eof && !busy) {
+                closing = true;
+            }
+            updateInterest();
+        }
+
+        private void dispatch(byte[] payload) {
+            busy = true;
+            ((MessageHandler) handler).handle(new Request(payload, stage == FRAMED, codec));
+        }
+
+        /* The input cannot be made sense of; answer with an error and close. */
+        private void reject() {
+            try {
+                out.add(encode(new KVMessage(RESP, ERROR_INVALID_FORMAT), stage == FRAMED, codec));
+            } catch (KVException e) {
+            }
+            closing = true;
+        }
+
+        /**
+         * Queues the response to the request in flight and moves on to the
+         * next one. Runs on the loop, called back from a worker.
+         *
+         * @param response encoded response, or null if there is none
+         */
+        void complete(ByteBuffer response) {
+            if (!key.isValid()) {
+                return;
+            }
+            busy = false;
+            if (response == null) {
+                close();
+                return;
+            }
+            out.add(response);
+            try {
+                parse();
+                if (key.isValid()) {
+                    write();
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        private void updateInterest() {
+            if (!key.isValid()) {
+                return;
+            }
+            if (closing && !busy && out.isEmpty()) {
+                close();
+                return;
+            }
+            int ops = 0;
+            if (!busy && !eof && !closing) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (!out.isEmpty()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            key.interestOps(ops);
+        }
+
+        void close() {
+            key.cancel();
+            closeQuietly(client);
+        }
+
+        /**
+         * A request read from this connection. Decoded and answered from a
+         * worker thread.
+         */
+        private class Request implements MessageHandler.Exchange {
+
+            private final byte[] payload;
+            private final boolean framed;
+            private final byte codec;
+
+            Request(byte[] payload, boolean framed, byte codec) {
+                this.payload = payload;
+                this.framed = framed;
+                this.codec = codec;
+            }
+
+            @Override
+            public KVMessage request() throws KVException {
+                if (codec == CODEC_BINARY) {
+                    return KVMessage.fromBinary(payload);
+                }
+                return new KVMessage(new ByteArrayInputStream(payload));
+            }
+
+            @Override
+            public void respond(KVMessage response) {
+                ByteBuffer encoded = null;
+                try {
+                    encoded = encode(response, framed, codec);
+                } catch (KVException e) {
+                }
+                final ByteBuffer reply = encoded;
+                loop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        complete(reply);
+                    }
+                });
+            }
+        }
+    }
+
+    private static ByteBuffer encode(KVMessage msg, boolean framed, byte codec) throws KVException {
+        byte[] payload = (codec == CODEC_BINARY) ? msg.toBinary() : msg.toXMLBytes();
+        if (!framed) {
+            return ByteBuffer.wrap(payload);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(4 + payload.length);
+        buf.putInt(payload.length);
+        buf.put(payload);
+        buf.flip();
+        return buf;
+    }
+}
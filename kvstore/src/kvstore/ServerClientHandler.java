@@ -1,22 +1,27 @@
 package kvstore;
 
 import static kvstore.KVConstants.DEL_REQ;
+import static kvstore.KVConstants.ERROR_INVALID_FORMAT;
+import static kvstore.KVConstants.ERROR_SERVER_BUSY;
 import static kvstore.KVConstants.GET_REQ;
 import static kvstore.KVConstants.PUT_REQ;
 import static kvstore.KVConstants.RESP;
+import static kvstore.KVConstants.SCAN_REQ;
 import static kvstore.KVConstants.SUCCESS;
 
-import java.io.IOException;
 import java.net.Socket;
+import java.util.List;
+import java.util.Map.Entry;
 
 /**
  * This NetworkHandler will asynchronously handle the socket connections.
  * Uses a thread pool to ensure that none of its methods are blocking.
  */
-public class ServerClientHandler implements NetworkHandler {
+public class ServerClientHandler implements MessageHandler {
 
     public KVServer kvServer;
     public ThreadPool threadPool;
+    public KeyAffinityExecutor affinity;
 
     /**
      * Constructs a ServerClientHandler with ThreadPool of a single thread.
@@ -40,6 +45,35 @@ public class ServerClientHandler implements NetworkHandler {
     		threadPool = new ThreadPool(connections);
     }
 
+    /**
+     * Constructs a ServerClientHandler which runs its jobs on the given
+     * ThreadPool, such as a VirtualThreadPool to serve every connection on
+     * a thread of its own.
+     *
+     * @param kvServer KVServer to carry out requests
+     * @param threadPool ThreadPool to service requests
+     */
+    public ServerClientHandler(KVServer kvServer, ThreadPool threadPool) {
+    		this.kvServer = kvServer;
+    		this.threadPool = threadPool;
+    }
+
+    /**
+     * Constructs a ServerClientHandler which reads requests on the given
+     * ThreadPool but carries each out on the lane of a KeyAffinityExecutor
+     * chosen by its key, so requests on the same cache set never run at the
+     * same time. The KVServer can then be constructed without locking.
+     *
+     * @param kvServer KVServer to carry out requests
+     * @param threadPool ThreadPool to read requests and send responses
+     * @param affinity KeyAffinityExecutor built for the sets of kvServer
+     */
+    public ServerClientHandler(KVServer kvServer, ThreadPool threadPool,
+            KeyAffinityExecutor affinity) {
+    		this(kvServer, threadPool);
+    		this.affinity = affinity;
+    }
+
     /**
      * Creates a job to service the request for a socket and enqueues that job
      * in the thread pool. Ignore any InterruptedExceptions.
@@ -51,11 +85,24 @@ public class ServerClientHandler implements NetworkHandler {
         // implement me
     		threadPool.addJob(new ClientHandler(client));
     }
+
+    /**
+     * Creates a job to service a request already read by the server and
+     * enqueues that job in the thread pool.
+     *
+     * @param exchange the request from the client and the means to answer it
+     */
+    @Override
+    public void handle(Exchange exchange) {
+    		threadPool.addJob(new ExchangeHandler(exchange));
+    }
     
     /**
-     * Runnable class containing routine to service a request from the client.
+     * Runnable class containing routine to service requests from the client.
+     * A one-shot connection carries a single request; a framed connection is
+     * serviced until the client closes it, without a worker while it idles.
      */
-    private class ClientHandler implements Runnable {
+    private class ClientHandler extends ConnectionJob implements Sheddable {
 
         private Socket client;
 
@@ -65,26 +112,123 @@ public class ServerClientHandler implements NetworkHandler {
          * @param client Socket connected to client with the request
          */
         public ClientHandler(Socket client) {
+            super(client, threadPool);
             this.client = client;
         }
 
+        @Override
+        protected KVMessage respond(KVMessage request) {
+            return processInOrder(request);
+        }
+
         /**
-         * Processes request from client and sends back a response with the
-         * result. The delivery of the response is best-effort. If we are
-         * unable to return any response, there is nothing else we can do.
+         * Tells the client the server is too busy to service its request.
          */
+        @Override
+        public void shed() {
+            new KVConnection(client).rejectLater(new KVMessage(RESP, ERROR_SERVER_BUSY));
+        }
+    }
+
+    /**
+     * Runnable class servicing a request read by a SelectorSocketServer.
+     */
+    private class ExchangeHandler implements Sheddable {
+
+        private Exchange exchange;
+
+        public ExchangeHandler(Exchange exchange) {
+            this.exchange = exchange;
+        }
+
         @Override
         public void run() {
-            // implement me
-        		KVMessage response = null;			
-			KVMessage msg;
-			
+            final KVMessage msg;
+            try {
+                msg = exchange.request();
+            } catch (KVException kve) {
+                exchange.respond(kve.getKVMessage());
+                return;
+            }
+            if (!hasLane(msg)) {
+                exchange.respond(process(msg));
+                return;
+            }
+            // answered from the lane, so this worker need not wait for it
+            affinity.execute(msg.getKey(), new Runnable() {
+                @Override
+                public void run() {
+                    exchange.respond(process(msg));
+                }
+            });
+        }
+
+        @Override
+        public void shed() {
+            exchange.respond(new KVMessage(RESP, ERROR_SERVER_BUSY));
+        }
+    }
+
+    /**
+     * Carries out a single request on the KVServer, on the lane of its key
+     * if this handler has a KeyAffinityExecutor.
+     *
+     * @param msg KVMessage holding the request
+     * @return KVMessage holding the response to send back
+     */
+    private KVMessage processInOrder(final KVMessage msg) {
+        if (!hasLane(msg)) {
+            return process(msg);
+        }
+        final KVMessage[] response = new KVMessage[1];
+        affinity.executeAndWait(msg.getKey(), new Runnable() {
+            @Override
+            public void run() {
+                response[0] = process(msg);
+            }
+        });
+        return response[0];
+    }
+
+    /* A scan reads no cache set, and its key is only where a range starts */
+    private boolean hasLane(KVMessage msg) {
+        return affinity != null && msg.getKey() != null && !SCAN_REQ.equals(msg.getMsgType());
+    }
+
+    /**
+     * Answers a SCAN request with a page of pairs, and the token of the
+     * next page if this one is full.
+     *
+     * @param kvServer KVServer to scan
+     * @param msg KVMessage holding the request
+     * @return KVMessage holding the response to send back
+     * @throws KVException if the limit of the request is not positive
+     */
+    static KVMessage scan(KVServer kvServer, KVMessage msg) throws KVException {
+        List<Entry<String, String>> pairs = kvServer.scan(msg.getScanStart(), msg.getEnd(),
+                msg.getLimit());
+        KVMessage response = new KVMessage(RESP, SUCCESS);
+        response.setPairs(pairs);
+        if (!pairs.isEmpty()
+                && pairs.size() == Math.min(msg.getLimit(), KVServer.MAX_SCAN_LIMIT)) {
+            response.setToken(pairs.get(pairs.size() - 1).getKey());
+        }
+        return response;
+    }
+
+    /**
+     * Carries out a single request on the KVServer.
+     *
+     * @param msg KVMessage holding the request
+     * @return KVMessage holding the response to send back
+     */
+    private KVMessage process(KVMessage msg) {
+    		KVMessage response = null;
 			try {
-				msg = new KVMessage(client);
 				switch (msg.getMsgType()) {
 				case PUT_REQ:
 	                response = new KVMessage(RESP, SUCCESS);
-	                kvServer.put(msg.getKey(), msg.getValue());
+	                kvServer.put(msg.getKey(), msg.getValue(), msg.getTtl());
 	                break;
 	            case DEL_REQ:
 	                response = new KVMessage(RESP, SUCCESS);
@@ -95,19 +239,17 @@ public class ServerClientHandler implements NetworkHandler {
 	                response.setValue(kvServer.get(msg.getKey()));
 	                response.setKey(msg.getKey());
 	                break;
+	            case SCAN_REQ:
+	                response = scan(kvServer, msg);
+	                break;
 	            default:
+	            		response = new KVMessage(RESP, ERROR_INVALID_FORMAT);
 	            		break;
 				}
 			} catch (KVException kve) {
 				response = kve.getKVMessage();
-			}	
-			
-			try {
-				response.sendMessage(client);
-			} catch (KVException kve) {
-				kve.printStackTrace();
 			}
-		}
+			return response;
     }
-   
+
 }
@@ -0,0 +1,17 @@
+package kvstore;
+
+/**
+ * A job that can be turned away instead of run when its ThreadPool is
+ * overloaded, either because the queue is full when it is added or because
+ * it has waited in the queue for too long (see ThreadPool). Jobs that are not
+ * Sheddable are always run.
+ */
+public interface Sheddable extends Runnable {
+
+    /**
+     * Called instead of run() when the job is turned away, typically to tell
+     * the client the server is busy. May be called on the thread adding the
+     * job, so it must return quickly.
+     */
+    public void shed();
+}
@@ -0,0 +1,199 @@
+package kvstore;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Stores byte arrays outside the Java heap, so that millions of large values
+ * cost the garbage collector nothing but the handles kept for them.
+ *
+ * Memory is taken in pages of PAGE_SIZE bytes from direct ByteBuffers, up to
+ * a fixed capacity. As in memcached, each page is given to one size class
+ * and cut into chunks of that class's size; sizes grow by a quarter from one
+ * class to the next, so a chunk wastes at most about a fifth of itself. Each
+ * class keeps freed chunks on a list threaded through the chunks themselves,
+ * and only takes a new page once that list is empty. Pages are never given
+ * back or moved to another class.
+ *
+ * A handle names the page and offset of a chunk. A chunk holds the length of
+ * the data it stores, then the data. Allocation and freeing are thread-safe;
+ * reading a chunk takes no lock, so callers must make sure no chunk is read
+ * after it has been freed, since it may already hold other data.
+ */
+public class SlabAllocator {
+
+    /** Size of the pages chunks are cut from, and so the largest chunk. */
+    public static final int PAGE_SIZE = 1 << 20;
+    /** Returned by store() when no chunk could be found. */
+    public static final long NO_SPACE = -1;
+
+    private static final int MIN_CHUNK = 64;
+    private static final int HEADER = 4;
+
+    private int[] chunkSizes;
+    /* Per class: head of the free list, and the page and offset new chunks
+     * are cut from, guarded by the class's lock */
+    private long[] freeList;
+    private int[] currentPage;
+    private int[] nextOffset;
+    private Object[] classLocks;
+
+    private AtomicReferenceArray<ByteBuffer> pages;
+    private int[] pageClass;
+    private AtomicInteger pagesUsed;
+    private AtomicLong bytesUsed;
+
+    /**
+     * Constructs an allocator that takes up to capacity bytes of direct
+     * memory, a page at a time as it is needed.
+     *
+     * @param capacity most bytes of direct memory to use, at least one page
+     */
+    public SlabAllocator(long capacity) {
+        int sizes = 0;
+        int[] all = new int[64];
+        for (int size = MIN_CHUNK; size < PAGE_SIZE; size = ((size + size / 4) + 7) & ~7) {
+            all[sizes++] = size;
+        }
+        all[sizes++] = PAGE_SIZE;
+        chunkSizes = Arrays.copyOf(all, sizes);
+
+        freeList = new long[sizes];
+        Arrays.fill(freeList, NO_SPACE);
+        currentPage = new int[sizes];
+        Arrays.fill(currentPage, -1);
+        nextOffset = new int[sizes];
+        classLocks = new Object[sizes];
+        for (int i = 0; i < sizes; i++) {
+            classLocks[i] = new Object();
+        }
+
+        int maxPages = (int) Math.max(1, Math.min(Integer.MAX_VALUE, capacity / PAGE_SIZE));
+        pages = new AtomicReferenceArray<ByteBuffer>(maxPages);
+        pageClass = new int[maxPages];
+        pagesUsed = new AtomicInteger();
+        bytesUsed = new AtomicLong();
+    }
+
+    /**
+     * Copies data into a chunk of its own.
+     *
+     * @param data bytes to store
+     * @return handle of the chunk, or NO_SPACE if the data does not fit in
+     *         a page or every page is in use
+     */
+    public long store(byte[] data) {
+        int sizeClass = classOf(data.length + HEADER);
+        if (sizeClass < 0) {
+            return NO_SPACE;
+        }
+        long handle = allocate(sizeClass);
+        if (handle == NO_SPACE) {
+            return NO_SPACE;
+        }
+        ByteBuffer chunk = pages.get(page(handle)).duplicate();
+        chunk.position(offset(handle));
+        chunk.putInt(data.length);
+        chunk.put(data);
+        bytesUsed.addAndGet(chunkSizes[sizeClass]);
+        return handle;
+    }
+
+    /**
+     * Copies the data out of a chunk.
+     *
+     * @param handle handle returned by store() and not yet freed
+     * @return the data
+     */
+    public byte[] load(long handle) {
+        ByteBuffer chunk = pages.get(page(handle)).duplicate();
+        chunk.position(offset(handle));
+        byte[] data = new byte[chunk.getInt()];
+        chunk.get(data);
+        return data;
+    }
+
+    /**
+     * Returns a chunk to its class, for the next store() of that size.
+     *
+     * @param handle handle returned by store() and not yet freed
+     */
+    public void free(long handle) {
+        int sizeClass = pageClass[page(handle)];
+        ByteBuffer page = pages.get(page(handle));
+        synchronized (classLocks[sizeClass]) {
+            page.putLong(offset(handle), freeList[sizeClass]);
+            freeList[sizeClass] = handle;
+        }
+        bytesUsed.addAndGet(-chunkSizes[sizeClass]);
+    }
+
+    /**
+     * @return bytes in chunks currently storing data
+     */
+    public long getUsedBytes() {
+        return bytesUsed.get();
+    }
+
+    /**
+     * @return bytes of direct memory taken so far
+     */
+    public long getReservedBytes() {
+        return (long) pagesUsed.get() * PAGE_SIZE;
+    }
+
+    private long allocate(int sizeClass) {
+        synchronized (classLocks[sizeClass]) {
+            long handle = freeList[sizeClass];
+            if (handle != NO_SPACE) {
+                freeList[sizeClass] = pages.get(page(handle)).getLong(offset(handle));
+                return handle;
+            }
+            int page = currentPage[sizeClass];
+            if (page < 0 || nextOffset[sizeClass] + chunkSizes[sizeClass] > PAGE_SIZE) {
+                page = newPage(sizeClass);
+                if (page < 0) {
+                    return NO_SPACE;
+                }
+                currentPage[sizeClass] = page;
+                nextOffset[sizeClass] = 0;
+            }
+            handle = ((long) page << 32) | nextOffset[sizeClass];
+            nextOffset[sizeClass] += chunkSizes[sizeClass];
+            return handle;
+        }
+    }
+
+    private int newPage(int sizeClass) {
+        int page;
+        do {
+            page = pagesUsed.get();
+            if (page == pages.length()) {
+                return -1;
+            }
+        } while (!pagesUsed.compareAndSet(page, page + 1));
+        pageClass[page] = sizeClass;
+        // set after pageClass, so that whoever sees the page sees its class
+        pages.set(page, ByteBuffer.allocateDirect(PAGE_SIZE));
+        return page;
+    }
+
+    private int classOf(int size) {
+        int sizeClass = Arrays.binarySearch(chunkSizes, size);
+        if (sizeClass < 0) {
+            sizeClass = -sizeClass - 1;
+        }
+        return (sizeClass < chunkSizes.length) ? sizeClass : -1;
+    }
+
+    private static int page(long handle) {
+        return (int) (handle >>> 32);
+    }
+
+    private static int offset(long handle) {
+        return (int) handle;
+    }
+}
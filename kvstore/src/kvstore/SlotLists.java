@@ -0,0 +1,84 @@
+package kvstore;
+
+import java.util.Arrays;
+
+/**
+ * Doubly linked lists of cache slots, kept in flat arrays, for eviction
+ * policies that order entries. A slot is on at most one list at a time.
+ * Lists run from first (oldest, or least recently used) to last.
+ */
+class SlotLists {
+
+    static final int NIL = -1;
+
+    private int[] next;
+    private int[] prev;
+    private int[] head;
+    private int[] tail;
+    private int[] size;
+
+    /**
+     * @param slots number of slots
+     * @param lists number of lists
+     */
+    SlotLists(int slots, int lists) {
+        next = new int[slots];
+        prev = new int[slots];
+        head = new int[lists];
+        tail = new int[lists];
+        size = new int[lists];
+        Arrays.fill(head, NIL);
+        Arrays.fill(tail, NIL);
+    }
+
+    int first(int list) {
+        return head[list];
+    }
+
+    int next(int slot) {
+        return next[slot];
+    }
+
+    int size(int list) {
+        return size[list];
+    }
+
+    void addLast(int list, int slot) {
+        prev[slot] = tail[list];
+        next[slot] = NIL;
+        if (tail[list] == NIL) {
+            head[list] = slot;
+        } else {
+            next[tail[list]] = slot;
+        }
+        tail[list] = slot;
+        size[list]++;
+    }
+
+    void remove(int list, int slot) {
+        if (prev[slot] == NIL) {
+            head[list] = next[slot];
+        } else {
+            next[prev[slot]] = next[slot];
+        }
+        if (next[slot] == NIL) {
+            tail[list] = prev[slot];
+        } else {
+            prev[next[slot]] = prev[slot];
+        }
+        size[list]--;
+    }
+
+    void moveToLast(int list, int slot) {
+        if (tail[list] != slot) {
+            remove(list, slot);
+            addLast(list, slot);
+        }
+    }
+
+    int removeFirst(int list) {
+        int slot = head[list];
+        remove(list, slot);
+        return slot;
+    }
+}
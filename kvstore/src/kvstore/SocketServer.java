@@ -5,6 +5,7 @@ import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
 
 /**
  * This is a generic class that should handle all TCP network connections
@@ -66,7 +67,8 @@ public class SocketServer {
      */
     public void connect() throws IOException {
         // implement me
-    		server = new ServerSocket();
+    		// from a channel, so idle connections can be watched by a Selector
+    		server = ServerSocketChannel.open().socket();
     		server.bind(new InetSocketAddress(hostname, port));
     		if(0 == port){
     			port = server.getLocalPort();
@@ -2,14 +2,13 @@ package kvstore;
 
 import static kvstore.KVConstants.*;
 
-import java.io.IOException;
 import java.net.Socket;
 
 /**
  * This NetworkHandler will asynchronously handle the socket connections.
  * It uses a threadPool to ensure that none of it's methods are blocking.
  */
-public class TPCClientHandler implements NetworkHandler {
+public class TPCClientHandler implements MessageHandler {
 
     public TPCMaster tpcMaster;
     public ThreadPool threadPool;
@@ -35,6 +34,19 @@ public class TPCClientHandler implements NetworkHandler {
     		threadPool = new ThreadPool(connections);
     }
 
+    /**
+     * Constructs a TPCClientHandler which runs its jobs on the given
+     * ThreadPool, such as a VirtualThreadPool to serve every connection on
+     * a thread of its own.
+     *
+     * @param tpcMaster TPCMaster to carry out requests
+     * @param threadPool ThreadPool to service requests
+     */
+    public TPCClientHandler(TPCMaster tpcMaster, ThreadPool threadPool) {
+    		this.tpcMaster = tpcMaster;
+    		this.threadPool = threadPool;
+    }
+
     /**
      * Creates a job to service the request on a socket and enqueues that job
      * in the thread pool. Ignore InterruptedExceptions.
@@ -46,51 +58,94 @@ public class TPCClientHandler implements NetworkHandler {
         // implement me
     		threadPool.addJob(new ClientHandler(client));
     }
+
+    /**
+     * Creates a job to service a request already read by the server and
+     * enqueues that job in the thread pool.
+     *
+     * @param exchange the request from the client and the means to answer it
+     */
+    @Override
+    public void handle(Exchange exchange) {
+    		threadPool.addJob(new ExchangeHandler(exchange));
+    }
     
     // implement me
-    private class ClientHandler implements Runnable{
+    private class ClientHandler extends ConnectionJob implements Sheddable {
 
     		private Socket client;
     		
     		public ClientHandler(Socket client){
+    			super(client, threadPool);
     			this.client = client;
     		}
     		
+		@Override
+		protected KVMessage respond(KVMessage request) {
+			return process(request);
+		}
+
+		@Override
+		public void shed() {
+			new KVConnection(client).rejectLater(new KVMessage(RESP, ERROR_SERVER_BUSY));
+		}
+    }
+
+    private class ExchangeHandler implements Sheddable {
+
+    		private Exchange exchange;
+
+    		public ExchangeHandler(Exchange exchange) {
+    			this.exchange = exchange;
+    		}
+
 		@Override
 		public void run() {
-    			KVMessage response = null;			
-    			KVMessage msg;
-    			
-    			try {
-					msg = new KVMessage(client);
-					switch (msg.getMsgType()) {
-					case GET_REQ:
-						String value = tpcMaster.handleGet(msg);
-						response = new KVMessage(RESP);
-						response.setKey(msg.getKey());
-						response.setValue(value);
-						break;
-					case PUT_REQ:
-						tpcMaster.handleTPCRequest(msg, true);
-						response = new KVMessage(RESP, SUCCESS);
-						break;
-					case DEL_REQ:
-						tpcMaster.handleTPCRequest(msg, false);
-						response = new KVMessage(RESP, SUCCESS);					
-					default:
-						break;
-					}
-				} catch (KVException kve) {
-					response = kve.getKVMessage();
-				}
-    			
-				try {	    					
-	    				response.sendMessage(client);
-				} catch (KVException e) {
+			KVMessage response;
+			try {
+				response = process(exchange.request());
+			} catch (KVException kve) {
+				response = kve.getKVMessage();
+			}
+			exchange.respond(response);
+		}
 
-				}
+		@Override
+		public void shed() {
+			exchange.respond(new KVMessage(RESP, ERROR_SERVER_BUSY));
 		}
-    	
     }
 
+	private KVMessage process(KVMessage msg) {
+    			KVMessage response = null;
+    			
+    			try {
+				switch (msg.getMsgType()) {
+				case GET_REQ:
+					String value = tpcMaster.handleGet(msg);
+					response = new KVMessage(RESP);
+					response.setKey(msg.getKey());
+					response.setValue(value);
+					break;
+				case PUT_REQ:
+					tpcMaster.handleTPCRequest(msg, true);
+					response = new KVMessage(RESP, SUCCESS);
+					break;
+				case DEL_REQ:
+					tpcMaster.handleTPCRequest(msg, false);
+					response = new KVMessage(RESP, SUCCESS);
+					break;
+				case SCAN_REQ:
+					response = tpcMaster.handleScan(msg);
+					break;
+				default:
+					response = new KVMessage(RESP, ERROR_INVALID_FORMAT);
+					break;
+				}
+			} catch (KVException kve) {
+				response = kve.getKVMessage();
+			}
+    			return response;
+	}
+
 }
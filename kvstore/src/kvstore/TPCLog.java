@@ -30,14 +30,36 @@ public class TPCLog {
     /**
      * Add an entry to the log and flush the entire log to disk.
      * You do not have to efficiently append entries onto the log stored on disk.
+     * A PUT with a time to live is logged with the time its pair expires,
+     * counted from now, so that it does not live longer for being replayed.
      *
      * @param entry KVMessage to write to the log
      */
     public void appendAndFlush(KVMessage entry) {
+        if (PUT_REQ.equals(entry.getMsgType()) && entry.getTtl() > 0 && entry.getExpiresAt() == 0) {
+            entry = new KVMessage(entry);
+            entry.setExpiresAt(System.currentTimeMillis() + entry.getTtl());
+        }
         entries.add(entry);
         flushToDisk();
     }
 
+    /**
+     * Gets when the pair of a logged PUT expires. A log written before
+     * deadlines were logged only has the time to live, which is then
+     * counted from now.
+     *
+     * @param put PUT request from the log
+     * @return System.currentTimeMillis() at which the pair expires, or 0 if
+     *         it never does
+     */
+    static long expiresAt(KVMessage put) {
+        if (put.getExpiresAt() != 0 || put.getTtl() <= 0) {
+            return put.getExpiresAt();
+        }
+        return System.currentTimeMillis() + put.getTtl();
+    }
+
     /**
      * Get last entry in the log.
      *
@@ -104,27 +126,33 @@ public class TPCLog {
      * Load log and rebuild KVServer by iterating over log entries. You do not
      * need to restore the previous cache state (i.e. ignore GETS).
      *
+     * Committed requests are replayed oldest first, as they were carried
+     * out. A PUT keeps the deadline it was logged with, and one whose pair
+     * has expired since is replayed as the del its expiry would have been,
+     * so an older value of the key does not come back in its place. Pairs
+     * already in a store that persists them are put or deleted again.
+     *
      * @throws KVException if an error occurs in KVServer (though we expect none)
      */
     public void rebuildServer() throws KVException {
         loadFromDisk();
         // implement me
-        KVMessage msg = null;
-        for(int i = entries.size() - 1; i >= 0;){
-        		msg = entries.get(i);
-        		if(msg.getMsgType().equals(COMMIT)){
-        			msg = entries.get(i - 1);
-				if(msg.getMsgType().equals(PUT_REQ)){
-					kvServer.put(msg.getKey(), msg.getValue());
-				}else if(msg.getMsgType().equals(DEL_REQ)){
+        long now = System.currentTimeMillis();
+        for(int i = 1; i < entries.size(); i++){
+        		if(!entries.get(i).getMsgType().equals(COMMIT)){
+        			continue;
+        		}
+        		KVMessage msg = entries.get(i - 1);
+			if(msg.getMsgType().equals(PUT_REQ)){
+				long expiresAt = expiresAt(msg);
+				if(expiresAt == 0 || expiresAt > now){
+					kvServer.putUntil(msg.getKey(), msg.getValue(), expiresAt);
+				}else if(kvServer.hasKey(msg.getKey())){
 					kvServer.del(msg.getKey());
 				}
-				i -= 2;
-        		}else if(msg.getMsgType().equals(GET_REQ)){
-        			i -= 1;
-        		}else if(msg.getMsgType().equals(ABORT)){
-        			i -= 2;
-        		}
+			}else if(msg.getMsgType().equals(DEL_REQ) && kvServer.hasKey(msg.getKey())){
+				kvServer.del(msg.getKey());
+			}
         }
     }
 
@@ -4,6 +4,7 @@ import static kvstore.KVConstants.*;
 
 import java.net.Socket;
 import java.util.*;
+import java.util.Map.Entry;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -16,6 +17,11 @@ public class TPCMaster {
     private Lock mLock;
     private Condition sync;
     private int MINVALUE = -1;
+    private boolean persistentConnections = false;
+    private byte codec = KVConnection.CODEC_XML;
+    /* Keys both replicas recently answered they do not have, always read and
+     * changed under the master cache's lock of the key */
+    private KVCache missingKeys;
     
     public static final int TIMEOUT = 3000;
 
@@ -32,6 +38,44 @@ public class TPCMaster {
         slaveMap = new HashMap<Long, TPCSlaveInfo>();
         mLock = new ReentrantLock();
         sync = mLock.newCondition(); 
+        missingKeys = new KVCache(cache.getNumSets(), cache.getMaxElemsPerSet());
+    }
+
+    /**
+     * Chooses how this master talks to its slaves. With persistent connections
+     * the master keeps framed connections to every slave open and reuses them
+     * across requests; otherwise each message to a slave gets its own one-shot
+     * connection.
+     *
+     * @param persistent true to reuse framed connections to slaves
+     */
+    public void setPersistentConnections(boolean persistent) {
+        this.persistentConnections = persistent;
+    }
+
+    /**
+     * Chooses the codec asked for on persistent connections to slaves,
+     * KVConnection.CODEC_XML (the default) or KVConnection.CODEC_BINARY.
+     *
+     * @param codec codec for frame payloads
+     */
+    public void setCodec(byte codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * Chooses how many keys per set the master remembers as missing, so
+     * that repeated GETs of a key neither replica has fail at once instead
+     * of asking both slaves again. A key is only remembered once both
+     * replicas have answered that they do not have it, and is forgotten
+     * when a put of it commits; the least recently missed keys are dropped
+     * first. By default as many keys are remembered as the master cache
+     * holds; 0 turns this off. Call before serving any requests.
+     *
+     * @param maxElemsPerSet most missing keys per set of the master cache
+     */
+    public void setMissingKeysPerSet(int maxElemsPerSet) {
+        this.missingKeys = new KVCache(masterCache.getNumSets(), maxElemsPerSet);
     }
 
     /**
@@ -44,8 +88,11 @@ public class TPCMaster {
     public void registerSlave(TPCSlaveInfo slave) {
         // implement me
     		mLock.lock();
-    		if(getNumRegisteredSlaves() < numSlaves)
-    			slaveMap.put(slave.getSlaveID(), slave);
+    		if(getNumRegisteredSlaves() < numSlaves){
+    			TPCSlaveInfo old = slaveMap.put(slave.getSlaveID(), slave);
+    			if(old != null && old != slave)
+    				old.closeConnections();
+    		}
 		//work as a barrier for sync
 		if(getNumRegisteredSlaves() == numSlaves)
 			sync.signalAll();
@@ -191,7 +238,6 @@ public class TPCMaster {
     		Barrier();
     		
     		String key = msg.getKey();
-    		Socket sock = null;
     		KVMessage[] response = new KVMessage[2];
     		TPCSlaveInfo[] slave = new TPCSlaveInfo[2];
 
@@ -200,12 +246,8 @@ public class TPCMaster {
     		slave[1] = findSuccessor(slave[0]);
     		for(int i = 0; i < 2; i++){
 			try {
-				//connect two slaves
-				sock = slave[i].connectHost(TIMEOUT);
-				//send client requests to two slaves
-				msg.sendMessage(sock);
-				//get responses from slaves
-				response[i] = new KVMessage(sock, TIMEOUT);
+				//send client requests to two slaves and get their responses
+				response[i] = exchangeWithSlave(msg, slave[i]);
 			} catch(KVException kve){
 				//assume the slave voted abort beyond a single timeout period
 				if(kve.getKVMessage().getMessage().equals(ERROR_SOCKET_TIMEOUT)){
@@ -213,9 +255,6 @@ public class TPCMaster {
 				}else{
 					response[i] = kve.getKVMessage();
 				}
-			}finally{
-				if(sock != null)
-					slave[i].closeHost(sock);
 			}
     		}
     		
@@ -238,17 +277,10 @@ public class TPCMaster {
         				}else if(i == 1){
         					slave[1] = findSuccessor(slave[0]);
         				}
-        				//connect two slaves
-        				sock = slave[i].connectHost(TIMEOUT);
-        				//send decision to two slaves
-            			decision.sendMessage(sock);
-            			//get response from two slaves
-        				response[i] = new KVMessage(sock, TIMEOUT);
+        				//send decision to two slaves and get their responses
+        				response[i] = exchangeWithSlave(decision, slave[i]);
         			} catch(KVException kve){
         				continue;
-        			}finally{
-        				if(sock != null)
-        					slave[i].closeHost(sock);
         			}
 
         			if(!response[i].getMsgType().equals(ACK)){
@@ -264,10 +296,11 @@ public class TPCMaster {
 			Lock lock = masterCache.getLock(key);
 			lock.lock();
 			if(isPutReq){
-				masterCache.put(key, msg.getValue());
+				cache(key, msg.getValue(), msg.getTtl());
 			}else{
 				masterCache.del(key);
 			}
+			setMissing(key, !isPutReq);
 			lock.unlock();
 		}
 	}
@@ -275,6 +308,7 @@ public class TPCMaster {
     /**
      * Perform GET operation in the following manner:
      * - Try to GET from cache, return immediately if found
+     * - Fail immediately if both replicas recently said the key is missing
      * - Try to GET from first/primary replica
      * - If primary succeeded, return value
      * - If primary failed, try to GET from the other replica
@@ -291,8 +325,11 @@ public class TPCMaster {
     		Barrier();
     		
     		String key = msg.getKey();
+    		// most hits need no lock; see KVCache.getOptimistic()
+    		String value = masterCache.getOptimistic(key);
+    		if (value != null)
+    			return value;
     	    Lock lock = masterCache.getLock(key);
-    		String value = null;
     		TPCSlaveInfo slaveInfo = null;
     		
     		//try to get from cache in the master server.
@@ -301,20 +338,26 @@ public class TPCMaster {
 			  
 			  value = masterCache.get(key);
 			  
-			  if(value == null){
+			  if(value == null && !isMissing(key)){
 	    			//try to get from the primary slave server.
 	    			slaveInfo = findFirstReplica(key);
-	    			value = getFromSlave(msg, slaveInfo);
+	    			KVMessage primary = getFromSlave(msg, slaveInfo);
+	    			value = (primary != null) ? primary.getValue() : null;
+	    			if(value != null)
+	    				cache(key, value, primary.getTtl());
+
+	  			 if(value == null){
+	  	  			//if it fails, try to get from the secondary slave server.
+	  				slaveInfo = findSuccessor(slaveInfo);
+	  				KVMessage secondary = getFromSlave(msg, slaveInfo);
+	  				value = (secondary != null) ? secondary.getValue() : null;
+	  				if(value != null)
+	  					cache(key, value, secondary.getTtl());
+	  				//a timeout proves nothing, so only remember answers
+	  				if(isNoSuchKey(primary) && isNoSuchKey(secondary))
+	  					setMissing(key, true);
+	  			 }
 			  }
-			  
-  			 if(value == null){
-  	  			//if it fails, try to get from the secondary slave server.
-  				slaveInfo = findSuccessor(slaveInfo);
-  				value = getFromSlave(msg, slaveInfo);
-  			 }
-  			 
-  			 if(value != null)
-  				 masterCache.put(key, value);
   			
 			} catch (Exception e) {
 			} finally{
@@ -328,28 +371,208 @@ public class TPCMaster {
         return value;
     }
     
-    private String getFromSlave(KVMessage msg, TPCSlaveInfo slaveInfo){
-    		Socket sock = null;
+    /**
+     * Perform SCAN operation. Keys are placed on slaves by hash, so every
+     * slave is asked for the first limit pairs of the range, and their
+     * pages are merged. A slave with a full page may hold more pairs past
+     * its last key, so the merged page stops at the smallest such last key,
+     * and has a token to go on from there. Since every key has two
+     * replicas, the scan still sees every key if one slave fails to answer.
+     *
+     * @param msg KVMessage holding the SCAN request
+     * @return KVMessage holding the page of pairs, or the error of the scan
+     * @throws KVException with ERROR_INVALID_LIMIT if the limit is not
+     *         positive, or the error of a second slave failing to answer
+     */
+    public KVMessage handleScan(KVMessage msg) throws KVException {
+    		Barrier();
+
+    		if (msg.getLimit() <= 0)
+    			throw new KVException(ERROR_INVALID_LIMIT);
+    		int limit = Math.min(msg.getLimit(), KVServer.MAX_SCAN_LIMIT);
+    		KVMessage request = new KVMessage(SCAN_REQ);
+    		// the slaves go on from the token themselves, as a start key past it cannot be sent
+    		request.setKey(msg.getKey());
+    		request.setToken(msg.getToken());
+    		request.setEnd(msg.getEnd());
+    		request.setLimit(limit);
+
+    		List<TPCSlaveInfo> slaves;
+    		mLock.lock();
+    		try {
+    			slaves = new ArrayList<TPCSlaveInfo>(slaveMap.values());
+    		} finally {
+    			mLock.unlock();
+    		}
+    		List<List<Entry<String, String>>> pages = new ArrayList<List<Entry<String, String>>>();
+    		String cutoff = null;
+    		KVException failure = null;
+    		for (TPCSlaveInfo slave : slaves) {
+    			KVMessage response;
+    			try {
+    				response = exchangeWithSlave(request, slave);
+    			} catch (KVException kve) {
+    				response = kve.getKVMessage();
+    			}
+    			if (!SUCCESS.equals(response.getMessage())) {
+    				if (failure != null || ERROR_INVALID_LIMIT.equals(response.getMessage()))
+    					throw new KVException(response);
+    				failure = new KVException(response);
+    				continue;
+    			}
+    			List<Entry<String, String>> page = response.getPairs();
+    			pages.add(page);
+    			if (page.size() == limit) {
+    				String last = page.get(limit - 1).getKey();
+    				if (cutoff == null || last.compareTo(cutoff) < 0)
+    					cutoff = last;
+    			}
+    		}
+
+    		List<Entry<String, String>> pairs = mergePages(pages, cutoff, limit);
+    		KVMessage response = new KVMessage(RESP, SUCCESS);
+    		response.setPairs(pairs);
+    		if (!pairs.isEmpty() && (pairs.size() == limit || cutoff != null))
+    			response.setToken(pairs.get(pairs.size() - 1).getKey());
+    		return response;
+    }
+
+    /* Merges sorted pages into one, each key once, up to a cutoff key. */
+    private static List<Entry<String, String>> mergePages(List<List<Entry<String, String>>> pages,
+    		String cutoff, int limit) {
+    		int[] next = new int[pages.size()];
+    		List<Entry<String, String>> pairs = new ArrayList<Entry<String, String>>();
+    		while (pairs.size() < limit) {
+    			Entry<String, String> smallest = null;
+    			for (int i = 0; i < next.length; i++) {
+    				List<Entry<String, String>> page = pages.get(i);
+    				if (next[i] < page.size()) {
+    					Entry<String, String> pair = page.get(next[i]);
+    					if (smallest == null || pair.getKey().compareTo(smallest.getKey()) < 0)
+    						smallest = pair;
+    				}
+    			}
+    			if (smallest == null || (cutoff != null && smallest.getKey().compareTo(cutoff) > 0))
+    				break;
+    			pairs.add(smallest);
+    			// both replicas of the key move past it
+    			for (int i = 0; i < next.length; i++) {
+    				List<Entry<String, String>> page = pages.get(i);
+    				if (next[i] < page.size() && page.get(next[i]).getKey().equals(smallest.getKey()))
+    					next[i]++;
+    			}
+    		}
+    		return pairs;
+    }
+
+    private KVMessage getFromSlave(KVMessage msg, TPCSlaveInfo slaveInfo){
     		KVMessage response = null;
-    		String value = null;
     		
     		try {
-    				//transfer get requst from clients to slave server
-				sock = slaveInfo.connectHost(TIMEOUT);
-				msg.sendMessage(sock);
-				
-				//get responese from slaves
-				response = new KVMessage(sock, TIMEOUT);
-				value = response.getValue();
+    				//transfer get requst from clients to slave server and get its response
+				response = exchangeWithSlave(msg, slaveInfo);
 				
 			} catch (KVException e) {
 				e.printStackTrace();
-			} finally{
-				if(sock != null)
-					slaveInfo.closeHost(sock);
 			}
     		
-    		return value;
+    		return response;
+    }
+
+    /* Caches a value for no longer than the slaves keep it. */
+    private void cache(String key, String value, long ttl) {
+    		if (ttl > 0)
+    			masterCache.put(key, value, System.currentTimeMillis() + ttl);
+    		else
+    			masterCache.put(key, value);
+    }
+
+    private static boolean isNoSuchKey(KVMessage response) {
+    		return response != null && ERROR_NO_SUCH_KEY.equals(response.getMessage());
+    }
+
+    /* Called under the master cache's lock of the key, which orders a miss
+     * against the commit of a put of the key. */
+    private boolean isMissing(String key) {
+    		Lock lock = missingKeys.getLock(key);
+    		lock.lock();
+    		try {
+    			return missingKeys.get(key) != null;
+    		} finally {
+    			lock.unlock();
+    		}
+    }
+
+    private void setMissing(String key, boolean missing) {
+    		Lock lock = missingKeys.getLock(key);
+    		lock.lock();
+    		try {
+    			if (missing)
+    				missingKeys.put(key, "");
+    			else
+    				missingKeys.del(key);
+    		} finally {
+    			lock.unlock();
+    		}
+    }
+
+    /**
+     * Send a message to a slave and wait up to TIMEOUT for its response, over
+     * a pooled framed connection if persistent connections are enabled or a
+     * new one-shot connection otherwise. A pooled connection which turns out
+     * to be broken, for example because the slave restarted, is discarded and
+     * the message is sent once more over a new connection, but only if the
+     * slave cannot have acted on it already: the send itself failed, or the
+     * message is a GET. A vote request or decision that may have got through
+     * is not sent twice.
+     *
+     * @param msg KVMessage to send
+     * @param slaveInfo the slave to send it to
+     * @return KVMessage holding the response of the slave
+     * @throws KVException if the message could not be sent or no response
+     *         was received in time
+     */
+    private KVMessage exchangeWithSlave(KVMessage msg, TPCSlaveInfo slaveInfo)
+    		throws KVException {
+    		if (persistentConnections) {
+    			KVConnection conn = slaveInfo.pollConnection();
+    			if (conn != null) {
+    				boolean sent = false;
+    				try {
+    					conn.send(msg);
+    					sent = true;
+    					KVMessage response = conn.receive(TIMEOUT);
+    					if (response == null)
+    						throw new KVException(ERROR_COULD_NOT_RECEIVE_DATA);
+    					slaveInfo.releaseConnection(conn);
+    					return response;
+    				} catch (KVException kve) {
+    					conn.close();
+    					if (sent && (!GET_REQ.equals(msg.getMsgType())
+    							|| kve.getKVMessage().getMessage().equals(ERROR_SOCKET_TIMEOUT)))
+    						throw kve;
+    				}
+    			}
+    			conn = slaveInfo.openConnection(codec, TIMEOUT);
+    			try {
+    				KVMessage response = conn.exchange(msg, TIMEOUT);
+    				slaveInfo.releaseConnection(conn);
+    				return response;
+    			} catch (KVException kve) {
+    				conn.close();
+    				throw kve;
+    			}
+    		}
+
+    		Socket sock = null;
+    		try {
+    			sock = slaveInfo.connectHost(TIMEOUT);
+    			msg.sendMessage(sock);
+    			return new KVMessage(sock, TIMEOUT);
+    		} finally {
+    			if (sock != null)
+    				slaveInfo.closeHost(sock);
+    		}
     }
 
 }
@@ -9,8 +9,13 @@ import java.net.UnknownHostException;
 /**
  * Implements NetworkHandler to handle 2PC operation requests from the Master/
  * Coordinator Server
+ *
+ * The master keeps framed connections open in a pool, idle most of the
+ * time. Between frames they are parked with the IdleWatcher rather than
+ * holding a worker (see ConnectionJob), so that a small pool still serves
+ * every connection the master opens.
  */
-public class TPCMasterHandler implements NetworkHandler {
+public class TPCMasterHandler implements MessageHandler {
 
     public long slaveID;
     public KVServer kvServer;
@@ -48,6 +53,23 @@ public class TPCMasterHandler implements NetworkHandler {
         this.threadpool = new ThreadPool(connections);
     }
 
+    /**
+     * Constructs a TPCMasterHandler which runs its jobs on the given
+     * ThreadPool, such as a VirtualThreadPool to serve every connection on
+     * a thread of its own.
+     *
+     * @param slaveID the ID for this slave server
+     * @param kvServer KVServer for this slave
+     * @param log the log for this slave
+     * @param threadpool ThreadPool to service requests
+     */
+    public TPCMasterHandler(long slaveID, KVServer kvServer, TPCLog log, ThreadPool threadpool) {
+        this.slaveID = slaveID;
+        this.kvServer = kvServer;
+        this.tpcLog = log;
+        this.threadpool = threadpool;
+    }
+
     /**
      * Registers this slave server with the master.
      *
@@ -101,116 +123,156 @@ public class TPCMasterHandler implements NetworkHandler {
         // implement me
     		threadpool.addJob(new MasterHandler(master));
     }
+
+    /**
+     * Creates a job to service a request already read by the server and
+     * enqueues that job in the thread pool.
+     *
+     * @param exchange the request from the master and the means to answer it
+     */
+    @Override
+    public void handle(Exchange exchange) {
+    		threadpool.addJob(new ExchangeHandler(exchange));
+    }
     
-    private class MasterHandler implements Runnable{
+    private class MasterHandler extends ConnectionJob {
 
-    		private Socket master;
-    		
     		public MasterHandler(Socket master){
-    			this.master = master;
+    			super(master, threadpool);
     		}
-    		
+
+		@Override
+		protected KVMessage respond(KVMessage request) {
+			KVMessage response = process(request);
+			log(request);
+			return response;
+		}
+    }
+
+    private class ExchangeHandler implements Runnable {
+
+    		private Exchange exchange;
+
+    		public ExchangeHandler(Exchange exchange) {
+    			this.exchange = exchange;
+    		}
+
 		@Override
 		public void run() {
+			KVMessage response;
+			try {
+				KVMessage msg = exchange.request();
+				response = process(msg);
+				log(msg);
+			} catch (KVException kve) {
+				response = kve.getKVMessage();
+			}
+			exchange.respond(response);
+		}
+    }
+
+	/* A scan is left out of the log, where a COMMIT looks for its vote */
+	private void log(KVMessage msg) {
+		if (!SCAN_REQ.equals(msg.getMsgType()))
+			tpcLog.appendAndFlush(msg);
+	}
+
+	private KVMessage process(KVMessage msg) {
     			KVMessage response = null;			
-    			KVMessage msg = null;
     			
     			try {
-    					msg = new KVMessage(master);
-    					
-					switch (msg.getMsgType()) {
-					case GET_REQ:
-						response = handleGet(msg);
-						break;
-					case PUT_REQ:
-						response = handlePut(msg);
-						break;
-					case DEL_REQ:
-						response = handleDel(msg);
-						break;
-					case COMMIT:
-						response = new KVMessage(ACK);
-						KVMessage last = tpcLog.getLastEntry();
-						if(last.getMsgType().equals(PUT_REQ)){
-							kvServer.put(last.getKey(), last.getValue());
-						}else if(last.getMsgType().equals(DEL_REQ)){
-							kvServer.del(last.getKey());
-						}
-						break;
-					case ABORT:
-						response = new KVMessage(ACK);
-						break;
-					default:
-						break;
-					}					
-					
-				} catch (KVException kve) {
-					response = kve.getKVMessage();
-				}
-    			    	
-    			tpcLog.appendAndFlush(msg);
-
-    			try {
-					response.sendMessage(master);
-				} catch (KVException e) {
-				}
-		}
+				switch (msg.getMsgType()) {
+				case GET_REQ:
+					response = handleGet(msg);
+					break;
+				case PUT_REQ:
+					response = handlePut(msg);
+					break;
+				case DEL_REQ:
+					response = handleDel(msg);
+					break;
+				case SCAN_REQ:
+					response = ServerClientHandler.scan(kvServer, msg);
+					break;
+				case COMMIT:
+					response = new KVMessage(ACK);
+					KVMessage last = tpcLog.getLastEntry();
+					if(last.getMsgType().equals(PUT_REQ)){
+						kvServer.putUntil(last.getKey(), last.getValue(), TPCLog.expiresAt(last));
+					}else if(last.getMsgType().equals(DEL_REQ)){
+						kvServer.del(last.getKey());
+					}
+					break;
+				case ABORT:
+					response = new KVMessage(ACK);
+					break;
+				default:
+					response = new KVMessage(RESP, ERROR_INVALID_FORMAT);
+					break;
+				}					
+				
+			} catch (KVException kve) {
+				response = kve.getKVMessage();
+			}
+    			return response;
+	}
+	
+	private KVMessage handleGet(KVMessage msg) throws KVException{
+   		String key = msg.getKey();
+		KVMessage response = null;
 		
-		private KVMessage handleGet(KVMessage msg){
-	   		String key = msg.getKey();
-			String value = msg.getValue();
-			KVMessage response = null;
-			
-			if(key == null){
-				response = new KVMessage(RESP, ERROR_INVALID_KEY);
-			}else if(key.length() > MAX_KEY_SIZE){
-				response = new KVMessage(RESP, ERROR_OVERSIZED_KEY);
-			}else if(!kvServer.hasKey(key)){
-				response = new KVMessage(RESP, ERROR_NO_SUCH_KEY);
-			}else{
+		if(key == null){
+			response = new KVMessage(RESP, ERROR_INVALID_KEY);
+		}else if(key.length() > MAX_KEY_SIZE){
+			response = new KVMessage(RESP, ERROR_OVERSIZED_KEY);
+		}else if(!kvServer.hasKey(key)){
+			response = new KVMessage(RESP, ERROR_NO_SUCH_KEY);
+		}else{
                 response = new KVMessage(RESP);
-                response.setValue(key);
-                response.setKey(value);
-			}
-			
-			return response;
+                response.setKey(key);
+                response.setValue(kvServer.get(key));
+                response.setTtl(kvServer.getTtl(key));
 		}
+		
+		return response;
+	}
     	
-		private KVMessage handlePut(KVMessage msg){
-	   		String key = msg.getKey();
-			String value = msg.getValue();
-			KVMessage response = null;
-			
-			if(key == null){
-				response = new KVMessage(ABORT, ERROR_INVALID_KEY);
-			}else if(key.length() > MAX_KEY_SIZE){
-				response = new KVMessage(ABORT, ERROR_OVERSIZED_KEY);
-			}else if (value == null) {
-				response = new KVMessage(ABORT , ERROR_INVALID_VALUE);
-			}else if (value.length() > MAX_VAL_SIZE) {
-				response = new KVMessage(ABORT, ERROR_OVERSIZED_VALUE);
-			}else{
-				response = new KVMessage(READY);
-			}
-			
-			return response;
+	private KVMessage handlePut(KVMessage msg){
+   		String key = msg.getKey();
+		String value = msg.getValue();
+		KVMessage response = null;
+		
+		if(key == null){
+			response = new KVMessage(ABORT, ERROR_INVALID_KEY);
+		}else if(key.length() > MAX_KEY_SIZE){
+			response = new KVMessage(ABORT, ERROR_OVERSIZED_KEY);
+		}else if (value == null) {
+			response = new KVMessage(ABORT , ERROR_INVALID_VALUE);
+		}else if (value.length() > MAX_VAL_SIZE) {
+			response = new KVMessage(ABORT, ERROR_OVERSIZED_VALUE);
+		}else if (msg.getTtl() < 0) {
+			response = new KVMessage(ABORT, ERROR_INVALID_TTL);
+		}else{
+			response = new KVMessage(READY);
 		}
 		
-		private KVMessage handleDel(KVMessage msg){
-	   		String key = msg.getKey();
-			KVMessage response = null;
-			
-			if(key == null){
-				response = new KVMessage(ABORT, ERROR_INVALID_KEY);
-			}else if(key.length() > MAX_KEY_SIZE){
-				response = new KVMessage(ABORT, ERROR_OVERSIZED_KEY);
-			}else if(!kvServer.hasKey(key)){
-				response = new KVMessage(ABORT, ERROR_NO_SUCH_KEY);
-			}else{
-				response = new KVMessage(READY);
-			}
-			
-			return response;
+		return response;
+	}
+	
+	private KVMessage handleDel(KVMessage msg){
+   		String key = msg.getKey();
+		KVMessage response = null;
+		
+		if(key == null){
+			response = new KVMessage(ABORT, ERROR_INVALID_KEY);
+		}else if(key.length() > MAX_KEY_SIZE){
+			response = new KVMessage(ABORT, ERROR_OVERSIZED_KEY);
+		}else if(!kvServer.hasKey(key)){
+			response = new KVMessage(ABORT, ERROR_NO_SUCH_KEY);
+		}else{
+			response = new KVMessage(READY);
 		}
-    }
+		
+		return response;
+	}
 }
@@ -35,6 +35,19 @@ public class TPCRegistrationHandler implements NetworkHandler {
         this.master = master;
     }
 
+    /**
+     * Constructs a TPCRegistrationHandler which runs its jobs on the given
+     * ThreadPool, such as a VirtualThreadPool to serve every connection on
+     * a thread of its own.
+     *
+     * @param master TPCMaster to carry out requests
+     * @param threadpool ThreadPool to service requests
+     */
+    public TPCRegistrationHandler(TPCMaster master, ThreadPool threadpool) {
+        this.threadpool = threadpool;
+        this.master = master;
+    }
+
     /**
      * Creates a job to service the request on a socket and enqueues that job
      * in the thread pool. Ignore any InterruptedExceptions.
@@ -4,6 +4,8 @@ import static kvstore.KVConstants.*;
 
 import java.io.IOException;
 import java.net.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.*;
 
 /**
@@ -15,6 +17,14 @@ public class TPCSlaveInfo {
     public String hostname;
     public int port;
 
+    /* Most idle connections kept; those beyond are closed as released */
+    public static final int MAX_IDLE_CONNECTIONS = 4;
+
+    /* idle framed connections to this slave, kept for reuse */
+    private ConcurrentLinkedQueue<KVConnection> idleConnections =
+        new ConcurrentLinkedQueue<KVConnection>();
+    private AtomicInteger idleCount = new AtomicInteger();
+
     /**
      * Construct a TPCSlaveInfo to represent a slave server.
      *
@@ -84,4 +94,66 @@ public class TPCSlaveInfo {
 			} catch (IOException e) {
 			}
     }
+
+    /**
+     * Open a new framed connection to this slave.
+     *
+     * @param  codec codec to ask the slave for, see KVConnection
+     * @param  timeout maximum time to wait for the slave, in milliseconds
+     * @return KVConnection to the slave which has completed its handshake
+     * @throws KVException ERROR_SOCKET_TIMEOUT, ERROR_COULD_NOT_CREATE_SOCKET,
+     *         ERROR_COULD_NOT_CONNECT or ERROR_INVALID_FORMAT
+     */
+    public KVConnection openConnection(byte codec, int timeout) throws KVException {
+        Socket sock = connectHost(timeout);
+        KVConnection conn = new KVConnection(sock);
+        try {
+            conn.connect(codec, timeout);
+        } catch (KVException kve) {
+            closeHost(sock);
+            throw kve;
+        }
+        return conn;
+    }
+
+    /**
+     * Take an idle framed connection to this slave, if there is one.
+     *
+     * @return KVConnection released earlier, or null if none is idle
+     */
+    public KVConnection pollConnection() {
+        KVConnection conn = idleConnections.poll();
+        if (conn != null) {
+            idleCount.decrementAndGet();
+        }
+        return conn;
+    }
+
+    /**
+     * Give back a framed connection whose last exchange completed, so it can
+     * be reused by a later request. Once MAX_IDLE_CONNECTIONS are idle, it
+     * is closed instead, so the pool shrinks back after a burst of requests
+     * rather than keeping open every connection the burst needed.
+     *
+     * @param conn KVConnection to this slave
+     */
+    public void releaseConnection(KVConnection conn) {
+        if (idleCount.incrementAndGet() > MAX_IDLE_CONNECTIONS) {
+            idleCount.decrementAndGet();
+            conn.close();
+            return;
+        }
+        idleConnections.offer(conn);
+    }
+
+    /**
+     * Close all idle connections to this slave.
+     * Best effort, ignores errors.
+     */
+    public void closeConnections() {
+        KVConnection conn;
+        while ((conn = pollConnection()) != null) {
+            conn.close();
+        }
+    }
 }
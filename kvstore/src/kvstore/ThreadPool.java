@@ -1,13 +1,41 @@
 package kvstore;
 
-import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 
 public class ThreadPool {
 
     /* Array of threads in the threadpool */
     public Thread threads[];
-    private LinkedList<Runnable> jobQueue;
+    private ConcurrentLinkedQueue<Runnable> jobQueue;
+    /* Workers parked in getJob(), most recently parked first */
+    private ConcurrentLinkedDeque<Waiter> idle;
+    /* Workers woken by addJob() that have not yet found a job */
+    private AtomicInteger searching;
+    private volatile boolean shutdown = false;
+
+    /* Admission control; see ThreadPool(int, int, long). Zero disables. */
+    private int maxQueued;
+    private long targetDelay;
+    /* Jobs waiting in the queue, only counted if maxQueued is set */
+    private AtomicInteger queued;
+    /* When queueing delay last rose above targetDelay, or NOT_ABOVE */
+    private volatile long aboveSince = NOT_ABOVE;
+
+    private static final long NOT_ABOVE = Long.MIN_VALUE;
+    /* How long delay must stay above target before jobs are shed (CoDel's interval) */
+    private static final long INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /* Queued once per worker by shutdown(), behind any jobs still waiting. */
+    private static final Runnable STOP = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
 
     /**
      * Constructs a Threadpool with a certain number of threads.
@@ -15,8 +43,36 @@ public class ThreadPool {
      * @param size number of threads in the thread pool
      */
     public ThreadPool(int size) {
+        this(size, 0, 0);
+    }
+
+    /**
+     * Constructs a Threadpool with a certain number of threads that sheds
+     * load once it falls behind. Jobs that implement Sheddable are turned
+     * away, rather than run, when
+     *
+     * - maxQueued jobs are already waiting when the job is added, or
+     * - the job has waited longer than targetDelay, and jobs leaving the
+     *   queue have done so for at least the last 100 milliseconds.
+     *
+     * The second rule follows CoDel: a queue that briefly holds a burst is
+     * fine, but one that never drains below the target only adds latency,
+     * so the jobs that have waited longest are shed until it does. Other jobs
+     * are always queued and run.
+     *
+     * @param size number of threads in the thread pool
+     * @param maxQueued most jobs waiting at once, or 0 for no bound
+     * @param targetDelay acceptable time in the queue, in milliseconds, or
+     *        0 to never shed jobs once queued
+     */
+    public ThreadPool(int size, int maxQueued, long targetDelay) {
+        this.maxQueued = maxQueued;
+        this.targetDelay = TimeUnit.MILLISECONDS.toNanos(targetDelay);
+        queued = new AtomicInteger();
         threads = new Thread[size];
-        jobQueue = new LinkedList<Runnable>();
+        jobQueue = new ConcurrentLinkedQueue<Runnable>();
+        idle = new ConcurrentLinkedDeque<Waiter>();
+        searching = new AtomicInteger();
         // implement me
         for(int i = 0; i < size; i++){
         		threads[i] = new WorkerThread(this);
@@ -29,13 +85,42 @@ public class ThreadPool {
      * thread is available, the thread will retrieve a job from this queue if
      * if one exists and start processing it.
      *
+     * Neither adding nor retrieving a job takes a lock. A parked worker is
+     * only woken if no other woken worker is already looking for a job, so
+     * a burst of jobs does not wake every idle thread at once; each worker
+     * that finds a job wakes the next if more are waiting.
+     *
      * @param r job that has to be executed
-     * 
+     * @throws IllegalStateException if the pool has been shut down
      */
-    public synchronized void addJob(Runnable r){
+    public void addJob(Runnable r){
         // implement me
-    		jobQueue.addLast(r);
-    		this.notify();
+    		if (shutdown)
+    			throw new IllegalStateException("ThreadPool has been shut down");
+    		if (maxQueued > 0 && queued.get() >= maxQueued && r instanceof Sheddable) {
+    			shed((Sheddable) r);
+    			return;
+    		}
+    		enqueue(targetDelay > 0 ? new Timed(r) : r);
+    }
+
+    private void enqueue(Runnable r) {
+        if (maxQueued > 0) {
+            queued.incrementAndGet();
+        }
+        jobQueue.add(r);
+        if (searching.get() == 0) {
+            wakeOne();
+        }
+    }
+
+    private void wakeOne() {
+        Waiter waiter = idle.pollFirst();
+        if (waiter != null) {
+            searching.incrementAndGet();
+            waiter.signalled = true;
+            LockSupport.unpark(waiter.thread);
+        }
     }
 
     /**
@@ -44,12 +129,170 @@ public class ThreadPool {
      * @throws InterruptedException if thread is interrupted while in blocked
      * state. Your implementation may or may not actually throw this.
      */
-    public synchronized Runnable getJob() throws InterruptedException {
+    public Runnable getJob() throws InterruptedException {
         // implement me
-    		while(0 == jobQueue.size())
-    			this.wait();
-	
-        return jobQueue.removeFirst();
+        while (true) {
+            Runnable job = take();
+            if (maxQueued > 0) {
+                queued.decrementAndGet();
+            }
+            if (!(job instanceof Timed)) {
+                return job;
+            }
+            Timed timed = (Timed) job;
+            if (!overloaded(timed.enqueued) || !(timed.job instanceof Sheddable)) {
+                return timed.job;
+            }
+            shed((Sheddable) timed.job);
+        }
+    }
+
+    /**
+     * Decides whether a job that was queued at the given time should be shed,
+     * by CoDel's rule.
+     */
+    private boolean overloaded(long enqueued) {
+        long now = System.nanoTime();
+        if (now - enqueued < targetDelay) {
+            aboveSince = NOT_ABOVE;
+            return false;
+        }
+        long since = aboveSince;
+        if (since == NOT_ABOVE) {
+            aboveSince = now;
+            return false;
+        }
+        return now - since >= INTERVAL;
+    }
+
+    private void shed(Sheddable job) {
+        try {
+            job.shed();
+        } catch (RuntimeException e) {
+            jobFailed(job, e);
+        }
+    }
+
+    /**
+     * Called on the thread that ran a job, or shed it, when that throws.
+     * The pool goes on with the next job either way. By default the failure
+     * goes to the thread's uncaught exception handler, which prints it
+     * unless one has been set; subclasses may report it some other way.
+     *
+     * @param job the job that failed
+     * @param e what it threw
+     */
+    protected void jobFailed(Runnable job, RuntimeException e) {
+        Thread thread = Thread.currentThread();
+        thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+    }
+
+    private Runnable take() throws InterruptedException {
+        Waiter me = null;
+        boolean woken = false;
+        while (true) {
+            Runnable job = jobQueue.poll();
+            if (job != null) {
+                if (woken && searching.decrementAndGet() == 0 && !jobQueue.isEmpty()) {
+                    wakeOne();
+                }
+                return job;
+            }
+            if (woken) {
+                woken = false;
+                searching.decrementAndGet();
+            }
+            if (me == null) {
+                me = new Waiter(Thread.currentThread());
+            }
+            me.signalled = false;
+            idle.addFirst(me);
+            // a job added before we were idle may have found no one to wake
+            if (!jobQueue.isEmpty() && idle.remove(me)) {
+                continue;
+            }
+            while (!me.signalled) {
+                LockSupport.park(this);
+                if (Thread.interrupted()) {
+                    if (!idle.remove(me)) {
+                        // woken at the same time; pass the wakeup on
+                        searching.decrementAndGet();
+                        if (!jobQueue.isEmpty()) {
+                            wakeOne();
+                        }
+                    }
+                    throw new InterruptedException();
+                }
+            }
+            woken = true;
+        }
+    }
+
+    /**
+     * Stops accepting jobs. Jobs already queued still run, after which every
+     * worker exits. Returns immediately; see awaitTermination(). Interrupting
+     * the workers after this makes them exit without running queued jobs.
+     */
+    public void shutdown() {
+    		if (shutdown)
+    			return;
+    		shutdown = true;
+    		for (int i = 0; i < threads.length; i++)
+    			enqueue(STOP);
+    }
+
+    /**
+     * @return true if shutdown() has been called
+     */
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    /**
+     * Waits for every worker to exit after a call to shutdown().
+     *
+     * @param millis maximum time to wait, in milliseconds
+     * @return true if all workers have exited
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitTermination(long millis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + millis;
+        for (Thread thread : threads) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                return !thread.isAlive();
+            }
+            thread.join(left);
+            if (thread.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* A job queued while targetDelay is set, with the time it was queued. */
+    private static class Timed implements Runnable {
+        final Runnable job;
+        final long enqueued = System.nanoTime();
+
+        Timed(Runnable job) {
+            this.job = job;
+        }
+
+        @Override
+        public void run() {
+            job.run();
+        }
+    }
+
+    /* A thread parked in getJob(), and whether it has been woken on purpose. */
+    private static class Waiter {
+        final Thread thread;
+        volatile boolean signalled;
+
+        Waiter(Thread thread) {
+            this.thread = thread;
+        }
     }
 
     /**
@@ -69,17 +312,31 @@ public class ThreadPool {
         }
 
         /**
-         * Scan for and execute tasks.
+         * Scan for and execute tasks until the pool is shut down. A job that
+         * throws does not take the worker down with it, and neither does an
+         * interrupt unless the pool is shutting down.
          */
         @Override
         public void run() {
             // implement me
         		while(true){
+        			Runnable job;
+        			try {
+					job = threadPool.getJob();
+				} catch (InterruptedException e) {
+					if (threadPool.isShutdown())
+						return;
+					continue;
+				}
+        			if (job == STOP)
+        				return;
         			try {
-						threadPool.getJob().run();
-					} catch (InterruptedException e) {
-						e.printStackTrace();
-					}
+        				job.run();
+        			} catch (RuntimeException e) {
+        				threadPool.jobFailed(job, e);
+        			}
+        			// an interrupt meant for the job must not reach the next one
+        			Thread.interrupted();
         		}
         }
     }
@@ -0,0 +1,151 @@
+package kvstore;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tells when keys given a deadline are due, without ever scanning the keys
+ * that are not, as a hierarchical timing wheel does.
+ *
+ * Time is counted in ticks of tickMillis. Each of the LEVELS wheels has
+ * SLOTS slots, and a slot of level n spans SLOTS^n ticks, so that a key is
+ * put into the lowest wheel whose span reaches its deadline. Whenever the
+ * lower wheels have gone round once, the next slot of the wheel above is
+ * emptied into them, and a key moves down until it lands in the slot of
+ * level 0 that comes due on its own tick. Keys further away than the top
+ * wheel reaches wait in its last slot and are put back when it comes round.
+ *
+ * Scheduling a key again does not cancel the earlier deadline, and nothing
+ * is ever cancelled; the caller is expected to check whether a key that
+ * comes due is really expired. All methods are thread-safe.
+ */
+public class TimingWheel {
+
+    private static final int LEVELS = 4;
+    private static final int BITS = 6;
+    private static final int SLOTS = 1 << BITS;
+    private static final int MASK = SLOTS - 1;
+    private static final long SPAN = 1L << (BITS * LEVELS);
+
+    private long tickMillis;
+    /* The next tick to fire */
+    private long current;
+    /* Per level and slot, a list of keys chained through Timer.next */
+    private Timer[][] wheels;
+    private int pending;
+
+    /* A key waiting for its tick */
+    private static class Timer {
+        final String key;
+        final long tick;
+        Timer next;
+
+        Timer(String key, long tick) {
+            this.key = key;
+            this.tick = tick;
+        }
+    }
+
+    /**
+     * Constructs an empty wheel.
+     *
+     * @param tickMillis granularity of deadlines, in milliseconds
+     * @param now current time, in milliseconds
+     */
+    public TimingWheel(long tickMillis, long now) {
+        this.tickMillis = tickMillis;
+        this.current = now / tickMillis;
+        wheels = new Timer[LEVELS][SLOTS];
+    }
+
+    /**
+     * @return the granularity of deadlines, in milliseconds
+     */
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    /**
+     * @return the number of deadlines not yet due
+     */
+    public synchronized int getPending() {
+        return pending;
+    }
+
+    /**
+     * Adds a key that comes due at a deadline, rounded up to a tick.
+     *
+     * @param key the key
+     * @param deadline time at which the key is due, in milliseconds
+     */
+    public synchronized void schedule(String key, long deadline) {
+        place(new Timer(key, (deadline + tickMillis - 1) / tickMillis));
+        pending++;
+    }
+
+    /**
+     * Moves the wheel on to a time and takes out the keys due by then.
+     *
+     * @param now current time, in milliseconds
+     * @return the keys due, in the order of their ticks
+     */
+    public synchronized List<String> advance(long now) {
+        List<String> due = new ArrayList<String>();
+        long target = now / tickMillis;
+        if (pending == 0) {
+            // nothing to cascade, so the idle ticks may be skipped
+            current = Math.max(current, target + 1);
+            return due;
+        }
+        for (; current <= target; current++) {
+            // once the wheels below go round, move down the next slot above
+            for (int level = 1; level < LEVELS; level++) {
+                if ((current & ((1L << (BITS * level)) - 1)) != 0) {
+                    break;
+                }
+                cascade(level, (int) ((current >>> (BITS * level)) & MASK));
+            }
+            int slot = (int) (current & MASK);
+            Timer timer = wheels[0][slot];
+            wheels[0][slot] = null;
+            while (timer != null) {
+                Timer next = timer.next;
+                if (timer.tick <= current) {
+                    due.add(timer.key);
+                    pending--;
+                } else {
+                    place(timer);
+                }
+                timer = next;
+            }
+        }
+        return due;
+    }
+
+    private void cascade(int level, int slot) {
+        Timer timer = wheels[level][slot];
+        wheels[level][slot] = null;
+        while (timer != null) {
+            Timer next = timer.next;
+            place(timer);
+            timer = next;
+        }
+    }
+
+    private void place(Timer timer) {
+        long tick = Math.max(timer.tick, current);
+        long delta = tick - current;
+        if (delta >= SPAN) {
+            // beyond the top wheel: wait in its furthest slot
+            tick = current + SPAN - 1;
+            delta = SPAN - 1;
+        }
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= (1L << (BITS * (level + 1)))) {
+            level++;
+        }
+        int slot = (int) ((tick >>> (BITS * level)) & MASK);
+        timer.next = wheels[level][slot];
+        wheels[level][slot] = timer;
+    }
+}
@@ -0,0 +1,152 @@
+package kvstore;
+
+/**
+ * W-TinyLFU eviction. Each set is split into a small window, which takes
+ * every new entry and is kept in LRU order, and a main region kept as a
+ * segmented LRU: entries enter its probation segment and move to the
+ * protected segment when hit again. When the window overflows, its oldest
+ * entry only displaces the main region's victim if its key has been used
+ * more often recently, so a burst of keys that are each used once cannot
+ * flush out the keys the set is actually serving.
+ *
+ * How often keys are used is estimated by a count-min sketch of 4-bit
+ * counters per set, counting every get() and put(), whose counters are
+ * halved once the set has counted ten accesses per entry it can hold, so
+ * that old popularity fades.
+ */
+public class TinyLFUPolicy extends EvictionPolicy {
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+    private static final int REGIONS = 3;
+
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final int[] SEEDS = {0x97CB3127, 0xB1A7D3E5, 0x6C8E9CF5, 0x3D4E8C19};
+
+    private SlotLists lists;
+    private byte[] region;
+    private int[] hashes;
+    private int windowCap;
+    private int mainCap;
+    private int protectedCap;
+
+    private byte[] counts;
+    private int width;
+    private int[] additions;
+    private int sampleSize;
+
+    @Override
+    protected void init() {
+        int slots = numSets * maxElemsPerSet;
+        lists = new SlotLists(slots, numSets * REGIONS);
+        region = new byte[slots];
+        hashes = new int[slots];
+        windowCap = Math.max(1, maxElemsPerSet / 100);
+        mainCap = Math.max(0, maxElemsPerSet - windowCap);
+        protectedCap = mainCap * 4 / 5;
+
+        width = Integer.highestOneBit(Math.max(8, maxElemsPerSet) * 2 - 1);
+        counts = new byte[numSets * DEPTH * width];
+        additions = new int[numSets];
+        sampleSize = 10 * Math.max(8, maxElemsPerSet);
+    }
+
+    @Override
+    public void accessed(int set, int hash) {
+        int base = set * DEPTH * width;
+        for (int i = 0; i < DEPTH; i++) {
+            int counter = base + i * width + row(hash, i);
+            if (counts[counter] < MAX_COUNT) {
+                counts[counter]++;
+            }
+        }
+        if (++additions[set] >= sampleSize) {
+            for (int counter = base; counter < base + DEPTH * width; counter++) {
+                counts[counter] >>= 1;
+            }
+            additions[set] /= 2;
+        }
+    }
+
+    private int frequency(int set, int hash) {
+        int base = set * DEPTH * width;
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < DEPTH; i++) {
+            frequency = Math.min(frequency, counts[base + i * width + row(hash, i)]);
+        }
+        return frequency;
+    }
+
+    private int row(int hash, int i) {
+        int h = hash * SEEDS[i];
+        return (h ^ (h >>> 17)) & (width - 1);
+    }
+
+    @Override
+    public void hit(int set, int slot) {
+        switch (region[slot]) {
+        case WINDOW:
+            lists.moveToLast(list(set, WINDOW), slot);
+            break;
+        case PROBATION:
+            move(set, slot, PROTECTED);
+            if (lists.size(list(set, PROTECTED)) > protectedCap) {
+                move(set, lists.first(list(set, PROTECTED)), PROBATION);
+            }
+            break;
+        default:
+            lists.moveToLast(list(set, PROTECTED), slot);
+        }
+    }
+
+    @Override
+    public void inserted(int set, int slot, int hash) {
+        hashes[slot] = hash;
+        region[slot] = WINDOW;
+        lists.addLast(list(set, WINDOW), slot);
+        if (lists.size(list(set, WINDOW)) > windowCap) {
+            // the set is not full, so the main region has room
+            move(set, lists.first(list(set, WINDOW)), PROBATION);
+        }
+    }
+
+    @Override
+    public void removed(int set, int slot) {
+        lists.remove(list(set, region[slot]), slot);
+    }
+
+    @Override
+    public int evict(int set, int hash) {
+        int window = list(set, WINDOW);
+        int victim = lists.first(list(set, PROBATION));
+        if (victim == SlotLists.NIL) {
+            victim = lists.first(list(set, PROTECTED));
+        }
+        if (lists.size(window) < windowCap && victim != SlotLists.NIL) {
+            // the window has room after deletes; the main region is over
+            removed(set, victim);
+            return victim;
+        }
+        int candidate = lists.removeFirst(window);
+        if (victim == SlotLists.NIL
+                || frequency(set, hashes[candidate]) <= frequency(set, hashes[victim])) {
+            return candidate;
+        }
+        removed(set, victim);
+        region[candidate] = PROBATION;
+        lists.addLast(list(set, PROBATION), candidate);
+        return victim;
+    }
+
+    private void move(int set, int slot, int to) {
+        lists.remove(list(set, region[slot]), slot);
+        region[slot] = (byte) to;
+        lists.addLast(list(set, to), slot);
+    }
+
+    private static int list(int set, int region) {
+        return set * REGIONS + region;
+    }
+}
@@ -0,0 +1,180 @@
+package kvstore;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * An immutable string held as its UTF-8 bytes, which for mostly-ASCII keys
+ * and values takes half the heap of a String's UTF-16 chars. KVStore and
+ * KVCache keep their keys and values this way and only turn them back into
+ * Strings as they are returned.
+ *
+ * hashCode() is that of the String, so a key maps to the same cache set
+ * whichever form it is in, and compareTo() orders as String.compareTo()
+ * does, so ordered stores and scans agree with code comparing Strings.
+ *
+ * Keys go through intern(), a fixed-size table indexed by the hash of the
+ * String. A key found there is returned without being encoded again, so the
+ * store, the cache and the master cache share one copy of the bytes of a
+ * key that is in use. The table is lossy: a key whose slot is taken by
+ * another is encoded afresh and replaces it, so it never holds more than
+ * INTERN_SLOTS keys however many the store has. Only keys being stored are
+ * put in the table; a key that is only looked up goes through lookup(),
+ * which shares the interned copy but leaves the table alone, so misses on
+ * keys never stored do not push out the keys in use.
+ */
+public final class Utf8String implements Comparable<Utf8String> {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int INTERN_SLOTS = 1 << 16;
+    private static final AtomicReferenceArray<Utf8String> INTERNED =
+            new AtomicReferenceArray<Utf8String>(INTERN_SLOTS);
+
+    private final byte[] bytes;
+    /* Of the String, or 0 if not yet computed */
+    private int hash;
+
+    private Utf8String(byte[] bytes, int hash) {
+        this.bytes = bytes;
+        this.hash = hash;
+    }
+
+    /**
+     * Encodes a String, such as a value, that is not worth interning.
+     *
+     * @param s the String
+     * @return its UTF-8 form
+     */
+    public static Utf8String of(String s) {
+        return new Utf8String(s.getBytes(UTF_8), 0);
+    }
+
+    /**
+     * Encodes a String, such as a key, returning the copy already in the
+     * intern table if there is one.
+     *
+     * @param s the String
+     * @return its UTF-8 form, shared with other callers if interned
+     */
+    public static Utf8String intern(String s) {
+        int h = s.hashCode();
+        int slot = slotOf(h);
+        Utf8String interned = INTERNED.get(slot);
+        if (interned != null && interned.contentEquals(s)) {
+            return interned;
+        }
+        interned = new Utf8String(s.getBytes(UTF_8), h);
+        INTERNED.set(slot, interned);
+        return interned;
+    }
+
+    /**
+     * Encodes a String, such as a key being looked up, returning the copy
+     * in the intern table if there is one but never adding to it.
+     *
+     * @param s the String
+     * @return its UTF-8 form, shared with other callers if interned
+     */
+    public static Utf8String lookup(String s) {
+        int h = s.hashCode();
+        Utf8String interned = INTERNED.get(slotOf(h));
+        if (interned != null && interned.contentEquals(s)) {
+            return interned;
+        }
+        return new Utf8String(s.getBytes(UTF_8), h);
+    }
+
+    private static int slotOf(int h) {
+        return (h ^ (h >>> 16)) & (INTERN_SLOTS - 1);
+    }
+
+    /**
+     * @return the number of UTF-8 bytes
+     */
+    public int length() {
+        return bytes.length;
+    }
+
+    /**
+     * @return the UTF-8 bytes, which must not be changed
+     */
+    byte[] bytes() {
+        return bytes;
+    }
+
+    /**
+     * Tells whether this holds the same characters as a String, without
+     * encoding the String unless it has characters outside ASCII.
+     *
+     * @param s the String
+     * @return whether s encodes to the bytes of this
+     */
+    public boolean contentEquals(String s) {
+        int n = s.length();
+        if (n > bytes.length || (hash != 0 && hash != s.hashCode())) {
+            return false;
+        }
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                return Arrays.equals(bytes, s.getBytes(UTF_8));
+            }
+            if (bytes[i] != c) {
+                return false;
+            }
+        }
+        return n == bytes.length;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        }
+        if (!(o instanceof Utf8String)) {
+            return false;
+        }
+        Utf8String other = (Utf8String) o;
+        return hashCode() == other.hashCode() && Arrays.equals(bytes, other.bytes);
+    }
+
+    @Override
+    public int hashCode() {
+        int h = hash;
+        if (h == 0 && bytes.length > 0) {
+            h = toString().hashCode();
+            hash = h;
+        }
+        return h;
+    }
+
+    /**
+     * Compares as the Strings would. Unsigned UTF-8 bytes order by code
+     * point, which is the order of UTF-16 chars except that characters
+     * from U+E000 to U+FFFF, led by 0xEE or 0xEF, come after those above
+     * U+FFFF, led by 0xF0 to 0xF4, whose surrogates are smaller chars.
+     */
+    @Override
+    public int compareTo(Utf8String other) {
+        byte[] a = bytes;
+        byte[] b = other.bytes;
+        int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; i++) {
+            int x = a[i] & 0xff;
+            int y = b[i] & 0xff;
+            if (x != y) {
+                if (x >= 0xee && y >= 0xee && (x >= 0xf0) != (y >= 0xf0)) {
+                    return (x >= 0xf0) ? -1 : 1;
+                }
+                return x - y;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    @Override
+    public String toString() {
+        return new String(bytes, UTF_8);
+    }
+}
@@ -0,0 +1,122 @@
+package kvstore;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * A ThreadPool that has no fixed set of workers, but starts a thread of its
+ * own for every job, so a job that blocks on a slow socket never holds up
+ * any other. Passing one to a handler in place of its default pool gives
+ * each connection (or each request, behind a SelectorSocketServer) its own
+ * thread.
+ *
+ * On Java 21 and later these are virtual threads, which cost little more
+ * than the job itself and give back their carrier thread while blocked on
+ * I/O. This code targets older releases, so Thread.ofVirtual() is looked up
+ * reflectively; where it does not exist, each job gets a daemon platform
+ * thread instead.
+ */
+public class VirtualThreadPool extends ThreadPool {
+
+    /* Thread.ofVirtual() and Thread.Builder.unstarted(Runnable), or null
+     * before Java 21. */
+    private static final Method OF_VIRTUAL;
+    private static final Method UNSTARTED;
+
+    /* Released by shutdown() */
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    static {
+        Method ofVirtual = null;
+        Method unstarted = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            unstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+        } catch (Exception e) {
+            ofVirtual = null;
+            unstarted = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        UNSTARTED = unstarted;
+    }
+
+    /**
+     * Constructs a VirtualThreadPool.
+     */
+    public VirtualThreadPool() {
+        super(0);
+    }
+
+    /**
+     * @return true if jobs run on virtual threads rather than platform threads
+     */
+    public static boolean isVirtual() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Starts a new thread running the job and returns immediately. If the
+     * job throws, jobFailed() is called on that thread.
+     *
+     * @param r job that has to be executed
+     * @throws IllegalStateException if the pool has been shut down
+     */
+    @Override
+    public void addJob(Runnable r) {
+        if (isShutdown()) {
+            throw new IllegalStateException("ThreadPool has been shut down");
+        }
+        newThread(guard(r)).start();
+    }
+
+    /**
+     * Jobs are never queued, so this blocks as a worker of an idle pool
+     * would, until the pool is shut down, and then returns null since no
+     * job will ever be there.
+     *
+     * @return null, once the pool is shut down
+     * @throws InterruptedException if interrupted while waiting
+     */
+    @Override
+    public Runnable getJob() throws InterruptedException {
+        stopped.await();
+        return null;
+    }
+
+    /**
+     * Stops accepting jobs, and releases any caller blocked in getJob().
+     * Jobs already started run on.
+     */
+    @Override
+    public void shutdown() {
+        super.shutdown();
+        stopped.countDown();
+    }
+
+    /* Reports what the job throws as a worker of the pool would. */
+    private Runnable guard(final Runnable job) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    job.run();
+                } catch (RuntimeException e) {
+                    jobFailed(job, e);
+                }
+            }
+        };
+    }
+
+    private static Thread newThread(Runnable r) {
+        if (OF_VIRTUAL != null) {
+            try {
+                return (Thread) UNSTARTED.invoke(OF_VIRTUAL.invoke(null), r);
+            } catch (Exception e) {
+                // fall through to a platform thread
+            }
+        }
+        Thread thread = new Thread(r);
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -0,0 +1,65 @@
+package kvstore;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+
+import kvstore.xml.ObjectFactory;
+
+/**
+ * Holds the JAXB state shared by KVMessage and KVCache.
+ *
+ * Creating a JAXBContext reflects over every generated class, so a single
+ * context is built once and shared; it is thread-safe. Marshallers and
+ * Unmarshallers are cheap to reuse but not thread-safe, so each thread keeps
+ * its own, configured once with the output format both classes use.
+ */
+final class XMLBinding {
+
+    private static final JAXBContext CONTEXT;
+
+    static {
+        try {
+            CONTEXT = JAXBContext.newInstance(ObjectFactory.class);
+        } catch (JAXBException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static final ThreadLocal<Marshaller> MARSHALLER = new ThreadLocal<Marshaller>();
+    private static final ThreadLocal<Unmarshaller> UNMARSHALLER = new ThreadLocal<Unmarshaller>();
+
+    private XMLBinding() {
+    }
+
+    /**
+     * @return the Marshaller of the calling thread, which writes an XML
+     *         declaration followed by unformatted output
+     * @throws JAXBException if the Marshaller could not be created
+     */
+    static Marshaller marshaller() throws JAXBException {
+        Marshaller marshaller = MARSHALLER.get();
+        if (marshaller == null) {
+            marshaller = CONTEXT.createMarshaller();
+            marshaller.setProperty("com.sun.xml.internal.bind.xmlHeaders", "<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+            marshaller.setProperty(Marshaller.JAXB_FRAGMENT, true);
+            marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, false);
+            MARSHALLER.set(marshaller);
+        }
+        return marshaller;
+    }
+
+    /**
+     * @return the Unmarshaller of the calling thread
+     * @throws JAXBException if the Unmarshaller could not be created
+     */
+    static Unmarshaller unmarshaller() throws JAXBException {
+        Unmarshaller unmarshaller = UNMARSHALLER.get();
+        if (unmarshaller == null) {
+            unmarshaller = CONTEXT.createUnmarshaller();
+            UNMARSHALLER.set(unmarshaller);
+        }
+        return unmarshaller;
+    }
+}
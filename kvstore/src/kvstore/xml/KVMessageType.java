@@ -8,6 +8,8 @@
 
 package kvstore.xml;
 
+import java.util.ArrayList;
+import java.util.List;
 import javax.xml.bind.annotation.XmlAccessType;
 import javax.xml.bind.annotation.XmlAccessorType;
 import javax.xml.bind.annotation.XmlAttribute;
@@ -28,8 +30,13 @@ import javax.xml.bind.annotation.XmlType;
  *         &lt;element name="Key" type="{http://www.w3.org/2001/XMLSchema}string" minOccurs="0"/>
  *         &lt;element name="Value" type="{http://www.w3.org/2001/XMLSchema}string" minOccurs="0"/>
  *         &lt;element name="Message" type="{http://www.w3.org/2001/XMLSchema}string" minOccurs="0"/>
+ *         &lt;element name="KVPair" type="{}KVPairType" maxOccurs="unbounded" minOccurs="0"/>
  *       &lt;/sequence>
  *       &lt;attribute name="type" use="required" type="{http://www.w3.org/2001/XMLSchema}string" />
+ *       &lt;attribute name="ttl" type="{http://www.w3.org/2001/XMLSchema}long" />
+ *       &lt;attribute name="end" type="{http://www.w3.org/2001/XMLSchema}string" />
+ *       &lt;attribute name="limit" type="{http://www.w3.org/2001/XMLSchema}int" />
+ *       &lt;attribute name="token" type="{http://www.w3.org/2001/XMLSchema}string" />
  *     &lt;/restriction>
  *   &lt;/complexContent>
  * &lt;/complexType>
@@ -41,7 +48,8 @@ import javax.xml.bind.annotation.XmlType;
 @XmlType(name = "KVMessageType", propOrder = {
     "key",
     "value",
-    "message"
+    "message",
+    "kvPair"
 })
 public class KVMessageType {
 
@@ -51,8 +59,18 @@ public class KVMessageType {
     protected String value;
     @XmlElement(name = "Message")
     protected String message;
+    @XmlElement(name = "KVPair")
+    protected List<KVPairType> kvPair;
     @XmlAttribute(name = "type", required = true)
     protected String type;
+    @XmlAttribute(name = "ttl")
+    protected Long ttl;
+    @XmlAttribute(name = "end")
+    protected String end;
+    @XmlAttribute(name = "limit")
+    protected Integer limit;
+    @XmlAttribute(name = "token")
+    protected String token;
 
     /**
      * Gets the value of the key property.
@@ -126,6 +144,28 @@ public class KVMessageType {
         this.message = value;
     }
 
+    /**
+     * Gets the value of the kvPair property.
+     * 
+     * <p>
+     * This accessor method returns a reference to the live list,
+     * not a snapshot. Therefore any modification you make to the
+     * returned list will be present inside the JAXB object.
+     * This is why there is not a <CODE>set</CODE> method for the kvPair property.
+     * 
+     * <p>
+     * Objects of the following type(s) are allowed in the list
+     * {@link KVPairType }
+     * 
+     * 
+     */
+    public List<KVPairType> getKVPair() {
+        if (kvPair == null) {
+            kvPair = new ArrayList<KVPairType>();
+        }
+        return this.kvPair;
+    }
+
     /**
      * Gets the value of the type property.
      * 
@@ -150,4 +190,100 @@ public class KVMessageType {
         this.type = value;
     }
 
+    /**
+     * Gets the value of the ttl property.
+     * 
+     * @return
+     *     possible object is
+     *     {@link Long }
+     *     
+     */
+    public Long getTtl() {
+        return ttl;
+    }
+
+    /**
+     * Sets the value of the ttl property.
+     * 
+     * @param value
+     *     allowed object is
+     *     {@link Long }
+     *     
+     */
+    public void setTtl(Long value) {
+        this.ttl = value;
+    }
+
+    /**
+     * Gets the value of the end property.
+     * 
+     * @return
+     *     possible object is
+     *     {@link String }
+     *     
+     */
+    public String getEnd() {
+        return end;
+    }
+
+    /**
+     * Sets the value of the end property.
+     * 
+     * @param value
+     *     allowed object is
+     *     {@link String }
+     *     
+     */
+    public void setEnd(String value) {
+        this.end = value;
+    }
+
+    /**
+     * Gets the value of the limit property.
+     * 
+     * @return
+     *     possible object is
+     *     {@link Integer }
+     *     
+     */
+    public Integer getLimit() {
+        return limit;
+    }
+
+    /**
+     * Sets the value of the limit property.
+     * 
+     * @param value
+     *     allowed object is
+     *     {@link Integer }
+     *     
+     */
+    public void setLimit(Integer value) {
+        this.limit = value;
+    }
+
+    /**
+     * Gets the value of the token property.
+     * 
+     * @return
+     *     possible object is
+     *     {@link String }
+     *     
+     */
+    public String getToken() {
+        return token;
+    }
+
+    /**
+     * Sets the value of the token property.
+     * 
+     * @param value
+     *     allowed object is
+     *     {@link String }
+     *     
+     */
+    public void setToken(String value) {
+        this.token = value;
+    }
+
 }
@@ -0,0 +1,260 @@
+package kvstore;
+
+import static autograder.TestUtils.kTimeoutDefault;
+import static autograder.TestUtils.kTimeoutQuick;
+import static kvstore.KVConstants.ERROR_NO_SUCH_KEY;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import autograder.AGCategories.AGTestDetails;
+import autograder.AGCategories.AG_PROJ3_CODE;
+
+public class BitcaskKVStoreTest {
+
+    private File dir;
+
+    @Before
+    public void createDir() throws IOException {
+        dir = Files.createTempDirectory("bitcask").toFile();
+    }
+
+    @After
+    public void deleteDir() {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "Bitcask store puts, gets and dels, and reopens with the same pairs")
+    public void putGetDelReopen() throws KVException, IOException {
+        BitcaskKVStore store = new BitcaskKVStore(dir, 256, false);
+        for (int i = 0; i < 20; i++) {
+            store.put("key" + i, "value" + i);
+        }
+        store.put("key3", "café ☃");
+        store.del("key4");
+        assertEquals("café ☃", store.get("key3"));
+        assertEquals("value5", store.get("key5"));
+        assertTrue(store.getFileCount() > 1);
+        try {
+            store.del("key4");
+            fail("key was deleted");
+        } catch (KVException e) {
+            assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+        store.close();
+
+        store = new BitcaskKVStore(dir, 256, false);
+        assertEquals("café ☃", store.get("key3"));
+        assertEquals("value19", store.get("key19"));
+        List<Entry<String, String>> pairs = store.scan("key3", "key6", 10);
+        assertEquals(2, pairs.size());
+        assertEquals("café ☃", pairs.get(0).getValue());
+        assertEquals("key5", pairs.get(1).getKey());
+        try {
+            store.get("key4");
+            fail("key was deleted");
+        } catch (KVException e) {
+            assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+        store.close();
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "Bitcask merge drops dead records and leaves a hint file")
+    public void mergeDropsDeadRecords() throws KVException, IOException {
+        BitcaskKVStore store = new BitcaskKVStore(dir, 1 << 20, false);
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 50; i++) {
+                store.put("key" + i, "value" + round);
+            }
+        }
+        store.del("key0");
+        assertTrue(store.getDeadBytes() > store.getDiskBytes() / 2);
+        store.merge();
+        assertEquals(0, store.getDeadBytes());
+        assertEquals("value9", store.get("key49"));
+        store.put("key1", "after");
+        store.close();
+
+        int hints = 0;
+        for (File file : dir.listFiles()) {
+            if (file.getName().endsWith(".hint")) {
+                hints++;
+            }
+        }
+        assertEquals(1, hints);
+        store = new BitcaskKVStore(dir, 1 << 20, false);
+        assertEquals("after", store.get("key1"));
+        assertEquals("value9", store.get("key2"));
+        try {
+            store.get("key0");
+            fail("key was deleted");
+        } catch (KVException e) {
+            assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+        store.close();
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "Bitcask store cuts off a torn record left by a crash")
+    public void tornRecordCutOff() throws KVException, IOException {
+        BitcaskKVStore store = new BitcaskKVStore(dir, 1 << 20, true);
+        store.put("kept", "value");
+        store.put("torn", "value");
+        store.close();
+        File data = dir.listFiles()[0];
+        RandomAccessFile file = new RandomAccessFile(data, "rw");
+        file.setLength(file.length() - 2);
+        file.close();
+
+        store = new BitcaskKVStore(dir, 1 << 20, false);
+        assertEquals("value", store.get("kept"));
+        try {
+            store.get("torn");
+            fail("record was torn");
+        } catch (KVException e) {
+            assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+        store.put("torn", "again");
+        assertEquals("again", store.get("torn"));
+        store.close();
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "Bitcask store skips a damaged record in an older file without cutting it off")
+    public void damagedOlderFileKeepsLaterRecords() throws KVException, IOException {
+        BitcaskKVStore store = new BitcaskKVStore(dir, 256, false);
+        for (int i = 0; i < 20; i++) {
+            store.put("key" + i, "value" + i);
+        }
+        assertTrue(store.getFileCount() > 2);
+        store.close();
+        File first = dir.listFiles()[0];
+        long length = first.length();
+        // flip a byte of the value of the second record of the first file
+        RandomAccessFile file = new RandomAccessFile(first, "rw");
+        file.seek(20 + "key0".length() + "value0".length() + 20 + "key1".length());
+        int b = file.read();
+        file.seek(file.getFilePointer() - 1);
+        file.write(b ^ 0xff);
+        file.close();
+
+        store = new BitcaskKVStore(dir, 256, false);
+        assertEquals(length, first.length());
+        assertEquals("value0", store.get("key0"));
+        assertFalse(store.hasKey("key1"));
+        assertEquals("value2", store.get("key2"));
+        assertEquals("value19", store.get("key19"));
+        store.close();
+
+        // lengths that run past the end of the file leave nothing to find
+        file = new RandomAccessFile(first, "rw");
+        file.seek(8);
+        file.writeInt(1 << 20);
+        file.close();
+        try {
+            new BitcaskKVStore(dir, 256, false);
+            fail("damaged header was not reported");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(length, first.length());
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "Bitcask store keeps deadlines through a reopen and a merge")
+    public void deadlinesSurviveReopenAndMerge() throws Exception {
+        BitcaskKVStore store = new BitcaskKVStore(dir, 256, false);
+        long soon = System.currentTimeMillis() + 300;
+        long later = System.currentTimeMillis() + 60000;
+        for (int i = 0; i < 20; i++) {
+            store.put("key" + i, "value" + i);
+        }
+        store.put("session", "abc", soon);
+        store.put("token", "def", later);
+        store.close();
+
+        store = new BitcaskKVStore(dir, 256, false);
+        assertEquals(later, store.getExpiresAt("token"));
+        store.merge();
+        store.close();
+
+        // read through the hint file the merge wrote
+        store = new BitcaskKVStore(dir, 256, false);
+        assertEquals(soon, store.getExpiresAt("session"));
+        assertEquals(0, store.getExpiresAt("key3"));
+        KVServer server = new KVServer(new KVCache(10, 10), store, true);
+        assertTrue(server.getTtl("token") > 0);
+        Thread.sleep(Math.max(0, soon - System.currentTimeMillis()) + 50);
+        assertFalse(server.hasKey("session"));
+        try {
+            server.get("session");
+            fail("expired pair was returned");
+        } catch (KVException e) {
+            assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+        assertFalse(store.hasKey("session"));
+        assertEquals("def", server.get("token"));
+        store.close();
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "Bitcask store reports a failed background merge on the next call")
+    public void failedMergeIsReported() throws Exception {
+        BitcaskKVStore store = new BitcaskKVStore(dir, 256, false);
+        // a merge cannot clear away its temporary file if a directory is in the way
+        List<File> blockers = new ArrayList<File>();
+        for (int id = 0; id < 100; id++) {
+            File blocker = new File(dir, String.format("%09d", id) + ".merge.tmp");
+            assertTrue(new File(blocker, "in-the-way").mkdirs());
+            blockers.add(blocker);
+        }
+        try {
+            int round = 0;
+            try {
+                while (true) {
+                    store.put("key", "value" + round);
+                    round++;
+                    // lets a merge this put started fail before the next put
+                    Thread.sleep(20);
+                }
+            } catch (IllegalStateException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+            // the store is still whole, and the failure is not thrown again
+            assertEquals("value" + (round - 1), store.get("key"));
+        } finally {
+            for (File blocker : blockers) {
+                new File(blocker, "in-the-way").delete();
+                blocker.delete();
+            }
+        }
+        store.merge();
+        store.put("key", "after");
+        store.close();
+        store = new BitcaskKVStore(dir, 256, false);
+        assertEquals("after", store.get("key"));
+        store.close();
+    }
+}
@@ -0,0 +1,114 @@
+package kvstore;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Replays key traces against a KVCache under each EvictionPolicy and reports
+ * the hit ratio, reading through the cache as KVServer does: a get(), then a
+ * put() on a miss. Three synthetic traces are generated:
+ *
+ * - zipf: keys drawn from a Zipf distribution, as on skewed workloads,
+ * - zipf+scans: the same, interrupted by scans of keys used only once,
+ * - loop: keys read in a cycle a little longer than the cache holds.
+ *
+ * Run with: ant runbench -Dbench=EvictionBenchmark
+ * or pass a file with one key per line as the first argument to replay it
+ * instead, and the number of sets and entries per set as the next two.
+ */
+public class EvictionBenchmark {
+
+    private static final String[] POLICIES = {"second-chance", "lru", "tinylfu", "arc"};
+    private static final int TRACE_LENGTH = 1000000;
+    private static final int KEYS = 100000;
+
+    public static void main(String[] args) throws IOException {
+        int numSets = (args.length > 2) ? Integer.parseInt(args[1]) : 16;
+        int maxElemsPerSet = (args.length > 2) ? Integer.parseInt(args[2]) : 64;
+
+        if (args.length > 0) {
+            report(args[0], readTrace(args[0]), numSets, maxElemsPerSet);
+            return;
+        }
+        Random random = new Random(162);
+        String[] zipf = zipf(random, TRACE_LENGTH, KEYS, 0.9);
+        report("zipf", zipf, numSets, maxElemsPerSet);
+        report("zipf+scans", withScans(zipf, 50000, 5000), numSets, maxElemsPerSet);
+        report("loop", loop(TRACE_LENGTH, numSets * maxElemsPerSet * 5 / 4), numSets, maxElemsPerSet);
+    }
+
+    private static void report(String trace, String[] keys, int numSets, int maxElemsPerSet) {
+        for (String name : POLICIES) {
+            KVCache cache = new KVCache(numSets, maxElemsPerSet, EvictionPolicy.forName(name));
+            int hits = 0;
+            long start = System.nanoTime();
+            for (String key : keys) {
+                if (cache.get(key) != null) {
+                    hits++;
+                } else {
+                    cache.put(key, key);
+                }
+            }
+            long nanos = System.nanoTime() - start;
+            System.out.format("%-12s %-14s hit ratio %6.2f%%  %,12d ops/s%n", trace, name,
+                    100.0 * hits / keys.length, keys.length * 1000000000L / Math.max(1, nanos));
+        }
+    }
+
+    /* Draws keys by inverting the Zipf distribution's cumulative weights. */
+    private static String[] zipf(Random random, int length, int keys, double skew) {
+        double[] cumulative = new double[keys];
+        double sum = 0;
+        for (int i = 0; i < keys; i++) {
+            sum += 1 / Math.pow(i + 1, skew);
+            cumulative[i] = sum;
+        }
+        String[] trace = new String[length];
+        for (int i = 0; i < length; i++) {
+            int rank = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+            trace[i] = "key" + ((rank < 0) ? -rank - 1 : rank);
+        }
+        return trace;
+    }
+
+    /* Replaces a run of scanLength keys in every period with keys never seen before. */
+    private static String[] withScans(String[] base, int period, int scanLength) {
+        String[] trace = base.clone();
+        int scanned = 0;
+        for (int start = period; start < trace.length; start += period) {
+            for (int i = start; i < Math.min(trace.length, start + scanLength); i++) {
+                trace[i] = "scan" + scanned++;
+            }
+        }
+        return trace;
+    }
+
+    private static String[] loop(int length, int keys) {
+        String[] trace = new String[length];
+        for (int i = 0; i < length; i++) {
+            trace[i] = "key" + (i % keys);
+        }
+        return trace;
+    }
+
+    private static String[] readTrace(String file) throws IOException {
+        List<String> keys = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    keys.add(line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return keys.toArray(new String[keys.size()]);
+    }
+}
@@ -0,0 +1,126 @@
+package kvstore;
+
+import static autograder.TestUtils.kTimeoutQuick;
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import autograder.AGCategories.AGTestDetails;
+import autograder.AGCategories.AG_PROJ3_CODE;
+
+public class EvictionPolicyTest {
+
+    private static final String[] POLICIES = {"second-chance", "lru", "tinylfu", "arc"};
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "LRU evicts the least recently used entry")
+    public void lruEvictsLeastRecentlyUsed() {
+        KVCache cache = new KVCache(1, 3, new LRUPolicy());
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.put("c", "3");
+        assertEquals("1", cache.get("a"));
+        cache.put("d", "4");
+        assertNull(cache.get("b"));
+        cache.put("c", "5");
+        cache.put("e", "6");
+        assertNull(cache.get("a"));
+        assertEquals("5", cache.get("c"));
+        assertEquals("4", cache.get("d"));
+        assertEquals("6", cache.get("e"));
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "Every policy returns only current values and respects set sizes")
+    public void everyPolicyStaysConsistent() {
+        for (String name : POLICIES) {
+            KVCache cache = new KVCache(3, 8, EvictionPolicy.forName(name));
+            Map<String, String> latest = new HashMap<String, String>();
+            Random random = new Random(162);
+            for (int i = 0; i < 20000; i++) {
+                String key = "key" + random.nextInt(random.nextBoolean() ? 10 : 200);
+                int op = random.nextInt(5);
+                if (op == 0) {
+                    cache.del(key);
+                    latest.remove(key);
+                } else if (op < 3) {
+                    String value = cache.get(key);
+                    assertTrue(name, value == null || value.equals(latest.get(key)));
+                } else {
+                    cache.put(key, "v" + i);
+                    latest.put(key, "v" + i);
+                }
+                for (int set = 0; set < 3; set++) {
+                    assertTrue(name, cache.getCacheSetSize(set) <= 8);
+                }
+            }
+        }
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "TinyLFU and ARC keep hot keys through a scan")
+    public void frequencyAwarePoliciesResistScans() {
+        for (String name : new String[] {"tinylfu", "arc"}) {
+            KVCache cache = new KVCache(1, 100, EvictionPolicy.forName(name));
+            for (int round = 0; round < 5; round++) {
+                for (int i = 0; i < 50; i++) {
+                    read(cache, "hot" + i);
+                }
+            }
+            for (int i = 0; i < 1000; i++) {
+                read(cache, "scan" + i);
+            }
+            int kept = 0;
+            for (int i = 0; i < 50; i++) {
+                if (cache.get("hot" + i) != null) {
+                    kept++;
+                }
+            }
+            assertTrue(name + " kept " + kept, kept >= 45);
+        }
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "ARC keeps a ghost hit that takes several evictions to fit")
+    public void arcGhostHitSurvivesSeveralEvictions() {
+        long small = KVCache.entryBytes("k1", "v");
+        String large = String.format("%0" + (small + 1) + "d", 0);
+        assertEquals(2 * small, KVCache.entryBytes("k1", large));
+        KVCache cache = new KVCache(1, 8, new ARCPolicy(), 4 * small, 0);
+        for (int i = 1; i <= 5; i++) {
+            cache.put("k" + i, "v");
+        }
+        // k1 was evicted, and now comes back taking the room of two entries
+        cache.put("k1", large);
+        for (int i = 6; i <= 8; i++) {
+            cache.put("k" + i, "v");
+        }
+        // a key seen again since it was evicted outlasts those seen once
+        assertEquals(large, cache.get("k1"));
+    }
+
+    @Test(timeout = kTimeoutQuick, expected = IllegalStateException.class)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "A policy cannot be shared by two caches")
+    public void policyBelongsToOneCache() {
+        EvictionPolicy policy = new ARCPolicy();
+        new KVCache(2, 2, policy);
+        new KVCache(2, 2, policy);
+    }
+
+    /* Reads through the cache as KVServer does, filling it on a miss. */
+    private static void read(KVCache cache, String key) {
+        if (cache.get(key) == null) {
+            cache.put(key, key);
+        }
+    }
+}
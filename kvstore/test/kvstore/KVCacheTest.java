@@ -4,10 +4,19 @@ import static org.junit.Assert.*;
 import static kvstore.KVConstants.*;
 
 
+import static autograder.TestUtils.kTimeoutDefault;
 import static autograder.TestUtils.kTimeoutQuick;
 import autograder.AGCategories.AGTestDetails;
 import autograder.AGCategories.AG_PROJ3_CODE;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+
 import org.junit.*;
 import org.junit.experimental.categories.Category;
 
@@ -254,4 +263,345 @@ public class KVCacheTest {
         assertEquals(cache.get("woah"), null);
         System.out.println(cache.toXML());
     }
+
+    /**
+     * Verify large sets with deletes evict exactly as the second-chance
+     * list in the spec would, checked against a plain list of entries.
+     */
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "Large sets match a reference second-chance list")
+    public void largeSetsMatchReference() {
+        KVCache cache = new KVCache(1, 100);
+        List<String[]> reference = new ArrayList<String[]>();
+        Random random = new Random(9);
+        for (int i = 0; i < 20000; i++) {
+            String key = "key" + random.nextInt(300);
+            String[] entry = null;
+            for (String[] e : reference) {
+                if (e[0].equals(key)) {
+                    entry = e;
+                }
+            }
+            int op = random.nextInt(4);
+            if (op == 0) {
+                cache.del(key);
+                reference.remove(entry);
+            } else if (op == 1) {
+                assertEquals(entry == null ? null : entry[1], cache.get(key));
+                if (entry != null) {
+                    entry[2] = TRUE;
+                }
+            } else if (entry != null) {
+                cache.put(key, "v" + i);
+                entry[1] = "v" + i;
+                entry[2] = TRUE;
+            } else {
+                cache.put(key, "v" + i);
+                if (reference.size() == 100) {
+                    for (int hand = 0; ; hand = (hand + 1) % 100) {
+                        if (reference.get(hand)[2].equals(FALSE)) {
+                            reference.remove(hand);
+                            break;
+                        }
+                        reference.get(hand)[2] = FALSE;
+                    }
+                }
+                reference.add(new String[] {key, "v" + i, FALSE});
+            }
+        }
+        assertEquals(reference.size(), cache.getCacheSetSize(0));
+        for (String[] e : reference) {
+            assertEquals(e[1], cache.get(e[0]));
+        }
+    }
+
+    /**
+     * Verify a set limited by bytes evicts until a new entry fits, skips
+     * entries that can never fit and tracks the bytes it holds.
+     */
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "Sets limited by bytes evict until entries fit")
+    public void bytesPerSetLimit() {
+        long entry = KVCache.entryBytes("k1", "0123456789");
+        KVCache cache = new KVCache(1, 100, new SecondChancePolicy(), 3 * entry, 0);
+        cache.put("k1", "0123456789");
+        cache.put("k2", "0123456789");
+        cache.put("k3", "0123456789");
+        assertEquals(3 * entry, cache.getBytes());
+        cache.put("k4", "0123456789");
+        assertEquals(3, cache.getCacheSetSize(0));
+        assertNull(cache.get("k1"));
+
+        // twice the size: room is made by evicting the oldest entry
+        String big = "01234567890123456789012345678901234567";
+        cache.put("k2", big);
+        assertEquals(big, cache.get("k2"));
+        assertEquals(2, cache.getCacheSetSize(0));
+        assertTrue(cache.getBytes() <= 3 * entry);
+
+        StringBuilder huge = new StringBuilder();
+        for (int i = 0; i < 3 * entry; i++) {
+            huge.append('x');
+        }
+        cache.put("k4", huge.toString());
+        assertNull(cache.get("k4"));
+        cache.del("k2");
+        cache.del("k3");
+        assertEquals(0, cache.getBytes());
+    }
+
+    /**
+     * Verify a cache limited by bytes as a whole never holds more than that.
+     */
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "A cache limited by bytes stays within them")
+    public void bytesLimit() {
+        KVCache cache = new KVCache(4, 1000, new SecondChancePolicy(), 0, 10000);
+        Random random = new Random(61);
+        int cached = 0;
+        for (int i = 0; i < 5000; i++) {
+            char[] value = new char[random.nextInt(500)];
+            cache.put("key" + i, new String(value));
+            assertTrue(cache.getBytes() <= 10000);
+        }
+        for (int set = 0; set < 4; set++) {
+            cached += cache.getCacheSetSize(set);
+        }
+        assertTrue(cached > 4);
+    }
+
+    /**
+     * Verify hits are served while another thread holds the set's lock,
+     * and that the read still marks the entry as referenced.
+     */
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "Hits are read without the set lock")
+    public void optimisticHitWithoutLock() throws InterruptedException {
+        final KVCache cache = new KVCache(1, 3);
+        cache.put("a", "1");
+        final Lock lock = cache.getLock("a");
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread holder = new Thread() {
+            @Override
+            public void run() {
+                lock.lock();
+                locked.countDown();
+                try {
+                    done.await();
+                } catch (InterruptedException e) {
+                } finally {
+                    lock.unlock();
+                }
+            }
+        };
+        holder.start();
+        locked.await();
+        assertEquals("1", cache.getOptimistic("a"));
+        assertNull(cache.getOptimistic("b"));
+        done.countDown();
+        holder.join();
+        assertTrue(cache.toXML().contains("True"));
+        assertNull(new KVCache(1, 3, new LRUPolicy()).getOptimistic("a"));
+    }
+
+    /**
+     * Verify optimistic reads racing with writers on the same set only ever
+     * return a value that was written for the key.
+     */
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "Optimistic reads never return another key's value")
+    public void optimisticReadsRaceWriters() throws InterruptedException {
+        final KVCache cache = new KVCache(1, 8);
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicInteger wrong = new AtomicInteger();
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                Random random = new Random(3);
+                Lock lock = cache.getLock("k");
+                while (!stop.get()) {
+                    String key = "k" + random.nextInt(16);
+                    lock.lock();
+                    try {
+                        if (random.nextInt(4) == 0) {
+                            cache.del(key);
+                        } else {
+                            cache.put(key, key + "=" + random.nextInt(100));
+                        }
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            }
+        };
+        writer.start();
+        Random random = new Random(4);
+        for (int i = 0; i < 500000; i++) {
+            String key = "k" + random.nextInt(16);
+            String value = cache.getOptimistic(key);
+            if (value != null && !value.startsWith(key + "=")) {
+                wrong.incrementAndGet();
+            }
+        }
+        stop.set(true);
+        writer.join();
+        assertEquals(0, wrong.get());
+    }
+
+    /**
+     * Verify a cache keeping values off the heap evicts as usual and frees
+     * the chunks of values it drops.
+     */
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "Values can be cached off the heap")
+    public void offHeapValues() {
+        SlabAllocator allocator = new SlabAllocator(SlabAllocator.PAGE_SIZE);
+        KVCache cache = new KVCache(1, 2, new SecondChancePolicy(), 0, 0, allocator);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.put("a", "3");
+        cache.put("c", "4");
+        assertEquals("3", cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals("4", cache.get("c"));
+        assertNull(cache.getOptimistic("a"));
+        assertTrue(cache.toXML().contains("<Value>4</Value>"));
+        cache.del("a");
+        cache.del("c");
+        assertEquals(0, allocator.getUsedBytes());
+    }
+
+    /**
+     * Verify a resize keeps every entry that fits, under the same locks.
+     */
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "Resizing keeps entries and locks")
+    public void resizeKeepsEntries() {
+        KVCache cache = new KVCache(2, 10);
+        Lock lock = cache.getLock("key7");
+        for (int i = 0; i < 20; i++) {
+            cache.put("key" + i, "value" + i);
+        }
+        cache.resize(8, 5);
+        assertEquals(8, cache.getNumSets());
+        assertEquals(5, cache.getMaxElemsPerSet());
+        assertFalse(cache.isResizing());
+        assertSame(lock, cache.getLock("key7"));
+        int cached = 0;
+        for (int i = 0; i < 20; i++) {
+            String value = cache.get("key" + i);
+            if (value != null) {
+                assertEquals("value" + i, value);
+                cached++;
+            }
+        }
+        int total = 0;
+        for (int set = 0; set < 8; set++) {
+            assertTrue(cache.getCacheSetSize(set) <= 5);
+            total += cache.getCacheSetSize(set);
+        }
+        assertEquals(cached, total);
+        assertTrue(cached >= 15);
+        cache.put("key0", "new");
+        assertEquals("new", cache.get("key0"));
+        try {
+            cache.resize(3, 5);
+            fail("3 sets cannot share the locks of 2");
+        } catch (IllegalArgumentException e) {
+            assertEquals(8, cache.getNumSets());
+        }
+
+        KVCache unlocked = new KVCache(2, 10);
+        new KVServer(unlocked, false);
+        try {
+            new KVCacheAdmin(unlocked).resize(4, 10);
+            fail("a cache used without its locks was resized");
+        } catch (IllegalStateException e) {
+            assertEquals(2, unlocked.getNumSets());
+        }
+    }
+
+    /**
+     * Verify requests running during a resize see every entry they wrote.
+     */
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "A cache can be resized under traffic")
+    public void resizeUnderTraffic() throws InterruptedException {
+        final KVCache cache = new KVCache(4, 64);
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicInteger wrong = new AtomicInteger();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            final int id = t;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    Random random = new Random(id);
+                    while (!stop.get()) {
+                        // each thread owns its keys, so it knows their values
+                        String key = id + "-" + random.nextInt(32);
+                        String value = "v" + random.nextInt(100);
+                        Lock lock = cache.getLock(key);
+                        lock.lock();
+                        try {
+                            cache.put(key, value);
+                            String read = cache.get(key);
+                            if (read != null && !read.equals(value)) {
+                                wrong.incrementAndGet();
+                            }
+                        } finally {
+                            lock.unlock();
+                        }
+                        String read = cache.getOptimistic(key);
+                        if (read != null && !read.startsWith("v")) {
+                            wrong.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        for (int i = 0; i < 20; i++) {
+            cache.resize((i % 2 == 0) ? 16 : 4, 64);
+        }
+        stop.set(true);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, wrong.get());
+        assertEquals(4, cache.getNumSets());
+    }
+
+    /**
+     * Verify an entry past its deadline is not returned, and is dropped.
+     */
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "Expired entries are not returned")
+    public void expiredEntriesMissed() {
+        KVCache cache = new KVCache(1, 4);
+        long now = System.currentTimeMillis();
+        cache.put("old", "1", now - 1);
+        cache.put("new", "2", now + 60000);
+        cache.put("forever", "3");
+        assertNull(cache.getOptimistic("old"));
+        assertNull(cache.get("old"));
+        assertEquals(2, cache.getCacheSetSize(0));
+        assertEquals("2", cache.getOptimistic("new"));
+        assertEquals("2", cache.get("new"));
+        assertEquals("3", cache.get("forever"));
+        cache.put("new", "4");
+        cache.resize(2, 4);
+        assertEquals("4", cache.get("new"));
+    }
 }
@@ -0,0 +1,316 @@
+package kvstore;
+
+import static autograder.TestUtils.kTimeoutDefault;
+import static kvstore.KVConstants.*;
+import static kvstore.Utils.assertKVExceptionEquals;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import autograder.AGCategories.AGTestDetails;
+import autograder.AGCategories.AG_PROJ3_CODE;
+
+public class KVConnectionTest {
+
+    String hostname;
+    SocketServer ss;
+    ServerRunner serverRunner;
+
+    @Before
+    public void setUp() throws Exception {
+        hostname = InetAddress.getLocalHost().getHostAddress();
+        ss = new SocketServer(hostname);
+        ss.addHandler(new ServerClientHandler(new KVServer(10, 10), 4));
+        serverRunner = new ServerRunner(ss, "connectionServer");
+        serverRunner.start();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        serverRunner.stop();
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "A persistent client carries many requests over one connection")
+    public void persistentClientReusesConnection() throws KVException {
+        KVClient client = new KVClient(hostname, ss.getPort(), true);
+        try {
+            for (int i = 0; i < 50; i++) {
+                client.put("key" + i, "value" + i);
+            }
+            for (int i = 0; i < 50; i++) {
+                assertEquals("value" + i, client.get("key" + i));
+            }
+            client.del("key0");
+            try {
+                client.get("key0");
+                fail("get of deleted key did not throw");
+            } catch (KVException kve) {
+                assertKVExceptionEquals(ERROR_NO_SUCH_KEY, kve);
+            }
+            // an error response must leave the connection usable
+            assertEquals("value1", client.get("key1"));
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "One-shot and persistent clients can share a server")
+    public void oneShotAndPersistentClientsInterleave() throws KVException {
+        KVClient persistent = new KVClient(hostname, ss.getPort(), true);
+        KVClient oneShot = new KVClient(hostname, ss.getPort());
+        try {
+            persistent.put("foo", "bar");
+            assertEquals("bar", oneShot.get("foo"));
+            oneShot.put("foo", "baz");
+            assertEquals("baz", persistent.get("foo"));
+        } finally {
+            persistent.close();
+        }
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "A persistent client can negotiate the binary codec")
+    public void persistentClientUsesBinaryCodec() throws KVException {
+        KVClient client = new KVClient(hostname, ss.getPort(), true);
+        client.setCodec(KVConnection.CODEC_BINARY);
+        try {
+            String bigValue = Utils.makeLongString(256 * 1024);
+            client.put("big", bigValue);
+            assertEquals(bigValue, client.get("big"));
+            try {
+                client.get("missing");
+                fail("get of missing key did not throw");
+            } catch (KVException kve) {
+                assertKVExceptionEquals(ERROR_NO_SUCH_KEY, kve);
+            }
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Server agrees to the binary codec and falls back to XML")
+    public void serverNegotiatesCodec() throws Exception {
+        KVConnection binary = new KVConnection(new Socket(hostname, ss.getPort()));
+        binary.connect(KVConnection.CODEC_BINARY, 1000);
+        assertEquals(KVConnection.CODEC_BINARY, binary.getCodec());
+        binary.close();
+
+        KVConnection unknown = new KVConnection(new Socket(hostname, ss.getPort()));
+        unknown.connect((byte) 'Z', 1000);
+        assertEquals(KVConnection.CODEC_XML, unknown.getCodec());
+        unknown.close();
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Framed connection reports a clean close between messages")
+    public void framedConnectionSeesClose() throws Exception {
+        KVConnection conn = new KVConnection(new Socket(hostname, ss.getPort()));
+        conn.connect(1000);
+        assertTrue(conn.isFramed());
+        KVMessage request = new KVMessage(PUT_REQ);
+        request.setKey("k");
+        request.setValue("v");
+        KVMessage response = conn.exchange(request, 1000);
+        assertEquals(SUCCESS, response.getMessage());
+        conn.getSocket().shutdownOutput();
+        assertNull(conn.receive(1000));
+        conn.close();
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "A server with a full queue answers that it is busy")
+    public void fullServerAnswersBusy() throws Exception {
+        SocketServer busyServer = new SocketServer(hostname);
+        ThreadPool pool = new ThreadPool(1, 1, 0);
+        busyServer.addHandler(new ServerClientHandler(new KVServer(10, 10), pool));
+        ServerRunner busyRunner = new ServerRunner(busyServer, "busyServer");
+        busyRunner.start();
+        final CountDownLatch release = new CountDownLatch(1);
+        try {
+            holdWorker(pool, release);
+            final KVClient queued = new KVClient(hostname, busyServer.getPort());
+            Thread waiting = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        queued.get("foo");
+                    } catch (KVException e) {
+                    }
+                }
+            };
+            waiting.start();
+            Thread.sleep(200);
+            try {
+                new KVClient(hostname, busyServer.getPort()).get("foo");
+                fail("request to a full server did not throw");
+            } catch (KVException kve) {
+                assertKVExceptionEquals(ERROR_SERVER_BUSY, kve);
+            }
+            release.countDown();
+            waiting.join();
+        } finally {
+            release.countDown();
+            busyRunner.stop();
+        }
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Clients that send nothing do not hold up turning others away")
+    public void stalledClientsDoNotDelayBusyAnswers() throws Exception {
+        SocketServer busyServer = new SocketServer(hostname);
+        ThreadPool pool = new ThreadPool(1, 1, 0);
+        busyServer.addHandler(new ServerClientHandler(new KVServer(10, 10), pool));
+        ServerRunner busyRunner = new ServerRunner(busyServer, "busyServer");
+        busyRunner.start();
+        CountDownLatch release = new CountDownLatch(1);
+        Socket[] stalled = new Socket[5];
+        try {
+            holdWorker(pool, release);
+            // one fills the queue, the rest are turned away
+            for (int i = 0; i < stalled.length; i++) {
+                stalled[i] = new Socket(hostname, busyServer.getPort());
+            }
+            Thread.sleep(50);
+            long start = System.currentTimeMillis();
+            try {
+                new KVClient(hostname, busyServer.getPort()).get("foo");
+                fail("request to a full server did not throw");
+            } catch (KVException kve) {
+                assertKVExceptionEquals(ERROR_SERVER_BUSY, kve);
+            }
+            assertTrue(System.currentTimeMillis() - start < KVConnection.REJECT_TIMEOUT * 2);
+        } finally {
+            for (Socket sock : stalled) {
+                if (sock != null) {
+                    sock.close();
+                }
+            }
+            release.countDown();
+            busyRunner.stop();
+        }
+    }
+
+    /* Keeps the only worker of a pool busy until released. */
+    private static void holdWorker(ThreadPool pool, final CountDownLatch release)
+            throws InterruptedException {
+        final CountDownLatch held = new CountDownLatch(1);
+        pool.addJob(new Runnable() {
+            @Override
+            public void run() {
+                held.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                }
+            }
+        });
+        held.await();
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "A slave with one worker serves a master connection while another idles")
+    public void idleMasterConnectionGivesWay() throws Exception {
+        File logFile = File.createTempFile("slave", ".log");
+        logFile.deleteOnExit();
+        KVServer slaveServer = new KVServer(10, 10);
+        TPCLog log = new TPCLog(logFile.getPath(), slaveServer);
+        SocketServer slave = new SocketServer(hostname);
+        slave.addHandler(new TPCMasterHandler(1L, slaveServer, log));
+        ServerRunner slaveRunner = new ServerRunner(slave, "slave");
+        slaveRunner.start();
+        KVConnection idle = new KVConnection(new Socket(hostname, slave.getPort()));
+        KVConnection busy = new KVConnection(new Socket(hostname, slave.getPort()));
+        try {
+            idle.connect(1000);
+            KVMessage get = new KVMessage(GET_REQ);
+            get.setKey("missing");
+            assertEquals(ERROR_NO_SUCH_KEY, idle.exchange(get, 1000).getMessage());
+            busy.connect(1000);
+            for (int i = 0; i < 5; i++) {
+                assertEquals(ERROR_NO_SUCH_KEY, busy.exchange(get, 1000).getMessage());
+            }
+            assertEquals(ERROR_NO_SUCH_KEY, idle.exchange(get, 1000).getMessage());
+        } finally {
+            idle.close();
+            busy.close();
+            slaveRunner.stop();
+        }
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Persistent clients share a server with one worker")
+    public void framedClientsShareOneWorker() throws Exception {
+        SocketServer oneWorker = new SocketServer(hostname);
+        oneWorker.addHandler(new ServerClientHandler(new KVServer(10, 10), 1));
+        ServerRunner runner = new ServerRunner(oneWorker, "oneWorker");
+        runner.start();
+        KVClient first = new KVClient(hostname, oneWorker.getPort(), true);
+        KVClient second = new KVClient(hostname, oneWorker.getPort(), true);
+        try {
+            for (int i = 0; i < 20; i++) {
+                first.put("first" + i, "value" + i);
+                second.put("second" + i, "value" + i);
+            }
+            assertEquals("value7", second.get("first7"));
+            assertEquals("value7", first.get("second7"));
+            // a one-shot client is not held up by the idle persistent ones
+            assertEquals("value3", new KVClient(hostname, oneWorker.getPort()).get("first3"));
+        } finally {
+            first.close();
+            second.close();
+            runner.stop();
+        }
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "The master keeps only a few idle connections to each slave")
+    public void idlePoolIsCapped() throws Exception {
+        TPCSlaveInfo slave = new TPCSlaveInfo("1@" + hostname + ":" + ss.getPort());
+        KVConnection[] conns = new KVConnection[TPCSlaveInfo.MAX_IDLE_CONNECTIONS + 2];
+        for (int i = 0; i < conns.length; i++) {
+            conns[i] = slave.openConnection(KVConnection.CODEC_XML, 1000);
+        }
+        for (KVConnection conn : conns) {
+            slave.releaseConnection(conn);
+        }
+        for (int i = 0; i < TPCSlaveInfo.MAX_IDLE_CONNECTIONS; i++) {
+            assertSame(conns[i], slave.pollConnection());
+        }
+        assertNull(slave.pollConnection());
+        assertTrue(conns[conns.length - 1].getSocket().isClosed());
+        for (KVConnection conn : conns) {
+            conn.close();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package kvstore;
+
+import static kvstore.KVConstants.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+
+import kvstore.xml.KVMessageType;
+import kvstore.xml.ObjectFactory;
+
+/**
+ * Measures how many KVMessages per second can be serialized and parsed
+ * again, comparing the shared JAXB context and per-thread marshallers used
+ * by KVMessage against building a new JAXBContext for every message, which
+ * is what KVMessage used to do. The binary codec is measured as well.
+ *
+ * Run with: ant runbench -Dbench=KVMessageBenchmark
+ * or pass the number of seconds to measure each case as the first argument.
+ */
+public class KVMessageBenchmark {
+
+    private static final ObjectFactory FACTORY = new ObjectFactory();
+
+    public static void main(String[] args) throws Exception {
+        long seconds = (args.length > 0) ? Long.parseLong(args[0]) : 3;
+
+        KVMessage get = new KVMessage(GET_REQ);
+        get.setKey("somekey");
+        KVMessage put = new KVMessage(PUT_REQ);
+        put.setKey("somekey");
+        put.setValue(Utils.makeLongString(1024));
+
+        for (KVMessage msg : new KVMessage[] {get, put}) {
+            String name = msg.getMsgType();
+            report(name + " per-message context", seconds, new PerMessageContext(msg));
+            report(name + " shared context     ", seconds, new SharedContext(msg));
+            report(name + " binary codec       ", seconds, new Binary(msg));
+        }
+    }
+
+    private static void report(String name, long seconds, Case c) throws Exception {
+        // warm up for a second so the JIT has compiled the hot path
+        run(c, 1000);
+        long count = run(c, seconds * 1000);
+        System.out.format("%s %,12d msgs/s%n", name, count / seconds);
+    }
+
+    private static long run(Case c, long millis) throws Exception {
+        long end = System.currentTimeMillis() + millis;
+        long count = 0;
+        while (System.currentTimeMillis() < end) {
+            c.roundTrip();
+            count++;
+        }
+        return count;
+    }
+
+    private interface Case {
+        void roundTrip() throws Exception;
+    }
+
+    /* The path KVMessage took before the JAXB state was shared. */
+    private static class PerMessageContext implements Case {
+        private final KVMessage msg;
+
+        PerMessageContext(KVMessage msg) {
+            this.msg = msg;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void roundTrip() throws JAXBException {
+            KVMessageType xml = FACTORY.createKVMessageType();
+            xml.setType(msg.getMsgType());
+            xml.setKey(msg.getKey());
+            xml.setValue(msg.getValue());
+            xml.setMessage(msg.getMessage());
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            Marshaller marshaller = JAXBContext.newInstance(KVMessageType.class).createMarshaller();
+            marshaller.setProperty(Marshaller.JAXB_FRAGMENT, true);
+            marshaller.marshal(FACTORY.createKVMessage(xml), os);
+
+            Unmarshaller unmarshaller = JAXBContext.newInstance(ObjectFactory.class).createUnmarshaller();
+            ((JAXBElement<KVMessageType>) unmarshaller.unmarshal(
+                    new ByteArrayInputStream(os.toByteArray()))).getValue();
+        }
+    }
+
+    private static class SharedContext implements Case {
+        private final KVMessage msg;
+
+        SharedContext(KVMessage msg) {
+            this.msg = msg;
+        }
+
+        @Override
+        public void roundTrip() throws KVException {
+            new KVMessage(new ByteArrayInputStream(msg.toXMLBytes()));
+        }
+    }
+
+    private static class Binary implements Case {
+        private final KVMessage msg;
+
+        Binary(KVMessage msg) {
+            this.msg = msg;
+        }
+
+        @Override
+        public void roundTrip() throws KVException {
+            KVMessage.fromBinary(msg.toBinary());
+        }
+    }
+}
@@ -198,6 +198,105 @@ public class KVMessageTest {
         }
     }
 
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Binary encoding must round trip every field")
+    public void binaryRoundTrip() throws KVException {
+        KVMessage kvm = new KVMessage(RESP, "some message");
+        kvm.setKey("k\u00e9y");
+        kvm.setValue(Utils.makeLongString(256 * 1024));
+        KVMessage copy = KVMessage.fromBinary(kvm.toBinary());
+        assertEquals(RESP, copy.getMsgType());
+        assertEquals("some message", copy.getMessage());
+        assertEquals("k\u00e9y", copy.getKey());
+        assertEquals(kvm.getValue(), copy.getValue());
+
+        KVMessage getreq = new KVMessage(GET_REQ);
+        getreq.setKey("foo");
+        copy = KVMessage.fromBinary(getreq.toBinary());
+        assertEquals(GET_REQ, copy.getMsgType());
+        assertEquals("foo", copy.getKey());
+        assertNull(copy.getValue());
+        assertNull(copy.getMessage());
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Binary encoding must carry message types without an opcode")
+    public void binaryUnknownType() throws KVException {
+        KVMessage kvm = new KVMessage("someothertype");
+        assertEquals("someothertype", KVMessage.fromBinary(kvm.toBinary()).getMsgType());
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Truncated binary messages result in ERROR_INVALID_FORMAT")
+    public void binaryRejectsTruncated() throws KVException {
+        KVMessage kvm = new KVMessage(PUT_REQ);
+        kvm.setKey("foo");
+        kvm.setValue("bar");
+        byte[] bytes = kvm.toBinary();
+        try {
+            KVMessage.fromBinary(java.util.Arrays.copyOf(bytes, bytes.length - 1));
+            fail("truncated message was accepted");
+        } catch (KVException kve) {
+            assertEquals(ERROR_INVALID_FORMAT, kve.getKVMessage().getMessage());
+        }
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "A time to live survives both encodings")
+    public void ttlRoundTrip() throws KVException {
+        KVMessage kvm = new KVMessage(PUT_REQ);
+        kvm.setKey("foo");
+        kvm.setValue("bar");
+        kvm.setTtl(60000);
+        assertEquals(60000, new KVMessage(new ByteArrayInputStream(kvm.toXMLBytes())).getTtl());
+        assertEquals(60000, KVMessage.fromBinary(kvm.toBinary()).getTtl());
+        assertEquals(60000, new KVMessage(kvm).getTtl());
+
+        KVMessage getreq = new KVMessage(GET_REQ);
+        getreq.setKey("foo");
+        assertFalse(getreq.toXML().contains("ttl"));
+        assertEquals(0, KVMessage.fromBinary(getreq.toBinary()).getTtl());
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Scan fields and pairs survive both encodings")
+    public void scanRoundTrip() throws KVException {
+        KVMessage kvm = new KVMessage(RESP, SUCCESS);
+        kvm.setEnd("zzz");
+        kvm.setLimit(2);
+        kvm.setToken("b");
+        kvm.setPairs(java.util.Arrays.<java.util.Map.Entry<String, String>>asList(
+                new java.util.AbstractMap.SimpleEntry<String, String>("a", "1"),
+                new java.util.AbstractMap.SimpleEntry<String, String>("b", "caf\u00e9")));
+        KVMessage[] copies = {
+            new KVMessage(new ByteArrayInputStream(kvm.toXMLBytes())),
+            KVMessage.fromBinary(kvm.toBinary()),
+            new KVMessage(kvm)
+        };
+        for (KVMessage copy : copies) {
+            assertEquals("zzz", copy.getEnd());
+            assertEquals(2, copy.getLimit());
+            assertEquals("b", copy.getToken());
+            assertEquals(kvm.getPairs(), copy.getPairs());
+        }
+        assertEquals("b\u0000", kvm.getScanStart());
+
+        KVMessage getreq = new KVMessage(GET_REQ);
+        getreq.setKey("foo");
+        assertFalse(getreq.toXML().contains("KVPair"));
+        assertTrue(KVMessage.fromBinary(getreq.toBinary()).getPairs().isEmpty());
+    }
+
     /* ----------------------- BEGIN HELPER METHODS ------------------------ */
 
     /* Definitely don't make the parse code available to students */
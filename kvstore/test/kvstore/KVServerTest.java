@@ -12,6 +12,7 @@ import static org.powermock.api.mockito.PowerMockito.whenNew;
 import java.io.InputStream;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Scanner;
@@ -358,4 +359,128 @@ public class KVServerTest {
 
     // }
 
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ4_CODE.class)
+    @AGTestDetails(points = 1, desc = "Pairs put with a time to live expire")
+    public void testPutWithTtlExpires() throws Exception {
+        setupRealServer();
+        server.put("session", "abc", 200);
+        server.put("kept", "def", 200);
+        server.put("kept", "ghi");
+        assertEquals("abc", server.get("session"));
+        assertTrue(server.getTtl("session") > 0);
+        assertEquals(0, server.getTtl("kept"));
+        Thread.sleep(250);
+        assertFalse(server.hasKey("session"));
+        // the sweeper deletes it from the store without a read
+        long deadline = System.currentTimeMillis() + 2000;
+        while (realStore.store.containsKey(Utf8String.of("session")) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertFalse(realStore.store.containsKey(Utf8String.of("session")));
+        try {
+            server.get("session");
+            fail("expired pair was returned");
+        } catch (KVException e) {
+            assertKVExceptionEquals(ERROR_NO_SUCH_KEY, e);
+        }
+        assertEquals("ghi", server.get("kept"));
+        try {
+            server.put("bad", "ttl", -1);
+            fail("negative time to live was accepted");
+        } catch (KVException e) {
+            assertKVExceptionEquals(ERROR_INVALID_TTL, e);
+        }
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ4_CODE.class)
+    @AGTestDetails(points = 1, desc = "Scans page past expired pairs and cap their limit")
+    public void testScanSkipsExpired() throws Exception {
+        KVServer scanned = new KVServer(new KVCache(10, 10), new KVStore(true), true);
+        for (int i = 0; i < 1500; i++) {
+            scanned.put(String.format("key%04d", i), "value" + i, (i < 10) ? 50 : 0);
+        }
+        Thread.sleep(100);
+        List<Map.Entry<String, String>> pairs = scanned.scan("key", "key0020", 5);
+        assertEquals(5, pairs.size());
+        assertEquals("key0010", pairs.get(0).getKey());
+        assertEquals("value14", pairs.get(4).getValue());
+        assertEquals(KVServer.MAX_SCAN_LIMIT, scanned.scan("", null, 5000).size());
+        try {
+            scanned.scan("", null, 0);
+            fail("non-positive limit was accepted");
+        } catch (KVException e) {
+            assertKVExceptionEquals(ERROR_INVALID_LIMIT, e);
+        }
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ4_CODE.class)
+    @AGTestDetails(points = 1, desc = "Write behind serves dirty pairs and coalesces their flush")
+    public void testWriteBehind() throws Exception {
+        final int[] puts = new int[1];
+        KVStore store = new KVStore() {
+            @Override
+            public void put(String key, String value) {
+                puts[0]++;
+                super.put(key, value);
+            }
+        };
+        KVServer behind = new KVServer(new KVCache(1, 1), store, true);
+        behind.setWriteBehind(60000);
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 20; i++) {
+                behind.put("key" + i, "value" + round);
+            }
+        }
+        behind.del("key0");
+        assertEquals(0, puts[0]);
+        assertFalse(store.hasKey("key1"));
+        for (int i = 1; i < 20; i++) {
+            assertEquals("value2", behind.get("key" + i));
+            assertTrue(behind.hasKey("key" + i));
+        }
+        assertFalse(behind.hasKey("key0"));
+        try {
+            behind.get("key0");
+            fail("deleted key was found");
+        } catch (KVException e) {
+            assertKVExceptionEquals(ERROR_NO_SUCH_KEY, e);
+        }
+        try {
+            behind.del("key0");
+            fail("deleted key was deleted again");
+        } catch (KVException e) {
+            assertKVExceptionEquals(ERROR_NO_SUCH_KEY, e);
+        }
+
+        behind.flush();
+        assertEquals(19, puts[0]);
+        assertEquals("value2", store.get("key19"));
+        assertFalse(store.hasKey("key0"));
+
+        behind.put("key1", "dirty");
+        behind.setWriteBehind(0);
+        assertEquals("dirty", store.get("key1"));
+        behind.put("key2", "through");
+        assertEquals("through", store.get("key2"));
+        assertEquals(21, puts[0]);
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ4_CODE.class)
+    @AGTestDetails(points = 1, desc = "A key filter rebuilt while writes are dirty keeps their keys")
+    public void testWriteBehindRebuildsFilter() throws Exception {
+        KVServer behind = new KVServer(new KVCache(10, 10), new KVStore(), true);
+        behind.setWriteBehind(60000);
+        for (int i = 0; i < 100; i++) {
+            behind.put("key" + i, "value" + i);
+        }
+        behind.getKeyFilter().rebuild();
+        behind.flush();
+        for (int i = 0; i < 100; i++) {
+            assertTrue(behind.hasKey("key" + i));
+        }
+    }
 }
@@ -1,16 +1,25 @@
 package kvstore;
 
+import static autograder.TestUtils.kTimeoutDefault;
 import static autograder.TestUtils.kTimeoutQuick;
 import static kvstore.KVConstants.ERROR_NO_SUCH_KEY;
 import static kvstore.KVConstants.RESP;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.Future;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -48,4 +57,190 @@ public class KVStoreTest {
         assertEquals(val, store.get(key));
     }
 
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Verify a dumped store restores with the same pairs, markup included")
+    public void dumpAndRestore() throws KVException, IOException, SAXException,
+            ParserConfigurationException {
+        for (int i = 0; i < 1000; i++) {
+            store.put("key" + i, "value" + i);
+        }
+        store.put("<markup & such>", "caf\u00e9 \u2603 \"quoted\"");
+        File file = File.createTempFile("kvstore", ".xml");
+        try {
+            store.dumpToFile(file.getPath());
+            KVStore restored = new KVStore();
+            restored.put("stale", "gone after restore");
+            restored.restoreFromFile(file.getPath());
+            assertEquals(1001, restored.store.size());
+            assertEquals("value999", restored.get("key999"));
+            assertEquals("caf\u00e9 \u2603 \"quoted\"", restored.get("<markup & such>"));
+            assertNull(restored.store.get(Utf8String.of("stale")));
+        } finally {
+            file.delete();
+        }
+
+        DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+        Document doc = builder.parse(new InputSource(new StringReader(store.toXML())));
+        NodeList pairs = doc.getElementsByTagName("KVPair");
+        assertEquals(1001, pairs.getLength());
+        Node first = pairs.item(0).getFirstChild();
+        assertNotNull(first);
+        assertEquals("Key", first.getNodeName());
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Verify a binary snapshot restores, losing only a damaged segment")
+    public void snapshotSkipsDamagedSegment() throws KVException, IOException {
+        char[] big = new char[1000];
+        Arrays.fill(big, 'v');
+        for (int i = 0; i < 3000; i++) {
+            store.put("key" + i, i + new String(big));
+        }
+        File file = File.createTempFile("kvstore", ".snapshot");
+        try {
+            store.dumpSnapshot(file.getPath());
+            KVStore restored = new KVStore();
+            restored.restoreFromFile(file.getPath());
+            assertEquals(3000, restored.store.size());
+            assertEquals(2999 + new String(big), restored.get("key2999"));
+
+            // flip a byte in the second of three segments
+            RandomAccessFile raw = new RandomAccessFile(file, "rw");
+            long middle = raw.length() / 2;
+            raw.seek(middle);
+            int b = raw.read();
+            raw.seek(middle);
+            raw.write(b ^ 0xff);
+            raw.close();
+            restored.restoreFromFile(file.getPath());
+            int size = restored.store.size();
+            assertTrue(size > 1000 && size < 2500);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Verify scan returns the smallest keys of a range, ordered store or not")
+    public void scanRange() throws KVException {
+        KVStore[] stores = { store, new KVStore(true) };
+        for (KVStore s : stores) {
+            for (int i = 99; i >= 0; i--) {
+                s.put(String.format("key%02d", i), "value" + i);
+            }
+            List<Entry<String, String>> pairs = s.scan("key10", "key20", 5);
+            assertEquals(5, pairs.size());
+            for (int i = 0; i < 5; i++) {
+                assertEquals(String.format("key%02d", 10 + i), pairs.get(i).getKey());
+                assertEquals("value" + (10 + i), pairs.get(i).getValue());
+            }
+            assertEquals(10, s.scan("key10", "key20", 50).size());
+            assertEquals(90, s.scan("key10", null, 500).size());
+            assertTrue(s.scan("z", null, 5).isEmpty());
+        }
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Verify a snapshot keeps the pairs of the moment it was taken")
+    public void snapshotIsFrozen() throws KVException {
+        for (int i = 0; i < 10; i++) {
+            store.put("key" + i, "value" + i);
+        }
+        KVStore.Snapshot snapshot = store.snapshot();
+        store.put("key0", "changed");
+        store.put("new", "value");
+        store.del("key1");
+        store.del("key2");
+        store.put("key2", "back");
+        assertEquals(10, count(snapshot));
+        for (Entry<String, String> pair : snapshot) {
+            assertEquals("value" + pair.getKey().substring(3), pair.getValue());
+        }
+        assertEquals("changed", store.get("key0"));
+        assertEquals("back", store.get("key2"));
+        assertFalse(store.hasKey("key1"));
+        assertEquals(10, count(store.entries()));
+        assertEquals(10, store.scan("", null, 100).size());
+
+        snapshot.close();
+        assertEquals(10, store.store.size());
+        try {
+            snapshot.iterator();
+            fail("iterated a closed snapshot");
+        } catch (IllegalStateException e) {
+        }
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Verify a background dump holds the pairs of when it started")
+    public void backgroundDumpWhileWriting() throws Exception {
+        for (int i = 0; i < 5000; i++) {
+            store.put("key" + i, "value" + i);
+        }
+        File file = File.createTempFile("background", ".snapshot");
+        file.deleteOnExit();
+        Future<Void> dump = store.dumpSnapshotInBackground(file.getPath());
+        for (int i = 0; i < 5000; i++) {
+            store.put("key" + i, "changed");
+        }
+        for (int i = 0; i < 5000; i++) {
+            store.del("key" + i);
+        }
+        dump.get();
+        assertEquals(0, store.store.size());
+
+        KVStore restored = new KVStore();
+        restored.restoreFromFile(file.getPath());
+        assertEquals(5000, count(restored.entries()));
+        for (int i = 0; i < 5000; i++) {
+            assertEquals("value" + i, restored.get("key" + i));
+        }
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Verify dumps keep deadlines and restores leave out expired pairs")
+    public void dumpsKeepDeadlines() throws Exception {
+        long later = System.currentTimeMillis() + 60000;
+        store.put("token", "abc", later);
+        store.put("session", "def", System.currentTimeMillis() + 100);
+        store.put("kept", "ghi");
+        File xml = File.createTempFile("deadlines", ".xml");
+        File snapshot = File.createTempFile("deadlines", ".snapshot");
+        try {
+            store.dumpToFile(xml.getPath());
+            store.dumpSnapshot(snapshot.getPath());
+            Thread.sleep(150);
+            for (File file : new File[] { xml, snapshot }) {
+                KVStore restored = new KVStore();
+                restored.restoreFromFile(file.getPath());
+                assertEquals(later, restored.getExpiresAt("token"));
+                assertEquals(0, restored.getExpiresAt("kept"));
+                assertEquals("ghi", restored.get("kept"));
+                assertFalse(restored.hasKey("session"));
+            }
+        } finally {
+            xml.delete();
+            snapshot.delete();
+        }
+    }
+
+    private static int count(Iterable<?> items) {
+        int n = 0;
+        for (Iterator<?> it = items.iterator(); it.hasNext(); it.next()) {
+            n++;
+        }
+        return n;
+    }
 }
@@ -0,0 +1,142 @@
+package kvstore;
+
+import static autograder.TestUtils.kTimeoutDefault;
+import static autograder.TestUtils.kTimeoutQuick;
+import static org.junit.Assert.*;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import autograder.AGCategories.AGTestDetails;
+import autograder.AGCategories.AG_PROJ3_CODE;
+
+public class KeyAffinityExecutorTest {
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Lanes cover contiguous ranges of sets")
+    public void lanesCoverSetRanges() {
+        KeyAffinityExecutor executor = new KeyAffinityExecutor(10, 4);
+        assertEquals(4, executor.getLanes());
+        int lastLane = 0;
+        for (int set = 0; set < 10; set++) {
+            String key = keyInSet(set, 10);
+            int lane = executor.laneOf(key);
+            assertTrue(lane >= lastLane && lane < 4);
+            lastLane = lane;
+        }
+        assertEquals(3, lastLane);
+        assertEquals(2, new KeyAffinityExecutor(2, 8).getLanes());
+        executor.shutdown();
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Jobs on the same set run one at a time on one thread")
+    public void sameSetRunsSerially() throws InterruptedException {
+        final int numSets = 8;
+        KeyAffinityExecutor executor = new KeyAffinityExecutor(numSets, 3);
+        final AtomicBoolean[] inFlight = new AtomicBoolean[numSets];
+        for (int i = 0; i < numSets; i++) {
+            inFlight[i] = new AtomicBoolean();
+        }
+        final ConcurrentHashMap<Integer, Thread> threads = new ConcurrentHashMap<Integer, Thread>();
+        final AtomicInteger overlaps = new AtomicInteger();
+        final AtomicInteger wrongThread = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(400);
+        for (int i = 0; i < 400; i++) {
+            final String key = "key" + i;
+            final int set = KVCache.setOf(key, numSets);
+            executor.execute(key, new Runnable() {
+                @Override
+                public void run() {
+                    if (inFlight[set].getAndSet(true)) {
+                        overlaps.incrementAndGet();
+                    }
+                    Thread previous = threads.putIfAbsent(set, Thread.currentThread());
+                    if (previous != null && previous != Thread.currentThread()) {
+                        wrongThread.incrementAndGet();
+                    }
+                    Thread.yield();
+                    inFlight[set].set(false);
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(0, overlaps.get());
+        assertEquals(0, wrongThread.get());
+        executor.shutdown();
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "An unlocked KVServer serves concurrent clients through lanes")
+    public void unlockedServerThroughLanes() throws Exception {
+        String hostname = InetAddress.getLocalHost().getHostAddress();
+        final SocketServer ss = new SelectorSocketServer(hostname);
+        final KeyAffinityExecutor executor = new KeyAffinityExecutor(10, 4);
+        ss.addHandler(new ServerClientHandler(new KVServer(10, 3, false),
+                new ThreadPool(4), executor));
+        ServerRunner serverRunner = new ServerRunner(ss, "affinityServer");
+        serverRunner.start();
+        try {
+            final String host = hostname;
+            final AtomicInteger failures = new AtomicInteger();
+            List<Thread> clients = new ArrayList<Thread>();
+            for (int c = 0; c < 8; c++) {
+                final int id = c;
+                Thread client = new Thread() {
+                    @Override
+                    public void run() {
+                        KVClient client = new KVClient(host, ss.getPort(), true);
+                        try {
+                            for (int i = 0; i < 50; i++) {
+                                client.put("key" + id + "-" + i, "value" + i);
+                            }
+                            for (int i = 0; i < 50; i++) {
+                                if (!("value" + i).equals(client.get("key" + id + "-" + i))) {
+                                    failures.incrementAndGet();
+                                }
+                            }
+                        } catch (KVException e) {
+                            failures.incrementAndGet();
+                        } finally {
+                            client.close();
+                        }
+                    }
+                };
+                client.start();
+                clients.add(client);
+            }
+            for (Thread client : clients) {
+                client.join();
+            }
+            assertEquals(0, failures.get());
+        } finally {
+            serverRunner.stop();
+            executor.shutdown();
+        }
+    }
+
+    private static String keyInSet(int set, int numSets) {
+        for (int i = 0; ; i++) {
+            String key = "key" + i;
+            if (KVCache.setOf(key, numSets) == set) {
+                return key;
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package kvstore;
+
+import static autograder.TestUtils.kTimeoutDefault;
+import static autograder.TestUtils.kTimeoutQuick;
+import static org.junit.Assert.*;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import autograder.AGCategories.AGTestDetails;
+import autograder.AGCategories.AG_PROJ3_CODE;
+
+public class KeyFilterTest {
+
+    /* Counts the lookups that get past the filter */
+    private static class CountingStore extends KVStore {
+        final AtomicInteger lookups = new AtomicInteger();
+
+        @Override
+        public boolean hasKey(String key) {
+            lookups.incrementAndGet();
+            return super.hasKey(key);
+        }
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "Missing keys are turned away without asking the store")
+    public void missesSkipTheStore() throws Exception {
+        CountingStore store = new CountingStore();
+        KVServer server = new KVServer(new KVCache(10, 10), store, true);
+        for (int i = 0; i < 2000; i++) {
+            server.put("key" + i, "value" + i);
+        }
+        server.hasKey("key0");
+        while (!server.getKeyFilter().isBuilt()) {
+            Thread.sleep(5);
+        }
+        for (int i = 2000; i < 3000; i++) {
+            server.put("key" + i, "value" + i);
+        }
+        for (int i = 0; i < 3000; i++) {
+            assertTrue(server.hasKey("key" + i));
+        }
+        store.lookups.set(0);
+        for (int i = 0; i < 10000; i++) {
+            assertFalse(server.hasKey("missing" + i));
+        }
+        assertTrue(store.lookups.get() < 300);
+
+        server.del("key7");
+        assertFalse(server.hasKey("key7"));
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "A rebuild keeps keys put while it walks the store")
+    public void rebuildKeepsConcurrentPuts() throws Exception {
+        final KVStore store = new KVStore();
+        final KeyFilter filter = new KeyFilter(store);
+        filter.rebuild();
+        Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; t++) {
+            final int id = t;
+            writers[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 20000; i++) {
+                        String key = id + "-" + i;
+                        store.put(key, "v");
+                        filter.added(key);
+                    }
+                }
+            };
+            writers[t].start();
+        }
+        for (int round = 0; round < 5; round++) {
+            filter.rebuild();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        for (int t = 0; t < writers.length; t++) {
+            for (int i = 0; i < 20000; i++) {
+                assertTrue(filter.mightContain(t + "-" + i));
+            }
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package kvstore;
+
+import static autograder.TestUtils.kTimeoutDefault;
+import static autograder.TestUtils.kTimeoutQuick;
+import static kvstore.KVConstants.ERROR_NO_SUCH_KEY;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import autograder.AGCategories.AGTestDetails;
+import autograder.AGCategories.AG_PROJ3_CODE;
+
+public class LSMKVStoreTest {
+
+    private File dir;
+
+    @Before
+    public void createDir() throws IOException {
+        dir = Files.createTempDirectory("lsm").toFile();
+    }
+
+    @After
+    public void deleteDir() {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "Bloom filter never misses an added key and rarely matches others")
+    public void bloomFilterFalsePositives() {
+        BloomFilter filter = new BloomFilter(1000, 10);
+        for (int i = 0; i < 1000; i++) {
+            filter.add("key" + i);
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(filter.mightContain("key" + i));
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (filter.mightContain("other" + i)) {
+                falsePositives++;
+            }
+        }
+        assertTrue(falsePositives < 300);
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "LSM store keeps the newest values through flushes and compactions")
+    public void newestValuesSurviveCompaction() throws Exception {
+        LSMKVStore store = new LSMKVStore(dir, 4096, false);
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 500; i++) {
+                store.put(String.format("key%04d", i), "value" + round + "-" + i);
+            }
+        }
+        for (int i = 0; i < 500; i += 2) {
+            store.del(String.format("key%04d", i));
+        }
+        store.awaitCompaction();
+        int[] counts = store.getTableCounts();
+        assertTrue(counts[0] < 4);
+        assertTrue(counts[1] > 0);
+
+        for (int i = 0; i < 500; i++) {
+            String key = String.format("key%04d", i);
+            if (i % 2 == 0) {
+                assertFalse(store.hasKey(key));
+            } else {
+                assertEquals("value4-" + i, store.get(key));
+            }
+        }
+        try {
+            store.del("key0000");
+            fail("key was deleted");
+        } catch (KVException e) {
+            assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+
+        Iterator<Entry<String, String>> pairs = store.entries().iterator();
+        for (int i = 1; i < 500; i += 2) {
+            Entry<String, String> pair = pairs.next();
+            assertEquals(String.format("key%04d", i), pair.getKey());
+            assertEquals("value4-" + i, pair.getValue());
+        }
+        assertFalse(pairs.hasNext());
+
+        List<Entry<String, String>> range = store.scan("key0100", "key0110", 3);
+        assertEquals(3, range.size());
+        assertEquals("key0101", range.get(0).getKey());
+        assertEquals("value4-105", range.get(2).getValue());
+        assertEquals(5, store.scan("key0100", "key0110", 10).size());
+        store.close();
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "LSM store reads back its tables and log when reopened")
+    public void reopenRecoversTablesAndLog() throws Exception {
+        LSMKVStore store = new LSMKVStore(dir, 4096, false);
+        for (int i = 0; i < 300; i++) {
+            store.put("key" + i, "value" + i);
+        }
+        store.awaitCompaction();
+        store.put("key7", "rewritten");
+        store.del("key8");
+        store.close();
+
+        store = new LSMKVStore(dir, 4096, false);
+        assertEquals("rewritten", store.get("key7"));
+        assertEquals("value299", store.get("key299"));
+        assertFalse(store.hasKey("key8"));
+        assertFalse(store.hasKey("missing"));
+        store.close();
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "LSM store keeps deadlines in its tables and log")
+    public void deadlinesSurviveReopen() throws Exception {
+        LSMKVStore store = new LSMKVStore(dir, 4096, false);
+        long later = System.currentTimeMillis() + 60000;
+        store.put("inTable", "abc", later);
+        for (int i = 0; i < 300; i++) {
+            store.put("key" + i, "value" + i);
+        }
+        store.awaitCompaction();
+        store.put("inLog", "def", later + 1);
+        store.put("key7", "no longer expires", 0);
+        store.close();
+
+        store = new LSMKVStore(dir, 4096, false);
+        assertEquals(later, store.getExpiresAt("inTable"));
+        assertEquals(later + 1, store.getExpiresAt("inLog"));
+        assertEquals(0, store.getExpiresAt("key7"));
+        assertEquals(2, store.deadlines().size());
+        KVServer server = new KVServer(new KVCache(10, 10), store, true);
+        assertTrue(server.getTtl("inTable") > 0);
+        assertEquals("abc", server.get("inTable"));
+        store.close();
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "LSM store deletes merged tables once an abandoned snapshot is closed")
+    public void closedSnapshotReleasesTables() throws Exception {
+        LSMKVStore store = new LSMKVStore(dir, 4096, false);
+        for (int i = 0; i < 500; i++) {
+            store.put(String.format("key%04d", i), "value" + i);
+        }
+        store.awaitCompaction();
+        KVStore.Snapshot snapshot = store.snapshot();
+        Iterator<Entry<String, String>> pairs = snapshot.iterator();
+        assertEquals("key0000", pairs.next().getKey());
+        snapshot.close();
+        try {
+            snapshot.iterator();
+            fail("iterated a closed snapshot");
+        } catch (IllegalStateException e) {
+        }
+
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 500; i++) {
+                store.put(String.format("key%04d", i), "value" + round);
+            }
+        }
+        store.awaitCompaction();
+        int tables = 0;
+        for (int count : store.getTableCounts()) {
+            tables += count;
+        }
+        // the last compaction deletes what it merged away just after it returns
+        while (tableFiles() != tables) {
+            Thread.sleep(10);
+        }
+        store.close();
+    }
+
+    private int tableFiles() {
+        int files = 0;
+        for (File file : dir.listFiles()) {
+            if (file.getName().endsWith(".sst")) {
+                files++;
+            }
+        }
+        return files;
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "LSM store reports a failed flush instead of leaving writers waiting")
+    public void failedFlushIsReported() throws Exception {
+        LSMKVStore store = new LSMKVStore(dir, 4096, false);
+        // no table can be written where a directory is in the way
+        List<File> blockers = new ArrayList<File>();
+        for (int id = 0; id < 100; id++) {
+            File blocker = new File(dir, String.format("%09d", id) + ".sst");
+            assertTrue(blocker.mkdir());
+            blockers.add(blocker);
+        }
+        int puts = 0;
+        try {
+            while (true) {
+                store.put("key" + puts, "value" + puts);
+                puts++;
+            }
+        } catch (IllegalStateException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        } finally {
+            for (File blocker : blockers) {
+                blocker.delete();
+            }
+        }
+        // the frozen memtable is written out on the next try
+        assertEquals("value0", store.get("key0"));
+        store.awaitCompaction();
+        store.put("after", "value");
+        store.close();
+
+        store = new LSMKVStore(dir, 4096, false);
+        assertEquals("value" + (puts - 1), store.get("key" + (puts - 1)));
+        assertEquals("value", store.get("after"));
+        store.close();
+    }
+}
@@ -0,0 +1,112 @@
+package kvstore;
+
+import static autograder.TestUtils.kTimeoutQuick;
+import static kvstore.KVConstants.ERROR_NO_SUCH_KEY;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map.Entry;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import autograder.AGCategories.AGTestDetails;
+import autograder.AGCategories.AG_PROJ3_CODE;
+
+public class OffHeapKVStoreTest {
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "Slab chunks are reused once freed and run out at capacity")
+    public void allocatorReusesChunks() {
+        SlabAllocator allocator = new SlabAllocator(SlabAllocator.PAGE_SIZE);
+        byte[] data = new byte[1000];
+        Arrays.fill(data, (byte) 7);
+        long first = allocator.store(data);
+        assertTrue(Arrays.equals(data, allocator.load(first)));
+        assertTrue(allocator.getUsedBytes() >= 1004);
+        allocator.free(first);
+        assertEquals(0, allocator.getUsedBytes());
+        assertEquals(first, allocator.store(new byte[990]));
+        assertEquals(990, allocator.load(first).length);
+
+        // the only page now belongs to the class of 1000-byte values
+        assertEquals(SlabAllocator.NO_SPACE, allocator.store(new byte[10]));
+        assertEquals(SlabAllocator.NO_SPACE, allocator.store(new byte[SlabAllocator.PAGE_SIZE]));
+        assertEquals(SlabAllocator.PAGE_SIZE, allocator.getReservedBytes());
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "Off-heap store puts, replaces, gets and dels values")
+    public void putGetDel() throws KVException {
+        SlabAllocator allocator = new SlabAllocator(4 * SlabAllocator.PAGE_SIZE);
+        KVStore store = new OffHeapKVStore(allocator);
+        store.put("key", "value");
+        store.put("unicode", "café ☃");
+        assertEquals("value", store.get("key"));
+        assertEquals("café ☃", store.get("unicode"));
+        store.put("key", "another value");
+        assertEquals("another value", store.get("key"));
+        store.del("key");
+        try {
+            store.get("key");
+            fail("key was deleted");
+        } catch (KVException e) {
+            assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+        store.del("unicode");
+        assertEquals(0, allocator.getUsedBytes());
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "Off-heap store keeps values on the heap once full, and restores")
+    public void fullStoreFallsBackAndRestores() throws KVException, IOException {
+        KVStore store = new OffHeapKVStore(new SlabAllocator(SlabAllocator.PAGE_SIZE));
+        char[] big = new char[200 * 1024];
+        Arrays.fill(big, 'b');
+        for (int i = 0; i < 10; i++) {
+            store.put("key" + i, i + new String(big));
+        }
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i + new String(big), store.get("key" + i));
+        }
+
+        File file = File.createTempFile("offheap", ".xml");
+        try {
+            store.dumpToFile(file.getPath());
+            KVStore restored = new OffHeapKVStore(new SlabAllocator(4 * SlabAllocator.PAGE_SIZE));
+            restored.restoreFromFile(file.getPath());
+            assertEquals(3 + new String(big), restored.get("key3"));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "Off-heap store reads each value only as a dump reaches it")
+    public void entriesDecodeLazily() throws KVException {
+        KVStore store = new OffHeapKVStore(new SlabAllocator(4 * SlabAllocator.PAGE_SIZE));
+        for (int i = 0; i < 100; i++) {
+            store.put("key" + i, "old");
+        }
+        Iterator<Entry<String, String>> pairs = store.entries().iterator();
+        for (int i = 0; i < 100; i++) {
+            store.put("key" + i, "new");
+        }
+        store.del("key0");
+        int count = 0;
+        while (pairs.hasNext()) {
+            Entry<String, String> pair = pairs.next();
+            assertFalse("key0".equals(pair.getKey()));
+            assertEquals("new", pair.getValue());
+            count++;
+        }
+        assertEquals(99, count);
+    }
+}
@@ -0,0 +1,152 @@
+package kvstore;
+
+import static autograder.TestUtils.kTimeoutDefault;
+import static kvstore.KVConstants.*;
+import static kvstore.Utils.assertKVExceptionEquals;
+import static org.junit.Assert.*;
+
+import java.io.DataOutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import autograder.AGCategories.AGTestDetails;
+import autograder.AGCategories.AG_PROJ3_CODE;
+
+public class SelectorSocketServerTest {
+
+    String hostname;
+    SocketServer ss;
+    ServerRunner serverRunner;
+
+    private void startServer(NetworkHandler handler, int loops) throws Exception {
+        hostname = InetAddress.getLocalHost().getHostAddress();
+        ss = new SelectorSocketServer(hostname, 0, loops);
+        ss.addHandler(handler);
+        serverRunner = new ServerRunner(ss, "selectorServer");
+        serverRunner.start();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (serverRunner != null) {
+            serverRunner.stop();
+        }
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "One-shot and persistent clients are served by the event loop")
+    public void servesOneShotAndPersistentClients() throws Exception {
+        startServer(new ServerClientHandler(new KVServer(10, 10), 1), 1);
+        KVClient oneShot = new KVClient(hostname, ss.getPort());
+        KVClient persistent = new KVClient(hostname, ss.getPort(), true);
+        try {
+            oneShot.put("foo", "bar");
+            assertEquals("bar", persistent.get("foo"));
+            persistent.put("foo", "baz");
+            assertEquals("baz", oneShot.get("foo"));
+            oneShot.del("foo");
+            try {
+                persistent.get("foo");
+                fail("get of deleted key did not throw");
+            } catch (KVException kve) {
+                assertKVExceptionEquals(ERROR_NO_SUCH_KEY, kve);
+            }
+        } finally {
+            persistent.close();
+        }
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Idle connections do not hold on to worker threads")
+    public void manyConnectionsFewWorkers() throws Exception {
+        startServer(new ServerClientHandler(new KVServer(10, 10), 2), 2);
+        List<KVClient> clients = new ArrayList<KVClient>();
+        try {
+            for (int i = 0; i < 200; i++) {
+                KVClient client = new KVClient(hostname, ss.getPort(), true);
+                client.put("key" + i, "value" + i);
+                clients.add(client);
+            }
+            for (int i = 0; i < clients.size(); i++) {
+                assertEquals("value" + i, clients.get(i).get("key" + i));
+            }
+        } finally {
+            for (KVClient client : clients) {
+                client.close();
+            }
+        }
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Pipelined requests are answered in order")
+    public void pipelinedRequestsAnsweredInOrder() throws Exception {
+        startServer(new ServerClientHandler(new KVServer(10, 10), 4), 1);
+        KVConnection conn = new KVConnection(new Socket(hostname, ss.getPort()));
+        conn.connect(KVConnection.CODEC_BINARY, 1000);
+        try {
+            for (int i = 0; i < 20; i++) {
+                KVMessage put = new KVMessage(PUT_REQ);
+                put.setKey("key" + i);
+                put.setValue("value" + i);
+                conn.send(put);
+                KVMessage get = new KVMessage(GET_REQ);
+                get.setKey("key" + i);
+                conn.send(get);
+            }
+            for (int i = 0; i < 20; i++) {
+                assertEquals(SUCCESS, conn.receive(1000).getMessage());
+                assertEquals("value" + i, conn.receive(1000).getValue());
+            }
+        } finally {
+            conn.close();
+        }
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Oversized frame is answered with an error and the connection closed")
+    public void rejectsOversizedFrame() throws Exception {
+        startServer(new ServerClientHandler(new KVServer(10, 10), 1), 1);
+        KVConnection conn = new KVConnection(new Socket(hostname, ss.getPort()));
+        conn.connect(1000);
+        try {
+            DataOutputStream out = new DataOutputStream(conn.getSocket().getOutputStream());
+            out.writeInt(KVConnection.MAX_FRAME_SIZE + 1);
+            out.flush();
+            assertEquals(ERROR_INVALID_FORMAT, conn.receive(1000).getMessage());
+            assertNull(conn.receive(1000));
+        } finally {
+            conn.close();
+        }
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "A plain NetworkHandler is handed the socket itself")
+    public void plainHandlerGetsSocket() throws Exception {
+        final ServerClientHandler inner = new ServerClientHandler(new KVServer(10, 10), 1);
+        startServer(new NetworkHandler() {
+            @Override
+            public void handle(Socket sock) {
+                inner.handle(sock);
+            }
+        }, 1);
+        KVClient client = new KVClient(hostname, ss.getPort());
+        client.put("foo", "bar");
+        assertEquals("bar", client.get("foo"));
+    }
+}
@@ -0,0 +1,52 @@
+package kvstore;
+
+import static autograder.TestUtils.kTimeoutDefault;
+import static kvstore.KVConstants.COMMIT;
+import static kvstore.KVConstants.PUT_REQ;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import autograder.AGCategories.AGTestDetails;
+import autograder.AGCategories.AG_PROJ4_CODE;
+
+public class TPCLogTest {
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ4_CODE.class)
+    @AGTestDetails(points = 1, desc = "A replayed PUT keeps the deadline it was logged with")
+    public void replayKeepsDeadlines() throws Exception {
+        File file = File.createTempFile("tpclog", ".log");
+        try {
+            TPCLog log = new TPCLog(file.getPath(), new KVServer(10, 10));
+            commit(log, "session", "before", 0);
+            commit(log, "session", "after", 200);
+            commit(log, "token", "abc", 60000);
+            Thread.sleep(250);
+
+            KVServer restarted = new KVServer(10, 10);
+            new TPCLog(file.getPath(), restarted);
+            // expired while down, so neither value comes back
+            assertFalse(restarted.hasKey("session"));
+            long ttl = restarted.getTtl("token");
+            assertTrue(ttl > 0 && ttl <= 60000 - 250);
+            assertEquals("abc", restarted.get("token"));
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static void commit(TPCLog log, String key, String value, long ttl) {
+        KVMessage put = new KVMessage(PUT_REQ);
+        put.setKey(key);
+        put.setValue(value);
+        put.setTtl(ttl);
+        log.appendAndFlush(put);
+        log.appendAndFlush(new KVMessage(COMMIT));
+    }
+}
@@ -0,0 +1,95 @@
+package kvstore;
+
+import static autograder.TestUtils.kTimeoutSlow;
+import static kvstore.KVConstants.SCAN_REQ;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import autograder.AGCategories.AGTestDetails;
+import autograder.AGCategories.AG_PROJ4_CODE;
+
+public class TPCMasterScanTest extends TPCEndToEndTemplate {
+
+    static final int NUMKEYS = 20;
+
+    /* Every key, in order, each stored on its two replicas */
+    List<String> keys;
+
+    @Before
+    public void putKeys() throws KVException {
+        keys = new ArrayList<String>();
+        for (int i = 0; i < NUMKEYS; i++) {
+            String key = String.format("key%02d", i);
+            client.put(key, "value" + i);
+            keys.add(key);
+        }
+    }
+
+    @Test(timeout = kTimeoutSlow)
+    @Category(AG_PROJ4_CODE.class)
+    @AGTestDetails(points = 1, desc = "A scan merges the pages of all slaves into the smallest keys, each once")
+    public void scanMergesReplicas() throws KVException {
+        KVMessage page = master.handleScan(request("", null, 5));
+        assertEquals(keys.subList(0, 5), keysOf(page));
+        assertEquals("value0", page.getPairs().get(0).getValue());
+        assertEquals("key04", page.getToken());
+
+        page = master.handleScan(request("key07", "key10", 5));
+        assertEquals(keys.subList(7, 10), keysOf(page));
+        assertNull(page.getToken());
+    }
+
+    @Test(timeout = kTimeoutSlow)
+    @Category(AG_PROJ4_CODE.class)
+    @AGTestDetails(points = 1, desc = "A scan goes on from its token without repeating or skipping keys")
+    public void scanResumesFromToken() throws KVException {
+        assertEquals(keys, scanAll(3));
+    }
+
+    @Test(timeout = kTimeoutSlow)
+    @Category(AG_PROJ4_CODE.class)
+    @AGTestDetails(points = 1, desc = "A scan still sees every key with one slave down")
+    public void scanSurvivesOneSlave() throws Exception {
+        stopSlave(Long.toString(SLAVE3));
+        assertEquals(keys.subList(0, 4), keysOf(master.handleScan(request("", null, 4))));
+        assertEquals(keys, scanAll(4));
+    }
+
+    /* Scans every key, a page of limit pairs at a time. */
+    private List<String> scanAll(int limit) throws KVException {
+        List<String> scanned = new ArrayList<String>();
+        String token = null;
+        do {
+            KVMessage msg = request("", null, limit);
+            msg.setToken(token);
+            KVMessage page = master.handleScan(msg);
+            scanned.addAll(keysOf(page));
+            token = page.getToken();
+        } while (token != null);
+        return scanned;
+    }
+
+    private static KVMessage request(String start, String end, int limit) {
+        KVMessage msg = new KVMessage(SCAN_REQ);
+        msg.setKey(start);
+        msg.setEnd(end);
+        msg.setLimit(limit);
+        return msg;
+    }
+
+    private static List<String> keysOf(KVMessage page) {
+        List<String> pageKeys = new ArrayList<String>();
+        for (Entry<String, String> pair : page.getPairs()) {
+            pageKeys.add(pair.getKey());
+        }
+        return pageKeys;
+    }
+}
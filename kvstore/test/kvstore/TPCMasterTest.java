@@ -167,6 +167,41 @@ public class TPCMasterTest {
 	        fail("This shouldn't fail");
 	    }
 	}
-	
 
-}
\ No newline at end of file
+	@Test
+	public void testMissingKeyRemembered() throws Exception {
+		master = new TPCMaster(2, new KVCache(5, 5));
+		slave1 = mock(TPCSlaveInfo.class);
+		slave2 = mock(TPCSlaveInfo.class);
+
+		Socket sockMock = mock(Socket.class);
+		KVMessage kvmGetMock = mock(KVMessage.class);
+		KVMessage kvmRespMock = mock(KVMessage.class);
+
+		PowerMockito.whenNew(KVMessage.class).withArguments(GET_REQ).thenReturn(kvmGetMock);
+		PowerMockito.whenNew(KVMessage.class).withArguments(any(Socket.class), any(Integer.class)).thenReturn(kvmRespMock);
+
+		when(slave1.connectHost(any(Integer.class))).thenReturn(sockMock);
+		when(slave2.connectHost(any(Integer.class))).thenReturn(sockMock);
+		when(slave1.getSlaveID()).thenReturn(1L);
+		when(slave2.getSlaveID()).thenReturn(2L);
+		when(kvmGetMock.getKey()).thenReturn("missing");
+		when(kvmRespMock.getMsgType()).thenReturn(RESP);
+		when(kvmRespMock.getMessage()).thenReturn(ERROR_NO_SUCH_KEY);
+
+		master.registerSlave(slave1);
+		master.registerSlave(slave2);
+		KVMessage msg = new KVMessage(GET_REQ);
+		for (int i = 0; i < 2; i++) {
+			try {
+				master.handleGet(msg);
+				fail("missing key was found");
+			} catch (KVException kve) {
+				assertEquals(ERROR_NO_SUCH_KEY, kve.getKVMessage().getMessage());
+			}
+		}
+		//Both replicas were asked once, for the first GET only
+		verify(kvmGetMock, times(2)).sendMessage(any(Socket.class));
+	}
+
+}
@@ -0,0 +1,110 @@
+package kvstore;
+
+import java.util.LinkedList;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures how many jobs per second a ThreadPool can take in and run, with
+ * several threads adding short jobs at once, comparing ThreadPool against
+ * the pool it replaced: a LinkedList guarded by the pool's monitor, with
+ * wait() and notify(). Each pool size is measured in turn.
+ *
+ * Run with: ant runbench -Dbench=ThreadPoolBenchmark
+ * or pass the number of jobs to time for each case as the first argument.
+ */
+public class ThreadPoolBenchmark {
+
+    private static final int[] WORKERS = {1, 4, 16, 64};
+    private static final int PRODUCERS = 4;
+
+    public static void main(String[] args) throws Exception {
+        int jobs = (args.length > 0) ? Integer.parseInt(args[0]) : 2000000;
+
+        for (int workers : WORKERS) {
+            MonitorPool monitor = new MonitorPool(workers);
+            report("monitor pool  " + workers, jobs, monitor);
+
+            ThreadPool pool = new ThreadPool(workers);
+            report("ThreadPool    " + workers, jobs, pool);
+            pool.shutdown();
+            pool.awaitTermination(1000);
+        }
+    }
+
+    private static void report(String name, int jobs, Object pool) throws Exception {
+        // warm up so the JIT has compiled the hot path
+        run(pool, jobs / 10);
+        long start = System.nanoTime();
+        run(pool, jobs);
+        long nanos = System.nanoTime() - start;
+        System.out.format("%s workers %,14d jobs/s%n", name, jobs * 1000000000L / nanos);
+    }
+
+    private static void run(final Object pool, int jobs) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(jobs);
+        final Runnable job = new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        };
+        final int perProducer = jobs / PRODUCERS;
+        Thread[] producers = new Thread[PRODUCERS];
+        for (int i = 0; i < PRODUCERS; i++) {
+            final int count = (i == 0) ? jobs - perProducer * (PRODUCERS - 1) : perProducer;
+            producers[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < count; j++) {
+                        if (pool instanceof ThreadPool) {
+                            ((ThreadPool) pool).addJob(job);
+                        } else {
+                            ((MonitorPool) pool).addJob(job);
+                        }
+                    }
+                }
+            };
+            producers[i].start();
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        done.await();
+    }
+
+    /* The ThreadPool this benchmark was written to replace. */
+    private static class MonitorPool {
+        private final LinkedList<Runnable> jobQueue = new LinkedList<Runnable>();
+
+        MonitorPool(int size) {
+            for (int i = 0; i < size; i++) {
+                Thread thread = new Thread() {
+                    @Override
+                    public void run() {
+                        while (true) {
+                            try {
+                                getJob().run();
+                            } catch (InterruptedException e) {
+                                return;
+                            }
+                        }
+                    }
+                };
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+
+        synchronized void addJob(Runnable r) {
+            jobQueue.addLast(r);
+            notify();
+        }
+
+        synchronized Runnable getJob() throws InterruptedException {
+            while (jobQueue.size() == 0) {
+                wait();
+            }
+            return jobQueue.removeFirst();
+        }
+    }
+}
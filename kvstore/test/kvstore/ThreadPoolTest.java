@@ -1,5 +1,12 @@
 package kvstore;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static org.junit.Assert.*;
@@ -143,4 +150,210 @@ public class ThreadPoolTest {
             assertTrue("A thread didn't increment the correct array entry", array[i] == i);
         }
     }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Shutdown runs queued jobs, then every worker exits")
+    public void testShutdown() throws InterruptedException {
+        threadPool = new ThreadPool(2);
+        threadPool.addJob(s);
+        threadPool.addJob(s);
+        threadPool.addJob(s);
+        threadPool.shutdown();
+        assertTrue(threadPool.awaitTermination(2000));
+        assertEquals(3, count);
+        try {
+            threadPool.addJob(r);
+            fail("addJob after shutdown did not throw");
+        } catch (IllegalStateException e) {
+        }
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "A failing or interrupted job does not stop its worker")
+    public void testWorkerSurvivesFailures() throws InterruptedException {
+        threadPool = new ThreadPool(1);
+        threadPool.addJob(new Runnable() {
+            @Override
+            public void run() {
+                throw new RuntimeException("expected by test");
+            }
+        });
+        threadPool.addJob(new Runnable() {
+            @Override
+            public void run() {
+                Thread.currentThread().interrupt();
+            }
+        });
+        threadPool.threads[0].interrupt();
+        final CountDownLatch ran = new CountDownLatch(1);
+        threadPool.addJob(new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+            }
+        });
+        assertTrue(ran.await(1, TimeUnit.SECONDS));
+        threadPool.shutdown();
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "A job that throws, when run or shed, is reported to jobFailed")
+    public void testJobFailuresReported() throws InterruptedException {
+        final List<Runnable> failed = Collections.synchronizedList(new ArrayList<Runnable>());
+        threadPool = new ThreadPool(1, 1, 0) {
+            @Override
+            protected void jobFailed(Runnable job, RuntimeException e) {
+                failed.add(job);
+            }
+        };
+        CountDownLatch release = new CountDownLatch(1);
+        threadPool.addJob(blockUntil(release));
+        Thread.sleep(100);
+        Sheddable failing = new Sheddable() {
+            @Override
+            public void run() {
+                throw new RuntimeException("expected by test");
+            }
+
+            @Override
+            public void shed() {
+                throw new RuntimeException("expected by test");
+            }
+        };
+        threadPool.addJob(failing);
+        // the queue is full, so this one is shed
+        threadPool.addJob(failing);
+        release.countDown();
+        threadPool.shutdown();
+        assertTrue(threadPool.awaitTermination(1000));
+        assertEquals(Arrays.asList(failing, failing), failed);
+    }
+
+    @Test(timeout = kTimeoutSlow)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Jobs added concurrently from many threads are all run")
+    public void testConcurrentProducers() throws InterruptedException {
+        threadPool = new ThreadPool(8);
+        final int producers = 8;
+        final int jobs = 20000;
+        final AtomicInteger ran = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(producers * jobs);
+        final Runnable job = new Runnable() {
+            @Override
+            public void run() {
+                ran.incrementAndGet();
+                done.countDown();
+            }
+        };
+        for (int i = 0; i < producers; i++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < jobs; j++) {
+                        threadPool.addJob(job);
+                        if (j % 1000 == 0) {
+                            // let workers go idle now and then
+                            Thread.yield();
+                        }
+                    }
+                }
+            }.start();
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(producers * jobs, ran.get());
+        threadPool.shutdown();
+    }
+
+    /* Counts how often it is run and shed. */
+    private static class CountingJob implements Sheddable {
+        final AtomicInteger ran = new AtomicInteger();
+        final AtomicInteger shed = new AtomicInteger();
+        final long sleep;
+
+        CountingJob(long sleep) {
+            this.sleep = sleep;
+        }
+
+        @Override
+        public void run() {
+            try {
+                Thread.sleep(sleep);
+            } catch (InterruptedException e) {
+            }
+            ran.incrementAndGet();
+        }
+
+        @Override
+        public void shed() {
+            shed.incrementAndGet();
+        }
+    }
+
+    private static Runnable blockUntil(final CountDownLatch latch) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                }
+            }
+        };
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "A full queue sheds Sheddable jobs but still takes others")
+    public void testQueueBound() throws InterruptedException {
+        threadPool = new ThreadPool(1, 2, 0);
+        CountDownLatch release = new CountDownLatch(1);
+        threadPool.addJob(blockUntil(release));
+        Thread.sleep(100);
+        CountingJob job = new CountingJob(0);
+        for (int i = 0; i < 4; i++) {
+            threadPool.addJob(job);
+        }
+        assertEquals(2, job.shed.get());
+        threadPool.addJob(r);
+        release.countDown();
+        threadPool.shutdown();
+        assertTrue(threadPool.awaitTermination(1000));
+        assertEquals(2, job.ran.get());
+        assertEquals(1, count);
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Jobs are shed once queueing delay stays above target")
+    public void testQueueDelayTarget() throws InterruptedException {
+        threadPool = new ThreadPool(1, 0, 10);
+        CountDownLatch release = new CountDownLatch(1);
+        threadPool.addJob(blockUntil(release));
+        CountingJob job = new CountingJob(70);
+        for (int i = 0; i < 5; i++) {
+            threadPool.addJob(job);
+        }
+        Thread.sleep(300);
+        release.countDown();
+        // dequeued 0 and 70ms into the slow period: run; 140ms in and later: shed
+        Thread.sleep(400);
+        assertEquals(2, job.ran.get());
+        assertEquals(3, job.shed.get());
+
+        // the queue has drained, so a new job runs
+        CountingJob fresh = new CountingJob(0);
+        threadPool.addJob(fresh);
+        threadPool.shutdown();
+        assertTrue(threadPool.awaitTermination(1000));
+        assertEquals(1, fresh.ran.get());
+    }
 }
@@ -0,0 +1,61 @@
+package kvstore;
+
+import static autograder.TestUtils.kTimeoutQuick;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import autograder.AGCategories.AGTestDetails;
+import autograder.AGCategories.AG_PROJ3_CODE;
+
+public class TimingWheelTest {
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Keys come due on their tick and not before")
+    public void keysDueOnTheirTick() {
+        TimingWheel wheel = new TimingWheel(10, 1000);
+        wheel.schedule("a", 1025);
+        wheel.schedule("b", 1040);
+        wheel.schedule("c", 1000);
+        assertEquals(Arrays.asList("c"), wheel.advance(1000));
+        assertEquals(new ArrayList<String>(), wheel.advance(1020));
+        // deadlines round up to a tick
+        assertEquals(Arrays.asList("a"), wheel.advance(1030));
+        assertEquals(Arrays.asList("b"), wheel.advance(1045));
+        assertEquals(0, wheel.getPending());
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Far deadlines cascade down the wheels in order")
+    public void farDeadlinesCascade() {
+        TimingWheel wheel = new TimingWheel(1, 0);
+        long[] deadlines = {63, 64, 65, 4095, 4096, 4097, 300000, 1L << 24, (1L << 24) + 5,
+                (1L << 26) + 7};
+        for (int i = deadlines.length - 1; i >= 0; i--) {
+            wheel.schedule("k" + i, deadlines[i]);
+        }
+        List<String> due = new ArrayList<String>();
+        long now = 0;
+        for (int i = 0; i < deadlines.length; i++) {
+            // advance in uneven steps, checking nothing comes early
+            while (now < deadlines[i] - 1) {
+                now = Math.min(deadlines[i] - 1, now + 997);
+                assertTrue(wheel.advance(now).isEmpty());
+            }
+            now = deadlines[i];
+            due.addAll(wheel.advance(now));
+            assertEquals("k" + i, due.get(due.size() - 1));
+        }
+        assertEquals(deadlines.length, due.size());
+        assertEquals(0, wheel.getPending());
+    }
+}
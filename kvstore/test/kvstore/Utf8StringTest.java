@@ -0,0 +1,85 @@
+package kvstore;
+
+import static autograder.TestUtils.kTimeoutQuick;
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import autograder.AGCategories.AGTestDetails;
+import autograder.AGCategories.AG_PROJ3_CODE;
+
+public class Utf8StringTest {
+
+    private static final char[] CHARS = {
+        'a', 'z', '\u0000', '\u00e9', '\u07ff', '\u0800', '\u2603', '\ud7ff', '\ue000', '\uffff'
+    };
+
+    private static String randomString(Random random) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = random.nextInt(4); i > 0; i--) {
+            if (random.nextInt(4) == 0) {
+                sb.appendCodePoint(0x10000 + random.nextInt(0x100000));
+            } else {
+                sb.append(CHARS[random.nextInt(CHARS.length)]);
+            }
+        }
+        return sb.toString();
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "Utf8String hashes, compares and equals as String does")
+    public void agreesWithString() {
+        Random random = new Random(22);
+        for (int i = 0; i < 10000; i++) {
+            String a = randomString(random);
+            String b = randomString(random);
+            Utf8String ua = Utf8String.of(a);
+            Utf8String ub = Utf8String.intern(b);
+            assertEquals(a, ua.toString());
+            assertEquals(a.hashCode(), ua.hashCode());
+            assertEquals(Integer.signum(a.compareTo(b)), Integer.signum(ua.compareTo(ub)));
+            assertEquals(a.equals(b), ua.equals(ub));
+            assertEquals(a.equals(b), ub.contentEquals(a));
+            assertTrue(ua.contentEquals(a));
+        }
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "Interned keys are shared by the store and the cache")
+    public void internSharesKeys() throws KVException {
+        Utf8String key = Utf8String.intern("shared key");
+        assertSame(key, Utf8String.intern("shared " + "key".trim()));
+        assertEquals(10, key.length());
+        assertEquals(6, Utf8String.of("café!").length());
+
+        KVStore store = new KVStore();
+        store.put("shared key", "value");
+        assertSame(key, store.store.keySet().iterator().next());
+        assertEquals("value", store.get("shared key"));
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "Looking up missing keys leaves the interned keys alone")
+    public void lookupsDoNotIntern() throws KVException {
+        Utf8String key = Utf8String.intern("key in use");
+        assertSame(key, Utf8String.lookup("key in use"));
+        assertNotSame(Utf8String.lookup("never stored"), Utf8String.lookup("never stored"));
+
+        KVStore store = new KVStore();
+        KVCache cache = new KVCache(4, 4);
+        // enough misses to have taken every slot of the table several times over
+        for (int i = 0; i < 1 << 18; i++) {
+            String missing = "missing" + i;
+            assertFalse(store.hasKey(missing));
+            assertNull(cache.get(missing));
+            cache.del(missing);
+        }
+        assertSame(key, Utf8String.intern("key in use"));
+    }
+}
@@ -0,0 +1,94 @@
+package kvstore;
+
+import static autograder.TestUtils.kTimeoutDefault;
+import static autograder.TestUtils.kTimeoutQuick;
+import static org.junit.Assert.*;
+
+import java.net.InetAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import autograder.AGCategories.AGTestDetails;
+import autograder.AGCategories.AG_PROJ3_CODE;
+
+public class VirtualThreadPoolTest {
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Blocked jobs do not wait for each other to finish")
+    public void blockedJobsRunConcurrently() throws InterruptedException {
+        final int jobs = 200;
+        final CountDownLatch started = new CountDownLatch(jobs);
+        final CountDownLatch finished = new CountDownLatch(jobs);
+        ThreadPool threadPool = new VirtualThreadPool();
+        for (int i = 0; i < jobs; i++) {
+            threadPool.addJob(new Runnable() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    try {
+                        // blocks until every job has started
+                        if (started.await(2, TimeUnit.SECONDS)) {
+                            finished.countDown();
+                        }
+                    } catch (InterruptedException e) {
+                    }
+                }
+            });
+        }
+        assertTrue(finished.await(2, TimeUnit.SECONDS));
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "getJob blocks as an idle pool's would until shutdown")
+    public void getJobReturnsNullOnShutdown() throws InterruptedException {
+        final ThreadPool threadPool = new VirtualThreadPool();
+        final CountDownLatch returned = new CountDownLatch(1);
+        Thread worker = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    if (threadPool.getJob() == null) {
+                        returned.countDown();
+                    }
+                } catch (InterruptedException e) {
+                }
+            }
+        };
+        worker.start();
+        assertFalse(returned.await(100, TimeUnit.MILLISECONDS));
+        threadPool.shutdown();
+        assertTrue(returned.await(1, TimeUnit.SECONDS));
+        assertNull(threadPool.getJob());
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "An open connection does not stall other clients")
+    public void openConnectionDoesNotStallOthers() throws Exception {
+        String hostname = InetAddress.getLocalHost().getHostAddress();
+        SocketServer ss = new SocketServer(hostname);
+        ss.addHandler(new ServerClientHandler(new KVServer(10, 10), new VirtualThreadPool()));
+        ServerRunner serverRunner = new ServerRunner(ss, "virtualServer");
+        serverRunner.start();
+        KVClient persistent = new KVClient(hostname, ss.getPort(), true);
+        try {
+            persistent.put("foo", "bar");
+            // the persistent connection stays open on a thread of its own
+            KVClient oneShot = new KVClient(hostname, ss.getPort());
+            assertEquals("bar", oneShot.get("foo"));
+            oneShot.put("foo", "baz");
+            assertEquals("baz", persistent.get("foo"));
+        } finally {
+            persistent.close();
+            serverRunner.stop();
+        }
+    }
+}